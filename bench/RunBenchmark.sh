@@ -0,0 +1,4 @@
+#!/bin/sh
+# Builds jerklib , the RingBuffer of the app and the benchmarks for a plain JVM and runs one of them , from the project root:
+#   bench/RunBenchmark.sh RelayLatency [args]
+mkdir -p out/bench && javac -Xlint:all -d out/bench $(find src/jerklib bench/src -name '*.java') src/com/qweex/utils/RingBuffer.java && java -cp out/bench jerklib.bench."$@"
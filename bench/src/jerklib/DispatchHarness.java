@@ -0,0 +1,49 @@
+package jerklib;
+
+import java.util.concurrent.Executor;
+
+import jerklib.events.IRCEvent;
+import jerklib.events.IRCEvent.Type;
+import jerklib.listeners.IRCEventListener;
+import jerklib.tasks.Task;
+
+/**
+ * Gives benchmarks in jerklib.bench access to the package private
+ * ListenerRegistry and EventDispatcher a Session relays with.
+ */
+public class DispatchHarness
+{
+	private final ListenerRegistry registry = new ListenerRegistry();
+	private final EventDispatcher dispatcher;
+
+	public DispatchHarness(Executor executor)
+	{
+		dispatcher = new EventDispatcher(executor, registry, new SessionMetrics("bench"));
+	}
+
+	public void addListener(IRCEventListener listener)
+	{
+		registry.addListener(listener);
+	}
+
+	public void addTask(Task task, Type type)
+	{
+		registry.addTask(task, type);
+	}
+
+	/**
+	 * Relays on the calling thread
+	 */
+	public void fire(IRCEvent event)
+	{
+		registry.fire(event);
+	}
+
+	/**
+	 * Relays on the executor
+	 */
+	public void dispatch(IRCEvent event)
+	{
+		dispatcher.dispatch(event);
+	}
+}
@@ -0,0 +1,39 @@
+package jerklib;
+
+/**
+ * Gives benchmarks in jerklib.bench access to the package private recording
+ * methods of SessionMetrics.
+ */
+public class MetricsHarness
+{
+	private final SessionMetrics metrics = new SessionMetrics("irc.example.net");
+
+	/**
+	 * Records what a Session records for one line read , parsed and relayed
+	 * and one line written
+	 *
+	 * @param command command of the line
+	 * @param nanos a duration , used for every latency and the parse time
+	 * @param now System.nanoTime()
+	 */
+	public void recordLine(String command, long nanos, long now)
+	{
+		metrics.bytesRead(512);
+		metrics.lineRead();
+		metrics.parsed(command, nanos);
+		metrics.relayQueued(3);
+		metrics.relayed(now - nanos, now, 2);
+		metrics.bytesWritten(64);
+		metrics.lineWritten(now - nanos, now);
+		metrics.writeStalled();
+		metrics.reconnected();
+	}
+
+	/**
+	 * @return lines recorded
+	 */
+	public long getLinesIn()
+	{
+		return metrics.getLinesIn();
+	}
+}
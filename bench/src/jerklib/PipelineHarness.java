@@ -0,0 +1,178 @@
+package jerklib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import jerklib.events.IRCEvent;
+import jerklib.events.IRCEvent.Type;
+
+/**
+ * Gives benchmarks in jerklib.bench access to each stage a line read from a
+ * server goes through: framing , parsing , the internal event handler and
+ * relaying to listeners.
+ *
+ * The Session has a Connection whose channel is never connected , so writes
+ * like PONGs are queued and dropped with the Session. No io thread is started ,
+ * everything runs on the calling thread except relaying.
+ */
+public class PipelineHarness
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ConnectionManager manager = new ConnectionManager();
+	private final IoShard shard;
+	private Session session;
+	private SocketChannel channel;
+	private int lines;
+
+	/* reused like the read buffer of a Connection */
+	private ByteBuffer readBuffer = ByteBuffer.allocate(2048);
+
+	/* counts lines */
+	private final LineFramer counter = new LineFramer(UTF8)
+	{
+		void lineReceived(String line)
+		{
+			lines++;
+		}
+	};
+
+	/* keeps lines */
+	private final List<String> received = new ArrayList<String>();
+	private final LineFramer collector = new LineFramer(UTF8)
+	{
+		void lineReceived(String line)
+		{
+			received.add(line);
+		}
+	};
+
+	/* hands lines on like the io thread does */
+	private final LineFramer framer = new LineFramer(UTF8)
+	{
+		void lineReceived(String line)
+		{
+			lines++;
+			handle(line);
+		}
+	};
+
+	public PipelineHarness() throws IOException
+	{
+		shard = new IoShard(manager, 0);
+		reset();
+	}
+
+	/**
+	 * Starts over with a new Session , as if it just connected
+	 *
+	 * @return the new Session
+	 */
+	public Session reset() throws IOException
+	{
+		if (channel != null) channel.close();
+		/* the wheel is never advanced , drop the ping the old Session left in it */
+		if (session != null) session.setDeadline(null);
+		session = new Session(new RequestedConnection("irc.example.net", 6667, new Profile("bench")), manager, shard);
+		session.setInternalParser(manager.getDefaultInternalEventParser());
+		channel = SocketChannel.open();
+		session.setConnection(new Connection(manager, channel, session));
+		counter.reset();
+		framer.reset();
+		return session;
+	}
+
+	public Session getSession()
+	{
+		return session;
+	}
+
+	/**
+	 * Splits bytes into lines like Connection.read() , chunk bytes at a time
+	 * through one reused buffer
+	 *
+	 * @return lines found
+	 */
+	public int frame(byte[] data, int chunk)
+	{
+		lines = 0;
+		run(counter, data, chunk);
+		return lines;
+	}
+
+	/**
+	 * Splits bytes into lines like Connection.read() , with reads of the given
+	 * lengths , starting from no unterminated line
+	 *
+	 * @return the lines , in order
+	 */
+	public List<String> frame(byte[] data, int[] reads)
+	{
+		collector.reset();
+		received.clear();
+		int offset = 0;
+		for (int length : reads)
+		{
+			collector.frame(ByteBuffer.wrap(data, offset, length));
+			offset += length;
+		}
+		return new ArrayList<String>(received);
+	}
+
+	/**
+	 * Runs only the parser of the Session on a line
+	 *
+	 * @return the typed event
+	 */
+	public IRCEvent parse(String line)
+	{
+		return session.getInternalEventParser().receiveEvent(new IRCEvent(line, session, Type.DEFAULT));
+	}
+
+	/**
+	 * Parses a line , updates the Session and Channels and queues the event
+	 * for the listeners , like the io thread does
+	 */
+	public void handle(String line)
+	{
+		manager.parseEvent(new IRCEvent(line, session, Type.DEFAULT));
+	}
+
+	/**
+	 * Frames bytes and handles every line
+	 *
+	 * @return lines found
+	 */
+	public int feed(byte[] data, int chunk)
+	{
+		lines = 0;
+		run(framer, data, chunk);
+		return lines;
+	}
+
+	/**
+	 * Stops the relay threads
+	 */
+	public void close() throws IOException
+	{
+		if (channel != null) channel.close();
+		manager.quit();
+		shard.close();
+	}
+
+	private void run(LineFramer f, byte[] data, int chunk)
+	{
+		if (readBuffer.capacity() < chunk) readBuffer = ByteBuffer.allocate(chunk);
+		for (int i = 0; i < data.length; i += chunk)
+		{
+			readBuffer.clear();
+			readBuffer.put(data, i, Math.min(chunk, data.length - i));
+			readBuffer.flip();
+			f.frame(readBuffer);
+		}
+	}
+}
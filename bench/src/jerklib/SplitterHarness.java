@@ -0,0 +1,30 @@
+package jerklib;
+
+import java.nio.charset.Charset;
+
+/**
+ * Gives benchmarks in jerklib.bench access to the package private
+ * MessageSplitter a Connection cuts long messages with.
+ */
+public class SplitterHarness
+{
+	private final MessageSplitter splitter;
+
+	/**
+	 * @param charset charset the text will be sent in
+	 */
+	public SplitterHarness(Charset charset)
+	{
+		splitter = new MessageSplitter(charset);
+	}
+
+	/**
+	 * Cuts the first piece off a message
+	 *
+	 * @return the piece and the rest , null if the whole message fits
+	 */
+	public String[] split(String message, int budget)
+	{
+		return splitter.split(message, budget);
+	}
+}
@@ -0,0 +1,65 @@
+package jerklib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gives benchmarks in jerklib.bench access to the package private
+ * TimerWheel the io threads schedule pings and reconnects on. Timeouts
+ * are known by the number schedule() returned.
+ */
+public class TimerHarness
+{
+	private final TimerWheel wheel;
+	private final List<TimerWheel.Timeout> timeouts = new ArrayList<TimerWheel.Timeout>();
+
+	/**
+	 * @param tickDuration length of a tick in milliseconds
+	 * @param slotCount number of slots
+	 * @param now current time in milliseconds
+	 */
+	public TimerHarness(long tickDuration, int slotCount, long now)
+	{
+		wheel = new TimerWheel(tickDuration, slotCount, now);
+	}
+
+	/**
+	 * @return number of the timeout
+	 */
+	public int schedule(Runnable task, long delay, long now)
+	{
+		timeouts.add(wheel.schedule(task, delay, now));
+		return timeouts.size() - 1;
+	}
+
+	/**
+	 * @return true if the task was still pending
+	 */
+	public boolean cancel(int timeout)
+	{
+		return timeouts.get(timeout).cancel();
+	}
+
+	public boolean isPending(int timeout)
+	{
+		return timeouts.get(timeout).isPending();
+	}
+
+	/**
+	 * @return number of tasks run
+	 */
+	public int advance(long now)
+	{
+		return wheel.advance(now);
+	}
+
+	public long getDelay(long now)
+	{
+		return wheel.getDelay(now);
+	}
+
+	public int size()
+	{
+		return wheel.size();
+	}
+}
@@ -0,0 +1,287 @@
+package jerklib.bench;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import jerklib.Channel;
+import jerklib.ConnectionManager;
+import jerklib.Profile;
+import jerklib.Session;
+import jerklib.SortedNickList;
+import jerklib.TokenBucketScheduler;
+import jerklib.events.BatchEvent;
+import jerklib.events.EventToken;
+import jerklib.events.IRCEvent;
+import jerklib.events.QuitEvent;
+import jerklib.listeners.IRCEventListener;
+
+/**
+ * Checks IRCv3 capability negotiation , message tags and netsplit batches
+ * against a LoopbackServer.
+ *
+ * The server offers the capabilities jerklib uses among others it does not ,
+ * over several CAP LS lines , and only registers the Session after CAP END.
+ * A channel is joined whose NAMES reply has 500 members with multi-prefix
+ * and userhost-in-names , then the server sends a netsplit batch of 300
+ * QUITs and a PRIVMSG with a server-time tag. Checks that:
+ * <ul>
+ * <li>CAP LS 302 comes first , the REQ asks for exactly the supported
+ * capabilities that were offered , END follows the ACK and the Session
+ * reports them enabled</li>
+ * <li>the nick list has every name with its highest prefix and without
+ * user@host</li>
+ * <li>the netsplit arrives as one BatchEvent holding all 300 QUITs , each
+ * listing the channel the nick was in , and no QUIT is relayed alone</li>
+ * <li>after it the nick list holds the other 200 members , sorted , and
+ * Session no longer lists the channel for the nicks that quit</li>
+ * <li>the server-time of the PRIVMSG is read from its tag</li>
+ * </ul>
+ *
+ * Exits with 1 on the first failed check.
+ *
+ * usage: CapBatchCheck
+ */
+public class CapBatchCheck
+{
+	private static final String[] OFFERED = { "multi-prefix", "sasl=PLAIN,EXTERNAL", "userhost-in-names", "away-notify", "server-time",
+			"account-tag", "batch" };
+	private static final String[] WANTED = { "multi-prefix", "userhost-in-names", "server-time", "batch" };
+
+	private static final String CHANNEL = "#big";
+	private static final int MEMBERS = 500;
+	private static final String[] PREFIXES = { "@+", "@", "+", "" };
+
+	public static void main(String[] args) throws Exception
+	{
+		try
+		{
+			run();
+		}
+		catch (RuntimeException e)
+		{
+			/* the io threads would keep the JVM alive */
+			e.printStackTrace();
+			fail(e.toString());
+		}
+		System.out.println("all checks passed");
+		System.exit(0);
+	}
+
+	private static void run() throws Exception
+	{
+		LoopbackServer server = new LoopbackServer();
+		server.setCapabilities(OFFERED);
+		final List<String> capLines = new CopyOnWriteArrayList<String>();
+		server.addScript(new LoopbackServer.Script()
+		{
+			public boolean received(LoopbackServer server, LoopbackServer.Client client, EventToken line)
+			{
+				if (line.command().equalsIgnoreCase("CAP")) capLines.add(line.getRawEventData());
+				if (!line.command().equalsIgnoreCase("JOIN") || !line.arg(0).equalsIgnoreCase(CHANNEL)) return false;
+				names(client);
+				return true;
+			}
+		});
+		int port = server.listen(InetAddress.getByName("127.0.0.1"));
+
+		final BlockingQueue<IRCEvent> events = new LinkedBlockingQueue<IRCEvent>();
+		ConnectionManager manager = new ConnectionManager(new Profile("capcheck"));
+		manager.setIdentPort(0);
+		Session session = manager.requestConnection("127.0.0.1", port, new Profile("capcheck"));
+		session.setWriteScheduler(new TokenBucketScheduler(0, 1));
+		session.addIRCEventListener(new IRCEventListener()
+		{
+			public void receiveEvent(IRCEvent e)
+			{
+				events.add(e);
+			}
+		});
+
+		/* registration is held until CAP END */
+		await(events, IRCEvent.Type.CONNECT_COMPLETE);
+		checkCaps(session, capLines);
+
+		session.join(CHANNEL);
+		await(events, IRCEvent.Type.NICK_LIST_EVENT);
+		Channel channel = session.getChannel(CHANNEL);
+		if (channel == null) fail(CHANNEL + " was not joined");
+		checkNicks(session, channel, false);
+		System.out.println("NAMES: " + channel.getNicks().size() + " nicks with multi-prefix and userhost-in-names");
+
+		server.send("capcheck", "BATCH +split netsplit hub.example leaf.example");
+		for (int i = 0; i < MEMBERS; i++)
+		{
+			if (splits(i)) server.send("capcheck", "@batch=split :n" + i + "!u" + i + "@h" + i + " QUIT :hub.example leaf.example");
+		}
+		server.send("capcheck", "BATCH -split");
+		Calendar time = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		time.clear();
+		time.set(2026, Calendar.JANUARY, 2, 3, 4, 5);
+		time.set(Calendar.MILLISECOND, 678);
+		server.send("capcheck", "@time=2026-01-02T03:04:05.678Z :n3!u3@h3 PRIVMSG " + CHANNEL + " :tagged");
+
+		IRCEvent message = null;
+		BatchEvent batch = null;
+		while (message == null)
+		{
+			IRCEvent e = await(events, null);
+			if (e.getType() == IRCEvent.Type.QUIT) fail("a QUIT of the netsplit was relayed alone");
+			if (e.getType() == IRCEvent.Type.BATCH)
+			{
+				if (batch != null) fail("the netsplit came as more than one BatchEvent");
+				batch = (BatchEvent) e;
+			}
+			if (e.getType() == IRCEvent.Type.CHANNEL_MESSAGE) message = e;
+		}
+		if (batch == null) fail("no BatchEvent before the PRIVMSG");
+		checkBatch(batch, channel);
+		checkNicks(session, channel, true);
+		System.out.println("netsplit: one BatchEvent of " + batch.getEvents().size() + " QUITs , " + channel.getNicks().size() + " nicks left");
+
+		if (message.getServerTime() != time.getTimeInMillis())
+		{
+			fail("server-time is " + message.getServerTime() + " , expected " + time.getTimeInMillis());
+		}
+		System.out.println("server-time: " + message.getTag("time") + " read as " + message.getServerTime());
+
+		manager.quit();
+		server.stop();
+	}
+
+	/*
+	 * joins the client to the channel with a NAMES reply of MEMBERS more ,
+	 * each with prefixes and user@host
+	 */
+	private static void names(LoopbackServer.Client client)
+	{
+		String me = client.getNick();
+		client.send(":" + me + "!u@127.0.0.1 JOIN " + CHANNEL);
+		StringBuilder names = new StringBuilder("@" + me + "!u@127.0.0.1");
+		for (int i = 0; i < MEMBERS; i++)
+		{
+			if (names.length() > 400)
+			{
+				client.send(":loopback.test 353 " + me + " = " + CHANNEL + " :" + names);
+				names.setLength(0);
+			}
+			names.append(names.length() > 0 ? " " : "").append(PREFIXES[i % PREFIXES.length]).append("n" + i + "!u" + i + "@h" + i);
+		}
+		client.send(":loopback.test 353 " + me + " = " + CHANNEL + " :" + names);
+		client.send(":loopback.test 366 " + me + " " + CHANNEL + " :End of /NAMES list.");
+	}
+
+	/*
+	 * members that quit in the netsplit , 300 of 500 with every prefix
+	 */
+	private static boolean splits(int member)
+	{
+		return member % 5 < 3;
+	}
+
+	private static void checkCaps(Session session, List<String> capLines)
+	{
+		if (capLines.isEmpty() || !capLines.get(0).equals("CAP LS 302")) fail("first CAP line was " + capLines);
+		String req = null;
+		int end = -1;
+		for (int i = 0; i < capLines.size(); i++)
+		{
+			String line = capLines.get(i);
+			if (line.startsWith("CAP REQ :"))
+			{
+				if (req != null) fail("more than one CAP REQ: " + capLines);
+				req = line.substring("CAP REQ :".length());
+			}
+			if (line.equals("CAP END")) end = i;
+		}
+		if (req == null) fail("no CAP REQ: " + capLines);
+		if (!new HashSet<String>(Arrays.asList(req.split(" "))).equals(new HashSet<String>(Arrays.asList(WANTED))))
+		{
+			fail("requested " + req);
+		}
+		if (end != capLines.size() - 1) fail("CAP END is not the last CAP line: " + capLines);
+
+		for (String cap : WANTED)
+		{
+			if (!session.hasCapability(cap)) fail(cap + " not enabled , enabled " + session.getCapabilities());
+		}
+		if (session.hasCapability("away-notify") || session.hasCapability("sasl")) fail("enabled " + session.getCapabilities());
+		System.out.println("CAP: " + (capLines.size()) + " lines sent , enabled " + session.getCapabilities());
+	}
+
+	/*
+	 * the nick list matches one built from scratch for the members still there
+	 */
+	private static void checkNicks(Session session, Channel channel, boolean afterSplit)
+	{
+		SortedNickList expected = new SortedNickList(session.getServerInformation(), session.getCaseMapping());
+		expected.addNick("@" + session.getNick());
+		for (int i = 0; i < MEMBERS; i++)
+		{
+			if (!afterSplit || !splits(i)) expected.addNick(PREFIXES[i % PREFIXES.length] + "n" + i);
+		}
+
+		SortedNickList actual = channel.getNickList();
+		if (actual.size() != expected.size()) fail(actual.size() + " nicks , expected " + expected.size());
+		for (int i = 0; i < expected.size(); i++)
+		{
+			if (!actual.get(i).equals(expected.get(i)) || !actual.getPrefix(i).equals(expected.getPrefix(i)))
+			{
+				fail("nick " + i + " is " + actual.getPrefix(i) + actual.get(i) + " , expected " + expected.getPrefix(i) + expected.get(i));
+			}
+		}
+		if (!channel.getNicks().equals(new ArrayList<String>(actual))) fail("getNicks() differs from getNickList()");
+
+		for (int i = 0; i < MEMBERS; i++)
+		{
+			boolean in = session.getChannelsOf("n" + i).contains(channel);
+			if (in == (afterSplit && splits(i))) fail("Session lists " + CHANNEL + " for n" + i + " is " + in);
+		}
+	}
+
+	private static void checkBatch(BatchEvent batch, Channel channel)
+	{
+		if (!batch.isHeld() || !batch.getBatchType().equals("netsplit")) fail("batch type " + batch.getBatchType() + " held " + batch.isHeld());
+		Set<String> quit = new HashSet<String>();
+		for (IRCEvent e : batch.getEvents())
+		{
+			if (e.getType() != IRCEvent.Type.QUIT) fail("batch holds a " + e.getType());
+			QuitEvent qe = (QuitEvent) e;
+			if (!qe.getChannelList().equals(Arrays.asList(channel))) fail("QUIT of " + qe.getNick() + " lists " + qe.getChannelList());
+			quit.add(qe.getNick());
+		}
+		for (int i = 0; i < MEMBERS; i++)
+		{
+			if (quit.contains("n" + i) != splits(i)) fail("batch QUIT of n" + i + " is " + quit.contains("n" + i));
+		}
+	}
+
+	/*
+	 * waits for an event of a type , skipping others , or for any event if type is null
+	 */
+	private static IRCEvent await(BlockingQueue<IRCEvent> events, IRCEvent.Type type) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + 5000;
+		while (true)
+		{
+			IRCEvent e = events.poll(Math.max(end - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+			if (e == null) fail("no " + (type == null ? "event" : type) + " within 5 s");
+			if (type == null || e.getType() == type) return e;
+		}
+	}
+
+	private static void fail(String why)
+	{
+		System.out.println("FAILED: " + why);
+		System.exit(1);
+	}
+}
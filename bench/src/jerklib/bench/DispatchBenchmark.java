@@ -0,0 +1,273 @@
+package jerklib.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import jerklib.DispatchHarness;
+import jerklib.events.IRCEvent;
+import jerklib.events.IRCEvent.Type;
+import jerklib.listeners.IRCEventListener;
+import jerklib.tasks.Task;
+import jerklib.tasks.TaskImpl;
+
+/**
+ * Compares relaying events through the old copy-per-event relay loop with
+ * the per Session EventDispatcher and its copy-on-write ListenerRegistry.
+ * 
+ * Each Session has 20 listeners and 50 tasks spread over 10 event types.
+ * First the bytes allocated per relayed event are measured on the calling
+ * thread , then events are offered at a steady rate (5000/s by default) and
+ * the time from queueing to the first listener is recorded.
+ * 
+ * usage: DispatchBenchmark [events per second] [seconds]
+ */
+public class DispatchBenchmark
+{
+	private static final int LISTENERS = 20, TASKS = 50;
+	private static final Type[] TASK_TYPES = { Type.CHANNEL_MESSAGE, Type.PRIVATE_MESSAGE, Type.JOIN, Type.PART,
+			Type.QUIT, Type.NICK_CHANGE, Type.MODE_EVENT, Type.TOPIC, Type.NOTICE, Type.CTCP_EVENT };
+
+	public static void main(String[] args) throws Exception
+	{
+		int rate = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		IRCEvent[] events = new IRCEvent[rate * seconds];
+		for (int i = 0; i < events.length; i++)
+		{
+			events[i] = new IRCEvent(":nick!user@host PRIVMSG #chan :" + i, null, TASK_TYPES[i % TASK_TYPES.length]);
+		}
+
+		final long[] sent = new long[events.length];
+		final long[] legacyLatency = new long[events.length];
+		final long[] currentLatency = new long[events.length];
+
+		LegacyRelay legacy = new LegacyRelay();
+		populate(legacy, null, legacyLatency, sent);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		DispatchHarness current = new DispatchHarness(executor);
+		populate(null, current, currentLatency, sent);
+
+		// allocation , relayed on this thread
+		for (int round = 0; round < 3; round++)
+		{
+			long before = allocated();
+			for (IRCEvent event : events) legacy.relay(Collections.singletonList(event));
+			long legacyBytes = allocated() - before;
+
+			before = allocated();
+			for (IRCEvent event : events) current.fire(event);
+			long currentBytes = allocated() - before;
+
+			System.out.printf("allocated per event: legacy %d bytes , current %d bytes%n", legacyBytes / events.length,
+					currentBytes / events.length);
+		}
+
+		// latency at a steady rate
+		legacy.start();
+		long gap = 1000000000L / rate;
+		pace(events, sent, gap, legacy, null);
+		Thread.sleep(500);
+		legacy.stop();
+		pace(events, sent, gap, null, current);
+		Thread.sleep(500);
+		executor.shutdown();
+
+		report("legacy ", legacyLatency);
+		report("current", currentLatency);
+		System.exit(0);
+	}
+
+	private static void populate(LegacyRelay legacy, DispatchHarness current, final long[] latency, final long[] sent)
+	{
+		for (int i = 0; i < LISTENERS; i++)
+		{
+			final boolean recorder = i == 0;
+			IRCEventListener listener = new IRCEventListener()
+			{
+				public void receiveEvent(IRCEvent e)
+				{
+					if (recorder)
+					{
+						int seq = Integer.parseInt(e.arg(1));
+						if (sent[seq] != 0) latency[seq] = System.nanoTime() - sent[seq];
+					}
+				}
+			};
+			if (legacy != null) legacy.listeners.add(listener);
+			else current.addListener(listener);
+		}
+		for (int i = 0; i < TASKS; i++)
+		{
+			Task task = new TaskImpl("task" + i)
+			{
+				public void receiveEvent(IRCEvent e)
+				{
+				}
+			};
+			Type type = TASK_TYPES[i % TASK_TYPES.length];
+			if (legacy != null) legacy.onEvent(task, type);
+			else current.addTask(task, type);
+		}
+	}
+
+	private static void pace(IRCEvent[] events, long[] sent, long gap, LegacyRelay legacy, DispatchHarness current)
+	{
+		Arrays.fill(sent, 0);
+		long next = System.nanoTime();
+		for (int i = 0; i < events.length; i++)
+		{
+			while (System.nanoTime() < next)
+			{
+				// spin , sleep() is too coarse for 200us gaps
+			}
+			sent[i] = System.nanoTime();
+			if (legacy != null) legacy.add(events[i]);
+			else current.dispatch(events[i]);
+			next += gap;
+		}
+	}
+
+	private static void report(String name, long[] latency)
+	{
+		long[] sorted = latency.clone();
+		Arrays.sort(sorted);
+		int missing = 0;
+		while (missing < sorted.length && sorted[missing] == 0) missing++;
+		long[] got = Arrays.copyOfRange(sorted, missing, sorted.length);
+		System.out.printf("%s latency: median %.1f us , p99 %.1f us , max %.1f us (%d events)%n", name,
+				got[got.length / 2] / 1000.0, got[(int) (got.length * 0.99)] / 1000.0, got[got.length - 1] / 1000.0,
+				got.length);
+	}
+
+	private static long allocated()
+	{
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread
+				.currentThread().getId());
+	}
+
+	/**
+	 * The relay loop ConnectionManager used before , one dispatch thread
+	 * copying the queue , the listener list and the task map for every event.
+	 */
+	static class LegacyRelay
+	{
+		final List<IRCEventListener> listeners = new ArrayList<IRCEventListener>();
+		final Map<Type, List<Task>> taskMap = new HashMap<Type, List<Task>>();
+		final List<IRCEvent> relayQueue = new ArrayList<IRCEvent>();
+		volatile boolean running;
+		Thread thread;
+
+		void onEvent(Task task, Type type)
+		{
+			List<Task> tasks = taskMap.get(type);
+			if (tasks == null)
+			{
+				tasks = new ArrayList<Task>();
+				taskMap.put(type, tasks);
+			}
+			tasks.add(task);
+		}
+
+		void add(IRCEvent event)
+		{
+			synchronized (relayQueue)
+			{
+				relayQueue.add(event);
+				relayQueue.notify();
+			}
+		}
+
+		void start()
+		{
+			running = true;
+			thread = new Thread()
+			{
+				public void run()
+				{
+					while (running)
+					{
+						synchronized (relayQueue)
+						{
+							if (relayQueue.isEmpty())
+							{
+								try
+								{
+									relayQueue.wait();
+								}
+								catch (InterruptedException e)
+								{
+									continue;
+								}
+							}
+						}
+						List<IRCEvent> events = new ArrayList<IRCEvent>();
+						synchronized (relayQueue)
+						{
+							events.addAll(relayQueue);
+							relayQueue.clear();
+						}
+						relay(events);
+					}
+				}
+			};
+			thread.start();
+		}
+
+		void stop()
+		{
+			running = false;
+			thread.interrupt();
+		}
+
+		Map<Type, List<Task>> removeCanceled()
+		{
+			Map<Type, List<Task>> tasks = Collections.unmodifiableMap(new HashMap<Type, List<Task>>(taskMap));
+			synchronized (tasks)
+			{
+				for (Iterator<List<Task>> it = tasks.values().iterator(); it.hasNext();)
+				{
+					for (Iterator<Task> x = it.next().iterator(); x.hasNext();)
+					{
+						if (x.next().isCanceled()) x.remove();
+					}
+				}
+			}
+			return tasks;
+		}
+
+		void relay(List<IRCEvent> events)
+		{
+			List<IRCEventListener> templisteners = new ArrayList<IRCEventListener>();
+			Map<Type, List<Task>> tempTasks = new HashMap<Type, List<Task>>();
+			for (IRCEvent event : events)
+			{
+				Collection<IRCEventListener> copy = Collections.unmodifiableCollection(listeners);
+				synchronized (copy)
+				{
+					templisteners.addAll(copy);
+				}
+				tempTasks.putAll(removeCanceled());
+				List<Task> typeTasks = tempTasks.get(event.getType());
+				if (typeTasks != null) templisteners.addAll(typeTasks);
+				List<Task> nullTasks = tempTasks.get(null);
+				if (nullTasks != null) templisteners.addAll(nullTasks);
+				for (IRCEventListener listener : templisteners)
+				{
+					listener.receiveEvent(event);
+				}
+				templisteners.clear();
+				tempTasks.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package jerklib.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import jerklib.util.FormattedText;
+
+/**
+ * Compares FormattedText with the bold and underline loops the Android chat
+ * used , which call contains , indexOf and replaceFirst until no code is left.
+ *
+ * The corpus is chat lines where one in four has formatting: bold nicks ,
+ * underlined links , colored bot output and lines that are formatting from
+ * end to end , plus some long lines with many codes to show the old loops
+ * going quadratic. The old loops are only given the codes they understand.
+ *
+ * usage: FormattingBenchmark [lines] [rounds]
+ */
+public class FormattingBenchmark
+{
+	private static final String[] WORDS = { "the", "stream", "is", "live", "linux", "audio", "lol", "anyone", "tried", "kernel",
+			"update", "broke", "my", "wifi", "again", "http://example.org/show/42", "thanks", "great", "episode", "?" };
+
+	public static void main(String[] args)
+	{
+		int lines = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		Random random = new Random(42);
+		List<String> corpus = new ArrayList<String>();
+		List<String> legacyCorpus = new ArrayList<String>();
+		long chars = 0;
+		for (int i = 0; i < lines; i++)
+		{
+			String line = line(random, i % 500 == 0 ? 200 : 4 + random.nextInt(16));
+			corpus.add(line);
+			legacyCorpus.add(line.replaceAll("[\u0003\u0004\u000f\u0011\u0016\u001d\u001e]", ""));
+			chars += line.length();
+		}
+		System.out.println(corpus.size() + " lines , " + chars + " chars");
+
+		long sink = legacy(legacyCorpus) + current(corpus);
+		for (int round = 0; round < rounds; round++)
+		{
+			long start = System.nanoTime();
+			sink += legacy(legacyCorpus);
+			long legacyTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			sink += current(corpus);
+			long currentTime = System.nanoTime() - start;
+
+			System.out.printf("round %d: legacy %.1f ns/line , FormattedText %.1f ns/line%n", round, legacyTime / (double) lines,
+					currentTime / (double) lines);
+		}
+		System.out.println("(" + sink + ")");
+	}
+
+	private static String line(Random random, int words)
+	{
+		boolean formatted = random.nextInt(4) == 0;
+		StringBuilder sb = new StringBuilder();
+		for (int w = 0; w < words; w++)
+		{
+			String word = WORDS[random.nextInt(WORDS.length)];
+			if (formatted)
+			{
+				switch (random.nextInt(6))
+				{
+					case 0:
+						word = "\u0002" + word + "\u0002";
+						break;
+					case 1:
+						word = "\u001f" + word + "\u001f";
+						break;
+					case 2:
+						word = "\u0003" + random.nextInt(16) + "," + random.nextInt(16) + word + "\u0003";
+						break;
+					case 3:
+						word = "\u001d" + word + "\u000f";
+						break;
+				}
+			}
+			if (w > 0) sb.append(' ');
+			sb.append(word);
+		}
+		return sb.toString();
+	}
+
+	/* what the chat did , bold and underline only */
+	private static long legacy(List<String> corpus)
+	{
+		long sink = 0;
+		for (String message : corpus)
+		{
+			String theMessage = message;
+			List<Integer[]> bold = new ArrayList<Integer[]>();
+			List<Integer[]> underline = new ArrayList<Integer[]>();
+			while (theMessage.contains("\u0002"))
+			{
+				Integer temp[] = { theMessage.indexOf("\u0002"), theMessage.indexOf("\u0002", theMessage.indexOf("\u0002") + 1) };
+				bold.add(temp);
+				theMessage = theMessage.replaceFirst("\u0002", "").replaceFirst("\u0002", "");
+			}
+			while (theMessage.contains("\u001f"))
+			{
+				Integer temp[] = { theMessage.indexOf("\u001f"), theMessage.indexOf("\u001f", theMessage.indexOf("\u001f") + 1) };
+				underline.add(temp);
+				theMessage = theMessage.replaceFirst("\u001f", "").replaceFirst("\u001f", "");
+			}
+			sink += theMessage.length() + bold.size() + underline.size();
+		}
+		return sink;
+	}
+
+	private static long current(List<String> corpus)
+	{
+		long sink = 0;
+		for (String message : corpus)
+		{
+			FormattedText f = FormattedText.parse(message);
+			sink += f.getText().length() + f.getRunCount();
+		}
+		return sink;
+	}
+}
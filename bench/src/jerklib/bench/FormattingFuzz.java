@@ -0,0 +1,162 @@
+package jerklib.bench;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jerklib.util.FormattedText;
+
+/**
+ * Feeds FormattedText random messages made mostly of formatting codes ,
+ * digits and commas , with truncated colors , hex colors , stray codes and
+ * non ASCII digits , and checks every result against a slow reference that
+ * styles each character on its own.
+ *
+ * Checks that runs are in order , inside the text , never empty or plain
+ * and that adjacent runs differ , and that the text and the style of every
+ * character match the reference. Also times a message of nothing but codes
+ * to check parsing stays linear.
+ *
+ * Exits with 1 on the first mismatch , printing the message.
+ *
+ * usage: FormattingFuzz [messages] [seed]
+ */
+public class FormattingFuzz
+{
+	private static final String[] PIECES = { "\u0002", "\u0003", "\u0004", "\u000f", "\u0011", "\u0016", "\u001d", "\u001e", "\u001f",
+			"0", "1", "4", "9", "99", "12", "100", ",", ",,", "a", "F", "g", " ", "hello", "\u0663", "\uff21", "\u00e9",
+			"\u00034,", "\u000399,99", "\u0003,5", "\u0004ff00ff", "\u0004FF00FF,00ff0", "\u0004abcdef,123456x" };
+
+	private static final Pattern COLOR = Pattern.compile("\u0003(?:([0-9]{1,2})(?:,([0-9]{1,2}))?)?");
+	private static final Pattern HEX = Pattern.compile("\u0004(?:[0-9a-fA-F]{6}(?:,[0-9a-fA-F]{6})?)?");
+
+	public static void main(String[] args)
+	{
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+		Random random = new Random(seed);
+
+		int runs = 0;
+		for (int n = 0; n < messages; n++)
+		{
+			StringBuilder sb = new StringBuilder();
+			for (int pieces = random.nextInt(24); pieces > 0; pieces--)
+			{
+				if (random.nextInt(8) == 0) sb.append((char) random.nextInt(0x40));
+				else sb.append(PIECES[random.nextInt(PIECES.length)]);
+			}
+			String message = sb.toString();
+			runs += check(message);
+		}
+		System.out.println(messages + " messages , " + runs + " runs , all match");
+
+		StringBuilder codes = new StringBuilder();
+		for (int i = 0; i < 1000000; i++)
+		{
+			codes.append(PIECES[i % 9]).append('x');
+		}
+		for (int round = 0; round < 3; round++)
+		{
+			long start = System.nanoTime();
+			FormattedText f = FormattedText.parse(codes.toString());
+			System.out.printf("%d chars of codes: %.1f ms , %d runs%n", codes.length(), (System.nanoTime() - start) / 1e6, f.getRunCount());
+		}
+	}
+
+	private static int check(String message)
+	{
+		FormattedText f = FormattedText.parse(message);
+		String text = f.getText();
+
+		/* reference , one character at a time */
+		StringBuilder expectedText = new StringBuilder();
+		int[] expected = new int[message.length() * 3];
+		int style = 0 , fg = -1 , bg = -1;
+		Matcher color = COLOR.matcher(message);
+		Matcher hex = HEX.matcher(message);
+		for (int i = 0; i < message.length();)
+		{
+			char c = message.charAt(i);
+			if (c == '\u0003')
+			{
+				color.region(i, message.length());
+				color.lookingAt();
+				fg = color.group(1) == null ? -1 : reference(color.group(1));
+				bg = color.group(1) == null ? -1 : color.group(2) == null ? bg : reference(color.group(2));
+				i = color.end();
+				continue;
+			}
+			if (c == '\u0004')
+			{
+				hex.region(i, message.length());
+				hex.lookingAt();
+				i = hex.end();
+				continue;
+			}
+			int flag = c == '\u0002' ? FormattedText.BOLD : c == '\u001d' ? FormattedText.ITALIC : c == '\u001f' ? FormattedText.UNDERLINE
+					: c == '\u001e' ? FormattedText.STRIKETHROUGH : c == '\u0011' ? FormattedText.MONOSPACE : c == '\u0016' ? FormattedText.REVERSE : 0;
+			if (flag != 0) style ^= flag;
+			else if (c == '\u000f')
+			{
+				style = 0;
+				fg = bg = -1;
+			}
+			else
+			{
+				int at = expectedText.length();
+				expected[at * 3] = style;
+				expected[at * 3 + 1] = fg;
+				expected[at * 3 + 2] = bg;
+				expectedText.append(c);
+			}
+			i++;
+		}
+
+		if (!text.equals(expectedText.toString())) fail(message, f, "text");
+
+		int[] actual = new int[text.length() * 3];
+		for (int i = 0; i < text.length(); i++)
+		{
+			actual[i * 3 + 1] = actual[i * 3 + 2] = -1;
+		}
+		int lastEnd = 0;
+		for (int r = 0; r < f.getRunCount(); r++)
+		{
+			int start = f.getStart(r) , end = f.getEnd(r);
+			if (start < lastEnd || end <= start || end > text.length()) fail(message, f, "run bounds");
+			if (f.getStyle(r) == 0 && f.getForeground(r) == -1 && f.getBackground(r) == -1) fail(message, f, "plain run");
+			if (r > 0 && start == lastEnd && f.getStyle(r) == f.getStyle(r - 1) && f.getForeground(r) == f.getForeground(r - 1)
+					&& f.getBackground(r) == f.getBackground(r - 1)) fail(message, f, "runs not merged");
+			for (int i = start; i < end; i++)
+			{
+				actual[i * 3] = f.getStyle(r);
+				actual[i * 3 + 1] = f.getForeground(r);
+				actual[i * 3 + 2] = f.getBackground(r);
+			}
+			lastEnd = end;
+		}
+		for (int i = 0; i < actual.length; i++)
+		{
+			if (actual[i] != expected[i]) fail(message, f, "style of character " + i / 3);
+		}
+		return f.getRunCount();
+	}
+
+	private static int reference(String digits)
+	{
+		int color = Integer.parseInt(digits);
+		return color == 99 ? -1 : color;
+	}
+
+	private static void fail(String message, FormattedText f, String what)
+	{
+		StringBuilder escaped = new StringBuilder();
+		for (char c : message.toCharArray())
+		{
+			if (c < 0x20 || c > 0x7e) escaped.append(String.format("\\u%04x", (int) c));
+			else escaped.append(c);
+		}
+		System.out.println("mismatch in " + what + ": \"" + escaped + "\" -> " + f);
+		System.exit(1);
+	}
+}
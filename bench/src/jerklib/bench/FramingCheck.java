@@ -0,0 +1,200 @@
+package jerklib.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import jerklib.PipelineHarness;
+
+/**
+ * Checks that Connection splits what it reads into the right lines wherever
+ * the reads break.
+ *
+ * A corpus of lines with two , three and four byte UTF-8 characters , CRLF
+ * and bare LF endings , empty lines , a line that is not valid UTF-8 and two
+ * lines longer than the 16 KiB limit is framed as two reads split at every
+ * byte offset , and then in reads of random lengths. The lines must match a
+ * reference that splits the whole corpus at once: CR before LF dropped ,
+ * empty and overlong lines skipped , invalid UTF-8 decoded as Latin-1. The
+ * overlong lines end in a command , so a framer that lets the tail of a
+ * dropped line through shows up as an extra line.
+ *
+ * Exits with 1 on the first mismatch , printing the split.
+ *
+ * usage: FramingCheck [random rounds] [seed]
+ */
+public class FramingCheck
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	/* the limit of LineFramer */
+	private static final int MAX_LINE_LENGTH = 16384;
+
+	public static void main(String[] args) throws IOException
+	{
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+
+		byte[] corpus = corpus();
+		List<String> expected = reference(corpus);
+
+		PipelineHarness harness = new PipelineHarness();
+		try
+		{
+			int splits = 0;
+			for (int at = 0; at <= corpus.length; at++)
+			{
+				check(harness, corpus, expected, new int[] { at, corpus.length - at });
+				splits++;
+			}
+
+			Random random = new Random(seed);
+			for (int round = 0; round < rounds; round++)
+			{
+				List<Integer> lengths = new ArrayList<Integer>();
+				int left = corpus.length;
+				while (left > 0)
+				{
+					/* mostly short reads , some as long as the read buffer of Connection */
+					int length = Math.min(left, random.nextInt(4) == 0 ? 1 + random.nextInt(2048) : 1 + random.nextInt(8));
+					lengths.add(length);
+					left -= length;
+				}
+				int[] reads = new int[lengths.size()];
+				for (int i = 0; i < reads.length; i++)
+				{
+					reads[i] = lengths.get(i);
+				}
+				check(harness, corpus, expected, reads);
+			}
+			System.out.println(corpus.length + " bytes , " + expected.size() + " lines , " + splits + " splits and " + rounds
+					+ " random reads , all match");
+		}
+		finally
+		{
+			harness.close();
+		}
+		System.exit(0);
+	}
+
+	private static void check(PipelineHarness harness, byte[] corpus, List<String> expected, int[] reads)
+	{
+		List<String> actual = harness.frame(corpus, reads);
+		if (actual.equals(expected)) return;
+
+		System.out.println("reads " + (reads.length > 16 ? reads.length + " reads" : Arrays.toString(reads)));
+		for (int i = 0; i < Math.max(actual.size(), expected.size()); i++)
+		{
+			String e = i < expected.size() ? expected.get(i) : null;
+			String a = i < actual.size() ? actual.get(i) : null;
+			if (e == null || !e.equals(a))
+			{
+				System.out.println("line " + i + "\n  expected " + shorten(e) + "\n  actual   " + shorten(a));
+				break;
+			}
+		}
+		System.exit(1);
+	}
+
+	private static String shorten(String line)
+	{
+		if (line == null || line.length() <= 80) return line;
+		return line.substring(0, 40) + "..(" + line.length() + " chars).." + line.substring(line.length() - 30);
+	}
+
+	private static byte[] corpus() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write(out, ":irc.example.net 001 bob :Welcome to the network bob\r\n");
+		write(out, ":alice!a@host PRIVMSG #chan :caf\u00e9 na\u00efve \u00fcber\r\n");
+		write(out, ":alice!a@host PRIVMSG #chan :\u65e5\u672c\u8a9e\u306e\u30c6\u30ad\u30b9\u30c8\n");
+		write(out, ":alice!a@host PRIVMSG #chan :\ud83d\ude00\ud83c\udf89 \ud800\udf48\r\n");
+		write(out, "\r\n");
+		write(out, "\n");
+		write(out, "PING :\u20ac\u20ac\u20ac\r\n");
+
+		/* Latin-1 , not valid UTF-8 */
+		write(out, ":bob!b@host PRIVMSG #chan :");
+		out.write(new byte[] { 'c', 'a', 'f', (byte) 0xe9, '\r', '\n' });
+
+		/* one byte over the limit , counting the CR , ends in a command */
+		write(out, overlong(MAX_LINE_LENGTH + 1 - " QUIT :tail\r".length(), "x") + " QUIT :tail\r\n");
+		write(out, ":alice!a@host PRIVMSG #chan :after the first long line\r\n");
+
+		/* much longer , bare LF */
+		write(out, overlong(MAX_LINE_LENGTH + MAX_LINE_LENGTH / 2, "\u65e5") + " PRIVMSG #chan :tail\n");
+
+		/* exactly at the limit , counting the CR , kept */
+		String prefix = ":alice!a@host PRIVMSG #chan :";
+		StringBuilder full = new StringBuilder(prefix);
+		while (full.length() < MAX_LINE_LENGTH - 1)
+		{
+			full.append('x');
+		}
+		write(out, full + "\r\n");
+
+		write(out, ":alice!a@host PRIVMSG #chan :last \u00e9");
+		write(out, "\r\n");
+		return out.toByteArray();
+	}
+
+	/*
+	 * a PRIVMSG of at least bytes UTF-8 bytes
+	 */
+	private static String overlong(int bytes, String filler)
+	{
+		StringBuilder sb = new StringBuilder(":spam!s@host PRIVMSG #chan :");
+		while (sb.toString().getBytes(UTF8).length < bytes)
+		{
+			sb.append(filler);
+		}
+		return sb.toString();
+	}
+
+	private static void write(ByteArrayOutputStream out, String s) throws IOException
+	{
+		out.write(s.getBytes(UTF8));
+	}
+
+	/*
+	 * the lines of the whole corpus , split at once
+	 */
+	private static List<String> reference(byte[] corpus)
+	{
+		List<String> lines = new ArrayList<String>();
+		int start = 0;
+		for (int i = 0; i < corpus.length; i++)
+		{
+			if (corpus[i] != '\n') continue;
+			int length = i - start;
+			if (length <= MAX_LINE_LENGTH)
+			{
+				if (length > 0 && corpus[start + length - 1] == '\r') length--;
+				if (length > 0) lines.add(decode(corpus, start, length));
+			}
+			start = i + 1;
+		}
+		return lines;
+	}
+
+	private static String decode(byte[] data, int offset, int length)
+	{
+		try
+		{
+			return UTF8.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT)
+					.decode(ByteBuffer.wrap(data, offset, length)).toString();
+		}
+		catch (CharacterCodingException e)
+		{
+			return new String(data, offset, length, LATIN1);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package jerklib.bench;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import jerklib.ConnectionManager;
+import jerklib.Profile;
+import jerklib.Session;
+import jerklib.TokenBucketScheduler;
+import jerklib.events.ErrorEvent;
+import jerklib.events.IRCEvent;
+import jerklib.listeners.IRCEventListener;
+
+/**
+ * Checks that a ConnectionManager races the addresses of a host and
+ * remembers the one that won.
+ *
+ * A hosts file , read by the JVM through jdk.net.hosts.file , gives the host
+ * two addresses: 127.0.0.2 first , whose accept backlog is full so its SYNs go
+ * unanswered , then 127.0.0.1 where a LoopbackServer listens on the same port.
+ * Checks that:
+ * <ul>
+ * <li>the Session registers through 127.0.0.1 , after the attempt delay
+ * let it start while 127.0.0.2 still hangs</li>
+ * <li>after the server drops it , the Session reconnects straight to
+ * 127.0.0.1 , in less than the attempt delay</li>
+ * <li>a host that does not resolve relays an unresolved host error and
+ * schedules a reconnect</li>
+ * </ul>
+ * Needs an OS that routes all of 127.0.0.0/8 to loopback , like Linux.
+ *
+ * Exits with 1 on the first failed check.
+ *
+ * usage: HappyEyeballsCheck
+ */
+public class HappyEyeballsCheck
+{
+	private static final String HOST = "eyeballs.test";
+	private static final String UNRESOLVED = "unresolved.test";
+
+	/* ConnectAttempt.ATTEMPT_DELAY */
+	private static final long ATTEMPT_DELAY = 250;
+
+	public static void main(String[] args) throws Exception
+	{
+		/* must be set before InetAddress is first used */
+		File hosts = File.createTempFile("hosts", ".txt");
+		hosts.deleteOnExit();
+		OutputStream out = new FileOutputStream(hosts);
+		out.write(("127.0.0.2 " + HOST + "\n127.0.0.1 " + HOST + "\n").getBytes("US-ASCII"));
+		out.close();
+		System.setProperty("jdk.net.hosts.file", hosts.getAbsolutePath());
+
+		InetAddress[] resolved = InetAddress.getAllByName(HOST);
+		if (resolved.length != 2 || !resolved[0].getHostAddress().equals("127.0.0.2"))
+		{
+			fail("the hosts file was not used , " + HOST + " resolves to " + Arrays.toString(resolved));
+		}
+
+		LoopbackServer server = new LoopbackServer();
+		int port = server.listen(InetAddress.getByName("127.0.0.1"));
+		List<Closeable> stalled = stall(InetAddress.getByName("127.0.0.2"), port);
+
+		final BlockingQueue<IRCEvent> events = new LinkedBlockingQueue<IRCEvent>();
+		IRCEventListener listener = new IRCEventListener()
+		{
+			public void receiveEvent(IRCEvent e)
+			{
+				events.add(e);
+			}
+		};
+
+		ConnectionManager manager = new ConnectionManager(new Profile("eyeballs"));
+		manager.setIdentPort(0);
+		manager.setAutoReconnect(Integer.MAX_VALUE);
+		/* reconnect on the next timer tick */
+		manager.setReconnectBackoff(1, 1000, 0);
+
+		long start = System.nanoTime();
+		Session session = manager.requestConnection(HOST, port, new Profile("eyeballs"));
+		/* the server has no flood limit , registering again must not wait for tokens */
+		session.setWriteScheduler(new TokenBucketScheduler(0, 1));
+		session.addIRCEventListener(listener);
+		await(events, IRCEvent.Type.CONNECT_COMPLETE, 5000);
+		long connect = (System.nanoTime() - start) / 1000000;
+		System.out.println("connected in " + connect + " ms");
+		if (connect < ATTEMPT_DELAY) fail("connected before the attempt delay , 127.0.0.2 was not tried first");
+
+		server.disconnect("eyeballs");
+		await(events, IRCEvent.Type.CONNECTION_LOST, 5000);
+		start = System.nanoTime();
+		await(events, IRCEvent.Type.CONNECT_COMPLETE, 5000);
+		long reconnect = (System.nanoTime() - start) / 1000000;
+		System.out.println("reconnected in " + reconnect + " ms");
+		if (reconnect >= ATTEMPT_DELAY) fail("the reconnect waited for 127.0.0.2 , the winner was not tried first");
+
+		manager.requestConnection(UNRESOLVED, port, new Profile("nobody")).addIRCEventListener(listener);
+		IRCEvent error = await(events, IRCEvent.Type.ERROR, 5000);
+		if (((ErrorEvent) error).getErrorType() != ErrorEvent.ErrorType.UNRESOLVED_HOSTNAME) fail("wrong error " + error.getRawEventData());
+		await(events, IRCEvent.Type.RECONNECT_SCHEDULED, 5000);
+		System.out.println(UNRESOLVED + " relayed an unresolved host error and backs off");
+
+		manager.quit();
+		server.stop();
+		for (Closeable c : stalled)
+		{
+			c.close();
+		}
+		System.out.println("all checks passed");
+		System.exit(0);
+	}
+
+	/*
+	 * listens on address:port without accepting until connects time out
+	 *
+	 * @return the listener and the sockets that filled its backlog
+	 */
+	private static List<Closeable> stall(InetAddress address, int port) throws IOException
+	{
+		ServerSocket listener = new ServerSocket();
+		listener.bind(new InetSocketAddress(address, port), 1);
+		List<Closeable> sockets = new ArrayList<Closeable>();
+		sockets.add(listener);
+		for (int i = 0; i < 16; i++)
+		{
+			Socket s = new Socket();
+			try
+			{
+				s.connect(new InetSocketAddress(address, port), 200);
+				sockets.add(s);
+			}
+			catch (SocketTimeoutException e)
+			{
+				/* the backlog is full */
+				s.close();
+				return sockets;
+			}
+		}
+		fail("could not fill the accept backlog of " + address);
+		return null;
+	}
+
+	/*
+	 * waits for an event of a type , skipping others
+	 */
+	private static IRCEvent await(BlockingQueue<IRCEvent> events, IRCEvent.Type type, long millis) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + millis;
+		while (true)
+		{
+			IRCEvent e = events.poll(Math.max(end - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+			if (e == null) fail("no " + type + " within " + millis + " ms");
+			if (e.getType() == type) return e;
+		}
+	}
+
+	private static void fail(String why)
+	{
+		System.out.println("FAILED: " + why);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,185 @@
+package jerklib.bench;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jerklib.Channel;
+import jerklib.Session;
+import jerklib.events.ChannelListEvent;
+import jerklib.events.IRCEvent;
+import jerklib.events.NickListEvent;
+import jerklib.events.WhoEvent;
+import jerklib.events.WhoisEvent;
+import jerklib.parsers.CommandParser;
+import jerklib.parsers.DefaultInternalEventParser;
+import jerklib.parsers.InternalEventParser;
+
+/**
+ * The LIST , WHO , TOPIC , NAMES and WHOIS parsers as they were before they
+ * read argument offsets , with their regular expressions and splits , looked
+ * up by command in a HashMap like DefaultInternalEventParser used to. Kept to
+ * compare against in ParserConformance.
+ *
+ * Every other command goes to the current parsers , so both sides differ
+ * only in the rewritten parsers and the lookup.
+ */
+public class LegacyReplyParsers implements InternalEventParser
+{
+	private final Map<String, CommandParser> parsers = new HashMap<String, CommandParser>();
+	private final DefaultInternalEventParser current;
+
+	public LegacyReplyParsers(DefaultInternalEventParser current)
+	{
+		this.current = current;
+
+		ChanListParser chanListParser = new ChanListParser();
+		parsers.put("321", chanListParser);
+		parsers.put("322", chanListParser);
+
+		parsers.put("352", new WhoParser());
+		parsers.put("TOPIC", new TopicUpdatedParser());
+
+		NamesParser namesParser = new NamesParser();
+		parsers.put("353", namesParser);
+		parsers.put("366", namesParser);
+
+		WhoisParser whoisParser = new WhoisParser();
+		for (String numeric : new String[] { "311", "312", "317", "318", "319", "320" })
+		{
+			parsers.put(numeric, whoisParser);
+		}
+	}
+
+	public IRCEvent receiveEvent(IRCEvent e)
+	{
+		CommandParser parser = parsers.get(e.command());
+		if (parser == null) parser = current.getParser(e.command());
+		if (parser == null) parser = current.getDefaultParser();
+		return parser == null ? e : parser.createEvent(e);
+	}
+
+	static class ChanListParser implements CommandParser
+	{
+		public IRCEvent createEvent(IRCEvent event)
+		{
+			String data = event.getRawEventData();
+			Pattern p = Pattern.compile("^:\\S+\\s322\\s\\S+\\s(\\S+)\\s(\\d+)\\s:(.*)$");
+			Matcher m = p.matcher(data);
+			if (m.matches())
+			{
+				return new ChannelListEvent(data, m.group(1), m.group(3), Integer.parseInt(m.group(2)), event.getSession());
+			}
+			return event;
+		}
+	}
+
+	static class WhoParser implements CommandParser
+	{
+		public IRCEvent createEvent(IRCEvent event)
+		{
+			String data = event.getRawEventData();
+			Pattern p = Pattern.compile("^:.+?\\s+352\\s+.+?\\s+(.+?)\\s+(.+?)\\s+(.+?)\\s+(.+?)\\s+(.+?)\\s+(.+?):(\\d+)\\s+(.+)$");
+			Matcher m = p.matcher(data);
+			if (m.matches())
+			{
+				boolean away = m.group(6).charAt(0) == 'G';
+				return new WhoEvent(m.group(1), Integer.parseInt(m.group(7)), m.group(3), away, m.group(5), data, m.group(8),
+						m.group(4), event.getSession(), m.group(2));
+			}
+			return event;
+		}
+	}
+
+	static class TopicUpdatedParser implements CommandParser
+	{
+		public IRCEvent createEvent(IRCEvent event)
+		{
+			Pattern p = Pattern.compile("^.+?TOPIC\\s+(.+?)\\s+.*$");
+			Matcher m = p.matcher(event.getRawEventData());
+			m.matches();
+			event.getSession().sayRaw("TOPIC " + m.group(1));
+			return event;
+		}
+	}
+
+	static class NamesParser implements CommandParser
+	{
+		public IRCEvent createEvent(IRCEvent event)
+		{
+			if (event.command().matches("366"))
+			{
+				Session session = event.getSession();
+				return new NickListEvent(event.getRawEventData(), session, session.getChannel(event.arg(1)), session.getChannel(
+						event.arg(1)).getNicks());
+			}
+
+			Channel chan = event.getSession().getChannel(event.arg(2));
+			String[] names = event.arg(3).split("\\s+");
+			for (String name : names)
+			{
+				if (name != null && name.length() > 0)
+				{
+					chan.addNick(name);
+				}
+			}
+			return event;
+		}
+	}
+
+	static class WhoisParser implements CommandParser
+	{
+		private WhoisEvent we;
+
+		public IRCEvent createEvent(IRCEvent event)
+		{
+			switch (event.numeric())
+			{
+				case 311:
+					we = new WhoisEvent(event.arg(0), event.arg(4), event.arg(1), event.arg(2), event.getRawEventData(), event.getSession());
+					break;
+				case 319:
+					if (we != null)
+					{
+						List<String> chanNames = Arrays.asList(event.arg(2).split("\\s+"));
+						we.setChannelNamesList(chanNames);
+						we.appendRawEventData(event.getRawEventData());
+					}
+					break;
+				case 312:
+					if (we != null)
+					{
+						we.setWhoisServer(event.arg(2));
+						we.setWhoisServerInfo(event.arg(3));
+						we.appendRawEventData(event.getRawEventData());
+					}
+					break;
+				case 320:
+					if (we != null)
+					{
+						we.appendRawEventData(event.getRawEventData());
+					}
+					break;
+				case 317:
+					if (we != null)
+					{
+						we.setSignOnTime(Integer.parseInt(event.arg(3)));
+						we.setSecondsIdle(Integer.parseInt(event.arg(2)));
+						we.appendRawEventData(event.getRawEventData());
+					}
+					break;
+				case 318:
+					if (we != null)
+					{
+						we.appendRawEventData(event.getRawEventData());
+						return we;
+					}
+					break;
+			}
+			return event;
+		}
+	}
+}
@@ -0,0 +1,754 @@
+package jerklib.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jerklib.events.EventToken;
+
+/**
+ * A small IRC server for load and soak tests , run in the same process as the
+ * clients on loopback addresses.
+ *
+ * It registers clients (NICK , USER , CAP) , answers PING ,
+ * handles JOIN with NAMES , PART , QUIT and fans PRIVMSG and NOTICE out to
+ * channel members or a nick. Everything runs on one NIO thread. CAP LS lists
+ * the capabilities set with setCapabilities() , none by default , a few per
+ * line , and holds registration until CAP END.
+ *
+ * Every line to a client can be held back by a latency plus random jitter and
+ * is sent no faster than a bandwidth limit per client. Clients can be dropped
+ * at random at a rate per second , or on request. The server pings clients that
+ * were quiet for the ping interval. Scripts see every line before the built in
+ * handling and may take it over.
+ *
+ * Settings may be changed while the server runs. Other threads talk to the
+ * server thread through a queue , so the methods of this class are thread safe.
+ *
+ * @see SoakTest
+ */
+public class LoopbackServer
+{
+	/**
+	 * Hook for lines from clients , called on the server thread
+	 */
+	public interface Script
+	{
+		/**
+		 * @param server
+		 * @param client client the line came from
+		 * @param line the line
+		 * @return true if the line was handled and the server should not handle it
+		 */
+		boolean received(LoopbackServer server, Client client, EventToken line);
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String NAME = "loopback.test";
+	private static final long TICK = 100;
+
+	private final Selector selector;
+	private final Thread thread;
+	private volatile boolean running = true;
+	private final Random random = new Random();
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final List<Script> scripts = new CopyOnWriteArrayList<Script>();
+
+	/* only touched by the server thread */
+	private final Map<String, Client> nicks = new HashMap<String, Client>();
+	private final Map<String, Set<Client>> channels = new HashMap<String, Set<Client>>();
+	private final List<Client> clients = new ArrayList<Client>();
+	private long lastTick = System.currentTimeMillis();
+
+	private volatile String[] capabilities = {};
+	private volatile long latency , jitter , bandwidth , pingInterval = 60000;
+	private volatile double dropRate;
+
+	private final AtomicLong linesIn = new AtomicLong() , linesOut = new AtomicLong() , accepted = new AtomicLong() , drops = new AtomicLong();
+
+	public LoopbackServer() throws IOException
+	{
+		selector = Selector.open();
+		thread = new Thread("loopback-server")
+		{
+			public void run()
+			{
+				loop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Listens on an address , several may be used so every client can
+	 * have its own host name
+	 *
+	 * @param address loopback address , on Linux any of 127.0.0.0/8
+	 * @return port
+	 */
+	public int listen(InetAddress address) throws IOException
+	{
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		server.configureBlocking(false);
+		server.socket().bind(new InetSocketAddress(address, 0), 512);
+		post(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					server.register(selector, SelectionKey.OP_ACCEPT);
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		});
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Holds back every line to clients
+	 *
+	 * @param millis fixed delay
+	 * @param jitterMillis up to this much more , picked at random per line
+	 */
+	public void setLatency(long millis, long jitterMillis)
+	{
+		latency = millis;
+		jitter = jitterMillis;
+	}
+
+	/**
+	 * @param bytesPerSecond most bytes sent to each client per second , 0 for no limit
+	 */
+	public void setBandwidth(long bytesPerSecond)
+	{
+		bandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * @param perSecond chance of each client being dropped in a second , 0 for never
+	 */
+	public void setDropRate(double perSecond)
+	{
+		dropRate = perSecond;
+	}
+
+	/**
+	 * @param millis how long a client may be quiet before it is pinged
+	 */
+	public void setPingInterval(long millis)
+	{
+		pingInterval = millis;
+	}
+
+	/**
+	 * Capabilities offered in CAP LS , like multi-prefix or sasl=PLAIN ,
+	 * CAP REQ is acknowledged if it only asks for these
+	 */
+	public void setCapabilities(String... capabilities)
+	{
+		this.capabilities = capabilities.clone();
+	}
+
+	public void addScript(Script script)
+	{
+		scripts.add(script);
+	}
+
+	/**
+	 * Sends a line to every registered client
+	 */
+	public void sendToAll(final String line)
+	{
+		post(new Runnable()
+		{
+			public void run()
+			{
+				for (Client c : new ArrayList<Client>(clients))
+				{
+					if (c.registered) c.send(line);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends a line to a client
+	 */
+	public void send(final String nick, final String line)
+	{
+		post(new Runnable()
+		{
+			public void run()
+			{
+				Client c = nicks.get(nick.toLowerCase());
+				if (c != null) c.send(line);
+			}
+		});
+	}
+
+	/**
+	 * Drops a client as if its connection broke
+	 */
+	public void disconnect(final String nick)
+	{
+		post(new Runnable()
+		{
+			public void run()
+			{
+				Client c = nicks.get(nick.toLowerCase());
+				if (c != null) drop(c, "Connection reset by peer");
+			}
+		});
+	}
+
+	public long getLinesIn()
+	{
+		return linesIn.get();
+	}
+
+	public long getLinesOut()
+	{
+		return linesOut.get();
+	}
+
+	/**
+	 * @return connections accepted
+	 */
+	public long getAccepted()
+	{
+		return accepted.get();
+	}
+
+	/**
+	 * @return clients dropped at random or on request
+	 */
+	public long getDrops()
+	{
+		return drops.get();
+	}
+
+	/**
+	 * Closes every connection and stops the server thread
+	 */
+	public void stop() throws InterruptedException
+	{
+		running = false;
+		selector.wakeup();
+		thread.join(2000);
+	}
+
+	private void post(Runnable task)
+	{
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	private void loop()
+	{
+		try
+		{
+			while (running)
+			{
+				selector.select(nextTimeout());
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+				{
+					task.run();
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) accept((ServerSocketChannel) key.channel());
+					else if (key.isReadable()) ((Client) key.attachment()).read();
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastTick >= TICK)
+				{
+					tick(now, now - lastTick);
+					lastTick = now;
+				}
+				for (Client c : new ArrayList<Client>(clients))
+				{
+					c.flush(now);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			for (SelectionKey key : selector.keys())
+			{
+				try
+				{
+					key.channel().close();
+				}
+				catch (IOException e)
+				{
+					// closing anyway
+				}
+			}
+			try
+			{
+				selector.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return milliseconds until the next tick or held back line is due
+	 */
+	private long nextTimeout()
+	{
+		long now = System.currentTimeMillis();
+		long timeout = Math.max(1, lastTick + TICK - now);
+		for (Client c : clients)
+		{
+			long due = c.nextDue(now);
+			if (due >= 0) timeout = Math.min(timeout, Math.max(1, due - now));
+		}
+		return timeout;
+	}
+
+	/**
+	 * Drops clients at random and pings quiet ones
+	 */
+	private void tick(long now, long elapsed)
+	{
+		double chance = dropRate * elapsed / 1000.0;
+		for (Client c : new ArrayList<Client>(clients))
+		{
+			if (chance > 0 && random.nextDouble() < chance)
+			{
+				drop(c, "Connection reset by peer");
+			}
+			else if (c.registered && now - c.lastHeard > pingInterval && now - c.lastPing > pingInterval)
+			{
+				c.lastPing = now;
+				c.send("PING :" + NAME);
+			}
+		}
+	}
+
+	private void accept(ServerSocketChannel server) throws IOException
+	{
+		SocketChannel channel;
+		while ((channel = server.accept()) != null)
+		{
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Client c = new Client(channel);
+			c.key = channel.register(selector, SelectionKey.OP_READ, c);
+			clients.add(c);
+			accepted.incrementAndGet();
+		}
+	}
+
+	private void drop(Client c, String reason)
+	{
+		drops.incrementAndGet();
+		quit(c, reason);
+	}
+
+	private void quit(Client c, String reason)
+	{
+		if (!clients.remove(c)) return;
+		if (c.nick != null && nicks.get(c.nick.toLowerCase()) == c) nicks.remove(c.nick.toLowerCase());
+
+		Set<Client> peers = new LinkedHashSet<Client>();
+		for (String name : c.channels)
+		{
+			Set<Client> members = channels.get(name);
+			members.remove(c);
+			if (members.isEmpty()) channels.remove(name);
+			else peers.addAll(members);
+		}
+		for (Client peer : peers)
+		{
+			peer.send(":" + c.mask() + " QUIT :" + reason);
+		}
+		c.key.cancel();
+		try
+		{
+			c.channel.close();
+		}
+		catch (IOException e)
+		{
+			// gone already
+		}
+	}
+
+	private void received(Client c, String line)
+	{
+		linesIn.incrementAndGet();
+		c.lastHeard = System.currentTimeMillis();
+		EventToken token = new EventToken(line);
+		for (Script script : scripts)
+		{
+			if (script.received(this, c, token)) return;
+		}
+
+		String command = token.command().toUpperCase();
+		if (command.equals("CAP"))
+		{
+			cap(c, token);
+		}
+		else if (command.equals("NICK"))
+		{
+			nick(c, token.arg(0));
+		}
+		else if (command.equals("USER"))
+		{
+			c.user = token.arg(0);
+			register(c);
+		}
+		else if (command.equals("PING"))
+		{
+			c.send(":" + NAME + " PONG " + NAME + " :" + token.arg(token.argCount() - 1));
+		}
+		else if (!c.registered || command.equals("PONG"))
+		{
+			return;
+		}
+		else if (command.equals("JOIN"))
+		{
+			for (String name : token.arg(0).split(","))
+			{
+				join(c, name);
+			}
+		}
+		else if (command.equals("PART"))
+		{
+			part(c, token.arg(0).toLowerCase());
+		}
+		else if (command.equals("PRIVMSG") || command.equals("NOTICE"))
+		{
+			message(c, command, token.arg(0), token.arg(token.argCount() - 1));
+		}
+		else if (command.equals("QUIT"))
+		{
+			quit(c, "Quit: " + (token.argCount() > 0 ? token.arg(0) : ""));
+		}
+	}
+
+	private void cap(Client c, EventToken token)
+	{
+		String sub = token.arg(0);
+		String target = c.nick == null ? "*" : c.nick;
+		if ("LS".equalsIgnoreCase(sub))
+		{
+			if (!c.registered) c.negotiating = true;
+			String[] caps = capabilities;
+			/* three per line so clients see the * of a continued list */
+			for (int i = 0; i < caps.length || i == 0; i += 3)
+			{
+				StringBuilder line = new StringBuilder();
+				for (int j = i; j < i + 3 && j < caps.length; j++)
+				{
+					line.append(j > i ? " " : "").append(caps[j]);
+				}
+				c.send(":" + NAME + " CAP " + target + " LS " + (i + 3 < caps.length ? "* :" : ":") + line);
+			}
+		}
+		else if ("REQ".equalsIgnoreCase(sub))
+		{
+			String requested = token.arg(token.argCount() - 1);
+			boolean offered = true;
+			for (String cap : requested.split(" "))
+			{
+				boolean found = false;
+				for (String have : capabilities)
+				{
+					if (have.equals(cap) || have.startsWith(cap + "=")) found = true;
+				}
+				offered &= found;
+			}
+			c.send(":" + NAME + " CAP " + target + (offered ? " ACK :" : " NAK :") + requested);
+		}
+		else if ("END".equalsIgnoreCase(sub))
+		{
+			c.negotiating = false;
+			register(c);
+		}
+	}
+
+	private void nick(Client c, String nick)
+	{
+		if (nick == null) return;
+		Client owner = nicks.get(nick.toLowerCase());
+		if (owner != null && owner != c)
+		{
+			c.send(":" + NAME + " 433 " + (c.nick == null ? "*" : c.nick) + " " + nick + " :Nickname is already in use");
+			return;
+		}
+		if (c.nick != null)
+		{
+			nicks.remove(c.nick.toLowerCase());
+			if (c.registered) c.send(":" + c.mask() + " NICK :" + nick);
+		}
+		c.nick = nick;
+		nicks.put(nick.toLowerCase(), c);
+		register(c);
+	}
+
+	private void register(Client c)
+	{
+		if (c.registered || c.negotiating || c.nick == null || c.user == null) return;
+		c.registered = true;
+		c.send(":" + NAME + " 001 " + c.nick + " :Welcome to the loopback network " + c.mask());
+		c.send(":" + NAME + " 002 " + c.nick + " :Your host is " + NAME);
+		c.send(":" + NAME + " 003 " + c.nick + " :This server was created today");
+		c.send(":" + NAME + " 004 " + c.nick + " " + NAME + " loopback-1 iow ntov");
+		c.send(":" + NAME + " 005 " + c.nick + " CHANTYPES=# PREFIX=(ov)@+ CHANMODES=,,,nt CASEMAPPING=ascii NETWORK=Loopback :are supported by this server");
+		c.send(":" + NAME + " 375 " + c.nick + " :- " + NAME + " Message of the day -");
+		c.send(":" + NAME + " 376 " + c.nick + " :End of /MOTD command.");
+	}
+
+	private void join(Client c, String name)
+	{
+		String key = name.toLowerCase();
+		if (c.channels.contains(key)) return;
+		Set<Client> members = channels.get(key);
+		if (members == null)
+		{
+			members = new LinkedHashSet<Client>();
+			channels.put(key, members);
+		}
+		boolean first = members.isEmpty();
+		members.add(c);
+		c.channels.add(key);
+
+		String join = ":" + c.mask() + " JOIN " + name;
+		for (Client member : members)
+		{
+			member.send(join);
+		}
+
+		StringBuilder names = new StringBuilder();
+		for (Client member : members)
+		{
+			if (names.length() > 400)
+			{
+				c.send(":" + NAME + " 353 " + c.nick + " = " + name + " :" + names.toString().trim());
+				names.setLength(0);
+			}
+			names.append(member == c && first ? "@" : "").append(member.nick).append(' ');
+		}
+		c.send(":" + NAME + " 353 " + c.nick + " = " + name + " :" + names.toString().trim());
+		c.send(":" + NAME + " 366 " + c.nick + " " + name + " :End of /NAMES list.");
+	}
+
+	private void part(Client c, String key)
+	{
+		Set<Client> members = channels.get(key);
+		if (members == null || !c.channels.remove(key)) return;
+		String part = ":" + c.mask() + " PART " + key;
+		for (Client member : members)
+		{
+			member.send(part);
+		}
+		members.remove(c);
+		if (members.isEmpty()) channels.remove(key);
+	}
+
+	private void message(Client c, String command, String target, String text)
+	{
+		if (target == null || text == null) return;
+		String line = ":" + c.mask() + " " + command + " " + target + " :" + text;
+		if (target.startsWith("#"))
+		{
+			Set<Client> members = channels.get(target.toLowerCase());
+			if (members == null) return;
+			for (Client member : members)
+			{
+				if (member != c) member.send(line);
+			}
+		}
+		else
+		{
+			Client to = nicks.get(target.toLowerCase());
+			if (to != null) to.send(line);
+		}
+	}
+
+	/**
+	 * A connected client
+	 */
+	public class Client
+	{
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private String nick , user;
+		private boolean registered , negotiating;
+		private final Set<String> channels = new LinkedHashSet<String>();
+		private long lastHeard = System.currentTimeMillis() , lastPing;
+
+		/* bytes of a line not ended yet */
+		private final ByteBuffer in = ByteBuffer.allocate(16384);
+
+		/* lines not sent yet , with the time they may go */
+		private final LinkedList<ByteBuffer> out = new LinkedList<ByteBuffer>();
+		private final LinkedList<Long> due = new LinkedList<Long>();
+
+		/* bandwidth allowance , bytes that may be sent now */
+		private double allowance;
+		private long lastSend = System.currentTimeMillis();
+
+		Client(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		public String getNick()
+		{
+			return nick;
+		}
+
+		/**
+		 * Queues a line , held back by the latency setting
+		 */
+		public void send(String line)
+		{
+			long delay = latency + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+			out.add(ByteBuffer.wrap((line + "\r\n").getBytes(UTF8)));
+			/* lines never overtake each other */
+			long at = System.currentTimeMillis() + delay;
+			due.add(due.isEmpty() ? at : Math.max(at, due.getLast()));
+			linesOut.incrementAndGet();
+		}
+
+		String mask()
+		{
+			return nick + "!" + user + "@" + channel.socket().getInetAddress().getHostAddress();
+		}
+
+		/**
+		 * @return when the next line is due , -1 if none is waiting
+		 */
+		long nextDue(long now)
+		{
+			if (due.isEmpty()) return -1;
+			long next = due.getFirst();
+			long limit = bandwidth;
+			if (limit > 0 && allowance < 1) next = Math.max(next, now + 1 + (long) ((1 - allowance) * 1000 / limit));
+			return next;
+		}
+
+		void read()
+		{
+			int n;
+			try
+			{
+				n = channel.read(in);
+			}
+			catch (IOException e)
+			{
+				n = -1;
+			}
+			if (n == -1)
+			{
+				quit(this, "Connection closed");
+				return;
+			}
+
+			int start = 0;
+			byte[] data = in.array();
+			for (int i = 0; i < in.position(); i++)
+			{
+				if (data[i] != '\n') continue;
+				int end = i > start && data[i - 1] == '\r' ? i - 1 : i;
+				if (end > start) received(this, new String(data, start, end - start, UTF8));
+				if (!channel.isOpen()) return;
+				start = i + 1;
+			}
+			/* keep the unended line , drop it if it filled the buffer */
+			if (start == 0 && !in.hasRemaining()) in.clear();
+			else
+			{
+				in.limit(in.position());
+				in.position(start);
+				in.compact();
+			}
+		}
+
+		/**
+		 * Sends due lines the bandwidth allows
+		 */
+		void flush(long now)
+		{
+			if (out.isEmpty() || !channel.isOpen()) return;
+
+			long limit = bandwidth;
+			if (limit > 0)
+			{
+				allowance = Math.min(limit, allowance + (now - lastSend) * limit / 1000.0);
+				lastSend = now;
+			}
+
+			try
+			{
+				while (!out.isEmpty() && due.getFirst() <= now)
+				{
+					ByteBuffer line = out.getFirst();
+					if (limit > 0)
+					{
+						if (allowance < 1) return;
+						int budget = (int) Math.min(line.remaining(), allowance);
+						int oldLimit = line.limit();
+						line.limit(line.position() + budget);
+						int written = channel.write(line);
+						line.limit(oldLimit);
+						allowance -= written;
+					}
+					else
+					{
+						channel.write(line);
+					}
+
+					if (line.hasRemaining()) return;
+					out.removeFirst();
+					due.removeFirst();
+				}
+			}
+			catch (IOException e)
+			{
+				quit(this, "Write error");
+			}
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package jerklib.bench;
+
+import java.lang.management.ManagementFactory;
+
+import jerklib.LatencyHistogram;
+import jerklib.MetricsHarness;
+
+/**
+ * Checks that recording into a LatencyHistogram and a SessionMetrics does not
+ * allocate , by counting the bytes the calling thread allocated with
+ * ThreadMXBean like PipelineBenchmark does.
+ *
+ * Each round records a number of random durations into a LatencyHistogram ,
+ * then records as many lines into a SessionMetrics , every counter , both
+ * histograms and the parse time of a command from a set larger than the
+ * commands SessionMetrics times separately. Rounds after the warm up must
+ * allocate no more than a few hundred bytes , what the JIT may leave behind
+ * once , never an amount that grows with the recordings.
+ *
+ * Exits with 1 if a measured round allocates more.
+ *
+ * usage: MetricsAllocationCheck [recordings per round]
+ */
+public class MetricsAllocationCheck
+{
+	private static final int WARMUP = 3 , ROUNDS = 5;
+
+	/* bytes a round may allocate , a one off from compilation */
+	private static final long SLACK = 1024;
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args)
+	{
+		int recordings = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+
+		/* more than SessionMetrics times separately , the rest share a slot */
+		String[] commands = new String[80];
+		for (int i = 0; i < commands.length; i++)
+		{
+			commands[i] = i < 20 ? new String[] { "PRIVMSG", "NOTICE", "JOIN", "PART", "QUIT" }[i % 5] + i : String.valueOf(300 + i);
+		}
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		MetricsHarness metrics = new MetricsHarness();
+		long overhead = allocated();
+		overhead = allocated() - overhead;
+
+		boolean failed = false;
+		for (int round = 0; round < WARMUP + ROUNDS; round++)
+		{
+			long before = allocated();
+			record(histogram, recordings, round);
+			long histogramBytes = allocated() - before - overhead;
+
+			before = allocated();
+			record(metrics, commands, recordings, round);
+			long metricsBytes = allocated() - before - overhead;
+
+			boolean measured = round >= WARMUP;
+			System.out.println((measured ? "round " + (round - WARMUP + 1) : "warm up") + ": " + recordings + " recordings , LatencyHistogram "
+					+ histogramBytes + " bytes , SessionMetrics " + metricsBytes + " bytes");
+			if (measured && (histogramBytes > SLACK || metricsBytes > SLACK)) failed = true;
+		}
+
+		if (histogram.getCount() != (long) recordings * (WARMUP + ROUNDS) || metrics.getLinesIn() != histogram.getCount())
+		{
+			System.out.println("FAILED: recordings were lost");
+			System.exit(1);
+		}
+		if (failed)
+		{
+			System.out.println("FAILED: a round allocated more than " + SLACK + " bytes");
+			System.exit(1);
+		}
+		System.out.println("allocation free");
+	}
+
+	private static void record(LatencyHistogram histogram, int recordings, long seed)
+	{
+		long x = seed * 0x9e3779b97f4a7c15L + 1;
+		for (int i = 0; i < recordings; i++)
+		{
+			x ^= x << 13;
+			x ^= x >>> 7;
+			x ^= x << 17;
+			/* up to about 17 s , and some beyond MAX_VALUE */
+			histogram.record((x >>> 30) & ((1L << (34 + (i & 7))) - 1));
+		}
+	}
+
+	private static void record(MetricsHarness metrics, String[] commands, int recordings, long seed)
+	{
+		long x = seed * 0x9e3779b97f4a7c15L + 1;
+		long now = System.nanoTime();
+		for (int i = 0; i < recordings; i++)
+		{
+			x ^= x << 13;
+			x ^= x >>> 7;
+			x ^= x << 17;
+			metrics.recordLine(commands[(int) ((x >>> 1) % commands.length)], (x >>> 40) & 0xffffff, now + i);
+		}
+	}
+
+	private static long allocated()
+	{
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,275 @@
+package jerklib.bench;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+
+import jerklib.Channel;
+import jerklib.ModeAdjustment.Action;
+import jerklib.PipelineHarness;
+import jerklib.Session;
+import jerklib.WriteRequest;
+import jerklib.WriteScheduler;
+import jerklib.events.IRCEvent;
+import jerklib.listeners.IRCEventListener;
+import jerklib.parsers.DefaultInternalEventParser;
+import jerklib.parsers.InternalEventParser;
+
+/**
+ * Checks the LIST , WHO , TOPIC , NAMES and WHOIS parsers against the
+ * versions they replaced , kept in LegacyReplyParsers.
+ *
+ * Every line of a corpus of server replies goes through two Sessions , one
+ * with the current parsers and one with the legacy ones , the whole way
+ * through the internal event handler. After each line the event each parser
+ * made is dumped , class and the value of every getter , along with the lines
+ * the Session asked to send. At the end the topic , nicks , ops and voices of
+ * every Channel are dumped. The dumps must be the same.
+ *
+ * A line the legacy parsers threw on and the current ones did not is counted
+ * and printed but not failed , those are the crashes the rewrite fixed.
+ *
+ * Exits with 1 if anything differs.
+ *
+ * usage: ParserConformance [corpus] , default bench/corpus/parser-replies.irc
+ *
+ * @see LegacyReplyParsers
+ */
+public class ParserConformance
+{
+	public static void main(String[] args) throws IOException
+	{
+		String file = args.length > 0 ? args[0] : "bench/corpus/parser-replies.irc";
+		List<String> lines = load(file);
+
+		Side current = new Side(false);
+		Side legacy = new Side(true);
+		int differences = 0 , fixed = 0 , typed = 0;
+		try
+		{
+			for (String line : lines)
+			{
+				String expected = legacy.handle(line);
+				String actual = current.handle(line);
+				if (expected.equals(actual))
+				{
+					if (!expected.startsWith("IRCEvent ")) typed++;
+					continue;
+				}
+				if (expected.startsWith("threw ") && !actual.startsWith("threw "))
+				{
+					fixed++;
+					System.out.println("fixed: " + line + "\n  legacy  " + expected + "\n  current " + actual);
+					continue;
+				}
+				differences++;
+				System.out.println("differs: " + line + "\n  legacy  " + expected + "\n  current " + actual);
+			}
+
+			String expected = legacy.channels();
+			String actual = current.channels();
+			if (!expected.equals(actual))
+			{
+				differences++;
+				System.out.println("channels differ\n  legacy  " + expected + "\n  current " + actual);
+			}
+			System.out.println(lines.size() + " lines , " + typed + " typed events , " + fixed + " legacy crashes fixed , " + differences
+					+ " differences");
+		}
+		finally
+		{
+			current.close();
+			legacy.close();
+		}
+		System.exit(differences == 0 ? 0 : 1);
+	}
+
+	/*
+	 * server lines , one per line , lines starting with # are comments
+	 */
+	private static List<String> load(String file) throws IOException
+	{
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				if (line.length() > 0 && !line.startsWith("#")) lines.add(line);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return lines;
+	}
+
+	/**
+	 * A Session with one set of parsers that remembers the last event parsed
+	 * and what was written
+	 */
+	private static class Side implements InternalEventParser, WriteScheduler
+	{
+		private final PipelineHarness harness;
+		private final InternalEventParser parser;
+		private final List<String> written = new ArrayList<String>();
+		private IRCEvent parsed;
+
+		Side(boolean legacy) throws IOException
+		{
+			harness = new PipelineHarness();
+			Session session = harness.getSession();
+			DefaultInternalEventParser parsers = (DefaultInternalEventParser) session.getInternalEventParser();
+			parser = legacy ? new LegacyReplyParsers(parsers) : parsers;
+			session.setInternalParser(this);
+			session.setWriteScheduler(this);
+			/* a listener for everything , so no parser is skipped */
+			session.addIRCEventListener(new IRCEventListener()
+			{
+				public void receiveEvent(IRCEvent e)
+				{}
+			});
+		}
+
+		/**
+		 * Handles a line like the io thread does
+		 *
+		 * @return dump of the event parsed and lines written
+		 */
+		String handle(String line)
+		{
+			parsed = null;
+			written.clear();
+			String result;
+			try
+			{
+				harness.handle(line);
+				result = dump(parsed);
+			}
+			catch (RuntimeException e)
+			{
+				result = "threw " + e.getClass().getSimpleName();
+			}
+			return written.isEmpty() ? result : result + " wrote " + written;
+		}
+
+		String channels()
+		{
+			List<Channel> channels = new ArrayList<Channel>(harness.getSession().getChannels());
+			StringBuilder sb = new StringBuilder();
+			for (Channel chan : channels)
+			{
+				sb.append(chan.getName()).append(" topic=").append(chan.getTopic());
+				sb.append(" nicks=").append(new TreeSet<String>(chan.getNicks()));
+				sb.append(" ops=").append(new TreeSet<String>(chan.getNicksForMode(Action.PLUS, 'o')));
+				sb.append(" voices=").append(new TreeSet<String>(chan.getNicksForMode(Action.PLUS, 'v'))).append(' ');
+			}
+			return sb.toString();
+		}
+
+		void close() throws IOException
+		{
+			harness.close();
+		}
+
+		public IRCEvent receiveEvent(IRCEvent e)
+		{
+			parsed = parser.receiveEvent(e);
+			return parsed;
+		}
+
+		public void add(WriteRequest request)
+		{
+			written.add(request.getMessage().trim());
+		}
+
+		public void addFirst(WriteRequest request)
+		{
+			add(request);
+		}
+
+		public WriteRequest next(long now)
+		{
+			return null;
+		}
+
+		public long getDelay(long now)
+		{
+			return -1;
+		}
+
+		public int size()
+		{
+			return 0;
+		}
+
+		public void clear()
+		{}
+	}
+
+	private static final Comparator<Method> BY_NAME = new Comparator<Method>()
+	{
+		public int compare(Method a, Method b)
+		{
+			return a.getName().compareTo(b.getName());
+		}
+	};
+
+	/*
+	 * class of an event and what each getter returns , sorted by name
+	 */
+	private static String dump(IRCEvent event)
+	{
+		if (event == null) return "null";
+		Method[] methods = event.getClass().getMethods();
+		Arrays.sort(methods, BY_NAME);
+		StringBuilder sb = new StringBuilder(event.getClass().getSimpleName()).append(" {");
+		for (Method method : methods)
+		{
+			String name = method.getName();
+			if (method.getParameterTypes().length != 0 || method.getReturnType() == void.class
+					|| Modifier.isStatic(method.getModifiers()) || method.getDeclaringClass() == Object.class
+					|| name.equals("getSession") || name.equals("toString")) continue;
+			Object value;
+			try
+			{
+				value = method.invoke(event);
+			}
+			catch (Exception e)
+			{
+				value = "threw " + e.getCause();
+			}
+			if (value instanceof Channel) value = ((Channel) value).getName();
+			else if (value instanceof Date) value = ((Date) value).getTime();
+			else if (value != null && !hasToString(value)) value = value.getClass().getSimpleName();
+			sb.append(name).append('=').append(value).append(", ");
+		}
+		return sb.append('}').toString();
+	}
+
+	/*
+	 * false for objects that would print as an identity hash
+	 */
+	private static boolean hasToString(Object value)
+	{
+		try
+		{
+			return value.getClass().getMethod("toString").getDeclaringClass() != Object.class;
+		}
+		catch (NoSuchMethodException e)
+		{
+			return false;
+		}
+	}
+}
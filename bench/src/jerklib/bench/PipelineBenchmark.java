@@ -0,0 +1,233 @@
+package jerklib.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jerklib.PipelineHarness;
+import jerklib.events.EventToken;
+import jerklib.events.IRCEvent;
+import jerklib.listeners.IRCEventListener;
+
+/**
+ * Replays a TrafficCorpus through each stage a server line goes through and
+ * reports lines per second , bytes allocated per line and garbage collections.
+ *
+ * <pre>
+ * frame     bytes to lines , through one reused 2048 byte buffer like Connection.read()
+ * tokenize  EventToken , reading the command , first argument and nick
+ * parse     the typed event from DefaultInternalEventParser , no state changes
+ *           after the register section has been handled once
+ * handle    parse and DefaultInternalEventHandler updating Session and Channels ,
+ *           queueing the event for listeners
+ * relay     bytes in to a listener having seen every event , relay threads included
+ * </pre>
+ *
+ * Every pass starts from a new Session so the corpus replays the same way each time.
+ * Each stage is warmed up , then measured over several iterations of at least
+ * a second. Allocations are counted on the calling thread , for relay on all threads.
+ *
+ * usage: PipelineBenchmark [stage|all] [section|all] [corpus file]
+ */
+public class PipelineBenchmark
+{
+	private static final int WARMUP = 3 , ITERATIONS = 5;
+	private static final long ITERATION_NANOS = 1000000000L;
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private final PipelineHarness harness;
+	private List<String> lines;
+	private final List<String> register;
+	private final byte[] bytes;
+	private final AtomicLong relayed = new AtomicLong();
+	private long sink;
+
+	PipelineBenchmark(TrafficCorpus corpus, String section) throws Exception
+	{
+		harness = new PipelineHarness();
+		/* a section is replayed after registering so there is a channel to update */
+		register = corpus.section("register");
+		lines = new ArrayList<String>(register);
+		if (section == null) lines = corpus.lines();
+		else if (!section.equals("register")) lines.addAll(corpus.section(section));
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines) sb.append(line).append("\r\n");
+		bytes = sb.toString().getBytes("UTF-8");
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		String stage = args.length > 0 ? args[0] : "all";
+		String section = args.length > 1 && !args[1].equals("all") ? args[1] : null;
+		TrafficCorpus corpus = args.length > 2 ? TrafficCorpus.load(args[2]) : TrafficCorpus.generate(42);
+
+		PipelineBenchmark bench = new PipelineBenchmark(corpus, section);
+		System.out.println(bench.lines.size() + " lines , " + bench.bytes.length + " bytes" + (section == null ? "" : " , section " + section + " after register"));
+		System.out.println(String.format("%-9s %14s %12s %12s %10s %8s", "stage", "lines/s", "+-", "B/line", "MB/s", "gc ms"));
+
+		for (String name : new String[] { "frame", "tokenize", "parse", "handle", "relay" })
+		{
+			if (stage.equals("all") || stage.equals(name)) bench.run(name);
+		}
+		bench.harness.close();
+		System.out.println("(" + bench.sink + ")");
+	}
+
+	private void run(String stage) throws Exception
+	{
+		boolean allThreads = stage.equals("relay");
+		if (stage.equals("parse"))
+		{
+			/* parsers look up the channels they see , so register and join first */
+			harness.reset();
+			for (String line : register) harness.handle(line);
+		}
+		for (int i = 0; i < WARMUP; i++)
+		{
+			iteration(stage, allThreads);
+		}
+
+		double[] rates = new double[ITERATIONS];
+		long totalLines = 0 , totalBytes = 0 , totalNanos = 0 , gcMillis = gcMillis();
+		for (int i = 0; i < ITERATIONS; i++)
+		{
+			long[] r = iteration(stage, allThreads);
+			rates[i] = r[0] * 1e9 / r[2];
+			totalLines += r[0];
+			totalBytes += r[1];
+			totalNanos += r[2];
+		}
+		gcMillis = gcMillis() - gcMillis;
+
+		double mean = 0 , deviation = 0;
+		for (double rate : rates) mean += rate / rates.length;
+		for (double rate : rates) deviation += (rate - mean) * (rate - mean) / rates.length;
+		System.out.println(String.format("%-9s %14.0f %12.0f %12.1f %10.1f %8d", stage, mean, Math.sqrt(deviation),
+				totalBytes / (double) totalLines, totalBytes * 1e3 / totalNanos, gcMillis));
+	}
+
+	/**
+	 * Replays the corpus until a second has passed
+	 *
+	 * @return lines , bytes allocated and nanoseconds spent in the stage
+	 */
+	private long[] iteration(String stage, boolean allThreads) throws Exception
+	{
+		long lineCount = 0 , allocated = 0 , nanos = 0;
+		while (nanos < ITERATION_NANOS)
+		{
+			if (stage.equals("handle") || stage.equals("relay"))
+			{
+				harness.reset();
+				if (allThreads) harness.getSession().addIRCEventListener(counter());
+			}
+			long expected = relayed.get();
+
+			long bytesBefore = allocated(allThreads);
+			long start = System.nanoTime();
+			lineCount += pass(stage);
+			if (allThreads) expected = awaitRelays(expected);
+			nanos += System.nanoTime() - start;
+			allocated += allocated(allThreads) - bytesBefore;
+		}
+		return new long[] { lineCount, allocated, nanos };
+	}
+
+	/**
+	 * One pass over the corpus
+	 *
+	 * @return lines
+	 */
+	private int pass(String stage)
+	{
+		if (stage.equals("frame")) return harness.frame(bytes, 2048);
+		if (stage.equals("relay")) return harness.feed(bytes, 2048);
+
+		for (int i = 0; i < lines.size(); i++)
+		{
+			String line = lines.get(i);
+			if (stage.equals("tokenize"))
+			{
+				EventToken token = new EventToken(line);
+				String target = token.arg(0);
+				sink += token.command().length() + (target == null ? 0 : target.length()) + token.getNick().length();
+			}
+			else if (stage.equals("parse"))
+			{
+				IRCEvent event = harness.parse(line);
+				if (event != null) sink += event.getType().ordinal();
+			}
+			else
+			{
+				harness.handle(line);
+			}
+		}
+		return lines.size();
+	}
+
+	/* events relayed in a pass , learned from the first one */
+	private long relaysPerPass = -1;
+
+	/**
+	 * Waits for the listener to have seen every event of the pass
+	 *
+	 * @return relay count after the pass
+	 */
+	private long awaitRelays(long before) throws InterruptedException
+	{
+		if (relaysPerPass < 0)
+		{
+			long last = -1;
+			while (relayed.get() != last)
+			{
+				last = relayed.get();
+				Thread.sleep(200);
+			}
+			relaysPerPass = last - before;
+		}
+		long target = before + relaysPerPass;
+		while (relayed.get() < target)
+		{
+			Thread.yield();
+		}
+		return target;
+	}
+
+	private IRCEventListener counter()
+	{
+		return new IRCEventListener()
+		{
+			public void receiveEvent(IRCEvent e)
+			{
+				relayed.incrementAndGet();
+			}
+		};
+	}
+
+	private static long allocated(boolean allThreads)
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+		if (!allThreads) return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+
+		long total = 0;
+		for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+		{
+			if (bytes > 0) total += bytes;
+		}
+		return total;
+	}
+
+	private static long gcMillis()
+	{
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			total += Math.max(0, gc.getCollectionTime());
+		}
+		return total;
+	}
+}
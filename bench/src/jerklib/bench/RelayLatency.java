@@ -0,0 +1,137 @@
+package jerklib.bench;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import jerklib.ConnectionManager;
+import jerklib.Profile;
+import jerklib.Session;
+import jerklib.events.IRCEvent;
+import jerklib.events.MessageEvent;
+import jerklib.events.IRCEvent.Type;
+import jerklib.listeners.IRCEventListener;
+
+/**
+ * Measures the time from a server writing a line to the socket until
+ * an IRCEventListener receives the parsed event.
+ * 
+ * A fake server on the loopback interface registers the client and then sends
+ * PRIVMSGs carrying the System.nanoTime() they were written at. Lines are spaced
+ * out so each one arrives on an idle ConnectionManager , which is the case that
+ * used to wait for the 200 ms loop and dispatch timers.
+ * 
+ * usage: RelayLatency [messages] [gap in ms]
+ */
+public class RelayLatency implements IRCEventListener
+{
+	private final long[] latencies;
+	private int received;
+
+	public RelayLatency(int messages)
+	{
+		latencies = new long[messages];
+	}
+
+	public void receiveEvent(IRCEvent e)
+	{
+		if (e.getType() != Type.PRIVATE_MESSAGE) return;
+		long now = System.nanoTime();
+		long sent = Long.parseLong(((MessageEvent) e).getMessage());
+		synchronized (this)
+		{
+			if (received < latencies.length)
+			{
+				latencies[received++] = now - sent;
+			}
+			notifyAll();
+		}
+	}
+
+	synchronized void awaitAll(long timeout) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + timeout;
+		while (received < latencies.length && System.currentTimeMillis() < end)
+		{
+			wait(end - System.currentTimeMillis());
+		}
+	}
+
+	synchronized void report()
+	{
+		long[] sorted = Arrays.copyOf(latencies, received);
+		Arrays.sort(sorted);
+		System.out.println("messages received: " + received + "/" + latencies.length);
+		if (received == 0) return;
+		System.out.println("min    " + micros(sorted[0]));
+		System.out.println("median " + micros(sorted[received / 2]));
+		System.out.println("p99    " + micros(sorted[Math.min(received - 1, received * 99 / 100)]));
+		System.out.println("max    " + micros(sorted[received - 1]));
+	}
+
+	private static String micros(long nanos)
+	{
+		return String.format("%10.1f us", nanos / 1000.0);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		final long gap = args.length > 1 ? Long.parseLong(args[1]) : 20;
+
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		Thread fakeServer = new Thread("fake-ircd")
+		{
+			public void run()
+			{
+				try
+				{
+					Socket client = server.accept();
+					client.setTcpNoDelay(true);
+					BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+					OutputStream out = client.getOutputStream();
+
+					/* wait for NICK and USER */
+					in.readLine();
+					in.readLine();
+					out.write(":bench.local 001 bench :Welcome\r\n".getBytes("UTF-8"));
+					out.flush();
+					Thread.sleep(500);
+
+					for (int i = 0; i < messages; i++)
+					{
+						Thread.sleep(gap);
+						String line = ":peer!p@bench.local PRIVMSG bench :" + System.nanoTime() + "\r\n";
+						out.write(line.getBytes("UTF-8"));
+						out.flush();
+					}
+					in.readLine();
+				}
+				catch (Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+		};
+		fakeServer.setDaemon(true);
+		fakeServer.start();
+
+		RelayLatency bench = new RelayLatency(messages);
+		ConnectionManager manager = new ConnectionManager(new Profile("bench"));
+		Session session = manager.requestConnection("127.0.0.1", server.getLocalPort());
+		session.addIRCEventListener(bench);
+
+		bench.awaitAll(messages * gap + 30000);
+		bench.report();
+
+		manager.quit();
+		server.close();
+
+		/* the IdentServer thread can linger for a minute waiting on port 113 */
+		System.exit(0);
+	}
+}
@@ -0,0 +1,262 @@
+package jerklib.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.qweex.utils.RingBuffer;
+
+/**
+ * Checks the RingBuffer the chat backlog is kept in against an ArrayList
+ * that is trimmed from the front the way the RingBuffer says it trims.
+ *
+ * Random steps add , insert , remove , set , addAll , clear and change the
+ * maximum count and bytes of a buffer weighing lines by their length , with
+ * maximums small enough that it is full most of the time and its head wraps.
+ * After every step checks that:
+ * <ul>
+ * <li>the buffer holds the elements of the model , in order</li>
+ * <li>set() and remove() returned the element the model had there</li>
+ * <li>getBytes() is the weight of the elements held</li>
+ * <li>an index out of range throws IndexOutOfBoundsException</li>
+ * </ul>
+ * Then checks the byte cap on its own: lines are dropped until the rest
+ * fit , a line heavier than the cap is still kept , and a cap of 0 lifts it.
+ * Also times appending to a full buffer , which is reported and not checked.
+ *
+ * Exits with 1 on the first mismatch.
+ *
+ * usage: RingBufferCheck [steps] [seed]
+ */
+public class RingBufferCheck
+{
+	private static final RingBuffer.Weigher<String> LENGTH = new RingBuffer.Weigher<String>()
+	{
+		public int weigh(String element)
+		{
+			return element.length();
+		}
+	};
+
+	private final Random random;
+	private RingBuffer<String> buffer;
+	private final List<String> model = new ArrayList<String>();
+	private int maximum;
+	private long maximumBytes;
+	private int step;
+
+	RingBufferCheck(long seed)
+	{
+		random = new Random(seed);
+		maximum = 1 + random.nextInt(40);
+		maximumBytes = 0;
+		buffer = new RingBuffer<String>(maximum, maximumBytes, LENGTH);
+	}
+
+	public static void main(String[] args)
+	{
+		int steps = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+
+		RingBufferCheck check = new RingBufferCheck(seed);
+		check.run(steps);
+		System.out.println(steps + " steps , all match");
+
+		checkBytes();
+		System.out.println("byte cap: drops the oldest until the rest fit , keeps a line heavier than the cap");
+
+		time(10000000, 100000);
+	}
+
+	private void run(int steps)
+	{
+		for (step = 0; step < steps; step++)
+		{
+			int action = random.nextInt(100);
+			if (action < 40)
+			{
+				String line = line();
+				buffer.add(line);
+				model.add(line);
+			}
+			else if (action < 55)
+			{
+				int index = random.nextInt(model.size() + 1);
+				String line = line();
+				buffer.add(index, line);
+				model.add(index, line);
+			}
+			else if (action < 70)
+			{
+				if (model.isEmpty()) continue;
+				int index = random.nextInt(model.size());
+				same("remove(" + index + ")", buffer.remove(index), model.remove(index));
+			}
+			else if (action < 80)
+			{
+				if (model.isEmpty()) continue;
+				int index = random.nextInt(model.size());
+				String line = line();
+				same("set(" + index + ")", buffer.set(index, line), model.set(index, line));
+			}
+			else if (action < 90)
+			{
+				List<String> lines = new ArrayList<String>();
+				for (int i = random.nextInt(maximum * 2 + 1); i > 0; i--)
+				{
+					lines.add(line());
+				}
+				buffer.addAll(lines);
+				model.addAll(lines);
+			}
+			else if (action < 92)
+			{
+				buffer.clear();
+				model.clear();
+			}
+			else if (action < 96)
+			{
+				maximum = 1 + random.nextInt(40);
+				buffer.setMaximumCapacity(maximum);
+			}
+			else
+			{
+				maximumBytes = random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(400);
+				buffer.setMaximumBytes(maximumBytes);
+			}
+			trim();
+			check();
+		}
+	}
+
+	/*
+	 * mostly short lines , some longer than a small byte cap
+	 */
+	private String line()
+	{
+		int length = random.nextInt(8) == 0 ? random.nextInt(200) : random.nextInt(20);
+		StringBuilder sb = new StringBuilder("s" + step + ":");
+		for (int i = 0; i < length; i++)
+		{
+			sb.append((char) ('a' + random.nextInt(26)));
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * drops from the front of the model , always keeping the newest
+	 */
+	private void trim()
+	{
+		while (model.size() > maximum || (maximumBytes > 0 && weight(model) > maximumBytes && model.size() > 1))
+		{
+			model.remove(0);
+		}
+	}
+
+	private void check()
+	{
+		if (buffer.size() != model.size()) fail("size is " + buffer.size() + " , expected " + model.size());
+		for (int i = 0; i < model.size(); i++)
+		{
+			if (!buffer.get(i).equals(model.get(i))) fail("element " + i + " is " + buffer.get(i) + " , expected " + model.get(i));
+		}
+		if (!buffer.equals(model)) fail("iterating differs from get()");
+		if (buffer.getBytes() != weight(model)) fail("getBytes() is " + buffer.getBytes() + " , expected " + weight(model));
+		outOfRange(-1);
+		outOfRange(model.size());
+	}
+
+	private void outOfRange(int index)
+	{
+		try
+		{
+			buffer.get(index);
+			fail("get(" + index + ") did not throw at size " + model.size());
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+			/* expected */
+		}
+	}
+
+	private void same(String what, String actual, String expected)
+	{
+		if (!actual.equals(expected)) fail(what + " returned " + actual + " , expected " + expected);
+	}
+
+	private void fail(String why)
+	{
+		System.out.println("step " + step + " , maximum " + maximum + " , maximum bytes " + maximumBytes + ": " + why);
+		System.exit(1);
+	}
+
+	private static long weight(List<String> lines)
+	{
+		long weight = 0;
+		for (String line : lines)
+		{
+			weight += line.length();
+		}
+		return weight;
+	}
+
+	private static void checkBytes()
+	{
+		RingBuffer<String> lines = new RingBuffer<String>(1000, 1000, LENGTH);
+		String hundred = repeat('a', 100);
+		for (int i = 0; i < 50; i++)
+		{
+			lines.add(hundred);
+		}
+		expect(lines, 10, 1000);
+
+		lines.add(repeat('b', 5000));
+		expect(lines, 1, 5000);
+		lines.add(repeat('c', 10));
+		expect(lines, 1, 10);
+
+		lines.setMaximumBytes(0);
+		lines.addAll(Collections.nCopies(50, hundred));
+		expect(lines, 51, 5010);
+		lines.setMaximumBytes(1000);
+		expect(lines, 10, 1000);
+		lines.setMaximumCapacity(4);
+		expect(lines, 4, 400);
+
+		RingBuffer<String> unweighed = new RingBuffer<String>(3);
+		unweighed.addAll(Collections.nCopies(5, hundred));
+		expect(unweighed, 3, 0);
+	}
+
+	private static void expect(RingBuffer<String> lines, int size, long bytes)
+	{
+		if (lines.size() != size || lines.getBytes() != bytes)
+		{
+			System.out.println("byte cap: " + lines.size() + " lines of " + lines.getBytes() + " bytes , expected " + size + " of " + bytes);
+			System.exit(1);
+		}
+	}
+
+	private static String repeat(char c, int count)
+	{
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	private static void time(int appends, int maximum)
+	{
+		RingBuffer<String> lines = new RingBuffer<String>(maximum);
+		String line = "line";
+		long start = System.nanoTime();
+		for (int i = 0; i < appends; i++)
+		{
+			lines.add(line);
+		}
+		long ms = (System.nanoTime() - start) / 1000000;
+		System.out.println(appends + " appends at a cap of " + maximum + " took " + ms + " ms");
+	}
+}
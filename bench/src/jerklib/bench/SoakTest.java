@@ -0,0 +1,261 @@
+package jerklib.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jerklib.Channel;
+import jerklib.ConnectionManager;
+import jerklib.LatencyHistogram;
+import jerklib.Profile;
+import jerklib.Session;
+import jerklib.TokenBucketScheduler;
+import jerklib.events.IRCEvent;
+import jerklib.events.MessageEvent;
+import jerklib.listeners.IRCEventListener;
+
+/**
+ * Drives many Sessions of one ConnectionManager against a LoopbackServer and
+ * reports delivery latency , reconnect time and heap use as it runs.
+ *
+ * Sessions are split into channels of a group size and each one says
+ * messages to its channel at a steady rate , so every message is delivered to
+ * the rest of the group. A message carries the System.nanoTime() it was said
+ * at , the time until a listener of another Session gets it is the delivery
+ * latency. When the server drops a Session the time until it has
+ * registered again is the reconnect time. Every report the heap is measured
+ * after a full GC , so a leak shows as steady growth over a long run.
+ *
+ * Each Session connects to its own loopback address (127.0.x.y) , as the
+ * ConnectionManager keeps Sessions by host name , so this needs an OS that
+ * routes all of 127.0.0.0/8 to loopback , like Linux.
+ *
+ * Options are name=value:
+ * <pre>
+ * sessions=50     Sessions to run
+ * group=10        Sessions per channel
+ * rate=1          messages each Session says per second
+ * seconds=60      how long to run , 0 to run until killed
+ * report=10       seconds between reports
+ * latency=0       ms the server holds back every line
+ * jitter=0        up to this many ms more , at random
+ * bandwidth=0     bytes per second the server sends each client , 0 for no limit
+ * drops=0         times per hour the server drops each Session
+ * maxp99=0        fail if the delivery p99 of the run is above this many ms , 0 to not check
+ * mindelivered=0  fail if less than this share of messages were delivered , 0 to not check
+ * </pre>
+ *
+ * Exits with 1 if a check failed , so it can gate changes to the io threads.
+ *
+ * usage: SoakTest [name=value ...]
+ */
+public class SoakTest
+{
+	private final int sessions , group;
+	private final double rate;
+	private final ConnectionManager manager;
+	private final LoopbackServer server;
+	private final Session[] clients;
+	private final long[] lostAt;
+	private final double[] credit;
+
+	private final AtomicLong said = new AtomicLong() , delivered = new AtomicLong() , reconnects = new AtomicLong();
+	private final LatencyHistogram totalLatency = new LatencyHistogram();
+	private final AtomicReference<LatencyHistogram> latency = new AtomicReference<LatencyHistogram>(new LatencyHistogram());
+	private final AtomicReference<LatencyHistogram> reconnectTime = new AtomicReference<LatencyHistogram>(new LatencyHistogram());
+
+	SoakTest(int sessions, int group, double rate, LoopbackServer server) throws Exception
+	{
+		this.sessions = sessions;
+		this.group = group;
+		this.rate = rate;
+		this.server = server;
+		clients = new Session[sessions];
+		lostAt = new long[sessions];
+		credit = new double[sessions];
+
+		manager = new ConnectionManager(new Profile("soak"));
+		manager.setIdentPort(0);
+		manager.setAutoReconnect(Integer.MAX_VALUE);
+		manager.setReconnectBackoff(100, 5000, 0.25);
+
+		for (int i = 0; i < sessions; i++)
+		{
+			InetAddress address = InetAddress.getByAddress(new byte[] { 127, 0, (byte) (i / 250), (byte) (i % 250 + 1) });
+			int port = server.listen(address);
+			Session session = manager.requestConnection(address.getHostAddress(), port, new Profile("soak" + i));
+			/* the server has no flood limit */
+			session.setWriteScheduler(new TokenBucketScheduler(0, 1));
+			session.addIRCEventListener(listener(i));
+			clients[i] = session;
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int sessions = (int) option(args, "sessions", 50);
+		int group = (int) option(args, "group", 10);
+		double rate = option(args, "rate", 1);
+		long seconds = (long) option(args, "seconds", 60);
+		long report = (long) option(args, "report", 10);
+		double maxP99 = option(args, "maxp99", 0);
+		double minDelivered = option(args, "mindelivered", 0);
+
+		LoopbackServer server = new LoopbackServer();
+		server.setLatency((long) option(args, "latency", 0), (long) option(args, "jitter", 0));
+		server.setBandwidth((long) option(args, "bandwidth", 0));
+		server.setDropRate(option(args, "drops", 0) / 3600);
+
+		System.out.println(sessions + " sessions in channels of " + group + " , " + rate + " messages/s each");
+		System.out.println(String.format("%6s %9s %9s %8s %8s %8s %8s %6s %8s %8s %8s %7s", "secs", "said", "delivered", "p50 ms", "p99 ms",
+				"p999 ms", "max ms", "drops", "recon", "rc p50", "heap MB", "threads"));
+
+		SoakTest test = new SoakTest(sessions, group, rate, server);
+		ScheduledExecutorService sayer = Executors.newSingleThreadScheduledExecutor();
+		final SoakTest t = test;
+		sayer.scheduleAtFixedRate(new Runnable()
+		{
+			public void run()
+			{
+				t.say(0.02);
+			}
+		}, 20, 20, TimeUnit.MILLISECONDS);
+
+		long start = System.currentTimeMillis();
+		double firstHeap = -1 , lastHeap = 0;
+		while (seconds == 0 || System.currentTimeMillis() - start < seconds * 1000)
+		{
+			Thread.sleep(report * 1000);
+			lastHeap = test.report((System.currentTimeMillis() - start) / 1000);
+			if (firstHeap < 0) firstHeap = lastHeap;
+		}
+		sayer.shutdownNow();
+		Thread.sleep(1000);
+
+		double expected = test.said.get() * (group - 1);
+		double share = expected == 0 ? 0 : test.delivered.get() / expected;
+		double hours = (System.currentTimeMillis() - start) / 3600000.0;
+		System.out.println(String.format("run: delivered %.4f of %d , latency %s , heap %.1f MB -> %.1f MB (%.1f MB/h after the first report)",
+				share, (long) expected, test.totalLatency, firstHeap, lastHeap, (lastHeap - firstHeap) / Math.max(hours, 1e-9)));
+
+		test.manager.quit();
+		server.stop();
+
+		boolean failed = false;
+		if (maxP99 > 0 && test.totalLatency.getValueAtPercentile(99) > maxP99 * 1e6)
+		{
+			System.out.println("FAILED: p99 above " + maxP99 + " ms");
+			failed = true;
+		}
+		if (minDelivered > 0 && share < minDelivered)
+		{
+			System.out.println("FAILED: delivered less than " + minDelivered);
+			failed = true;
+		}
+		System.exit(failed ? 1 : 0);
+	}
+
+	/**
+	 * Has every Session that is in its channel say what is due for it
+	 *
+	 * @param seconds time since the last call
+	 */
+	void say(double seconds)
+	{
+		for (int i = 0; i < sessions; i++)
+		{
+			credit[i] += rate * seconds;
+			Channel channel = clients[i].getChannel(channel(i));
+			if (channel == null)
+			{
+				credit[i] = 0;
+				continue;
+			}
+			for (; credit[i] >= 1; credit[i]--)
+			{
+				channel.say("t=" + System.nanoTime() + " from soak" + i);
+				said.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Prints what happened since the last report
+	 *
+	 * @return heap used in MB
+	 */
+	double report(long elapsed)
+	{
+		LatencyHistogram l = latency.getAndSet(new LatencyHistogram());
+		LatencyHistogram r = reconnectTime.getAndSet(new LatencyHistogram());
+
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		System.gc();
+		double heap = memory.getHeapMemoryUsage().getUsed() / 1048576.0;
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		System.out.println(String.format("%6d %9d %9d %8.1f %8.1f %8.1f %8.1f %6d %8d %8.1f %8.1f %7d", elapsed, said.get(), delivered.get(),
+				l.getValueAtPercentile(50) / 1e6, l.getValueAtPercentile(99) / 1e6, l.getValueAtPercentile(99.9) / 1e6, l.getMax() / 1e6,
+				server.getDrops(), reconnects.get(), r.getValueAtPercentile(50) / 1e6, heap, threads));
+		return heap;
+	}
+
+	private String channel(int session)
+	{
+		return "#soak" + session / group;
+	}
+
+	private IRCEventListener listener(final int index)
+	{
+		return new IRCEventListener()
+		{
+			public void receiveEvent(IRCEvent e)
+			{
+				if (e.getType() == IRCEvent.Type.CHANNEL_MESSAGE)
+				{
+					String message = ((MessageEvent) e).getMessage();
+					if (!message.startsWith("t=")) return;
+					int end = message.indexOf(' ');
+					long nanos = System.nanoTime() - Long.parseLong(message.substring(2, end));
+					latency.get().record(nanos);
+					totalLatency.record(nanos);
+					delivered.incrementAndGet();
+				}
+				else if (e.getType() == IRCEvent.Type.CONNECT_COMPLETE)
+				{
+					e.getSession().join(channel(index));
+					synchronized (lostAt)
+					{
+						if (lostAt[index] != 0)
+						{
+							reconnectTime.get().record(System.nanoTime() - lostAt[index]);
+							reconnects.incrementAndGet();
+							lostAt[index] = 0;
+						}
+					}
+				}
+				else if (e.getType() == IRCEvent.Type.CONNECTION_LOST)
+				{
+					synchronized (lostAt)
+					{
+						lostAt[index] = System.nanoTime();
+					}
+				}
+			}
+		};
+	}
+
+	private static double option(String[] args, String name, double value)
+	{
+		for (String arg : args)
+		{
+			if (arg.startsWith(name + "=")) return Double.parseDouble(arg.substring(name.length() + 1));
+		}
+		return value;
+	}
+}
@@ -0,0 +1,197 @@
+package jerklib.bench;
+
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Random;
+
+import jerklib.SplitterHarness;
+import jerklib.util.FormattedText;
+
+/**
+ * Checks the MessageSplitter a Connection cuts long messages with.
+ *
+ * Random messages made of words , spaces , long runs without a space , two ,
+ * three and four byte characters , lone surrogates , digits , commas and every
+ * mIRC formatting code are split with random budgets , in UTF-8 and Latin-1 ,
+ * until nothing is left. Checks that:
+ * <ul>
+ * <li>every piece encodes to no more bytes than the budget</li>
+ * <li>the text of the pieces , with FormattedText , joins back to the text of
+ * the message , leaving out only the space at a cut and trailing spaces</li>
+ * <li>every character keeps its style and colors , so formatting on at a cut
+ * is on again in the next piece</li>
+ * <li>no cut falls between the two chars of a surrogate pair</li>
+ * </ul>
+ *
+ * Exits with 1 on the first failure , printing the message and budget.
+ *
+ * usage: SplitterCheck [messages] [seed]
+ */
+public class SplitterCheck
+{
+	private static final String[] PIECES = { " ", " ", "  ", "hello", "world", "a", "xyzzy", "\u00e9t\u00e9", "\u65e5\u672c\u8a9e",
+			"\ud83d\ude00", "\ud800\udf48", "\ud83d", "\ude00", "0", "12", ",", ",3", "99", "\u0002", "\u001d", "\u001f", "\u001e",
+			"\u0011", "\u0016", "\u000f", "\u0003", "\u00034", "\u000312", "\u00034,5", "\u000399,01", "\u0003,", "\u00041a2b3c",
+			"\u0004ff00ff,00ff00", "\u0004" };
+
+	public static void main(String[] args)
+	{
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+		Random random = new Random(seed);
+
+		Charset[] charsets = { Charset.forName("UTF-8"), Charset.forName("ISO-8859-1") };
+		long pieces = 0;
+		for (Charset charset : charsets)
+		{
+			SplitterHarness splitter = new SplitterHarness(charset);
+			CharsetEncoder encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			for (int n = 0; n < messages; n++)
+			{
+				String message = message(random);
+				int budget = 32 + random.nextInt(random.nextBoolean() ? 64 : 420);
+				pieces += check(splitter, encoder, message, budget);
+			}
+		}
+		System.out.println(messages + " messages in " + charsets.length + " charsets , " + pieces + " pieces , all fit and rejoin");
+	}
+
+	private static String message(Random random)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int pieces = random.nextInt(120); pieces > 0; pieces--)
+		{
+			if (random.nextInt(40) == 0)
+			{
+				/* a run without a space */
+				for (int i = random.nextInt(300); i > 0; i--)
+				{
+					sb.append(random.nextInt(4) == 0 ? "\u00e9" : "w");
+				}
+			}
+			else
+			{
+				sb.append(PIECES[random.nextInt(PIECES.length)]);
+			}
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * splits a message until nothing is left , checking every cut against
+	 * the text it was made from
+	 *
+	 * @return number of pieces
+	 */
+	private static int check(SplitterHarness splitter, CharsetEncoder encoder, String message, int budget)
+	{
+		int pieces = 0;
+		String rest = message;
+		while (rest != null)
+		{
+			String[] cut = splitter.split(rest, budget);
+			int bytes = bytes(encoder, cut[0]);
+			if (bytes > budget) fail(message, budget, "piece " + pieces + " is " + bytes + " bytes: " + escape(cut[0]));
+			if (pieces > message.length()) fail(message, budget, "splitting does not end");
+
+			FormattedText before = FormattedText.parse(rest);
+			FormattedText piece = FormattedText.parse(cut[0]);
+			String text = before.getText();
+			String pieceText = piece.getText();
+			int[] styles = styles(before);
+
+			if (!text.startsWith(pieceText)) fail(message, budget, "text of piece " + pieces + " differs: " + escape(cut[0]));
+			same(message, budget, styles, 0, styles(piece), "piece " + pieces);
+			if (cut[1] == null)
+			{
+				if (text.substring(pieceText.length()).trim().length() > 0) fail(message, budget, "text lost after the last piece");
+			}
+			else
+			{
+				FormattedText after = FormattedText.parse(cut[1]);
+				String restText = after.getText();
+				/* a cut at a space leaves the space out */
+				int gap = text.length() - pieceText.length() - restText.length();
+				if (gap < 0 || gap > 1 || (gap == 1 && text.charAt(pieceText.length()) != ' ')
+						|| !text.endsWith(restText))
+				{
+					fail(message, budget, "piece " + pieces + " and the rest do not join: " + escape(cut[0]) + " | " + escape(cut[1]));
+				}
+				same(message, budget, styles, pieceText.length() + gap, styles(after), "rest after piece " + pieces);
+				int end = cut[0].length();
+				if (end > 0 && end < rest.length() && Character.isHighSurrogate(rest.charAt(end - 1))
+						&& Character.isLowSurrogate(rest.charAt(end)))
+				{
+					fail(message, budget, "surrogate pair cut after piece " + pieces);
+				}
+			}
+			pieces++;
+			rest = cut[1];
+		}
+		return pieces;
+	}
+
+	/*
+	 * every char of a piece has the style the char it came from had
+	 */
+	private static void same(String message, int budget, int[] styles, int offset, int[] pieceStyles, String what)
+	{
+		for (int k = 0; k < pieceStyles.length; k++)
+		{
+			if (pieceStyles[k] != styles[offset + k]) fail(message, budget, "style of char " + k + " of " + what + " differs");
+		}
+	}
+
+	/*
+	 * style , foreground and background of every char of the text , packed
+	 */
+	private static int[] styles(FormattedText f)
+	{
+		int[] styles = new int[f.getText().length()];
+		for (int r = 0; r < f.getRunCount(); r++)
+		{
+			int packed = f.getStyle(r) << 16 | (f.getForeground(r) & 0xff) << 8 | (f.getBackground(r) & 0xff);
+			for (int k = f.getStart(r); k < f.getEnd(r); k++)
+			{
+				styles[k] = packed;
+			}
+		}
+		return styles;
+	}
+
+	private static int bytes(CharsetEncoder encoder, String piece)
+	{
+		try
+		{
+			encoder.reset();
+			return encoder.encode(CharBuffer.wrap(piece)).remaining();
+		}
+		catch (CharacterCodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void fail(String message, int budget, String why)
+	{
+		System.out.println(why);
+		System.out.println("budget " + budget + " , message " + escape(message));
+		System.exit(1);
+	}
+
+	private static String escape(String s)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (c < 0x20 || c > 0x7e) sb.append(String.format("\\u%04x", (int) c));
+			else sb.append(c);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,233 @@
+package jerklib.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import jerklib.TimerHarness;
+
+/**
+ * Checks the TimerWheel the io threads run pings , ping timeouts and
+ * reconnects on against a model that keeps every deadline in a list.
+ *
+ * Random steps schedule timeouts , with no delay , a few ticks or several
+ * laps of the wheel , cancel them and advance time by up to a few laps.
+ * Some tasks schedule another timeout or cancel one when they run , like the
+ * ping of a Session does. After every step checks that:
+ * <ul>
+ * <li>advance() ran exactly the tasks the model says are due , each once ,
+ * none before its deadline , none after it was canceled</li>
+ * <li>cancel() and isPending() agree with the model</li>
+ * <li>size() is the number of pending timeouts</li>
+ * <li>getDelay() is never later than the earliest deadline</li>
+ * </ul>
+ * It runs with the wheel the io threads use and with a wheel of 8 slots ,
+ * so most deadlines are more than a lap away.
+ *
+ * Exits with 1 on the first mismatch.
+ *
+ * usage: TimerFuzz [steps] [seed]
+ */
+public class TimerFuzz
+{
+	private static final long TICK = 100;
+
+	/* deadline of a timeout scheduled without a delay */
+	private static final long NEXT_ADVANCE = -1;
+
+	private final Random random;
+	private final int slots;
+	private final TimerHarness wheel;
+
+	/* per timeout: deadline tick , or NEXT_ADVANCE , and whether it is pending , was run or canceled */
+	private final List<Long> deadlines = new ArrayList<Long>();
+	private final List<Boolean> pending = new ArrayList<Boolean>();
+	private final List<Integer> runs = new ArrayList<Integer>();
+
+	private long now;
+	private long currentTick;
+	private int step;
+
+	TimerFuzz(long seed, int slots)
+	{
+		this.random = new Random(seed);
+		this.slots = slots;
+		now = 1000000000L + random.nextInt(100000);
+		currentTick = now / TICK;
+		wheel = new TimerHarness(TICK, slots, now);
+	}
+
+	public static void main(String[] args)
+	{
+		int steps = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+
+		for (int slots : new int[] { 512, 8 })
+		{
+			TimerFuzz fuzz = new TimerFuzz(seed, slots);
+			int ran = fuzz.run(steps);
+			System.out.println(slots + " slots: " + steps + " steps , " + fuzz.deadlines.size() + " timeouts , " + ran + " run , all match");
+		}
+	}
+
+	private int run(int steps)
+	{
+		int ran = 0;
+		for (step = 0; step < steps; step++)
+		{
+			int action = random.nextInt(10);
+			if (action < 4)
+			{
+				schedule(delay());
+			}
+			else if (action < 6)
+			{
+				cancel();
+			}
+			else
+			{
+				ran += advance();
+			}
+			check();
+		}
+		return ran;
+	}
+
+	private long delay()
+	{
+		switch (random.nextInt(6))
+		{
+			case 0:
+				return -random.nextInt(2);
+			case 1:
+				return 1 + random.nextInt((int) TICK);
+			case 2:
+			case 3:
+				return 1 + random.nextInt((int) TICK * 20);
+			case 4:
+				return 1 + random.nextInt((int) TICK * slots * 2);
+			default:
+				return 1 + random.nextInt((int) TICK * slots * 5);
+		}
+	}
+
+	private int schedule(long delay)
+	{
+		final int id = deadlines.size();
+		long tick;
+		if (delay <= 0)
+		{
+			tick = NEXT_ADVANCE;
+		}
+		else
+		{
+			tick = (now + delay + TICK - 1) / TICK;
+			if (tick <= currentTick) tick = currentTick + 1;
+		}
+		deadlines.add(tick);
+		pending.add(true);
+		runs.add(0);
+
+		final boolean chain = random.nextInt(5) == 0;
+		final boolean cancels = random.nextInt(8) == 0;
+		final long chainDelay = delay();
+		int number = wheel.schedule(new Runnable()
+		{
+			public void run()
+			{
+				ran(id);
+				if (chain) schedule(chainDelay);
+				if (cancels) cancel();
+			}
+		}, delay, now);
+		if (number != id) fail("timeout " + number + " should be " + id);
+		return id;
+	}
+
+	private void cancel()
+	{
+		if (deadlines.isEmpty()) return;
+		int id = random.nextInt(deadlines.size());
+		/* mostly timeouts that are still pending */
+		for (int tries = 0; tries < 8 && !pending.get(id) && random.nextInt(4) != 0; tries++)
+		{
+			id = random.nextInt(deadlines.size());
+		}
+		boolean expected = pending.get(id);
+		if (wheel.cancel(id) != expected) fail("cancel of " + id + " returned " + !expected);
+		pending.set(id, false);
+	}
+
+	private void ran(int id)
+	{
+		runs.set(id, runs.get(id) + 1);
+		if (runs.get(id) > 1) fail("timeout " + id + " ran twice");
+		if (!pending.get(id)) fail("timeout " + id + " ran after it was canceled");
+		long tick = deadlines.get(id);
+		if (tick != NEXT_ADVANCE && tick > now / TICK) fail("timeout " + id + " ran early , due at tick " + tick + " , now " + now / TICK);
+		pending.set(id, false);
+	}
+
+	private int advance()
+	{
+		switch (random.nextInt(4))
+		{
+			case 0:
+				break;
+			case 1:
+				now += random.nextInt((int) TICK);
+				break;
+			case 2:
+				now += random.nextInt((int) TICK * 10);
+				break;
+			default:
+				now += random.nextInt((int) TICK * slots * 3);
+		}
+
+		/* what is due before any task runs , tasks may schedule more */
+		long nowTick = now / TICK;
+		List<Integer> due = new ArrayList<Integer>();
+		for (int id = 0; id < deadlines.size(); id++)
+		{
+			long tick = deadlines.get(id);
+			if (pending.get(id) && (tick == NEXT_ADVANCE || tick <= nowTick)) due.add(id);
+		}
+		currentTick = Math.max(currentTick, nowTick);
+
+		int ran = wheel.advance(now);
+		for (int id : due)
+		{
+			/* a task run before it may have canceled it */
+			if (runs.get(id) == 0 && pending.get(id)) fail("timeout " + id + " due at tick " + deadlines.get(id) + " did not run at " + nowTick);
+		}
+		return ran;
+	}
+
+	private void check()
+	{
+		int count = 0;
+		long earliest = Long.MAX_VALUE;
+		for (int id = 0; id < deadlines.size(); id++)
+		{
+			if (wheel.isPending(id) != pending.get(id)) fail("timeout " + id + " pending is " + wheel.isPending(id));
+			if (!pending.get(id)) continue;
+			count++;
+			long tick = deadlines.get(id);
+			long at = tick == NEXT_ADVANCE ? now : tick * TICK;
+			earliest = Math.min(earliest, at);
+		}
+		if (wheel.size() != count) fail("size is " + wheel.size() + " , " + count + " pending");
+		if (count > 0)
+		{
+			long delay = wheel.getDelay(now);
+			long latest = Math.max(earliest - now, 0);
+			if (delay < 0 || delay > latest) fail("delay is " + delay + " , earliest deadline in " + latest);
+		}
+	}
+
+	private void fail(String why)
+	{
+		System.out.println(slots + " slots , step " + step + ": " + why);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,136 @@
+package jerklib.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import jerklib.events.EventToken;
+
+/**
+ * Compares EventToken with the parser it replaced.
+ * 
+ * The corpus is generated to look like a busy channel: mostly PRIVMSGs with
+ * full nick!user@host prefixes , some JOIN/PART/QUIT/MODE lines and a share of
+ * numerics from NAMES and WHO replies. Each round tokenizes every line and reads
+ * what the event handlers read , the command , numeric and the first arguments.
+ * 
+ * usage: TokenizeBenchmark [lines] [rounds]
+ */
+public class TokenizeBenchmark
+{
+	private static final String[] WORDS = { "the", "stream", "is", "live", "linux", "audio", "lol", "anyone",
+			"tried", "kernel", "update", "broke", "my", "wifi", "again", "http://example.org/show/42", "thanks",
+			"great", "episode", "?", "yes", "no", "maybe", "tomorrow" };
+
+	public static void main(String[] args)
+	{
+		int lines = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		List<String> corpus = corpus(lines, new Random(42));
+		long bytes = 0;
+		for (String line : corpus) bytes += line.length();
+		System.out.println(corpus.size() + " lines , " + bytes + " chars");
+
+		//warm up both
+		long sink = legacy(corpus) + current(corpus);
+
+		for (int round = 0; round < rounds; round++)
+		{
+			long start = System.nanoTime();
+			sink += legacy(corpus);
+			long legacyTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			sink += current(corpus);
+			long currentTime = System.nanoTime() - start;
+
+			System.out.printf("round %d: legacy %.1f ns/line , current %.1f ns/line%n", round,
+					legacyTime / (double) corpus.size(), currentTime / (double) corpus.size());
+		}
+		System.out.println("(" + sink + ")");
+	}
+
+	private static long legacy(List<String> corpus)
+	{
+		long sink = 0;
+		for (String line : corpus)
+		{
+			LegacyEventToken token = new LegacyEventToken(line);
+			sink += token.command().length() + token.numeric();
+			String target = token.arg(0);
+			if (target != null) sink += target.length();
+			sink += token.getNick().length();
+		}
+		return sink;
+	}
+
+	private static long current(List<String> corpus)
+	{
+		long sink = 0;
+		for (String line : corpus)
+		{
+			EventToken token = new EventToken(line);
+			sink += token.command().length() + token.numeric();
+			String target = token.arg(0);
+			if (target != null) sink += target.length();
+			sink += token.getNick().length();
+		}
+		return sink;
+	}
+
+	static List<String> corpus(int lines, Random random)
+	{
+		List<String> corpus = new ArrayList<String>(lines);
+		for (int i = 0; i < lines; i++)
+		{
+			String nick = "user" + random.nextInt(300);
+			String prefix = ":" + nick + "!~" + nick + "@host-" + random.nextInt(5000) + ".example.net";
+			int kind = random.nextInt(100);
+			if (kind < 75)
+			{
+				corpus.add(prefix + " PRIVMSG #jupiterbroadcasting :" + sentence(random));
+			}
+			else if (kind < 80)
+			{
+				corpus.add(prefix + " JOIN :#jupiterbroadcasting");
+			}
+			else if (kind < 84)
+			{
+				corpus.add(prefix + " PART #jupiterbroadcasting :" + sentence(random));
+			}
+			else if (kind < 88)
+			{
+				corpus.add(prefix + " QUIT :Quit: " + sentence(random));
+			}
+			else if (kind < 90)
+			{
+				corpus.add(":ChanServ!ChanServ@services. MODE #jupiterbroadcasting +v " + nick);
+			}
+			else if (kind < 95)
+			{
+				StringBuilder names = new StringBuilder(":irc.example.net 353 bench = #jupiterbroadcasting :");
+				for (int n = 0; n < 20; n++) names.append(n % 7 == 0 ? "@" : "").append("user").append(random.nextInt(300)).append(' ');
+				corpus.add(names.toString().trim());
+			}
+			else
+			{
+				corpus.add(":irc.example.net 352 bench #jupiterbroadcasting ~" + nick + " host.example.net irc.example.net "
+						+ nick + " H :0 " + nick);
+			}
+		}
+		return corpus;
+	}
+
+	private static String sentence(Random random)
+	{
+		StringBuilder sb = new StringBuilder();
+		int words = 2 + random.nextInt(15);
+		for (int i = 0; i < words; i++)
+		{
+			if (i > 0) sb.append(' ');
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return sb.toString();
+	}
+}
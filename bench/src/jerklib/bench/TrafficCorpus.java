@@ -0,0 +1,441 @@
+package jerklib.bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Server traffic to replay in benchmarks , as a registration followed by
+ * sections that each stress one part of jerklib:
+ *
+ * <pre>
+ * join-flood   hundreds of JOINs , PARTs and voice MODEs into a 400 nick channel
+ * privmsg      long PRIVMSGs with colors , CTCP ACTIONs and non ASCII text
+ * netsplit     a plain netsplit of QUITs , then one wrapped in an IRCv3 batch , then the netjoin
+ * list         a /list reply of thousands of 322s
+ * </pre>
+ *
+ * A corpus is either generated from a seed , or loaded from a file with one
+ * server line per line and "# section" lines between sections. A file can be
+ * recorded from a real connection and anonymised with this tool , nicks , user
+ * names , hosts and channels are replaced consistently and message text is
+ * scrambled letter by letter , so line lengths and structure are kept.
+ *
+ * usage:
+ * TrafficCorpus generate &lt;out&gt; [seed]
+ * TrafficCorpus anonymise &lt;captured&gt; &lt;out&gt;
+ */
+public class TrafficCorpus
+{
+	static final String[] SECTIONS = { "register", "join-flood", "privmsg", "netsplit", "list" };
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SERVER = "irc.example.net";
+	private static final String CHANNEL = "#bench";
+	private static final String[] WORDS = { "the", "stream", "is", "live", "linux", "audio", "lol", "anyone",
+			"tried", "kernel", "update", "broke", "my", "wifi", "again", "http://example.org/show/42", "thanks",
+			"great", "episode", "?", "yes", "no", "maybe", "tomorrow", "na\u00efve", "caf\u00e9", "\u65e5\u672c\u8a9e", "\u043f\u0440\u0438\u0432\u0435\u0442" };
+
+	private final Map<String, List<String>> sections;
+
+	private TrafficCorpus(Map<String, List<String>> sections)
+	{
+		this.sections = sections;
+	}
+
+	/**
+	 * @return lines of a section , empty if the corpus does not have it
+	 */
+	public List<String> section(String name)
+	{
+		List<String> lines = sections.get(name);
+		return lines == null ? Collections.<String> emptyList() : lines;
+	}
+
+	/**
+	 * @return every line in order
+	 */
+	public List<String> lines()
+	{
+		List<String> all = new ArrayList<String>();
+		for (String name : SECTIONS)
+		{
+			all.addAll(section(name));
+		}
+		return all;
+	}
+
+	/**
+	 * @return lines of a section , or all lines for null , as CRLF terminated UTF-8
+	 */
+	public byte[] bytes(String name)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (String line : name == null ? lines() : section(name))
+		{
+			byte[] b = (line + "\r\n").getBytes(UTF8);
+			out.write(b, 0, b.length);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Reads a corpus file
+	 */
+	public static TrafficCorpus load(String file) throws IOException
+	{
+		Map<String, List<String>> sections = new HashMap<String, List<String>>();
+		List<String> current = null;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				if (line.startsWith("# "))
+				{
+					current = new ArrayList<String>();
+					sections.put(line.substring(2).trim(), current);
+				}
+				else if (line.length() > 0 && current != null)
+				{
+					current.add(line);
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return new TrafficCorpus(sections);
+	}
+
+	/**
+	 * Writes the corpus in the format load() reads
+	 */
+	public void save(String file) throws IOException
+	{
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), UTF8);
+		try
+		{
+			for (String name : SECTIONS)
+			{
+				out.write("# " + name + "\n");
+				for (String line : section(name))
+				{
+					out.write(line);
+					out.write('\n');
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Makes the same corpus for the same seed
+	 */
+	public static TrafficCorpus generate(long seed)
+	{
+		Random random = new Random(seed);
+		Map<String, List<String>> sections = new HashMap<String, List<String>>();
+		List<String> nicks = new ArrayList<String>();
+
+		List<String> lines = new ArrayList<String>();
+		lines.add(":" + SERVER + " 001 bench :Welcome to the Example IRC Network bench!bench@client.example.org");
+		lines.add(":" + SERVER + " 002 bench :Your host is " + SERVER + ", running version bench-1.0");
+		lines.add(":" + SERVER + " 003 bench :This server was created Jan 1 2020");
+		lines.add(":" + SERVER + " 004 bench " + SERVER + " bench-1.0 DOQRSZaghilopswz CFILMPQSbcefgijklmnopqrstvz bkloveqjfI");
+		lines.add(":" + SERVER + " 005 bench CHANTYPES=# EXCEPTS INVEX CHANMODES=eIbq,k,flj,CFLMPQScgimnprstz CHANLIMIT=#:120 PREFIX=(ov)@+ MAXLIST=bqeI:100 MODES=4 NETWORK=Example :are supported by this server");
+		lines.add(":" + SERVER + " 005 bench CASEMAPPING=rfc1459 NICKLEN=16 CHANNELLEN=50 TOPICLEN=390 AWAYLEN=200 KICKLEN=255 :are supported by this server");
+		for (int i = 0; i < 20; i++)
+		{
+			lines.add(":" + SERVER + " 372 bench :- " + sentence(random));
+		}
+		lines.add(":" + SERVER + " 376 bench :End of /MOTD command.");
+		lines.add(":bench!~bench@client.example.org JOIN " + CHANNEL);
+		lines.add(":" + SERVER + " 332 bench " + CHANNEL + " :" + sentence(random));
+		StringBuilder names = new StringBuilder();
+		for (int i = 0; i < 400; i++)
+		{
+			String nick = "user" + i;
+			nicks.add(nick);
+			names.append(i % 15 == 0 ? "@" : i % 5 == 0 ? "+" : "").append(nick).append(' ');
+			if (names.length() > 400 || i == 399)
+			{
+				lines.add(":" + SERVER + " 353 bench = " + CHANNEL + " :" + names.toString().trim());
+				names.setLength(0);
+			}
+		}
+		lines.add(":" + SERVER + " 366 bench " + CHANNEL + " :End of /NAMES list.");
+		sections.put("register", lines);
+
+		lines = new ArrayList<String>();
+		for (int i = 0; i < 1500; i++)
+		{
+			String nick = "joiner" + i;
+			nicks.add(nick);
+			lines.add(prefix(nick) + " JOIN " + CHANNEL);
+			if (i % 10 == 0) lines.add(":ChanServ!ChanServ@services. MODE " + CHANNEL + " +v " + nick);
+			if (i % 3 == 0)
+			{
+				String leaving = nicks.remove(random.nextInt(nicks.size() - 1));
+				lines.add(prefix(leaving) + " PART " + CHANNEL + " :" + sentence(random));
+			}
+		}
+		sections.put("join-flood", lines);
+
+		lines = new ArrayList<String>();
+		for (int i = 0; i < 3000; i++)
+		{
+			String from = prefix(nicks.get(random.nextInt(nicks.size())));
+			StringBuilder text = new StringBuilder();
+			while (text.length() < 250 + random.nextInt(150))
+			{
+				if (random.nextInt(8) == 0) text.append('\u0003').append(random.nextInt(16)).append(',').append(random.nextInt(16));
+				if (random.nextInt(12) == 0) text.append('\u0002');
+				text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			}
+			String message = text.toString().trim();
+			if (i % 20 == 0) message = "\u0001ACTION " + message + "\u0001";
+			lines.add(from + " PRIVMSG " + CHANNEL + " :" + message);
+		}
+		sections.put("privmsg", lines);
+
+		lines = new ArrayList<String>();
+		List<String> split = new ArrayList<String>();
+		for (int i = 0; i < 600 && nicks.size() > 100; i++)
+		{
+			String nick = nicks.remove(random.nextInt(nicks.size()));
+			split.add(nick);
+			lines.add(prefix(nick) + " QUIT :hub.example.net leaf.example.net");
+		}
+		lines.add("@time=2020-01-02T03:04:05.000Z :" + SERVER + " BATCH +ns1 netsplit hub.example.net leaf2.example.net");
+		for (int i = 0; i < 300 && nicks.size() > 100; i++)
+		{
+			String nick = nicks.remove(random.nextInt(nicks.size()));
+			lines.add("@batch=ns1;time=2020-01-02T03:04:05.000Z " + prefix(nick) + " QUIT :hub.example.net leaf2.example.net");
+		}
+		lines.add(":" + SERVER + " BATCH -ns1");
+		for (String nick : split)
+		{
+			lines.add(prefix(nick) + " JOIN " + CHANNEL);
+		}
+		sections.put("netsplit", lines);
+
+		lines = new ArrayList<String>();
+		lines.add(":" + SERVER + " 321 bench Channel :Users  Name");
+		for (int i = 0; i < 4000; i++)
+		{
+			lines.add(":" + SERVER + " 322 bench #chan" + i + " " + (1 + random.nextInt(2000)) + " :[+nt] " + sentence(random));
+		}
+		lines.add(":" + SERVER + " 323 bench :End of /LIST");
+		sections.put("list", lines);
+
+		return new TrafficCorpus(sections);
+	}
+
+	/**
+	 * Replaces names and scrambles text of a captured corpus
+	 */
+	public TrafficCorpus anonymise()
+	{
+		Anonymiser anonymiser = new Anonymiser();
+		Map<String, List<String>> anonymised = new HashMap<String, List<String>>();
+		for (Map.Entry<String, List<String>> section : sections.entrySet())
+		{
+			List<String> lines = new ArrayList<String>(section.getValue().size());
+			for (String line : section.getValue())
+			{
+				lines.add(anonymiser.line(line));
+			}
+			anonymised.put(section.getKey(), lines);
+		}
+		return new TrafficCorpus(anonymised);
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length >= 2 && args[0].equals("generate"))
+		{
+			generate(args.length > 2 ? Long.parseLong(args[2]) : 42).save(args[1]);
+		}
+		else if (args.length == 3 && args[0].equals("anonymise"))
+		{
+			load(args[1]).anonymise().save(args[2]);
+		}
+		else
+		{
+			System.out.println("usage: TrafficCorpus generate <out> [seed] | anonymise <captured> <out>");
+		}
+	}
+
+	private static String prefix(String nick)
+	{
+		return ":" + nick + "!~" + nick + "@host-" + (nick.hashCode() & 0xfff) + ".example.net";
+	}
+
+	private static String sentence(Random random)
+	{
+		StringBuilder sb = new StringBuilder();
+		int words = 2 + random.nextInt(15);
+		for (int i = 0; i < words; i++)
+		{
+			if (i > 0) sb.append(' ');
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Consistent replacement of names , the same name always gets the same stand in
+	 */
+	private static class Anonymiser
+	{
+		private final Map<String, String> names = new HashMap<String, String>();
+
+		String line(String line)
+		{
+			StringBuilder out = new StringBuilder(line.length());
+			int i = 0;
+
+			/* tags are kept , they carry no names jerklib looks at */
+			if (line.startsWith("@"))
+			{
+				int space = line.indexOf(' ');
+				if (space == -1) return line;
+				out.append(line, 0, space + 1);
+				i = space + 1;
+			}
+
+			if (line.startsWith(":", i))
+			{
+				int space = line.indexOf(' ', i);
+				if (space == -1) return line;
+				out.append(':').append(prefix(line.substring(i + 1, space))).append(' ');
+				i = space + 1;
+			}
+
+			int trailing = line.indexOf(" :", i);
+			String middle = trailing == -1 ? line.substring(i) : line.substring(i, trailing);
+			String[] params = middle.split(" ");
+			String command = params[0];
+			/* only the nick of the client in ISUPPORT , the rest are tokens */
+			boolean tokens = command.equals("004") || command.equals("005");
+			for (int p = 0; p < params.length; p++)
+			{
+				if (p > 0) out.append(' ');
+				boolean keep = p == 0 || tokens && p > 1 || params[p].startsWith("+") || params[p].startsWith("-");
+				out.append(keep ? params[p] : name(params[p]));
+			}
+
+			if (trailing != -1)
+			{
+				out.append(" :");
+				String text = line.substring(trailing + 2);
+				if (command.equals("QUIT") && text.matches("\\S+\\.\\S+ \\S+\\.\\S+"))
+				{
+					/* netsplit quit , the two servers */
+					int space = text.indexOf(' ');
+					out.append(host(text.substring(0, space))).append(' ').append(host(text.substring(space + 1)));
+				}
+				else if (command.equals("353") || command.equals("NICK") || command.equals("JOIN"))
+				{
+					String[] words = text.split(" ");
+					for (int w = 0; w < words.length; w++)
+					{
+						if (w > 0) out.append(' ');
+						out.append(name(words[w]));
+					}
+				}
+				else
+				{
+					out.append(scramble(text));
+				}
+			}
+			return out.toString();
+		}
+
+		private String prefix(String prefix)
+		{
+			int bang = prefix.indexOf('!') , at = prefix.indexOf('@');
+			if (bang == -1 || at < bang) return prefix.indexOf('.') == -1 ? name(prefix) : host(prefix);
+			return name(prefix.substring(0, bang)) + "!" + name(prefix.substring(bang + 1, at)) + "@" + host(prefix.substring(at + 1));
+		}
+
+		/**
+		 * Replaces a nick , user or channel , keeping nick prefixes like @ + ~
+		 */
+		private String name(String name)
+		{
+			int start = 0;
+			while (start < name.length() && "@%+~".indexOf(name.charAt(start)) != -1) start++;
+			boolean channel = start < name.length() && (name.charAt(start) == '#' || name.charAt(start) == '&');
+			int first = channel ? start + 1 : start;
+			if (first == name.length() || name.indexOf('.') != -1) return name;
+			char c = name.charAt(first);
+			if (!Character.isLetter(c) && "[]\\`_^{|}".indexOf(c) == -1) return name;
+
+			/* nick!user@host in NAMES replies */
+			int bang = name.indexOf('!', start);
+			if (bang != -1) return name.substring(0, start) + prefix(name.substring(start));
+
+			/* channels keep their prefix in the key , so #foo and foo differ */
+			String key = name.substring(start).toLowerCase();
+			String standIn = names.get(key);
+			if (standIn == null)
+			{
+				standIn = (channel ? name.charAt(start) + "c" : "n") + names.size();
+				names.put(key, standIn);
+			}
+			return name.substring(0, start) + standIn;
+		}
+
+		private String host(String host)
+		{
+			if (host.startsWith("services") || host.indexOf('/') != -1) return host;
+			String standIn = names.get(host);
+			if (standIn == null)
+			{
+				standIn = "h" + names.size() + ".example.net";
+				names.put(host, standIn);
+			}
+			return standIn;
+		}
+
+		/**
+		 * Replaces letters and digits , keeps their class , spaces , punctuation and control codes
+		 */
+		private static String scramble(String text)
+		{
+			StringBuilder sb = new StringBuilder(text.length());
+			int seed = text.hashCode();
+			for (int i = 0; i < text.length(); i++)
+			{
+				char c = text.charAt(i);
+				seed = seed * 1103515245 + 12345;
+				int r = (seed >>> 16) & 0x7fff;
+				if (c >= 'a' && c <= 'z') c = (char) ('a' + r % 26);
+				else if (c >= 'A' && c <= 'Z') c = (char) ('A' + r % 26);
+				else if (c >= '0' && c <= '9' && (i == 0 || text.charAt(i - 1) != '\u0003' && text.charAt(i - 1) != ',')) c = (char) ('0' + r % 10);
+				else if (Character.isLetter(c)) c = (char) (0x3041 + r % 80);
+				sb.append(c);
+			}
+			return sb.toString();
+		}
+	}
+}
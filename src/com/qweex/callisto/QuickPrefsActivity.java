@@ -198,8 +198,12 @@ public class QuickPrefsActivity extends PreferenceActivity implements SharedPref
         //Change the IRC scrollback
     	else if(key.equals("irc_max_scrollback"))
         {
-            StaticBlob.ircChat.setMaximumCapacity(PreferenceManager.getDefaultSharedPreferences(this).getInt("irc_max_scrollback", 500));
-            StaticBlob.ircLog.setMaximumCapacity(PreferenceManager.getDefaultSharedPreferences(this).getInt("irc_max_scrollback", 500));
+            // It's an EditTextPreference, so it is stored as a String
+            try {
+                int scrollback = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(this).getString("irc_max_scrollback", "500"));
+                StaticBlob.ircChat.setMaximumCapacity(Math.max(1, scrollback));
+                StaticBlob.ircLog.setMaximumCapacity(Math.max(1, scrollback));
+            } catch(NumberFormatException e){}
         }
         else if(key.equals("hide_notification_when_paused") && StaticBlob.mplayer!=null && StaticBlob.playerInfo.isPaused)
         {
@@ -35,7 +35,7 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 import com.qweex.callisto.podcast.EpisodeDesc;
 import com.qweex.callisto.podcast.ShowList;
-import com.qweex.utils.ArrayListWithMaximum;
+import com.qweex.utils.RingBuffer;
 import com.qweex.callisto.irc.IRCChat;
 import com.qweex.callisto.listeners.*;
 import com.qweex.callisto.receivers.AudioJackReceiver;
@@ -131,7 +131,9 @@ public class StaticBlob
     public enum PauseCause { PhoneCall, FocusChange, AudioJack, User};
     public static PauseCause pauseCause;
 
-    public static ArrayListWithMaximum<IRCChat.IrcMessage> ircChat, ircLog;
+    /** Scrollback for the chat and the log; each also keeps to IRC_SCROLLBACK_BYTES however long the lines are */
+    public static RingBuffer<IRCChat.IrcMessage> ircChat, ircLog;
+    public static final long IRC_SCROLLBACK_BYTES = 2 * 1024 * 1024;
 
     public static TelephonyManager teleMgr;
 
@@ -192,10 +194,8 @@ public class StaticBlob
         try {
             irc_scrollback = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(c).getString("irc_max_scrollback", "500"));
         } catch(Exception e){}
-        ircChat = new ArrayListWithMaximum<IRCChat.IrcMessage>();
-        ircLog = new ArrayListWithMaximum<IRCChat.IrcMessage>();
-        ircChat.setMaximumCapacity(irc_scrollback);
-        ircLog.setMaximumCapacity(irc_scrollback);
+        ircChat = new RingBuffer<IRCChat.IrcMessage>(Math.max(1, irc_scrollback), IRC_SCROLLBACK_BYTES, IRCChat.MESSAGE_WEIGHER);
+        ircLog = new RingBuffer<IRCChat.IrcMessage>(Math.max(1, irc_scrollback), IRC_SCROLLBACK_BYTES, IRCChat.MESSAGE_WEIGHER);
 
         //Creates the dialog for live error
         StaticBlob.errorDialog = new Dialog(c);
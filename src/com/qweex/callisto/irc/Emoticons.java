@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2012-2014 Qweex
+ * This file is a part of Callisto.
+ *
+ * Callisto is free software; it is released under the
+ * Open Software License v3.0 without warranty. The OSL is an OSI approved,
+ * copyleft license, meaning you are free to redistribute
+ * the source code under the terms of the OSL.
+ *
+ * You should have received a copy of the Open Software License
+ * along with Callisto; If not, see <http://rosenlaw.com/OSL3.0-explained.htm>
+ * or check OSI's website at <http://opensource.org/licenses/OSL-3.0>.
+ */
+package com.qweex.callisto.irc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.drawable.Drawable;
+import android.preference.PreferenceManager;
+import android.text.Spannable;
+import android.text.style.ImageSpan;
+import com.qweex.callisto.R;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Replaces emoticons in a message with pictures of them.
+ *  All the emoticons are compiled into one pattern, so a message is searched once,
+ *  and each picture is loaded once, for the screen's density, and shared by every line that has it.
+ *  The irc_emoticons preference is kept up to date with a listener instead of read for every line. */
+public class Emoticons implements SharedPreferences.OnSharedPreferenceChangeListener
+{
+    /** Emoticons and their drawables; more specific ones go first since the first one that matches wins.
+     *  Groups have to be non-capturing, the group number says which emoticon matched. */
+    private static final Object[][] EMOTICONS = {
+            //{ "<3", R.drawable.ic_action_heart },                  //  <3
+            { ">:(?:D|\\))", R.drawable.ic_action_emo_evil },        //  >:D or >:)
+            { ">:-?(?:\\(|\\|)", R.drawable.ic_action_emo_angry },   //  >:| or >:( or >:-| or >:-(
+            { "B-\\)", R.drawable.ic_action_emo_basic },             //  B-)
+            { ":'-?\\(", R.drawable.ic_action_emo_cry },             //  :'-( or :'(
+            { ":-?(?:\\\\|/)(?!/)", R.drawable.ic_action_emo_err },  //  :\ or :/ or :-\ or :-/, but not the :// of a link
+            { ":-\\*", R.drawable.ic_action_emo_kiss },              //  :-*
+            { ":-?D", R.drawable.ic_action_emo_laugh },              //  :-D or :D
+            { "(?:x|X)D", R.drawable.ic_action_emo_laugh },          //  XD or xD
+            { ":-?(?:\\(|\\[)", R.drawable.ic_action_emo_sad },      //  :( or :-( or :[ or :-[
+            { ":-?S", R.drawable.ic_action_emo_shame },              //  :S or :-S
+            { "(?::|X|x)-?P", R.drawable.ic_action_emo_tongue },     //  :P or :-P or xP or XP or X-P or x-P
+            { ";-?\\)", R.drawable.ic_action_emo_wink },             //  ;-) or ;)
+            { ":-?\\)", R.drawable.ic_action_emo_basic },            //  :-) or :)
+            { ":-?(?:O|o)", R.drawable.ic_action_emo_wonder },       //  :O or :o or :-O or :-o
+    };
+
+    private static final Pattern PATTERN;
+    static
+    {
+        StringBuilder sb = new StringBuilder();
+        for(Object[] emoticon : EMOTICONS)
+        {
+            if(sb.length()>0)
+                sb.append('|');
+            sb.append('(').append(emoticon[0]).append(')');
+        }
+        PATTERN = Pattern.compile(sb.toString(), Pattern.CASE_INSENSITIVE);
+    }
+
+    private static Emoticons instance;
+
+    private final Context context;
+    /** Loaded drawables, same order as EMOTICONS */
+    private final Drawable[] drawables = new Drawable[EMOTICONS.length];
+    private volatile boolean enabled;
+    /** Run when the preference changes */
+    private Runnable onChange;
+
+    /** Gets the one instance, made with the application context */
+    public static synchronized Emoticons get(Context c)
+    {
+        if(instance==null)
+            instance = new Emoticons(c.getApplicationContext());
+        return instance;
+    }
+
+    private Emoticons(Context c)
+    {
+        context = c;
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
+        enabled = prefs.getBoolean("irc_emoticons", false);
+        // SharedPreferences only keeps a weak reference; the instance is static so this one stays
+        prefs.registerOnSharedPreferenceChangeListener(this);
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /** @param r Run on the thread that changed the preference when emoticons are turned on or off */
+    public void setOnChange(Runnable r)
+    {
+        onChange = r;
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences prefs, String key)
+    {
+        if(!"irc_emoticons".equals(key))
+            return;
+        enabled = prefs.getBoolean("irc_emoticons", false);
+        Runnable r = onChange;
+        if(r!=null)
+            r.run();
+    }
+
+    /** Puts pictures over the emoticons in some text, if emoticons are turned on.
+     * @param s The text; only spans are added to it */
+    public void apply(Spannable s)
+    {
+        if(!enabled || s.length()<2)
+            return;
+        Matcher matcher = PATTERN.matcher(s);
+        while(matcher.find())
+        {
+            int which = 0;
+            while(matcher.group(which+1)==null)
+                which++;
+            // A span can only be in a Spannable once, so every match gets its own; the picture is shared
+            s.setSpan(new ImageSpan(getDrawable(which), ImageSpan.ALIGN_BOTTOM),
+                    matcher.start(), matcher.end(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+
+    private synchronized Drawable getDrawable(int which)
+    {
+        if(drawables[which]==null)
+        {
+            // getDrawable scales for the screen's density, unlike decoding the resource to a Bitmap
+            Drawable d = context.getResources().getDrawable((Integer) EMOTICONS[which][1]);
+            d.setBounds(0, 0, d.getIntrinsicWidth(), d.getIntrinsicHeight());
+            drawables[which] = d;
+        }
+        return drawables[which];
+    }
+}
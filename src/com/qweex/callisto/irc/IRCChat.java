@@ -17,6 +17,9 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import android.app.*;
@@ -28,9 +31,11 @@ import com.qweex.callisto.R;
 
 import com.qweex.callisto.StaticBlob;
 import com.qweex.callisto.VideoActivity;
+import com.qweex.utils.RingBuffer;
 import jerklib.*;
 import jerklib.events.*;
 import jerklib.listeners.IRCEventListener;
+import jerklib.util.FormattedText;
 
 
 import android.content.Context;
@@ -41,9 +46,15 @@ import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.text.style.BackgroundColorSpan;
 import android.text.style.ForegroundColorSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StrikethroughSpan;
 import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.UnderlineSpan;
 import android.util.Log;
 import android.view.View.OnClickListener;
 import android.view.animation.AnimationUtils;
@@ -89,6 +100,15 @@ public class IRCChat extends Activity implements IRCEventListener
     private final String CHANNEL_NAME = "#qweex"; //"#jupiterbroadcasting";
     final private int RECONNECT_TRIES = 5;
     private int SESSION_TIMEOUT = 40;
+    /** Event types handled in receiveEvent; anything else (e.g. /list replies) is never parsed */
+    private static final IRCEvent.Type[] HANDLED_EVENTS = {
+            IRCEvent.Type.NICK_LIST_EVENT, IRCEvent.Type.CTCP_EVENT, IRCEvent.Type.AWAY_EVENT, IRCEvent.Type.MODE_EVENT,
+            IRCEvent.Type.SERVER_INFORMATION, IRCEvent.Type.SERVER_VERSION_EVENT, IRCEvent.Type.CONNECT_COMPLETE,
+            IRCEvent.Type.JOIN_COMPLETE, IRCEvent.Type.MOTD, IRCEvent.Type.NOTICE, IRCEvent.Type.TOPIC,
+            IRCEvent.Type.PRIVATE_MESSAGE, IRCEvent.Type.CHANNEL_MESSAGE, IRCEvent.Type.JOIN, IRCEvent.Type.NICK_CHANGE,
+            IRCEvent.Type.PART, IRCEvent.Type.QUIT, IRCEvent.Type.KICK_EVENT, IRCEvent.Type.NICK_IN_USE,
+            IRCEvent.Type.WHO_EVENT, IRCEvent.Type.WHOIS_EVENT, IRCEvent.Type.WHOWAS_EVENT,
+            IRCEvent.Type.CONNECTION_LOST, IRCEvent.Type.ERROR, IRCEvent.Type.BATCH, IRCEvent.Type.DEFAULT };
 
     /** User info */
     private String profileNick;
@@ -133,12 +153,47 @@ public class IRCChat extends Activity implements IRCEventListener
     private ListView chatListview, logListview;
 
     /** Info trackers; keep track of information about the session */
-    private static HashMap<String, Integer> nickColors = new HashMap<String, Integer>();
-    public static List<String> nickList;
+    private static Map<String, Integer> nickColors = Collections.synchronizedMap(new HashMap<String, Integer>());
+    public static SortedNickList nickList;
 
     /** Handlers to update the UI */
     private static Handler ircHandler = null;
-    private static Runnable chatUpdater;
+
+    /** New messages are shown at most once every this long, about a frame */
+    private static final long FRAME_MILLIS = 16;
+    /** Set from when an update is asked for until its messages are taken off the queues */
+    private static final AtomicBoolean updateScheduled = new AtomicBoolean();
+    /** SystemClock.uptimeMillis() of the last update */
+    private static volatile long lastUpdate;
+
+    /** Frame timing: time on the UI thread for each update, and from each update until it is drawn; logged every STATS_MILLIS */
+    private static final LatencyHistogram updateTimes = new LatencyHistogram(), updateToFrame = new LatencyHistogram();
+    private static long updateShownAt, updateLines, statsLoggedAt;
+    private static final long STATS_MILLIS = 10000;
+
+    /** Renders messages as they arrive so scrolling never has to; one thread keeps them in order */
+    private static final ExecutorService renderer = Executors.newSingleThreadExecutor();
+    /** Bumped when the colors or other display preferences change, making every render stale */
+    private static volatile int renderGeneration = 0;
+    /** The display preferences the renders were made with */
+    private static String renderSettings;
+    /** Emoticons are part of the render, so redo them when they are turned on or off; only set while resumed,
+     *  the Emoticons instance is static and would keep the activity */
+    private final Runnable emoticonsChanged = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            runOnUiThread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    checkRenderSettings();
+                }
+            });
+        }
+    };
 
     private WifiLock IRC_wifiLock;
     private PopupWindow changeNickDialog;
@@ -162,8 +217,8 @@ public class IRCChat extends Activity implements IRCEventListener
     private boolean IRCOpPermission;
 
     /** Queues that messages will be pushed onto, then pulled off when it is time to update */
-    private static java.util.Queue<IrcMessage> chatQueue = new java.util.LinkedList<IrcMessage>(),
-            logQueue = new java.util.LinkedList<IrcMessage>();
+    private static java.util.Queue<IrcMessage> chatQueue = new java.util.concurrent.ConcurrentLinkedQueue<IrcMessage>(),
+            logQueue = new java.util.concurrent.ConcurrentLinkedQueue<IrcMessage>();
 
     /** Misc */
     enum SPECIAL_COLORS { ME, TOPIC, PM, JOIN, NICK, PART, KICK, ERROR, QUIT, _OTHER };
@@ -177,6 +232,9 @@ public class IRCChat extends Activity implements IRCEventListener
         String title, message;
         SPECIAL_COLORS color;
         Date timestamp;
+        /** The formatted line, and the renderGeneration it was made for */
+        volatile Spanned rendered;
+        volatile int renderedFor = -1;
         int getColor()
         {
             switch(color)
@@ -204,14 +262,36 @@ public class IRCChat extends Activity implements IRCEventListener
         }
 
         public IrcMessage(String title, String message, SPECIAL_COLORS clr)
+        {
+            this(title, message, clr, -1);
+        }
+
+        /** @param time when the server says it was sent (server-time), -1 for now */
+        public IrcMessage(String title, String message, SPECIAL_COLORS clr, long time)
         {
             this.title = title;
             this.message = message;
             this.color = clr;
-            timestamp = new Date();
+            timestamp = time<0 ? new Date() : new Date(time);
+        }
+
+        /** Roughly how many bytes this holds on to: the object, its strings (2 bytes a char) and the Date */
+        int approximateBytes()
+        {
+            return 96 + 2 * ((title==null ? 0 : title.length()) + (message==null ? 0 : message.length()));
         }
     }
 
+    /** Weighs messages for the byte limit of the scrollback */
+    public static final RingBuffer.Weigher<IrcMessage> MESSAGE_WEIGHER = new RingBuffer.Weigher<IrcMessage>()
+    {
+        @Override
+        public int weigh(IrcMessage m)
+        {
+            return m.approximateBytes();
+        }
+    };
+
 
     /** Called when the activity is first created. Sets up the view, mostly, especially if the user is not yet logged in.
      * @param savedInstanceState Um I don't even know. Read the Android documentation.
@@ -223,34 +303,7 @@ public class IRCChat extends Activity implements IRCEventListener
             setTheme(R.style.Default_New);
         super.onCreate(savedInstanceState);
         if(ircHandler==null)
-        {
             ircHandler = new Handler();
-            chatUpdater = new Runnable()
-            {
-                @Override
-                public void run()
-                {
-                    runOnUiThread(new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            IrcMessage received;
-                            while(!chatQueue.isEmpty())
-                            {
-                                received = chatQueue.poll();
-                                if(received==null)
-                                    return;
-
-                                StaticBlob.ircChat.add(received);
-                                ((ArrayAdapter)chatListview.getAdapter()).notifyDataSetChanged();
-                            }
-                            input.requestFocus();
-                        }
-                    });
-                }
-            };
-        }
         isLandscape = getWindowManager().getDefaultDisplay().getWidth() > getWindowManager().getDefaultDisplay().getHeight();
         mNotificationManager =  (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
 
@@ -380,6 +433,7 @@ public class IRCChat extends Activity implements IRCEventListener
     public void onPause(){
         super.onPause();
         isFocused = false;
+        Emoticons.get(this).setOnChange(null);
     }
 
     /** Called when any key is pressed. Used to prevent the activity from finishing if the user is logged in.
@@ -687,6 +741,8 @@ public class IRCChat extends Activity implements IRCEventListener
         chatListview.smoothScrollToPosition(lastScroll_chat);
         logListview.setAdapter(new IrcAdapter<IrcMessage>(this,R.layout.irc_line,StaticBlob.ircLog).setIRCCHat(IRCChat.this));
         logListview.smoothScrollToPosition(lastScroll_log);
+        chatListview.getViewTreeObserver().removeOnPreDrawListener(frameTimer);
+        chatListview.getViewTreeObserver().addOnPreDrawListener(frameTimer);
 
         ((ViewAnimator)findViewById(R.id.viewanimator)).setBackgroundColor(0xFF000000 + CLR_BACK);
 
@@ -694,7 +750,7 @@ public class IRCChat extends Activity implements IRCEventListener
 
 
         if(session!=null && session.getIRCEventListeners().size()==0)
-            session.addIRCEventListener(this);
+            session.addIRCEventListener(this, HANDLED_EVENTS);
         // Notification
         if(StaticBlob.notification_chat!=null)
         {
@@ -702,9 +758,12 @@ public class IRCChat extends Activity implements IRCEventListener
             StaticBlob.notification_chat.defaults = 0;    //This will be over-written when a mention happens, but we have to set it to ALL to disable an annoying buzz when resuming the activity
             mNotificationManager.notify(StaticBlob.NOTIFICATION_ID, StaticBlob.notification_chat);
         }
+
+        SHOW_TIME = PreferenceManager.getDefaultSharedPreferences(this).getBoolean("irc_time", true);
+        checkRenderSettings();
     }
 
-    /** Called when the activity resumes; reset the notification */
+    /** Called when the activity resumes; reset the notification and catch up on emoticons turned on or off while paused */
     @Override
     public void onResume()
     {
@@ -713,6 +772,8 @@ public class IRCChat extends Activity implements IRCEventListener
             updateNotifyText();
             mNotificationManager.notify(StaticBlob.NOTIFICATION_ID, StaticBlob.notification_chat);
         }
+        Emoticons.get(this).setOnChange(emoticonsChanged);
+        checkRenderSettings();
         super.onResume();
     }
 
@@ -786,9 +847,8 @@ public class IRCChat extends Activity implements IRCEventListener
 
         // Add the initial messages
         chatQueue.add(new IrcMessage(getStrBr(R.string.app_name), getStr(R.string.attempting_to_logon), SPECIAL_COLORS.ME));
-        ircHandler.post(chatUpdater);
         logQueue.add(new IrcMessage(getStrBr(R.string.app_name), getStr(R.string.initiating_connection) + " - " + SERVER_NAME + ":" + port, SPECIAL_COLORS.ME));
-        ircHandler.post(logUpdater);
+        scheduleUpdate();
 
         // Create a timer to detect a timeout
         timeoutCount = 0;
@@ -808,7 +868,7 @@ public class IRCChat extends Activity implements IRCEventListener
                     session = null;
                     updateMenu();
                     chatQueue.add(new IrcMessage(getStrBr(R.string.timeout).toUpperCase(), getStr(R.string.connection_timed_out), SPECIAL_COLORS.ME));
-                    ircHandler.post(chatUpdater);
+                    scheduleUpdate();
                     this.cancel();
                 }
                 timeoutCount++;
@@ -817,7 +877,7 @@ public class IRCChat extends Activity implements IRCEventListener
         timeoutTimer.purge();
         timeoutTimer.schedule(timeoutTask, 0, 1000);
 
-        session.addIRCEventListener(this);
+        session.addIRCEventListener(this, HANDLED_EVENTS);
     }
 
     /** Used to logout, quit, or part. */
@@ -832,7 +892,7 @@ public class IRCChat extends Activity implements IRCEventListener
         status = IRC_STATUS.disconnected;
         IrcMessage ircm = new IrcMessage(getStr("~~~~~[",R.string.terminated,"]~~~~~").toUpperCase(),null, SPECIAL_COLORS.ERROR);
         chatQueue.add(ircm);
-        ircHandler.post(chatUpdater);
+        scheduleUpdate();
 
         new QuitPlz().execute((Void[])null);
         mNotificationManager.cancel(StaticBlob.NOTIFICATION_ID);
@@ -923,8 +983,9 @@ public class IRCChat extends Activity implements IRCEventListener
 
             if(parseOutgoing(newMessage))
             {
-                StaticBlob.ircChat.add(new IrcMessage(session.getNick(), newMessage, SPECIAL_COLORS.ME));
-                ((ArrayAdapter)chatListview.getAdapter()).notifyDataSetChanged();
+                // Queued like received messages, so it is rendered off the UI thread and getView() never formats
+                chatQueue.add(new IrcMessage(session.getNick(), newMessage, SPECIAL_COLORS.ME));
+                scheduleUpdate();
             }
 
             chatListview.smoothScrollToPosition(StaticBlob.ircChat.size()-1); //TODO: For some reason
@@ -933,32 +994,102 @@ public class IRCChat extends Activity implements IRCEventListener
         }
     };
 
-    /** A runnable to update the log */
-    Runnable logUpdater = new Runnable()
+    /** Asks for the waiting messages to be shown; a burst of them is shown in one update, at most one per frame.
+     *  May be called from any thread. */
+    private void scheduleUpdate()
+    {
+        if(!updateScheduled.compareAndSet(false, true))
+            return;
+        // Choreographer would line this up with vsync, but it is API 16; pacing from the last update is close enough
+        long wait = lastUpdate + FRAME_MILLIS - SystemClock.uptimeMillis();
+        ircHandler.postDelayed(flushUpdates, Math.max(0, wait));
+    }
+
+    /** Renders everything waiting in both queues and shows it in one update */
+    Runnable flushUpdates = new Runnable()
     {
         @Override
         public void run()
         {
-            runOnUiThread(new Runnable()
+            renderer.execute(new Runnable()
             {
                 @Override
                 public void run()
                 {
-                    IrcMessage received;
-                    while(!logQueue.isEmpty())
+                    // Anything queued after this needs another update
+                    updateScheduled.set(false);
+                    final List<IrcMessage> chat = renderQueued(chatQueue), log = renderQueued(logQueue);
+                    if(chat.isEmpty() && log.isEmpty())
+                        return;
+                    runOnUiThread(new Runnable()
                     {
-                        received = logQueue.poll();
-                        if(received==null)
-                            return;
-
-                        StaticBlob.ircLog.add(received);
-                        ((ArrayAdapter)logListview.getAdapter()).notifyDataSetChanged();
-                    }
-                    input.requestFocus();
+                        @Override
+                        public void run()
+                        {
+                            showUpdates(chat, log);
+                        }
+                    });
                 }
             });
-        };
+        }
+    };
+
+    /** Appends rendered messages to the lists, one notify for each; runs on the UI thread */
+    private void showUpdates(List<IrcMessage> chat, List<IrcMessage> log)
+    {
+        long start = System.nanoTime();
+        if(!chat.isEmpty())
+            appendKeepingAnchor(chatListview, StaticBlob.ircChat, chat);
+        if(!log.isEmpty())
+            appendKeepingAnchor(logListview, StaticBlob.ircLog, log);
+        input.requestFocus();
+        lastUpdate = SystemClock.uptimeMillis();
+
+        updateShownAt = System.nanoTime();
+        updateTimes.record(updateShownAt - start);
+        updateLines += chat.size() + log.size();
+        if(lastUpdate - statsLoggedAt > STATS_MILLIS)
+        {
+            statsLoggedAt = lastUpdate;
+            Log.d("IRCChat:showUpdates", updateTimes.getCount() + " updates, " + updateLines + " lines; on UI thread " + updateTimes + "; until drawn " + updateToFrame);
+        }
+    }
+
+    /** Appends to a list's messages. At the bottom, transcriptMode keeps following the new lines;
+     *  reading further up, the rows the buffer drops from the front would move the text, so the top row is put back.
+     * @param list The ListView showing the messages
+     * @param messages Its messages
+     * @param batch The new messages
+     */
+    private void appendKeepingAnchor(ListView list, RingBuffer<IrcMessage> messages, List<IrcMessage> batch)
+    {
+        int oldSize = messages.size();
+        boolean atBottom = list.getLastVisiblePosition() >= list.getCount()-1;
+        int first = list.getFirstVisiblePosition();
+        View top = list.getChildAt(0);
+        int offset = top==null ? 0 : top.getTop();
+
+        messages.addAll(batch);
+        ((ArrayAdapter)list.getAdapter()).notifyDataSetChanged();
+
+        int dropped = oldSize + batch.size() - messages.size();
+        if(!atBottom && dropped>0)
+            list.setSelectionFromTop(Math.max(0, first-dropped), offset);
+    }
 
+    /** Records how long it is from an update until it is drawn */
+    private ViewTreeObserver.OnPreDrawListener frameTimer = new ViewTreeObserver.OnPreDrawListener()
+    {
+        @Override
+        public boolean onPreDraw()
+        {
+            if(updateShownAt!=0)
+            {
+                updateToFrame.record(System.nanoTime() - updateShownAt);
+                updateShownAt = 0;
+            }
+            return true;
+        }
     };
 
     /** A function object to flash the background of an EditText control.
@@ -1110,7 +1241,7 @@ public class IRCChat extends Activity implements IRCEventListener
             if(!targetNick.toUpperCase().equals("NICKSERV") && targetMsg.toUpperCase().startsWith("IDENTIFY"))
             {
                 chatQueue.add(new IrcMessage("<-" + targetNick, targetMsg, SPECIAL_COLORS.PM));
-                ircHandler.post(chatUpdater);
+                scheduleUpdate();
             }
             return false;
         }
@@ -1149,7 +1280,7 @@ public class IRCChat extends Activity implements IRCEventListener
         {
             session.action(CHANNEL_NAME, "ACTION" + msg.substring(3));
             chatQueue.add(new IrcMessage("* " + session.getNick() + msg.substring(3), null, SPECIAL_COLORS.ME));
-            ircHandler.post(chatUpdater);
+            scheduleUpdate();
             return false;
         }
 
@@ -1245,17 +1376,134 @@ public class IRCChat extends Activity implements IRCEventListener
 		}
 		*/
         chatQueue.add(new IrcMessage(getStrBr(R.string.app_name), getStr(R.string.command_not_recognized), SPECIAL_COLORS.TOPIC));
-        ircHandler.post(chatUpdater);
+        scheduleUpdate();
         return false;
     }
 
+    /** Takes everything off a queue and renders it; runs on the renderer thread.
+     * Mentions are notified here, once, as they arrive.
+     * @param queue chatQueue or logQueue
+     * @return The messages, in order
+     */
+    private List<IrcMessage> renderQueued(Queue<IrcMessage> queue)
+    {
+        List<IrcMessage> batch = new ArrayList<IrcMessage>();
+        IrcMessage received;
+        while((received = queue.poll())!=null)
+        {
+            getRendered(received);
+            if(isMention(received))
+                notifyMention();
+            batch.add(received);
+        }
+        return batch;
+    }
+
+    /** Gets the formatted message; only formats it if it has not been yet for the current display preferences.
+     * @param ircm The message that has been received
+     * @return The result
+     */
+    private Spanned getRendered(IrcMessage ircm)
+    {
+        int generation = renderGeneration;
+        Spanned rendered = ircm.rendered;
+        if(rendered==null || ircm.renderedFor!=generation)
+        {
+            rendered = getReceived(ircm);
+            ircm.rendered = rendered;
+            ircm.renderedFor = generation;
+        }
+        return rendered;
+    }
+
+    /** Gets the message as it was last rendered, for the lists; never formats, so getView() can not hold up scrolling.
+     *  A render for old display preferences is shown until checkRenderSettings has redone it.
+     * @param ircm A message that was shown from chatQueue or logQueue
+     * @return The rendered line, or its plain text if it has not been rendered
+     */
+    public CharSequence getShown(IrcMessage ircm)
+    {
+        Spanned rendered = ircm.rendered;
+        if(rendered!=null)
+            return rendered;
+        return ircm.message==null ? ircm.title : ircm.title + " " + ircm.message;
+    }
+
+    /** Makes every render stale if the display preferences changed since they were made, and renders the scrollback again off the UI thread */
+    private void checkRenderSettings()
+    {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        String settings = irssi + " " + SHOW_TIME + " " + CLR_TEXT + " " + CLR_TOPIC + " " + CLR_ME + " " + CLR_JOIN + " " + CLR_MYNICK + " "
+                + CLR_NICK + " " + CLR_PART + " " + CLR_QUIT + " " + CLR_KICK + " " + CLR_ERROR + " " + CLR_MENTION + " " + CLR_PM + " "
+                + prefs.getBoolean("nick_colors", true) + " " + prefs.getInt("irc_color_etcnick", 0x2E8B91) + " " + prefs.getBoolean("irc_modes", false) + " "
+                + Emoticons.get(this).isEnabled();
+        if(settings.equals(renderSettings))
+            return;
+        renderSettings = settings;
+        renderGeneration++;
+
+        final List<IrcMessage> chat = new ArrayList<IrcMessage>(StaticBlob.ircChat),
+                log = new ArrayList<IrcMessage>(StaticBlob.ircLog);
+        renderer.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for(IrcMessage m : chat)
+                    getRendered(m);
+                for(IrcMessage m : log)
+                    getRendered(m);
+                runOnUiThread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if(chatListview!=null && chatListview.getAdapter()!=null)
+                            ((ArrayAdapter)chatListview.getAdapter()).notifyDataSetChanged();
+                        if(logListview!=null && logListview.getAdapter()!=null)
+                            ((ArrayAdapter)logListview.getAdapter()).notifyDataSetChanged();
+                    }
+                });
+            }
+        });
+    }
+
+    /** Whether a message mentions the user or is a PM to them */
+    private boolean isMention(IrcMessage ircm)
+    {
+        return (ircm.message!=null && session!=null && mentionPattern.matcher(ircm.message).find())   //If it mentions you
+                || (ircm.title!=null && ircm.title.startsWith("->")); //If it's a PM
+    }
+
+    /** Notifies of a mention if the chat is not in front */
+    private void notifyMention()
+    {
+        String TAG = StaticBlob.TAG();
+        Log.i(TAG, "Nick has been mentioned: " + isFocused);
+        if(!isFocused)
+        {
+            if(StaticBlob.notification_chat==null)
+                StaticBlob.notification_chat = new Notification(R.drawable.ic_action_dialog, null, System.currentTimeMillis());
+            mentionCount++;
+            StaticBlob.notification_chat.defaults = 0;
+            if(PreferenceManager.getDefaultSharedPreferences(this).getBoolean("irc_vibrate", true) &&
+                    (mentionCount==1 || PreferenceManager.getDefaultSharedPreferences(this).getBoolean("irc_vibrate_all", false)))
+                StaticBlob.notification_chat.defaults |= Notification.DEFAULT_VIBRATE;
+            if(PreferenceManager.getDefaultSharedPreferences(this).getBoolean("irc_sound", true) &&
+                    (mentionCount==1 || PreferenceManager.getDefaultSharedPreferences(this).getBoolean("irc_sound_all", false)))
+                StaticBlob.notification_chat.defaults |= Notification.DEFAULT_SOUND;
+            updateNotifyText();
+            mNotificationManager.notify(StaticBlob.NOTIFICATION_ID, StaticBlob.notification_chat);
+        }
+    }
+
     /** Gets a Spanned (i.e. formatted) message from the title, message, and color.
+     * Does the formatting every time; use getRendered to format only once.
      * @param ircm The message that has been received
      * @return The result
      */
     public Spanned getReceived(IrcMessage ircm)
     {
-        String TAG = StaticBlob.TAG();
         String theTitle = ircm.title,
                 theMessage = ircm.message;
         int specialColor = ircm.getColor();
@@ -1281,47 +1529,15 @@ public class IRCChat extends Activity implements IRCEventListener
                 msgColor+= specialColor;
         } catch(NullPointerException e) {
         }
-        if( //!theTitle.equals("[004]") &&
-                ((theMessage!=null && session!=null && mentionPattern.matcher(theMessage).find())   //If it mentions you
-                        || (theTitle!=null && theTitle.startsWith("->")))) //If it's a PM
-        {
+        if(isMention(ircm))
             msgColor = 0xFF000000 + CLR_MENTION;
-            Log.i(TAG, "Nick has been mentioned: " + isFocused);
-            if(!isFocused)
-            {
-                if(StaticBlob.notification_chat==null)
-                    StaticBlob.notification_chat = new Notification(R.drawable.ic_action_dialog, null, System.currentTimeMillis());
-                mentionCount++;
-                StaticBlob.notification_chat.defaults = 0;
-                if(PreferenceManager.getDefaultSharedPreferences(this).getBoolean("irc_vibrate", true) &&
-                        (mentionCount==1 || PreferenceManager.getDefaultSharedPreferences(this).getBoolean("irc_vibrate_all", false)))
-                    StaticBlob.notification_chat.defaults |= Notification.DEFAULT_VIBRATE;
-                if(PreferenceManager.getDefaultSharedPreferences(this).getBoolean("irc_sound", true) &&
-                        (mentionCount==1 || PreferenceManager.getDefaultSharedPreferences(this).getBoolean("irc_sound_all", false)))
-                    StaticBlob.notification_chat.defaults |= Notification.DEFAULT_SOUND;
-                updateNotifyText();
-                mNotificationManager.notify(StaticBlob.NOTIFICATION_ID, StaticBlob.notification_chat);
-            }
-        }
         else
             msgColor = 0xFF000000 + CLR_TEXT;
 
-        //Format the Bold/Italic
-        java.util.ArrayList<Integer[]> bold = new java.util.ArrayList<Integer[]>();
-        java.util.ArrayList<Integer[]> underline = new java.util.ArrayList<Integer[]>();
-        while(theMessage!=null && theMessage.contains(""))
-        {
-            Integer temp[] = {theMessage.indexOf(""),
-                    theMessage.indexOf("", theMessage.indexOf("")+1)};
-            bold.add(temp);
-            theMessage = theMessage.replaceFirst("", "").replaceFirst("", "");
-        }
-        while(theMessage!=null && theMessage.contains(""))
-        {
-            Integer temp[] = {theMessage.indexOf(""),theMessage.indexOf("", theMessage.indexOf("")+1)};
-            underline.add(temp);
-            theMessage = theMessage.replaceFirst("", "").replaceFirst("", "");
-        }
+        // mIRC formatting codes, all in one pass
+        FormattedText formatted = FormattedText.parse(theMessage);
+        if(theMessage!=null)
+            theMessage = formatted.getText();
 
         SpannableString tit = new SpannableString(theTitle==null ? "" : theTitle);
         SpannableString mes = new SpannableString(theMessage==null ? "" : theMessage);
@@ -1336,28 +1552,68 @@ public class IRCChat extends Activity implements IRCEventListener
             if(theMessage!=null)
             {
                 mes.setSpan(new ForegroundColorSpan(msgColor), 0, mes.length(), 0);
-                while(!bold.isEmpty() && true)
-                {
-                    mes.setSpan(new StyleSpan(android.graphics.Typeface.BOLD),
-                            bold.get(0)[0],
-                            bold.get(0)[1],
-                            0);
-                    bold.remove(0);
-                }
-                while(!underline.isEmpty() && true)
-                {
-                    mes.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC),
-                            bold.get(0)[0],
-                            bold.get(0)[1],
-                            0);
-                    underline.remove(0);
-                }
+                for(int run=0; run<formatted.getRunCount(); run++)
+                    setFormatSpans(mes, formatted, run, msgColor);
+                Emoticons.get(this).apply(mes);
             }
         } catch(Exception ie) {
         }
 
-        return (Spanned) TextUtils.concat(Html.fromHtml((SHOW_TIME ? ("<small>" + sdfTime.format(new Date()) + "</small> ") : ""))
-                , tit, mes);
+        // The time it was received (or sent, with server-time), small like <small>
+        SpannableString time = new SpannableString("");
+        if(SHOW_TIME)
+        {
+            synchronized(sdfTime)
+            {
+                time = new SpannableString(sdfTime.format(ircm.timestamp) + " ");
+            }
+            time.setSpan(new RelativeSizeSpan(0.8f), 0, time.length() - 1, 0);
+        }
+        return (Spanned) TextUtils.concat(time, tit, mes);
+    }
+
+    /** Sets the spans for a run of mIRC formatting.
+     * @param defaultColor The color of the text when it has none, for reverse
+     */
+    private void setFormatSpans(Spannable s, FormattedText f, int run, int defaultColor)
+    {
+        int start = f.getStart(run), end = f.getEnd(run);
+        int style = (f.hasStyle(run, FormattedText.BOLD) ? android.graphics.Typeface.BOLD : 0)
+                | (f.hasStyle(run, FormattedText.ITALIC) ? android.graphics.Typeface.ITALIC : 0);
+        if(style!=0)
+            s.setSpan(new StyleSpan(style), start, end, 0);
+        if(f.hasStyle(run, FormattedText.UNDERLINE))
+            s.setSpan(new UnderlineSpan(), start, end, 0);
+        if(f.hasStyle(run, FormattedText.STRIKETHROUGH))
+            s.setSpan(new StrikethroughSpan(), start, end, 0);
+        if(f.hasStyle(run, FormattedText.MONOSPACE))
+            s.setSpan(new TypefaceSpan("monospace"), start, end, 0);
+
+        Integer fg = getMircColor(f.getForeground(run)),
+                bg = getMircColor(f.getBackground(run));
+        if(f.hasStyle(run, FormattedText.REVERSE))
+        {
+            Integer swap = fg;
+            fg = bg!=null ? bg : 0xFF000000 + CLR_BACK;
+            bg = swap!=null ? swap : defaultColor;
+        }
+        if(fg!=null)
+            s.setSpan(new ForegroundColorSpan(fg), start, end, 0);
+        if(bg!=null)
+            s.setSpan(new BackgroundColorSpan(bg), start, end, 0);
+    }
+
+    /** The 16 standard mIRC colors */
+    private static final int[] MIRC_COLORS = {
+            0xFFFFFF, 0x000000, 0x00007F, 0x009300, 0xFF0000, 0x7F0000, 0x9C009C, 0xFC7F00,
+            0xFFFF00, 0x00FC00, 0x009393, 0x00FFFF, 0x0000FC, 0xFF00FF, 0x7F7F7F, 0xD2D2D2 };
+
+    /** @return The color for an mIRC color number, or null for none or one outside the standard 16 */
+    private static Integer getMircColor(int color)
+    {
+        if(color<0 || color>=MIRC_COLORS.length)
+            return null;
+        return 0xFF000000 + MIRC_COLORS[color];
     }
 
 
@@ -1389,26 +1645,26 @@ public class IRCChat extends Activity implements IRCEventListener
             {
                 //Misc events
                 case NICK_LIST_EVENT:
+                    NickListEvent nle = (NickListEvent) e;
+                    // The list comes sorted and is kept up to date from nick events after this
                     if(nickList==null)
                     {
-                        nickList = ((NickListEvent) e).getNicks();
-                        Collections.sort(nickList, String.CASE_INSENSITIVE_ORDER);
+                        nickList = nle.getNickList();
                         break;
                     }
-                    NickListEvent nle = (NickListEvent) e;
-                    String allNicks = "";
+                    StringBuilder allNicks = new StringBuilder();
                     for(String s : nle.getNicks())
                     {
-                        allNicks = allNicks.concat("[" + s + "] ");
+                        allNicks.append('[').append(s).append("] ");
                         if(allNicks.length()>60)
                         {
-                            chatQueue.add(new IrcMessage(getStrBr(R.string.names), allNicks, SPECIAL_COLORS.TOPIC));
-                            allNicks = "";
+                            chatQueue.add(new IrcMessage(getStrBr(R.string.names), allNicks.toString(), SPECIAL_COLORS.TOPIC));
+                            allNicks.setLength(0);
                         }
                     }
                     if(allNicks.length()>0)
-                        chatQueue.add(new IrcMessage(getStrBr(R.string.names), allNicks, SPECIAL_COLORS.TOPIC));
-                    ircHandler.post(chatUpdater);
+                        chatQueue.add(new IrcMessage(getStrBr(R.string.names), allNicks.toString(), SPECIAL_COLORS.TOPIC));
+                    scheduleUpdate();
                     break;
                 //TODO: This might not work. I dunno.
                 case CTCP_EVENT:
@@ -1419,7 +1675,7 @@ public class IRCChat extends Activity implements IRCEventListener
                         String realAction = ce.getCtcpString().substring(realEvent.length()).trim();
                         String realPerson = ce.getRawEventData().substring(1, ce.getRawEventData().indexOf("!"));
                         chatQueue.add(new IrcMessage("* " + realPerson + " " + realAction, null, SPECIAL_COLORS.ME));
-                        ircHandler.post(chatUpdater);
+                        scheduleUpdate();
                     }
                     break;
                 case AWAY_EVENT://This isn't even effing used! (for other people's away
@@ -1432,10 +1688,13 @@ public class IRCChat extends Activity implements IRCEventListener
                                 String.format(getStr(R.string.is_away), a.getNick()) +
                                         ": " + a.getAwayMessage(),
                                 SPECIAL_COLORS.TOPIC));
-                    ircHandler.post(chatUpdater);
+                    scheduleUpdate();
                     break;
                 case MODE_EVENT:
                     List<ModeAdjustment> lm = ((ModeEvent) e).getModeAdjustments();
+                    if(nickList!=null && ((ModeEvent) e).getModeType()==ModeEvent.ModeType.CHANNEL)
+                        for(ModeAdjustment ma : lm)
+                            nickList.setMode(ma.getArgument(), ma.getMode(), ma.getAction()==ModeAdjustment.Action.PLUS);
                     String setter = ((ModeEvent)e).setBy(), plus = "", minus = "";
                     ArrayList<String> prettified = new ArrayList<String>();
                     for(ModeAdjustment ma : lm)
@@ -1580,7 +1839,7 @@ public class IRCChat extends Activity implements IRCEventListener
                     for(String s : prettified)
                     {
                         chatQueue.add(new IrcMessage("***" + s, null, SPECIAL_COLORS.TOPIC));       //TODO: Different color?
-                        ircHandler.post(chatUpdater);
+                        scheduleUpdate();
                     }
                     if(!plus.equals(""))
                         plus = "+" + plus;
@@ -1591,7 +1850,7 @@ public class IRCChat extends Activity implements IRCEventListener
                         logQueue.add(new IrcMessage(getStrBr(R.string.mode),
                                 String.format(getStr(R.string.has_changed_your_modes), setter, plus + minus),
                                 SPECIAL_COLORS.TOPIC));       //TODO: Different color?
-                        ircHandler.post(logUpdater);
+                        scheduleUpdate();
                     }
                     break;
 
@@ -1601,25 +1860,25 @@ public class IRCChat extends Activity implements IRCEventListener
                     ServerInformationEvent s = (ServerInformationEvent) e;
                     ServerInformation S = s.getServerInformation();
                     logQueue.add(new IrcMessage(getStrBr(R.string.info), S.getServerName(), SPECIAL_COLORS.TOPIC));
-                    ircHandler.post(logUpdater);
+                    scheduleUpdate();
                     break;
                 case SERVER_VERSION_EVENT:
                     ServerVersionEvent sv = (ServerVersionEvent) e;
                     logQueue.add(new IrcMessage(getStrBr(R.string.version), sv.getVersion(), SPECIAL_COLORS.TOPIC));
-                    ircHandler.post(logUpdater);
+                    scheduleUpdate();
                     break;
                 case CONNECT_COMPLETE:
                     ConnectionCompleteEvent c = (ConnectionCompleteEvent) e;
                     logQueue.add(new IrcMessage(null, c.getActualHostName() + "\n" + getStr(R.string.connection_complete), SPECIAL_COLORS.TOPIC));
                     e.getSession().join(CHANNEL_NAME);
-                    ircHandler.post(logUpdater);
+                    scheduleUpdate();
                     break;
                 case JOIN_COMPLETE:
                     //JoinCompleteEvent jce = (JoinCompleteEvent) e;
                     chatQueue.add(new IrcMessage(getStrBr(R.string.join), getStr(R.string.join_complete), SPECIAL_COLORS.TOPIC));
                     if(profilePass!=null && profilePass!=null && !profilePass.equals(""))
                         parseOutgoing("/MSG NickServ identify " + profilePass);
-                    ircHandler.post(chatUpdater);
+                    scheduleUpdate();
                     status = IRC_STATUS.connected;
                     updateNotifyText();
                     mNotificationManager.notify(StaticBlob.NOTIFICATION_ID, StaticBlob.notification_chat);
@@ -1627,7 +1886,7 @@ public class IRCChat extends Activity implements IRCEventListener
                 case MOTD:
                     MotdEvent mo = (MotdEvent) e;
                     logQueue.add(new IrcMessage(getStrBr(R.string.motd), mo.getMotdLine(), SPECIAL_COLORS.TOPIC));
-                    ircHandler.post(logUpdater);
+                    scheduleUpdate();
                     break;
                 case NOTICE:
                     if(e.getRawEventData().contains("Your nickname is now being changed"))
@@ -1640,12 +1899,12 @@ public class IRCChat extends Activity implements IRCEventListener
                     if((ne.byWho()!=null && ne.byWho().equals("NickServ")) || e.getRawEventData().startsWith(":NickServ"))
                     {
                         chatQueue.add(new IrcMessage(getStrBr(R.string.nickserv), ne.getNoticeMessage(), SPECIAL_COLORS.TOPIC));
-                        ircHandler.post(chatUpdater);
+                        scheduleUpdate();
                     }
                     else
                     {
                         logQueue.add(new IrcMessage(getStrBr(R.string.notice), ne.getNoticeMessage(), SPECIAL_COLORS.TOPIC));
-                        ircHandler.post(logUpdater);
+                        scheduleUpdate();
                     }
 
                     break;
@@ -1659,67 +1918,107 @@ public class IRCChat extends Activity implements IRCEventListener
                         chatQueue.add(new IrcMessage(getStrBr(R.string.topic) + t.getTopic() +
                                 String.format(getStr(R.string.topic_set_by_on), t.getSetBy(), t.getSetWhen()),
                                 null, SPECIAL_COLORS.TOPIC));
-                    ircHandler.post(chatUpdater);
+                    scheduleUpdate();
                     break;
 
                 case PRIVATE_MESSAGE:
                 case CHANNEL_MESSAGE:
                     MessageEvent m = (MessageEvent) e;
+                    // Backlog replayed by the server keeps its original time
                     if((e.getType()).equals(jerklib.events.IRCEvent.Type.PRIVATE_MESSAGE))
-                        chatQueue.add(new IrcMessage("->" + m.getNick(), m.getMessage(), SPECIAL_COLORS.PM));
+                        chatQueue.add(new IrcMessage("->" + m.getNick(), m.getMessage(), SPECIAL_COLORS.PM, m.getServerTime()));
                     else
-                        chatQueue.add(new IrcMessage(m.getNick(), m.getMessage(), SPECIAL_COLORS._OTHER));
-                    ircHandler.post(chatUpdater);
+                        chatQueue.add(new IrcMessage(m.getNick(), m.getMessage(), SPECIAL_COLORS._OTHER, m.getServerTime()));
+                    scheduleUpdate();
                     break;
                 case JOIN:
                     JoinEvent j = (JoinEvent) e;
-                    nickList.add(j.getNick());
+                    if(nickList!=null)
+                        nickList.add(j.getNick());
                     chatQueue.add(new IrcMessage(String.format(getStr(R.string.has_entered), j.getNick()), null, SPECIAL_COLORS.JOIN));
-                    ircHandler.post(chatUpdater);
+                    scheduleUpdate();
                     break;
                 case NICK_CHANGE:
                     NickChangeEvent ni = (NickChangeEvent) e;
+                    if(nickList!=null)
+                        nickList.rename(ni.getOldNick(), ni.getNewNick());
                     chatQueue.add(new IrcMessage(String.format(getStr(R.string.has_entered), ni.getOldNick(), ni.getNewNick()),
                             null, SPECIAL_COLORS.NICK));
-                    ircHandler.post(chatUpdater);
+                    scheduleUpdate();
                     break;
                 case PART:
                     PartEvent p = (PartEvent) e;
                     nickColors.remove(p.getNick());
-                    nickList.remove(p.getNick());
+                    if(nickList!=null)
+                        nickList.remove(p.getNick());
                     chatQueue.add(new IrcMessage(getStrBr(R.string.part) + " " + p.getNick() + " (" + p.getPartMessage() + ")",
                             null, SPECIAL_COLORS.PART));
-                    ircHandler.post(chatUpdater);
+                    scheduleUpdate();
                     break;
                 case QUIT:
                     QuitEvent q = (QuitEvent) e;
                     nickColors.remove(q.getNick());
-                    nickList.remove(q.getNick());
+                    if(nickList!=null)
+                        nickList.remove(q.getNick());
                     chatQueue.add(new IrcMessage(getStrBr(R.string.quit) + " " + q.getNick() + " (" + q.getQuitMessage() + ")",
                             null, SPECIAL_COLORS.QUIT));
-                    ircHandler.post(chatUpdater);
+                    scheduleUpdate();
+                    break;
+                case BATCH:
+                    // A netsplit or netjoin comes as one event instead of a QUIT or JOIN per user
+                    BatchEvent b = (BatchEvent) e;
+                    if(!b.isHeld())
+                        break;
+                    boolean split = b.getBatchType().equalsIgnoreCase("netsplit");
+                    int users = 0;
+                    for(IRCEvent be : b.getEvents())
+                    {
+                        if(be instanceof QuitEvent)
+                        {
+                            String quitter = ((QuitEvent) be).getNick();
+                            nickColors.remove(quitter);
+                            if(nickList!=null)
+                                nickList.remove(quitter);
+                            users++;
+                        }
+                        else if(be instanceof JoinEvent)
+                        {
+                            if(nickList!=null)
+                                nickList.add(((JoinEvent) be).getNick());
+                            users++;
+                        }
+                    }
+                    StringBuilder servers = new StringBuilder();
+                    for(String server : b.getParameters())
+                        servers.append(servers.length()>0 ? " " : "").append(server);
+                    chatQueue.add(new IrcMessage(getStrBr(split ? R.string.netsplit : R.string.netjoin),
+                            String.format(getStr(R.string.users_in_batch), users, servers),
+                            split ? SPECIAL_COLORS.QUIT : SPECIAL_COLORS.JOIN));
+                    scheduleUpdate();
                     break;
                 case KICK_EVENT:
                     KickEvent k = (KickEvent) e;
+                    if(nickList!=null)
+                        nickList.remove(k.getWho());
                     chatQueue.add(new IrcMessage(getStrBr(R.string.kick) + " " +
                             String.format(getStr(R.string.was_kicked_by), k.byWho(), k.getWho()) +
                             " (" + k.getMessage() + ")",
                             null, SPECIAL_COLORS.KICK));
-                    ircHandler.post(chatUpdater);
+                    scheduleUpdate();
                     break;
                 case NICK_IN_USE:
                     NickInUseEvent n = (NickInUseEvent) e;
                     chatQueue.add(new IrcMessage(getStrBr(R.string.nick_in_use) + " " +
                             String.format(getStr(R.string.is_in_use), n.getInUseNick()),
                             null, SPECIAL_COLORS.ERROR));
-                    ircHandler.post(chatUpdater);
+                    scheduleUpdate();
                     break;
                 case WHO_EVENT:
                     WhoEvent we = (WhoEvent) e;
                     chatQueue.add(new IrcMessage(getStrBr(R.string.who),
                             String.format(getStr(R.string.who_format),  we.getNick(), we.getUserName(), we.getServerName(),  we.getRealName()),
                             SPECIAL_COLORS.TOPIC));
-                    ircHandler.post(chatUpdater);
+                    scheduleUpdate();
                     break;
                 case WHOIS_EVENT:
                     WhoisEvent wie = (WhoisEvent) e;
@@ -1742,7 +2041,7 @@ public class IRCChat extends Activity implements IRCEventListener
                     chatQueue.add(new IrcMessage(getStrBr(R.string.who_is),
                             String.format(getStr(R.string.who_idle),  wie.getUser(), wie.signOnTime()),
                             SPECIAL_COLORS.TOPIC));
-                    ircHandler.post(chatUpdater);
+                    scheduleUpdate();
                     break;
                 case WHOWAS_EVENT: //TODO: Fix?
                     WhowasEvent wwe = (WhowasEvent) e;
@@ -1760,8 +2059,7 @@ public class IRCChat extends Activity implements IRCEventListener
                     logQueue.add(new IrcMessage(
                             getStrBr(R.string.connection_was_lost) + " " + getStr(R.string.attempt) + " " +  session.getRetries(),
                             null, SPECIAL_COLORS.ERROR));
-                    ircHandler.post(chatUpdater);
-                    ircHandler.post(logUpdater);
+                    scheduleUpdate();
                     break;
                 case ERROR:
                     final int
@@ -1800,8 +2098,7 @@ public class IRCChat extends Activity implements IRCEventListener
                     logQueue.add(new IrcMessage(getStrBr(R.string.error),
                             rrealmsg + (retry ? " -  " + getStr(R.string.attempt) + " " +  session.getRetries() : ""),
                             SPECIAL_COLORS.ERROR));
-                    ircHandler.post(chatUpdater);
-                    ircHandler.post(logUpdater);
+                    scheduleUpdate();
                 /*
 				manager.quit();
 				manager = null;
@@ -1837,7 +2134,7 @@ public class IRCChat extends Activity implements IRCEventListener
                             return;
                         chatQueue.add(new IrcMessage(getStrBr(R.string.is_on),
                                 String.format(getStr(R.string.is_online), name), SPECIAL_COLORS.TOPIC));
-                        ircHandler.post(chatUpdater);
+                        scheduleUpdate();
                         break;
                     }
                     //MAP
@@ -1846,7 +2143,7 @@ public class IRCChat extends Activity implements IRCEventListener
                         realmsg = e.getRawEventData().substring(e.getRawEventData().indexOf(":", 2)+1);
                         logQueue.add(new IrcMessage(getStrBr(R.string.map),
                                 realmsg, SPECIAL_COLORS.TOPIC));
-                        ircHandler.post(logUpdater);
+                        scheduleUpdate();
                         break;
                     }
                     //LUSERS
@@ -1855,7 +2152,7 @@ public class IRCChat extends Activity implements IRCEventListener
                         realmsg = e.getRawEventData().substring(e.getRawEventData().indexOf(":", 2)+1);
                         logQueue.add(new IrcMessage(getStrBr(R.string.lusers),
                                 realmsg, SPECIAL_COLORS.TOPIC));
-                        ircHandler.post(logUpdater);
+                        scheduleUpdate();
                         break;
                     }
 				/*
@@ -1874,7 +2171,7 @@ public class IRCChat extends Activity implements IRCEventListener
                         realmsg = e.getRawEventData().substring(e.getRawEventData().indexOf(":", 2)+1);
                         logQueue.add(new IrcMessage(getStrBr(R.string.rules),
                                 realmsg, SPECIAL_COLORS.TOPIC));
-                        ircHandler.post(logUpdater);
+                        scheduleUpdate();
                         break;
                     }
                     //LINKS
@@ -1883,7 +2180,7 @@ public class IRCChat extends Activity implements IRCEventListener
                         realmsg = e.getRawEventData().substring(e.getRawEventData().indexOf(":", 2)+1);
                         logQueue.add(new IrcMessage(getStrBr(R.string.links),
                                 realmsg, SPECIAL_COLORS.TOPIC));
-                        ircHandler.post(logUpdater);
+                        scheduleUpdate();
                         break;
                     }
                     //ADMIN
@@ -1892,7 +2189,7 @@ public class IRCChat extends Activity implements IRCEventListener
                         realmsg = e.getRawEventData().substring(e.getRawEventData().indexOf(":", 2)+1);
                         logQueue.add(new IrcMessage(getStrBr(R.string.admin),
                                 realmsg, SPECIAL_COLORS.TOPIC));
-                        ircHandler.post(chatUpdater);
+                        scheduleUpdate();
                         break;
                     }
                     //WHO part 2
@@ -1901,7 +2198,7 @@ public class IRCChat extends Activity implements IRCEventListener
                         realmsg = e.getRawEventData().substring(e.getRawEventData().indexOf(":", 2)+1);
                         logQueue.add(new IrcMessage(getStrBr(R.string.who),
                                 realmsg, SPECIAL_COLORS.TOPIC));
-                        ircHandler.post(chatUpdater);
+                        scheduleUpdate();
                     }
                     //WHOIS part 2
                     else if(realType.equals("307"))
@@ -1911,7 +2208,7 @@ public class IRCChat extends Activity implements IRCEventListener
                                 + " " + e.getRawEventData().substring(e.getRawEventData().indexOf(":", 2)+1);
                         chatQueue.add(new IrcMessage(getStrBr(R.string.who_is),
                                 realmsg, SPECIAL_COLORS.TOPIC));
-                        ircHandler.post(chatUpdater);
+                        scheduleUpdate();
                     }
                     //USERHOST
                     else if(realType.equals("302"))
@@ -1920,7 +2217,7 @@ public class IRCChat extends Activity implements IRCEventListener
                         realmsg.replaceFirst(Pattern.quote("=+"), " is ");	//TODO: Not working? eh?
                         chatQueue.add(new IrcMessage(getStrBr(R.string.user_host),
                                 realmsg, SPECIAL_COLORS.TOPIC));
-                        ircHandler.post(chatUpdater);
+                        scheduleUpdate();
                     }
                     //CREDITS
                     else if(realType.equals("371"))
@@ -1929,7 +2226,7 @@ public class IRCChat extends Activity implements IRCEventListener
                         realmsg.replaceFirst(Pattern.quote("=+"), " is ");	//TODO: Not working? eh?
                         chatQueue.add(new IrcMessage(getStrBr(R.string.credits),
                                 realmsg, SPECIAL_COLORS.TOPIC));
-                        ircHandler.post(logUpdater);
+                        scheduleUpdate();
                     }
                     //TIME
                     else if(realType.equals("391"))
@@ -1937,7 +2234,7 @@ public class IRCChat extends Activity implements IRCEventListener
                         realmsg = e.getRawEventData().substring(e.getRawEventData().indexOf(":", 2)+1);
                         chatQueue.add(new IrcMessage(getStrBr(R.string.time),
                                 realmsg, SPECIAL_COLORS.TOPIC));
-                        ircHandler.post(chatUpdater);
+                        scheduleUpdate();
                     }
                     //USERIP
                     else if(realType.equals("340"))
@@ -1945,7 +2242,7 @@ public class IRCChat extends Activity implements IRCEventListener
                         realmsg = e.getRawEventData().substring(e.getRawEventData().indexOf(":", 2)+1);
                         chatQueue.add(new IrcMessage(getStrBr(R.string.user_ip),
                                 realmsg, SPECIAL_COLORS.TOPIC));
-                        ircHandler.post(chatUpdater);
+                        scheduleUpdate();
                     }
                     //Nicklist? something else? MOTD
                     else if(realType.equals("329") || realType.equals("332"))
@@ -1987,7 +2284,7 @@ public class IRCChat extends Activity implements IRCEventListener
                         realmsg = e.getRawEventData().substring(e.getRawEventData().indexOf(":", 2)+1);
                         logQueue.add(new IrcMessage(getStr(R.string.irc_bracket_open) + realType + getStr(R.string.irc_bracket_close),
                                 realmsg, SPECIAL_COLORS.TOPIC));
-                        ircHandler.post(logUpdater);
+                        scheduleUpdate();
                     }
                     break;
                 default:
@@ -2006,14 +2303,14 @@ public class IRCChat extends Activity implements IRCEventListener
             {
                 chatQueue.add(new IrcMessage(getStrBr(R.string.app_name),
                         getStr(R.string.maximum_retries), SPECIAL_COLORS.TOPIC));
-                ircHandler.post(chatUpdater);
+                scheduleUpdate();
             }
             else if(false)
             {
                 chatQueue.add(new IrcMessage(getStrBr(R.string.app_name),
                         getStr(R.string.retrying_connection) + ": " + getStr(R.string.attempt) + " " + session.getRetries(),
                         SPECIAL_COLORS.TOPIC));
-                ircHandler.post(chatUpdater);
+                scheduleUpdate();
             }
         }
     }
@@ -25,6 +25,7 @@ import android.widget.ListView;
 import android.widget.TextView;
 import com.qweex.callisto.R;
 import com.qweex.callisto.StaticBlob;
+import jerklib.SortedNickList;
 
 import java.util.HashSet;
 import java.util.List;
@@ -84,18 +85,21 @@ public class NickList extends ListActivity
                 v=vi.inflate(layoutResourceID, null);
             }
             v.setBackgroundColor(android.R.color.transparent);
-            String pre = "";
-            //Special characters for special people
-            if(Owners.contains(content.get(pos).toLowerCase()))
-                pre = "~";
-            else if(Admins.contains(content.get(pos).toLowerCase()))
-                pre = "&";
-            else if(Operators.contains(content.get(pos).toLowerCase()))
-                pre = "@";
-            else if(HalfOperators.contains(content.get(pos).toLowerCase()))
-                pre = "%";
-            else if(Voices.contains(content.get(pos).toLowerCase()))
-                pre = "+";
+            //Special characters for special people, from the server's NAMES and MODEs if we have them
+            String pre = content instanceof SortedNickList ? ((SortedNickList) content).getPrefix(pos) : "";
+            if(pre.length()==0)
+            {
+                if(Owners.contains(content.get(pos).toLowerCase()))
+                    pre = "~";
+                else if(Admins.contains(content.get(pos).toLowerCase()))
+                    pre = "&";
+                else if(Operators.contains(content.get(pos).toLowerCase()))
+                    pre = "@";
+                else if(HalfOperators.contains(content.get(pos).toLowerCase()))
+                    pre = "%";
+                else if(Voices.contains(content.get(pos).toLowerCase()))
+                    pre = "+";
+            }
             ((TextView)v.findViewById(android.R.id.text1)).setText(pre + content.get(pos));
             ((TextView)v.findViewById(android.R.id.text1)).setTextColor(v.getContext().getResources().getColor(R.color.txtClr));
             return v;
@@ -0,0 +1,279 @@
+/*
+        DO WHAT THE FUCK YOU WANT TO PUBLIC LICENSE
+                    Version 2, December 2004
+
+ Copyright (C) 2013-2014 Jon Petraglia <MrQweex@qweex.com>
+
+ Everyone is permitted to copy and distribute verbatim or modified
+ copies of this license document, and changing it is allowed as long
+ as the name is changed.
+
+            DO WHAT THE FUCK YOU WANT TO PUBLIC LICENSE
+   TERMS AND CONDITIONS FOR COPYING, DISTRIBUTION AND MODIFICATION
+
+  0. You just DO WHAT THE FUCK YOU WANT TO.
+ */
+package com.qweex.utils;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/** A list with a maximum size; when it is full, adding drops the oldest element.
+ *  Adding to the end, dropping from the front and get() are O(1).
+ *  It can also be given a maximum in (approximate) bytes, then the oldest elements are dropped
+ *  until the rest fit, however long the elements are. */
+public class RingBuffer<E> extends AbstractList<E> implements RandomAccess
+{
+    /** Tells how many bytes an element holds on to */
+    public interface Weigher<E>
+    {
+        int weigh(E element);
+    }
+
+    /** Elements, the oldest at head; grows up to maximum */
+    private Object[] elements = new Object[16];
+    /** Weight of each element, same positions as elements */
+    private int[] weights = new int[16];
+    /** Index of the oldest element and number of elements */
+    private int head, size;
+    /** Maximum number of elements */
+    private int maximum;
+    /** Maximum total weight, 0 for none, and the current total */
+    private long maximumBytes, bytes;
+    private Weigher<? super E> weigher;
+
+    public RingBuffer(int maximum)
+    {
+        setMaximumCapacity(maximum);
+    }
+
+    /** @param weigher how to weigh elements for the byte maximum */
+    public RingBuffer(int maximum, long maximumBytes, Weigher<? super E> weigher)
+    {
+        this.weigher = weigher;
+        this.maximumBytes = maximumBytes;
+        setMaximumCapacity(maximum);
+    }
+
+    /** Changes the maximum; drops the oldest elements if there are more than that */
+    public void setMaximumCapacity(int m)
+    {
+        if(m<1)
+            throw new IllegalArgumentException("maximum must be at least 1");
+        maximum = m;
+        trim();
+        if(elements.length>maximum)
+            resize(maximum);
+    }
+
+    public int getMaximumCapacity()
+    {
+        return maximum;
+    }
+
+    /** Changes the maximum bytes, 0 for none; drops the oldest elements until the rest fit */
+    public void setMaximumBytes(long m)
+    {
+        maximumBytes = m;
+        trim();
+    }
+
+    public long getMaximumBytes()
+    {
+        return maximumBytes;
+    }
+
+    /** @return the approximate bytes held, 0 if there is no Weigher */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index)
+    {
+        checkIndex(index);
+        return (E) elements[slot(index)];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E set(int index, E object)
+    {
+        checkIndex(index);
+        int s = slot(index);
+        E old = (E) elements[s];
+        elements[s] = object;
+        bytes -= weights[s];
+        weights[s] = weigh(object);
+        bytes += weights[s];
+        trim();
+        return old;
+    }
+
+    /** Appends, dropping the oldest element if it is full */
+    @Override
+    public boolean add(E object)
+    {
+        append(object);
+        trim();
+        modCount++;
+        return true;
+    }
+
+    /** Inserting anywhere but the end is O(n) */
+    @Override
+    public void add(int index, E object)
+    {
+        if(index<0 || index>size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        modCount++;
+        if(size==maximum)
+        {
+            // Inserted in front of everything, it would be the oldest and dropped right away
+            if(index==0)
+                return;
+            removeOldest();
+            index--;
+        }
+        append(object);
+        for(int i=size-1; i>index; i--)
+            swap(slot(i), slot(i-1));
+        trim();
+    }
+
+    /** Appends in order, for replaying a backlog; only the last maximum elements are kept */
+    @Override
+    public boolean addAll(Collection<? extends E> collection)
+    {
+        int skip = Math.max(0, collection.size()-maximum);
+        int i = 0;
+        for(E object : collection)
+        {
+            if(i++ < skip)
+                continue;
+            append(object);
+        }
+        trim();
+        modCount++;
+        return collection.size()>0;
+    }
+
+    /** Removing anywhere but the front is O(n) */
+    @Override
+    @SuppressWarnings("unchecked")
+    public E remove(int index)
+    {
+        checkIndex(index);
+        E old = (E) elements[slot(index)];
+        if(index==0)
+        {
+            removeOldest();
+        }
+        else
+        {
+            for(int i=index; i<size-1; i++)
+                swap(slot(i), slot(i+1));
+            int last = slot(size-1);
+            bytes -= weights[last];
+            elements[last] = null;
+            weights[last] = 0;
+            size--;
+        }
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public void clear()
+    {
+        for(int i=0; i<size; i++)
+        {
+            elements[slot(i)] = null;
+            weights[slot(i)] = 0;
+        }
+        head = size = 0;
+        bytes = 0;
+        modCount++;
+    }
+
+    /** Puts an element at the end, dropping the oldest if the array is already at the maximum */
+    private void append(E object)
+    {
+        if(size==maximum)
+            removeOldest();
+        else if(size==elements.length)
+            resize(Math.min(maximum, elements.length*2));
+        int s = slot(size);
+        elements[s] = object;
+        weights[s] = weigh(object);
+        bytes += weights[s];
+        size++;
+    }
+
+    /** Drops the oldest elements until there are no more than the maximums; always keeps the newest */
+    private void trim()
+    {
+        while(size>maximum || (maximumBytes>0 && bytes>maximumBytes && size>1))
+            removeOldest();
+    }
+
+    private void removeOldest()
+    {
+        bytes -= weights[head];
+        elements[head] = null;
+        weights[head] = 0;
+        head = (head+1) % elements.length;
+        size--;
+    }
+
+    /** Moves the elements into a new array of a length, oldest first */
+    private void resize(int length)
+    {
+        Object[] e = new Object[Math.max(1, length)];
+        int[] w = new int[e.length];
+        for(int i=0; i<size; i++)
+        {
+            e[i] = elements[slot(i)];
+            w[i] = weights[slot(i)];
+        }
+        elements = e;
+        weights = w;
+        head = 0;
+    }
+
+    private int weigh(E object)
+    {
+        return weigher==null ? 0 : weigher.weigh(object);
+    }
+
+    private int slot(int index)
+    {
+        int s = head+index;
+        return s<elements.length ? s : s-elements.length;
+    }
+
+    private void swap(int a, int b)
+    {
+        Object e = elements[a];
+        elements[a] = elements[b];
+        elements[b] = e;
+        int w = weights[a];
+        weights[a] = weights[b];
+        weights[b] = w;
+    }
+
+    private void checkIndex(int index)
+    {
+        if(index<0 || index>=size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+}
@@ -0,0 +1,107 @@
+package jerklib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jerklib.events.IRCEvent;
+
+/**
+ * Keeps the IRCv3 batches a server has open for a Session.
+ *
+ * Lines of netsplit and netjoin batches are held unparsed until the batch
+ * ends , so hundreds of QUITs or JOINs change the channels in one go and reach
+ * listeners as one BatchEvent. Only used on the io thread of the Session.
+ *
+ * @see jerklib.events.BatchEvent
+ */
+class BatchTracker
+{
+	/* types whose lines are held until the batch ends */
+	private static final String[] HELD_TYPES = { "netsplit", "netjoin" };
+
+	private final Map<String, Batch> open = new HashMap<String, Batch>();
+
+	/**
+	 * Handles a BATCH line
+	 *
+	 * @param line
+	 * @return the batch the line ended , null if it started one
+	 */
+	Batch update(IRCEvent line)
+	{
+		String ref = line.arg(0);
+		if (ref == null || ref.length() < 2) return null;
+
+		String reference = ref.substring(1);
+		if (ref.charAt(0) == '-') return open.remove(reference);
+		if (ref.charAt(0) != '+') return null;
+
+		String type = line.arg(1) == null ? "" : line.arg(1);
+		List<String> parameters = new ArrayList<String>();
+		for (int i = 2; i < line.argCount(); i++)
+		{
+			parameters.add(line.arg(i));
+		}
+
+		Batch parent = get(line);
+		boolean held = parent != null && parent.held;
+		for (String heldType : HELD_TYPES)
+		{
+			if (heldType.equalsIgnoreCase(type)) held = true;
+		}
+		open.put(reference, new Batch(line.getRawEventData(), reference, type, Collections.unmodifiableList(parameters), held, parent));
+		return null;
+	}
+
+	/**
+	 * @param line
+	 * @return the open batch a line belongs to , null if none
+	 */
+	Batch get(IRCEvent line)
+	{
+		if (open.isEmpty()) return null;
+		String ref = line.getTag("batch");
+		return ref == null ? null : open.get(ref);
+	}
+
+	/**
+	 * @param batch
+	 * @return true if the batch has not ended
+	 */
+	boolean isOpen(Batch batch)
+	{
+		return open.get(batch.reference) == batch;
+	}
+
+	/**
+	 * Drops all open batches , called when the connection is lost
+	 */
+	void clear()
+	{
+		open.clear();
+	}
+
+	static class Batch
+	{
+		final String rawEventData , reference , type;
+		final List<String> parameters;
+		final boolean held;
+		final Batch parent;
+
+		/* raw lines if held , else the events made from them. Ended nested batches as BatchEvents */
+		final List<IRCEvent> events = new ArrayList<IRCEvent>();
+
+		Batch(String rawEventData, String reference, String type, List<String> parameters, boolean held, Batch parent)
+		{
+			this.rawEventData = rawEventData;
+			this.reference = reference;
+			this.type = type;
+			this.parameters = parameters;
+			this.held = held;
+			this.parent = parent;
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package jerklib;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import jerklib.events.IRCEvent;
+
+/**
+ * IRCv3 capability negotiation for a Session.
+ *
+ * <pre>
+ * IDLE --login--&gt; LISTING --CAP LS (last line)--&gt; REQUESTING --CAP ACK/NAK--&gt; DONE
+ *                     |                                                   ^
+ *                     +---- nothing we want , or 001 arrives -------------+
+ * </pre>
+ *
+ * CAP LS 302 is sent before NICK and USER , servers that support CAP hold
+ * registration until CAP END. Servers that do not reply with 421 and register
+ * as usual. After registration CAP NEW and CAP DEL keep the enabled set current.
+ *
+ * @see Session#hasCapability(String)
+ */
+class CapNegotiator
+{
+	enum State
+	{
+		IDLE,
+		LISTING,
+		REQUESTING,
+		DONE
+	}
+
+	/* capabilities jerklib knows how to use */
+	static final String[] SUPPORTED = { "multi-prefix", "userhost-in-names", "server-time", "batch" };
+
+	private final Session session;
+	private final Set<String> wanted = new LinkedHashSet<String>();
+	private final Set<String> offered = new HashSet<String>();
+	private final Set<String> enabled = new LinkedHashSet<String>();
+	private State state = State.IDLE;
+
+	CapNegotiator(Session session)
+	{
+		this.session = session;
+		for (String cap : SUPPORTED)
+		{
+			wanted.add(cap);
+		}
+	}
+
+	/**
+	 * Adds a capability to request on the next negotiation
+	 *
+	 * @param cap
+	 */
+	synchronized void want(String cap)
+	{
+		wanted.add(cap);
+	}
+
+	/**
+	 * Starts negotiation , called before NICK and USER are sent
+	 */
+	synchronized void start()
+	{
+		offered.clear();
+		enabled.clear();
+		state = State.LISTING;
+		session.sayRaw("CAP LS 302");
+	}
+
+	/**
+	 * Registration finished , stop waiting for replies
+	 */
+	synchronized void registered()
+	{
+		state = State.DONE;
+	}
+
+	/**
+	 * @param cap
+	 * @return true if the server acknowledged the capability
+	 */
+	synchronized boolean isEnabled(String cap)
+	{
+		return enabled.contains(cap);
+	}
+
+	/**
+	 * @return enabled capabilities
+	 */
+	synchronized List<String> getEnabled()
+	{
+		return new ArrayList<String>(enabled);
+	}
+
+	/**
+	 * Handles a CAP line from the server , CAP &lt;target&gt; &lt;subcommand&gt; [*] :&lt;capabilities&gt;
+	 *
+	 * @param e
+	 */
+	synchronized void received(IRCEvent e)
+	{
+		String sub = e.arg(1);
+		String caps = e.arg(e.argCount() - 1);
+		if (sub == null || e.argCount() < 3) return;
+
+		if (sub.equals("LS"))
+		{
+			for (String cap : split(caps))
+			{
+				offered.add(name(cap));
+			}
+			/* a * before the list means more lines follow */
+			boolean more = e.argCount() > 3 && e.arg(2).equals("*");
+			if (!more && state == State.LISTING) request();
+		}
+		else if (sub.equals("ACK"))
+		{
+			for (String cap : split(caps))
+			{
+				if (cap.startsWith("-")) enabled.remove(cap.substring(1));
+				else enabled.add(name(cap));
+			}
+			if (state == State.REQUESTING) end();
+		}
+		else if (sub.equals("NAK"))
+		{
+			if (state == State.REQUESTING) end();
+		}
+		else if (sub.equals("NEW"))
+		{
+			List<String> added = new ArrayList<String>();
+			for (String cap : split(caps))
+			{
+				String name = name(cap);
+				offered.add(name);
+				if (wanted.contains(name) && !enabled.contains(name)) added.add(name);
+			}
+			if (state == State.DONE && !added.isEmpty()) session.sayRaw("CAP REQ :" + join(added));
+		}
+		else if (sub.equals("DEL"))
+		{
+			for (String cap : split(caps))
+			{
+				offered.remove(cap);
+				enabled.remove(cap);
+			}
+		}
+	}
+
+	private void request()
+	{
+		List<String> request = new ArrayList<String>();
+		for (String cap : wanted)
+		{
+			if (offered.contains(cap)) request.add(cap);
+		}
+
+		if (request.isEmpty())
+		{
+			end();
+		}
+		else
+		{
+			state = State.REQUESTING;
+			session.sayRaw("CAP REQ :" + join(request));
+		}
+	}
+
+	private void end()
+	{
+		state = State.DONE;
+		session.sayRaw("CAP END");
+	}
+
+	/**
+	 * @return capability name without a =value
+	 */
+	private static String name(String cap)
+	{
+		int equals = cap.indexOf('=');
+		return equals == -1 ? cap : cap.substring(0, equals);
+	}
+
+	private static List<String> split(String caps)
+	{
+		List<String> list = new ArrayList<String>();
+		int start = 0;
+		for (int i = 0; i <= caps.length(); i++)
+		{
+			if (i == caps.length() || caps.charAt(i) == ' ')
+			{
+				if (i > start) list.add(caps.substring(start, i));
+				start = i + 1;
+			}
+		}
+		return list;
+	}
+
+	private static String join(List<String> caps)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (String cap : caps)
+		{
+			if (sb.length() > 0) sb.append(' ');
+			sb.append(cap);
+		}
+		return sb.toString();
+	}
+}
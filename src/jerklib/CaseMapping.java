@@ -0,0 +1,157 @@
+package jerklib;
+
+/**
+ * Case folding rules for nicks and channel names , as announced by the
+ * CASEMAPPING token of numeric 005.
+ *
+ * <ul>
+ * <li>ascii - only A-Z fold to a-z</li>
+ * <li>rfc1459 - also []\~ fold to {}|^ , the default when a server does not say</li>
+ * <li>strict-rfc1459 - also []\ fold to {}| but ~ and ^ differ</li>
+ * </ul>
+ * Characters outside ASCII are folded with Character.toLowerCase().
+ *
+ * Folding is done with a precomputed table , comparing and hashing never allocate.
+ *
+ * @see ServerInformation#getCaseMapping()
+ */
+public final class CaseMapping
+{
+	public static final CaseMapping ASCII = new CaseMapping("ascii", "");
+	public static final CaseMapping RFC1459 = new CaseMapping("rfc1459", "[]\\~");
+	public static final CaseMapping STRICT_RFC1459 = new CaseMapping("strict-rfc1459", "[]\\");
+
+	private final String name;
+	private final char[] table = new char[128];
+
+	private CaseMapping(String name, String extra)
+	{
+		this.name = name;
+		for (char c = 0; c < 128; c++)
+		{
+			table[c] = c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+		}
+		/* [ \ ] ~ sit 32 below { | } ^ */
+		for (int i = 0; i < extra.length(); i++)
+		{
+			char c = extra.charAt(i);
+			table[c] = c == '~' ? '^' : (char) (c + 32);
+		}
+	}
+
+	/**
+	 * Gets the mapping for a CASEMAPPING value
+	 *
+	 * @param name value of CASEMAPPING , may be empty or null
+	 * @return the mapping , rfc1459 for unknown names
+	 */
+	public static CaseMapping forName(String name)
+	{
+		if (ASCII.name.equalsIgnoreCase(name)) return ASCII;
+		if (STRICT_RFC1459.name.equalsIgnoreCase(name)) return STRICT_RFC1459;
+		return RFC1459;
+	}
+
+	/**
+	 * @return name as used in CASEMAPPING
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Folds one character
+	 *
+	 * @param c
+	 * @return folded character
+	 */
+	public char fold(char c)
+	{
+		return c < 128 ? table[c] : Character.toLowerCase(c);
+	}
+
+	/**
+	 * Folds a String , the same instance is returned if it is already folded
+	 *
+	 * @param s
+	 * @return folded String
+	 */
+	public String fold(String s)
+	{
+		int length = s.length();
+		int i = 0;
+		while (i < length && fold(s.charAt(i)) == s.charAt(i)) i++;
+		if (i == length) return s;
+
+		char[] folded = new char[length];
+		s.getChars(0, length, folded, 0);
+		for (; i < length; i++)
+		{
+			folded[i] = fold(folded[i]);
+		}
+		return new String(folded);
+	}
+
+	/**
+	 * Tests if two names are the same under this mapping
+	 *
+	 * @param a
+	 * @param b
+	 * @return true if equal
+	 */
+	public boolean equals(CharSequence a, CharSequence b)
+	{
+		int length = a.length();
+		if (length != b.length()) return false;
+		for (int i = 0; i < length; i++)
+		{
+			char x = a.charAt(i), y = b.charAt(i);
+			if (x != y && fold(x) != fold(y)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compares the folded forms of two names
+	 *
+	 * @param a
+	 * @param b
+	 * @return less than 0 if a sorts first , 0 if equal , more than 0 if b sorts first
+	 */
+	public int compare(CharSequence a, CharSequence b)
+	{
+		int length = Math.min(a.length(), b.length());
+		for (int i = 0; i < length; i++)
+		{
+			char x = a.charAt(i), y = b.charAt(i);
+			if (x != y)
+			{
+				int diff = fold(x) - fold(y);
+				if (diff != 0) return diff;
+			}
+		}
+		return a.length() - b.length();
+	}
+
+	/**
+	 * Hash code of the folded form of a name
+	 *
+	 * @param s
+	 * @return hash , equal for names that are equal under this mapping
+	 */
+	public int hashCode(CharSequence s)
+	{
+		int h = 0;
+		for (int i = 0, length = s.length(); i < length; i++)
+		{
+			h = 31 * h + fold(s.charAt(i));
+		}
+		return h;
+	}
+
+	public String toString()
+	{
+		return name;
+	}
+}
@@ -1,11 +1,12 @@
 package jerklib;
 
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 import jerklib.ModeAdjustment.Action;
 import jerklib.events.JoinCompleteEvent;
@@ -29,11 +30,23 @@ import jerklib.events.TopicEvent;
  */
 public class Channel
 {
+	private static final int USER_MODE_BITS = 32;
+	private static final int CHANNEL_MODE_BITS = 'z' - 'A' + 1;
+
 	/* channel name */
 	private String name;
 	private Session session;
-	private Map<String, List<ModeAdjustment>> userMap;
-	private List<ModeAdjustment> channelModes = new ArrayList<ModeAdjustment>();
+	/* nicks compared by the CASEMAPPING of the server */
+	private final FoldedMap<Member> userMap;
+	/* nick prefix modes of the server , bit i of a Member is mode alphabet.charAt(i) */
+	private String alphabet;
+	/* Members that have +mode , one set per bit */
+	private final List<Set<Member>> membersByMode = new ArrayList<Set<Member>>();
+	/* same nicks sorted by prefix and name , rebuilt if the alphabet changes */
+	private SortedNickList nickList;
+	/* channel modes , bit c - 'A' for modes A-z */
+	private long channelPlus , channelMinus;
+	private final String[] channelArgs = new String[CHANNEL_MODE_BITS];
 	private TopicEvent topicEvent;
 
 	/**
@@ -44,37 +57,7 @@ public class Channel
 	 */
 	public Channel(String name, Session session)
 	{
-		/* create a map that will match exact and key to lowercase */
-		userMap = new HashMap<String, List<ModeAdjustment>>()
-		{
-			public List<ModeAdjustment> get(Object key)
-			{
-				List<ModeAdjustment> rList = super.get(key);
-				if(key != null && rList == null)
-				{
-					rList = super.get(key.toString().toLowerCase());
-				}
-				return rList;
-			}
-			
-			public List<ModeAdjustment> remove(Object key)
-			{
-				List<ModeAdjustment> rList =  super.remove(key);
-				if(key != null && rList == null)
-				{
-					rList = super.remove(key.toString().toLowerCase());
-				}
-				return rList;
-			}
-			
-			public boolean containsKey(Object key)
-			{
-				boolean b =  super.containsKey(key);
-				if(!b) b = super.containsKey(key.toString().toLowerCase());
-				return b;
-			}
-		};
-		
+		userMap = new FoldedMap<Member>(session == null ? CaseMapping.RFC1459 : session.getCaseMapping());
 		this.name = name;
 		this.session = session;
 	}
@@ -96,81 +79,155 @@ public class Channel
 	 * @param modes -
 	 *          list of ModeAdjustments
 	 */
-	void updateModes(List<ModeAdjustment> modes)
+	synchronized void updateModes(List<ModeAdjustment> modes)
 	{
-		ServerInformation info = session.getServerInformation();
-		List<String> nickModes = new ArrayList<String>(info.getNickPrefixMap().values());
-
+		checkAlphabet();
 		for (ModeAdjustment mode : modes)
 		{
-			if (nickModes.contains(String.valueOf(mode.getMode())) && userMap.containsKey(mode.getArgument()))
+			int bit = userModeBit(mode.getMode());
+			Member member = bit == -1 ? null : userMap.get(mode.getArgument());
+			if (member != null)
 			{
-				updateMode(mode, userMap.get(mode.getArgument()));
+				updateMode(mode.getAction(), bit, member);
 			}
 			/* filter out channel modes that apply to users that are not in prefix map */
 			/* like +b - this behviour might not be desired , time will tell */
 			else if (mode.getMode() != 'q' && mode.getMode() != 'b')
 			{
-				updateMode(mode, channelModes);
+				updateChannelMode(mode);
 			}
 		}
 	}
 
 	/**
-	 * If Action is MINUS and the same mode exists with a PLUS Action then just
-	 * remove the PLUS mode ModeAdjustment from the collection.
+	 * If Action is MINUS and the user has the mode with a PLUS Action then just
+	 * clear the PLUS bit.
 	 * 
-	 * If Action is MINUS and the same mode with PLUS does not exist then add the
-	 * MINUS mode to the ModeAdjustment collection
+	 * If Action is MINUS and the user does not have the mode with PLUS then set
+	 * the MINUS bit
 	 * 
-	 * if Action is PLUS and the same mode exists with a MINUS Action then remove
-	 * MINUS mode and add PLUS mode
+	 * If Action is PLUS then clear the MINUS bit and set the PLUS bit
 	 * 
-	 * If Action is PLUS and the same mode with MINUS does not exist then just add
-	 * PLUS mode to collection
+	 * @param action
+	 * @param bit bit of the mode
+	 * @param member
+	 */
+	private void updateMode(Action action, int bit, Member member)
+	{
+		int mask = 1 << bit;
+		if (action == Action.MINUS)
+		{
+			if ((member.plus & mask) != 0)
+			{
+				member.plus &= ~mask;
+				membersByMode.get(bit).remove(member);
+			}
+			else
+			{
+				member.minus |= mask;
+			}
+		}
+		else
+		{
+			member.minus &= ~mask;
+			if ((member.plus & mask) == 0)
+			{
+				member.plus |= mask;
+				membersByMode.get(bit).add(member);
+			}
+		}
+		nickList.put(member.nick, member.plus);
+	}
+
+	/**
+	 * Same as {@link #updateMode(Action, int, Member)} for a mode of the channel ,
+	 * the argument of the last adjustment is kept. Modes outside A-z are not tracked.
 	 * 
 	 * @param mode
 	 */
-	private void updateMode(ModeAdjustment mode, List<ModeAdjustment> modes)
+	private void updateChannelMode(ModeAdjustment mode)
 	{
-		int index = indexOfMode(mode.getMode(), modes);
+		int bit = mode.getMode() - 'A';
+		if (bit < 0 || bit >= CHANNEL_MODE_BITS) return;
 
+		long mask = 1L << bit;
 		if (mode.getAction() == Action.MINUS)
 		{
-			if (index != -1)
+			if ((channelPlus & mask) != 0)
 			{
-				ModeAdjustment ma = modes.remove(index);
-				if (ma.getAction() == Action.MINUS) modes.add(ma);
+				channelPlus &= ~mask;
+				channelArgs[bit] = null;
 			}
 			else
 			{
-				modes.add(mode);
+				channelMinus |= mask;
+				channelArgs[bit] = mode.getArgument();
 			}
 		}
 		else
 		{
-			if (index != -1) modes.remove(index);
-			modes.add(mode);
+			channelMinus &= ~mask;
+			channelPlus |= mask;
+			channelArgs[bit] = mode.getArgument();
 		}
 	}
 
 	/**
-	 * Finds index of a mode in a List of ModeAdjustments
-	 * 
-	 * @param mode
-	 *          mode to find
-	 * @param modes
-	 *          list to search
-	 * @return index or -1 if not found
+	 * Makes sure user mode bits follow the PREFIX the server sent ,
+	 * moving bits if PREFIX changed since they were set
 	 */
-	private int indexOfMode(char mode, List<ModeAdjustment> modes)
+	private void checkAlphabet()
 	{
-		for (int i = 0; i < modes.size(); i++)
+		ServerInformation info = session.getServerInformation();
+		String modes = info.getNickPrefixModes();
+		if (modes == alphabet) return;
+
+		String old = alphabet;
+		alphabet = modes;
+		nickList = new SortedNickList(info, session.getCaseMapping());
+		membersByMode.clear();
+		for (int i = 0; i < modes.length() && i < USER_MODE_BITS; i++)
 		{
-			ModeAdjustment ma = modes.get(i);
-			if (ma.getMode() == mode) return i;
+			membersByMode.add(new LinkedHashSet<Member>());
 		}
-		return -1;
+		if (old == null) return;
+
+		for (Member member : userMap.values())
+		{
+			member.plus = remap(member.plus, old);
+			member.minus = remap(member.minus, old);
+			for (int bit = 0; bit < membersByMode.size(); bit++)
+			{
+				if ((member.plus & (1 << bit)) != 0) membersByMode.get(bit).add(member);
+			}
+			nickList.put(member.nick, member.plus);
+		}
+	}
+
+	/**
+	 * @param bits user mode bits over the old alphabet
+	 * @param old
+	 * @return the same modes as bits over the current alphabet
+	 */
+	private int remap(int bits, String old)
+	{
+		int remapped = 0;
+		for (int i = 0; i < old.length() && i < USER_MODE_BITS; i++)
+		{
+			int bit = (bits & (1 << i)) == 0 ? -1 : userModeBit(old.charAt(i));
+			if (bit != -1) remapped |= 1 << bit;
+		}
+		return remapped;
+	}
+
+	/**
+	 * @param mode
+	 * @return bit of a nick prefix mode , -1 if the mode is not a nick prefix mode
+	 */
+	private int userModeBit(char mode)
+	{
+		int bit = alphabet.indexOf(mode);
+		return bit < USER_MODE_BITS ? bit : -1;
 	}
 
 	/**
@@ -180,16 +237,26 @@ public class Channel
 	 * @param nick
 	 * @return list of ModeAdjustments for user
 	 */
-	public List<ModeAdjustment> getUsersModes(String nick)
+	public synchronized List<ModeAdjustment> getUsersModes(String nick)
 	{
-		if (userMap.containsKey(nick))
-		{
-			return new ArrayList<ModeAdjustment>(userMap.get(nick));
-		}
-		else
+		List<ModeAdjustment> modes = new ArrayList<ModeAdjustment>();
+		Member member = userMap.get(nick);
+		if (member == null) return modes;
+
+		checkAlphabet();
+		for (int bit = 0; bit < membersByMode.size(); bit++)
 		{
-			return new ArrayList<ModeAdjustment>();
+			int mask = 1 << bit;
+			if ((member.plus & mask) != 0)
+			{
+				modes.add(new ModeAdjustment(Action.PLUS, alphabet.charAt(bit), member.nick));
+			}
+			else if ((member.minus & mask) != 0)
+			{
+				modes.add(new ModeAdjustment(Action.MINUS, alphabet.charAt(bit), member.nick));
+			}
 		}
+		return modes;
 	}
 
 	/**
@@ -203,15 +270,25 @@ public class Channel
 	 * @param mode
 	 * @return List of nicks with mode/action set
 	 */
-	public List<String> getNicksForMode(Action action , char mode)
+	public synchronized List<String> getNicksForMode(Action action , char mode)
 	{
 		List<String> nicks = new ArrayList<String>();
-		for (String nick : getNicks())
+		checkAlphabet();
+		int bit = userModeBit(mode);
+		if (bit == -1) return nicks;
+
+		if (action == Action.PLUS)
 		{
-			List<ModeAdjustment> modes = userMap.get(nick);
-			for (ModeAdjustment ma : modes)
+			for (Member member : membersByMode.get(bit))
 			{
-				if (ma.getMode() == mode && ma.getAction() == action) nicks.add(nick);
+				nicks.add(member.nick);
+			}
+		}
+		else
+		{
+			for (Member member : userMap.values())
+			{
+				if ((member.minus & (1 << bit)) != 0) nicks.add(member.nick);
 			}
 		}
 		return nicks;
@@ -224,9 +301,19 @@ public class Channel
 	 * 
 	 * @return List of ModeAdjustments for the Channel
 	 */
-	public List<ModeAdjustment> getChannelModes()
+	public synchronized List<ModeAdjustment> getChannelModes()
 	{
-		return new ArrayList<ModeAdjustment>(channelModes);
+		List<ModeAdjustment> modes = new ArrayList<ModeAdjustment>();
+		for (int bit = 0; bit < CHANNEL_MODE_BITS; bit++)
+		{
+			long mask = 1L << bit;
+			if (((channelPlus | channelMinus) & mask) == 0) continue;
+
+			Action action = (channelPlus & mask) != 0 ? Action.PLUS : Action.MINUS;
+			String arg = channelArgs[bit];
+			modes.add(new ModeAdjustment(action, (char) ('A' + bit), arg == null ? "" : arg));
+		}
+		return modes;
 	}
 
 	/**
@@ -325,30 +412,35 @@ public class Channel
 	/**
 	 * This method is for internal use only
 	 * 
-	 * @param nick to add
+	 * @param nick to add , may start with nick prefixes like @+
 	 */
 	public void addNick(String nick)
 	{
-		if (!userMap.containsKey(nick))
+		synchronized (this)
 		{
-
-			ServerInformation info = session.getServerInformation();
-			Map<String, String> nickPrefixMap = info.getNickPrefixMap();
-			List<ModeAdjustment> modes = new ArrayList<ModeAdjustment>();
-			for (String prefix : nickPrefixMap.keySet())
+			checkAlphabet();
+			String prefixes = session.getServerInformation().getNickPrefixChars();
+			int plus = 0 , start = 0;
+			for (; start < nick.length() - 1; start++)
 			{
-				if (nick.startsWith(prefix))
-				{
-					modes.add(new ModeAdjustment(Action.PLUS, nickPrefixMap.get(prefix).charAt(0), ""));
-				}
+				/* prefixes and alphabet are in the same order */
+				int bit = prefixes.indexOf(nick.charAt(start));
+				if (bit == -1) break;
+				if (bit < USER_MODE_BITS) plus |= 1 << bit;
 			}
-
-			if (!modes.isEmpty())
+			nick = nick.substring(start);
+			if (userMap.containsKey(nick)) return;
+
+			Member member = new Member(nick);
+			member.plus = plus;
+			userMap.put(nick, member);
+			nickList.put(nick, plus);
+			for (int bit = 0; bit < membersByMode.size(); bit++)
 			{
-				nick = nick.substring(1);
+				if ((plus & (1 << bit)) != 0) membersByMode.get(bit).add(member);
 			}
-			userMap.put(nick, modes);
 		}
+		session.nickAdded(this, nick);
 	}
 
 	/**
@@ -359,7 +451,49 @@ public class Channel
 	 */
 	boolean removeNick(String nick)
 	{
-		return userMap.remove(nick) != null;
+		synchronized (this)
+		{
+			Member member = userMap.remove(nick);
+			if (member == null) return false;
+			nickList.removeNick(nick);
+
+			for (int bit = 0; bit < membersByMode.size(); bit++)
+			{
+				if ((member.plus & (1 << bit)) != 0) membersByMode.get(bit).remove(member);
+			}
+		}
+		session.nickRemoved(this, nick);
+		return true;
+	}
+
+	/**
+	 * removes several nicks from the Channel nick list at once
+	 * 
+	 * @param nicks
+	 */
+	void removeNicks(List<String> nicks)
+	{
+		List<String> removed = new ArrayList<String>(nicks.size());
+		synchronized (this)
+		{
+			for (String nick : nicks)
+			{
+				Member member = userMap.remove(nick);
+				if (member == null) continue;
+				removed.add(nick);
+
+				for (int bit = 0; bit < membersByMode.size(); bit++)
+				{
+					if ((member.plus & (1 << bit)) != 0) membersByMode.get(bit).remove(member);
+				}
+			}
+			if (removed.isEmpty()) return;
+			nickList.removeNicks(removed);
+		}
+		for (String nick : removed)
+		{
+			session.nickRemoved(this, nick);
+		}
 	}
 
 	/**
@@ -368,35 +502,101 @@ public class Channel
 	 * @param oldNick
 	 * @param newNick
 	 */
-	void nickChanged(String oldNick, String newNick)
+	synchronized void nickChanged(String oldNick, String newNick)
 	{
-		List<ModeAdjustment> modes = userMap.remove(oldNick);
-		userMap.put(newNick, modes);
+		Member member = userMap.rename(oldNick, newNick);
+		if (member == null) return;
+		member.nick = newNick;
+		nickList.rename(oldNick, newNick);
 	}
 
 	/**
-	 * Gets a list of nicks for Channel.
-	 * The list returned has a case insenstive
-	 * indexOf() and contains()
+	 * Called when the server announces a CASEMAPPING
+	 * 
+	 * @param mapping
+	 */
+	synchronized void setCaseMapping(CaseMapping mapping)
+	{
+		userMap.setCaseMapping(mapping);
+		if (nickList != null) nickList.setCaseMapping(mapping);
+	}
+
+	/**
+	 * Gets a list of nicks for Channel , sorted by nick prefix then name.
+	 * The list returned has an indexOf() and contains()
+	 * that ignore case as the server's CASEMAPPING does.
+	 * It is a copy , safe to keep or read from any thread.
 	 * 
 	 * @return List of nicks
 	 */
 	public List<String> getNicks()
 	{
-		return new ArrayList<String>(userMap.keySet())
+		return getNickList();
+	}
+
+	/**
+	 * Gets a view of the nicks that does not copy them. It changes as nicks
+	 * join and leave , so only the io thread of the Session may iterate it.
+	 * 
+	 * @return unmodifiable view of the nick list
+	 */
+	List<String> getNickView()
+	{
+		return nickView;
+	}
+
+	/* getNickView() , reads whichever SortedNickList is current */
+	private final List<String> nickView = new AbstractList<String>()
+	{
+		public String get(int index)
 		{
-			public int indexOf(Object o)
+			synchronized (Channel.this)
 			{
-				if (o != null)
-				{
-					for (int i = 0; i < size(); i++)
-					{
-						if (get(i).equalsIgnoreCase(o.toString())) { return i; }
-					}
-				}
-				return -1;
+				checkAlphabet();
+				return nickList.get(index);
+			}
+		}
+
+		public int size()
+		{
+			synchronized (Channel.this)
+			{
+				checkAlphabet();
+				return nickList.size();
 			}
-		};
+		}
+
+		public int indexOf(Object o)
+		{
+			synchronized (Channel.this)
+			{
+				checkAlphabet();
+				return nickList.indexOf(o);
+			}
+		}
+
+		public int lastIndexOf(Object o)
+		{
+			return indexOf(o);
+		}
+
+		public boolean contains(Object o)
+		{
+			return indexOf(o) != -1;
+		}
+	};
+
+	/**
+	 * Gets a copy of the nick list sorted by nick prefix then name ,
+	 * the copy can be kept up to date from nick events
+	 * 
+	 * @see SortedNickList
+	 * @return sorted nick list
+	 */
+	public synchronized SortedNickList getNickList()
+	{
+		checkAlphabet();
+		return new SortedNickList(nickList);
 	}
 	
 	/**
@@ -492,6 +692,21 @@ public class Channel
 	{
 		return session;
 	}
+
+	/**
+	 * A nick in the Channel with its nick prefix modes as bits , set with
+	 * PLUS in plus and with a MINUS that did not follow a PLUS in minus
+	 */
+	private static class Member
+	{
+		String nick;
+		int plus , minus;
+
+		Member(String nick)
+		{
+			this.nick = nick;
+		}
+	}
 	
 	/* (non-Javadoc)
 	 * @see java.lang.Object#equals(java.lang.Object)
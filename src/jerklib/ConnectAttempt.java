@@ -0,0 +1,165 @@
+package jerklib;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One connection attempt of a Session , racing the addresses of its host.
+ *
+ * Addresses are tried in RFC 8305 order , alternating between IPv6 and IPv4
+ * starting with the family the resolver listed first. A new address is tried
+ * every {@link #ATTEMPT_DELAY} ms , or right away when one fails , and the first
+ * channel that finishes connecting wins. Driven by the io thread , a Session
+ * that is closed may abort it from another thread.
+ */
+class ConnectAttempt
+{
+	/* RFC 8305 recommended connection attempt delay */
+	static final long ATTEMPT_DELAY = 250;
+
+	final Session session;
+	private InetAddress[] addresses;
+	private int next;
+	private final List<SelectionKey> keys = new ArrayList<SelectionKey>(2);
+	private TimerWheel.Timeout stagger;
+	private IOException lastError;
+
+	ConnectAttempt(Session session)
+	{
+		this.session = session;
+	}
+
+	/**
+	 * @param resolved addresses in the order the resolver returned them
+	 */
+	void setAddresses(InetAddress[] resolved)
+	{
+		addresses = interleave(resolved);
+		next = 0;
+	}
+
+	/**
+	 * @return true if there are addresses left to try
+	 */
+	boolean hasNext()
+	{
+		return addresses != null && next < addresses.length;
+	}
+
+	/**
+	 * @return next address to try
+	 */
+	InetAddress nextAddress()
+	{
+		return addresses[next++];
+	}
+
+	/**
+	 * @param key key of a channel that is connecting
+	 */
+	synchronized void connecting(SelectionKey key)
+	{
+		keys.add(key);
+	}
+
+	/**
+	 * A channel failed to connect
+	 *
+	 * @param key key of the channel , null if it never got one
+	 * @param e why it failed
+	 */
+	synchronized void failed(SelectionKey key, IOException e)
+	{
+		lastError = e;
+		if (key != null)
+		{
+			keys.remove(key);
+			close(key);
+		}
+	}
+
+	/**
+	 * @return true if a channel is still connecting
+	 */
+	synchronized boolean isConnecting()
+	{
+		return !keys.isEmpty();
+	}
+
+	/**
+	 * @return why the last channel failed , may be null
+	 */
+	IOException getLastError()
+	{
+		return lastError;
+	}
+
+	/**
+	 * Replaces the timer that starts the next address
+	 */
+	void setStagger(TimerWheel.Timeout timeout)
+	{
+		if (stagger != null) stagger.cancel();
+		stagger = timeout;
+	}
+
+	/**
+	 * Closes every channel except the winner and stops trying addresses
+	 *
+	 * @param winner key to keep , null to close all
+	 */
+	synchronized void finish(SelectionKey winner)
+	{
+		setStagger(null);
+		next = addresses == null ? 0 : addresses.length;
+		for (SelectionKey key : keys)
+		{
+			if (key != winner) close(key);
+		}
+		keys.clear();
+	}
+
+	private static void close(SelectionKey key)
+	{
+		key.cancel();
+		try
+		{
+			key.channel().close();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
+	/**
+	 * Orders addresses by alternating address family , keeping the
+	 * resolver's order within each family
+	 *
+	 * @param addresses
+	 * @return interleaved copy
+	 */
+	static InetAddress[] interleave(InetAddress[] addresses)
+	{
+		List<InetAddress> first = new ArrayList<InetAddress>();
+		List<InetAddress> second = new ArrayList<InetAddress>();
+		boolean firstIs6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+		for (InetAddress address : addresses)
+		{
+			if ((address instanceof Inet6Address) == firstIs6) first.add(address);
+			else second.add(address);
+		}
+
+		InetAddress[] ordered = new InetAddress[addresses.length];
+		int i = 0;
+		for (int j = 0; j < first.size() || j < second.size(); j++)
+		{
+			if (j < first.size()) ordered[i++] = first.get(j);
+			if (j < second.size()) ordered[i++] = second.get(j);
+		}
+		return ordered;
+	}
+}
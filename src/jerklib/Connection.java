@@ -2,11 +2,15 @@ package jerklib;
 
 
 import java.io.IOException;
+import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.logging.Logger;
 
 import jerklib.Session.State;
@@ -31,17 +35,39 @@ class Connection
 	/* SocketChannel this connection will use for reading/writing */
 	private final SocketChannel socChannel;
 
-	/* A Buffer for write request */
-	final List<WriteRequest> writeRequests = Collections.synchronizedList(new ArrayList<WriteRequest>());
+	/* key socChannel is registered with in the ConnectionManager's selector */
+	private SelectionKey selectionKey;
+
+	/* queued write requests , shared with the Session so it outlives reconnects */
+	private WriteScheduler scheduler()
+	{
+		return session.getWriteScheduler();
+	}
 
 	/* ByteBuffer for readinging into */
 	private final ByteBuffer readBuffer = ByteBuffer.allocate(2048);
 
-	/* indicates if an event fragment is waiting */
-	private boolean gotFragment;
+	/* buffers read per readiness , so a flooded connection can not starve the others on its io thread */
+	private static final int MAX_READS = 16;
+
+	/* splits reads into lines , keeps fragments between reads */
+	private final LineFramer framer;
+
+	/* most lines written with one gathering write */
+	private static final int MAX_GATHER = 16;
+
+	/* pooled buffers for outgoing lines and the requests they hold ,
+	 * lines outHead to outHead + outCount have not been fully written */
+	private final ByteBuffer[] outBuffers = new ByteBuffer[MAX_GATHER];
+	private final WriteRequest[] outRequests = new WriteRequest[MAX_GATHER];
+	private int outHead, outCount;
 
-	/* buffer for event fragments */
-	private final StringBuffer stringBuff = new StringBuffer();
+	/* encodes outgoing lines in the Profile's charset */
+	private final CharsetEncoder encoder;
+
+	/* cuts messages to fit in a line , never less text than this per line */
+	private final MessageSplitter splitter;
+	private static final int MIN_MESSAGE_BYTES = 64;
 
 	/* actual hostname connected to */
 	private String actualHostName;
@@ -49,6 +75,10 @@ class Connection
 	/* Session Connection belongs to */
 	private final Session session;
 
+	/* counters of the Session , and whether flood control is holding lines back */
+	private final SessionMetrics metrics;
+	private boolean throttled;
+
 	/**
 	 * @param manager
 	 * @param socChannel - socket channel to read from
@@ -59,6 +89,45 @@ class Connection
 		this.manager = manager;
 		this.socChannel = socChannel;
 		this.session = session;
+		this.metrics = session.getLiveMetrics();
+		Charset charset = charsetFor(getProfile());
+		this.encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.splitter = new MessageSplitter(charset);
+		for (int i = 0; i < MAX_GATHER; i++)
+		{
+			outBuffers[i] = ByteBuffer.allocate(512);
+		}
+		this.framer = new LineFramer(charset)
+		{
+			void lineReceived(String line)
+			{
+				metrics.lineRead();
+				Connection.this.manager.addToEventQueue(new IRCEvent(line, Connection.this.session, Type.DEFAULT));
+			}
+		};
+		// nothing queued for an old connection should go to a new one
+		scheduler().clear();
+	}
+
+	/**
+	 * Looks up the charset a Profile asks for , UTF-8 if it is unknown
+	 * 
+	 * @param profile
+	 * @return charset
+	 */
+	private Charset charsetFor(Profile profile)
+	{
+		try
+		{
+			return Charset.forName(profile.getEncoding());
+		}
+		catch (IllegalArgumentException e)
+		{
+			log.warning("Unsupported encoding " + profile.getEncoding() + " , using UTF-8");
+			return Charset.forName("UTF-8");
+		}
 	}
 
 	/**
@@ -71,6 +140,14 @@ class Connection
 		return session.getRequestedConnection().getProfile();
 	}
 
+	/**
+	 * @return socket of the channel , for its addresses and ports
+	 */
+	Socket getSocket()
+	{
+		return socChannel.socket();
+	}
+
 	/**
 	 * Sets the actual host name of this Connection.
 	 * @param name
@@ -90,6 +167,16 @@ class Connection
 		return actualHostName;
 	}
 
+	/**
+	 * Sets the key this Connection's channel is registered with
+	 * 
+	 * @param key
+	 */
+	void setSelectionKey(SelectionKey key)
+	{
+		selectionKey = key;
+	}
+
 	/**
 	 * Adds a listener to be notified of all data written via this Connection
 	 * 
@@ -97,7 +184,50 @@ class Connection
 	 */
 	void addWriteRequest(WriteRequest request)
 	{
-		writeRequests.add(request);
+		scheduler().add(request);
+		session.getShard().wakeup();
+	}
+
+	/**
+	 * Gets how long until doWrites() is allowed to write again.
+	 * 
+	 * Counts a write stall when flood control starts holding lines back.
+	 * 
+	 * @return milliseconds until next write , 0 if a write can happen now
+	 * or -1 if nothing is waiting to be written
+	 */
+	long getWriteDelay()
+	{
+		if (outCount > 0) return 0;
+		long delay = scheduler().getDelay(System.currentTimeMillis());
+		if (delay > 0 && !throttled) metrics.writeStalled();
+		throttled = delay > 0;
+		return delay;
+	}
+
+	/**
+	 * Turns write readiness notification on or off for this Connection.
+	 * Leaving it on with nothing to write would make select() return
+	 * immediately forever.
+	 * 
+	 * @param interested
+	 */
+	void setWriteInterest(boolean interested)
+	{
+		if (selectionKey == null || !selectionKey.isValid()) return;
+		try
+		{
+			int ops = selectionKey.interestOps();
+			int newOps = interested ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE;
+			if (ops != newOps)
+			{
+				selectionKey.interestOps(newOps);
+			}
+		}
+		catch (CancelledKeyException e)
+		{
+			// channel closed since isValid() , nothing to do
+		}
 	}
 
 	/**
@@ -112,8 +242,10 @@ class Connection
 	}
 	
 	/**
-	 * Reads from connection and creates default IRCEvents that 
-	 * are added to the ConnectionManager for relaying
+	 * Reads from connection until no more data is available , or MAX_READS
+	 * buffers have been read , and creates default IRCEvents that are added
+	 * to the ConnectionManager for relaying. Anything left is read the next
+	 * time the selector reports the channel readable.
 	 * 
 	 * @return bytes read
 	 */
@@ -126,150 +258,237 @@ class Connection
 			return -1;
 		}
 
-		readBuffer.clear();
-
-		int numRead = 0;
+		int total = 0;
 
-		try
+		for (int reads = 0; reads < MAX_READS; reads++)
 		{
-			numRead = socChannel.read(readBuffer);
-		}
-		catch (Exception e)
-		{
-			e.printStackTrace();
-			session.disconnected(e);
+			readBuffer.clear();
+
+			int numRead = 0;
+
+			try
+			{
+				numRead = socChannel.read(readBuffer);
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+				session.disconnected(e);
+			}
+
+			if (numRead == -1)
+			{
+				session.disconnected(new Exception("Numb read -1"));
+			}
+
+			if (session.getState() == State.DISCONNECTED || numRead <= 0) { return total; }
+
+			readBuffer.flip();
+
+			metrics.bytesRead(numRead);
+			framer.frame(readBuffer);
+
+			total += numRead;
 		}
+		return total;
+	}
 
-		if (numRead == -1)
+	
+	
+	/**
+	 * Writes requests the scheduler allows to the server. Lines are encoded into
+	 * pooled buffers and written with one gathering write. If the socket does not
+	 * take everything the rest is kept and written the next time it is writable ,
+	 * no new requests are taken until then.
+	 * 
+	 * @return number bytes written
+	 */
+	int doWrites()
+	{
+		if (outCount == 0)
 		{
-			session.disconnected(new Exception("Numb read -1"));
+			fillOutBuffers();
 		}
 
-		if (session.getState() == State.DISCONNECTED || numRead <= 0) { return 0; }
+		long amount = 0;
+		while (outCount > 0)
+		{
+			try
+			{
+				amount += socChannel.write(outBuffers, outHead, outCount);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				session.disconnected(e);
+			}
+			
+			if (session.getState() == State.DISCONNECTED) { return (int) amount; }
 
-		readBuffer.flip();
+			// only lines that went out whole are reported
+			long now = System.nanoTime();
+			while (outCount > 0 && !outBuffers[outHead].hasRemaining())
+			{
+				WriteRequest req = outRequests[outHead];
+				metrics.lineWritten(req.queuedAt, now);
+				outRequests[outHead] = null;
+				outHead++;
+				outCount--;
+				fireWriteEvent(req);
+			}
 
-		String tmpStr = new String(readBuffer.array(), 0, numRead);
+			if (outCount > 0)
+			{
+				// socket is full , wait for OP_WRITE
+				break;
+			}
 
-		// read did not contain a \r\n
-		if (tmpStr.indexOf("\r\n") == -1)
+			fillOutBuffers();
+		}
+		
+		metrics.bytesWritten(amount);
+		return (int) amount;
+	}
+	
+	/**
+	 * Takes as many requests as the scheduler allows , up to MAX_GATHER , 
+	 * and encodes them into the out buffers.
+	 */
+	private void fillOutBuffers()
+	{
+		outHead = 0;
+		outCount = 0;
+		
+		long now = System.currentTimeMillis();
+		while (outCount < MAX_GATHER)
 		{
-			// append whole thing to buffer and set fragment flag
-			stringBuff.append(tmpStr);
-			gotFragment = true;
+			WriteRequest req = scheduler().next(now);
+			if (req == null) break;
 
-			return numRead;
+			req = fit(req);
+			encode(format(req), outCount);
+			outRequests[outCount] = req;
+			outCount++;
 		}
-
-		// this read had a \r\n in it
-
-		if (gotFragment)
+	}
+	
+	/**
+	 * Encodes a line into an out buffer , growing the buffer if the line does not fit
+	 * 
+	 * @param data line to encode
+	 * @param slot index of the out buffer
+	 */
+	private void encode(String data, int slot)
+	{
+		int maxBytes = (int) Math.ceil(data.length() * (double) encoder.maxBytesPerChar());
+		ByteBuffer buffer = outBuffers[slot];
+		if (buffer.capacity() < maxBytes)
 		{
-			// prepend fragment to front of current message
-			tmpStr = stringBuff.toString() + tmpStr;
-			stringBuff.delete(0, stringBuff.length());
-			gotFragment = false;
+			buffer = ByteBuffer.allocate(maxBytes);
+			outBuffers[slot] = buffer;
 		}
-
-		String[] strSplit = tmpStr.split("\r\n");
-
-		for (int i = 0; i < (strSplit.length - 1); i++)
+		buffer.clear();
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(data), buffer, true);
+		encoder.flush(buffer);
+		buffer.flip();
+	}
+	
+	/**
+	 * Cuts a channel or private message down to what fits in one line and
+	 * puts the rest back at the head of the scheduler.
+	 * 
+	 * @param req
+	 * @return request to write now
+	 */
+	private WriteRequest fit(WriteRequest req)
+	{
+		String target;
+		if (req.getType() == WriteRequest.Type.CHANNEL_MSG)
 		{
-			manager.addToEventQueue(new IRCEvent(strSplit[i],session,Type.DEFAULT));
+			target = req.getChannel().getName();
 		}
-
-		String last = strSplit[strSplit.length - 1];
-
-		if (!tmpStr.endsWith("\r\n"))
+		else if (req.getType() == WriteRequest.Type.PRIVATE_MSG)
 		{
-			// since string did not end with \r\n we need to
-			// append the last element in strSplit to a stringbuffer
-			// for next read and set flag to indicate we have a fragment waiting
-			stringBuff.append(last);
-			gotFragment = true;
+			target = req.getNick();
 		}
 		else
 		{
-			manager.addToEventQueue(new IRCEvent(last , session , Type.DEFAULT));
+			return req;
 		}
 
-		return numRead;
+		String[] pieces = splitter.split(req.getMessage(), messageBudget(target));
+		if (pieces[1] == null)
+		{
+			return req;
+		}
+		scheduler().addFirst(withMessage(req, pieces[1]));
+		return withMessage(req, pieces[0]);
 	}
 
-	
-	
 	/**
-	 * Writes all requests in queue to server
-	 * 
-	 * @return number bytes written
-	 */
-	long lastWrite = System.currentTimeMillis();
-	int bursts=0;
-	int maxBurst = 5;
-	long nextWrite = -1;
-	/*
-	 *  if lastwrite was less than a second ago:
-	 *  	if burst == limit return;
-	 *  	else burst++; write packet; recordtime;
-	 *  else
-	 *  	burst = 0;
-	 *  	write packet; record time;
-	 * 
+	 * Bytes of message text that fit in a PRIVMSG to target , after the server
+	 * adds :nick!user@host in front of it for the people receiving it
 	 * 
+	 * @param target channel or nick
+	 * @return byte budget
 	 */
-
-	int doWrites()
+	private int messageBudget(String target)
 	{
-		if(writeRequests.isEmpty())
+		int userHostBytes;
+		String userHost = session.getUserHost();
+		if (userHost != null)
+		{
+			userHostBytes = splitter.byteLength(userHost);
+		}
+		else
 		{
-			return 0;
+			// assume the longest the server allows , ~ counts as part of the user
+			ServerInformation info = session.getServerInformation();
+			int userLength = info.getMaxUserLength() > 0 ? info.getMaxUserLength() + 1 : 11;
+			int hostLength = info.getMaxHostLength() > 0 ? info.getMaxHostLength() : 63;
+			userHostBytes = userLength + 1 + hostLength;
 		}
 
-		WriteRequest req = null;
-		if(nextWrite > System.currentTimeMillis()) return 0;
-		if(System.currentTimeMillis() - lastWrite < 3000)
+		int overhead = splitter.byteLength(":" + session.getNick() + "!") + userHostBytes
+				+ splitter.byteLength(" PRIVMSG " + target + " :") + 2;
+		return Math.max(MessageSplitter.MAX_LINE_BYTES - overhead, MIN_MESSAGE_BYTES);
+	}
+
+	/**
+	 * Copy of a channel or private message request with other text
+	 */
+	private WriteRequest withMessage(WriteRequest req, String message)
+	{
+		WriteRequest copy;
+		if (req.getType() == WriteRequest.Type.CHANNEL_MSG)
 		{
-			if(bursts == maxBurst)
-				{
-					nextWrite = System.currentTimeMillis() + 8000;
-					bursts = 0;
-					return 0;
-				}
-			bursts++;
+			copy = new WriteRequest(message, req.getChannel(), req.getSession());
 		}
-		else{
-			//bursts = Math.max(bursts-- , 0);
-			bursts = 0;
-			lastWrite = System.currentTimeMillis();
+		else
+		{
+			copy = new WriteRequest(message, req.getSession(), req.getNick());
 		}
-		
-		req = writeRequests.remove(0);
-		
-		
+		copy.queuedAt = req.queuedAt;
+		return copy;
+	}
+	
+	/**
+	 * Turns a request into the line sent to the server
+	 * 
+	 * @param req
+	 * @return line ending with CRLF
+	 */
+	private String format(WriteRequest req)
+	{
 		String data;
 		if(req.getType() == WriteRequest.Type.CHANNEL_MSG)
 		{
-			if(req.getMessage().length() > 100)
-			{
-				writeRequests.add(0, new WriteRequest(req.getMessage().substring(100) , req.getChannel() , req.getSession()));
-				data = "PRIVMSG " + req.getChannel().getName() + " :" + req.getMessage().substring(0,100) + "\r\n";
-			}
-			else
-			{
-				data = "PRIVMSG " + req.getChannel().getName() + " :" + req.getMessage() + "\r\n";
-			}
+			data = "PRIVMSG " + req.getChannel().getName() + " :" + req.getMessage() + "\r\n";
 		}
 		else if(req.getType() == WriteRequest.Type.PRIVATE_MSG)
 		{
-			if(req.getMessage().length() > 255)
-			{
-				writeRequests.add(0, new WriteRequest(req.getMessage().substring(100) , req.getSession() , req.getNick()));
-				data = "PRIVMSG " + req.getNick() + " :" + req.getMessage().substring(0,100) + "\r\n";
-			}
-			else
-			{
-				data = "PRIVMSG " + req.getNick() + " :" + req.getMessage() + "\r\n";
-			}
+			data = "PRIVMSG " + req.getNick() + " :" + req.getMessage() + "\r\n";
 		}
 		else
 		{
@@ -279,33 +498,7 @@ class Connection
 				data += "\r\n";
 			}
 		}
-		
-		byte[] dataArray = data.getBytes();
-		ByteBuffer buff = ByteBuffer.allocate(dataArray.length);
-		buff.put(dataArray);
-		buff.flip();
-//		System.out.println("NERTS3-3");
-		int amount = 0;
-		try
-		{
-//			System.out.println("NERTS3-3.0");
-			amount = socChannel.write(buff);
-//			System.out.println("NERTS3-3.1");
-		}
-		catch (IOException e)
-		{
-			e.printStackTrace();
-//			System.out.println("NERTS3-3.2");
-			session.disconnected(e);
-		}
-//		System.out.println("NERTS3-4");
-		if (session.getState() == State.DISCONNECTED) { return amount; }
-
-		fireWriteEvent(req);
-		
-		System.out.println("Wrote " + amount + " " + req.getType() + " " + bursts);
-		
-		return amount;
+		return data;
 	}
 	
 	
@@ -371,7 +564,7 @@ class Connection
 	 */
 	void ping()
 	{
-		writeRequests.add(new WriteRequest("PING " + actualHostName + "\r\n", session));
+		scheduler().add(new WriteRequest("PING " + actualHostName + "\r\n", session));
 		session.pingSent();
 	}
 
@@ -384,7 +577,7 @@ class Connection
 	{
 		session.gotResponse();
 		String data = event.getRawEventData().substring(event.getRawEventData().lastIndexOf(":") + 1);
-		writeRequests.add(new WriteRequest("PONG " + data + "\r\n", session));
+		scheduler().add(new WriteRequest("PONG " + data + "\r\n", session));
 	}
 
 	/**
@@ -401,14 +594,42 @@ class Connection
 	 * @param quitMessage
 	 */
 	void quit(String quitMessage)
+	{
+		if (quitMessage == null) quitMessage = "";
+		WriteRequest request = new WriteRequest("QUIT :" + quitMessage + "\r\n", session);
+		// ahead of anything else so the one write below sends it
+		scheduler().addFirst(request);
+
+		IoShard shard = session.getShard();
+		if (shard.isShardThread() || !shard.isRunning())
+		{
+			close();
+			return;
+		}
+
+		/* the out buffers belong to the io thread , let it write the QUIT and close */
+		TimerWheel.Timeout timeout = shard.getTimers().schedule(new Runnable()
+		{
+			public void run()
+			{
+				close();
+			}
+		}, 0, System.currentTimeMillis());
+		shard.wakeup();
+
+		// the thread stopped before it got to it
+		if (!shard.isRunning() && timeout.cancel()) close();
+	}
+
+	/**
+	 * Writes what may be sent and closes the socket , only called on the io
+	 * thread or after it stopped
+	 */
+	private void close()
 	{
 		try
 		{
-			if (quitMessage == null) quitMessage = "";
-			WriteRequest request = new WriteRequest("QUIT :" + quitMessage + "\r\n", session);
-			writeRequests.add(request);
 //			System.out.println("NERTS2-4");
-			// clear out write queue
 			if(socChannel.isConnected())
 				doWrites();
 //			System.out.println("NERTS2-5");
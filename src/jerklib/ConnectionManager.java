@@ -2,10 +2,11 @@ package jerklib;
 
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.channels.CancelledKeyException;
+import java.net.Socket;
+import java.net.UnknownHostException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.util.List;
@@ -13,23 +14,28 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Collections;
 import java.util.Map;
-import java.util.Timer;
-import java.util.Iterator;
-import java.util.TimerTask;
-import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jerklib.Session.State;
+import jerklib.events.BatchEvent;
 import jerklib.events.ErrorEvent;
 import jerklib.events.GenericErrorEvent;
 import jerklib.events.IRCEvent;
-import jerklib.events.UnresolvedHostnameErrorEvent;
 import jerklib.events.IRCEvent.Type;
+import jerklib.events.ReconnectEvent;
+import jerklib.events.UnresolvedHostnameErrorEvent;
 import jerklib.listeners.IRCEventListener;
+import jerklib.listeners.MetricsListener;
 import jerklib.listeners.WriteRequestListener;
 import jerklib.parsers.DefaultInternalEventParser;
 import jerklib.parsers.InternalEventParser;
-import jerklib.tasks.Task;
-import jerklib.util.IdentServer;
 
 /**
  * This class is used to control/store Sessions/Connections.
@@ -40,56 +46,86 @@ import jerklib.util.IdentServer;
  */
 public class ConnectionManager
 {
-	/* maps to index sessions by name and socketchannel */
+	/* map to index sessions by name , the session of a socketchannel is attached to its key */
 	final Map<String, Session> sessionMap = Collections.synchronizedMap(new HashMap<String, Session>());
-	final Map<SocketChannel, Session> socChanMap = Collections.synchronizedMap(new HashMap<SocketChannel, Session>());
 
 	/* event listener lists */
 	private final List<WriteRequestListener> writeListeners = Collections.synchronizedList(new ArrayList<WriteRequestListener>(1));
 
-	/* event queues */
-	private final List<IRCEvent> eventQueue = new ArrayList<IRCEvent>();
-	private final List<IRCEvent> relayQueue = new ArrayList<IRCEvent>();
-	private final List<WriteRequest> requestForWriteListenerEventQueue = new ArrayList<WriteRequest>();
-
 	/* internal event parser */
 	// private InternalEventParser parser = new InternalEventParserImpl(this);
 	private IRCEventListener internalEventHandler = new DefaultInternalEventHandler(this);
 	private InternalEventParser internalEventParser = new DefaultInternalEventParser();
 
-	/* main loop timer */
-	private Timer loopTimer;
+	/* threads that do IO/Parsing/Checking-Making Connections , each with its own selector */
+	private IoShard[] shards = new IoShard[0];
+
+	/* relays events to listeners , each Session relays in order on it */
+	private final ExecutorService dispatchExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r)
+		{
+			return new Thread(r, "jerklib-dispatch-" + count.incrementAndGet());
+		}
+	});
+
+
+	/* liveness and reconnect settings , all in milliseconds */
+	private volatile long pingInterval = 200000;
+	private volatile long pingTimeout = 100000;
+	private volatile long connectTimeout = 60000;
+	private volatile long reconnectDelay = 5000;
+	private volatile long maxReconnectDelay = 300000;
+	private volatile double reconnectJitter = 0.25;
+	private final Random random = new Random();
+
+	/* host name lookups and the connects racing their addresses */
+	private final Resolver resolver = new Resolver();
+	private final Map<Session, ConnectAttempt> attempts = new ConcurrentHashMap<Session, ConnectAttempt>();
+
+	/* listeners handed metrics at an interval , and their timers */
+	private final Map<MetricsListener, MetricsPush> metricsListeners = new ConcurrentHashMap<MetricsListener, MetricsPush>();
 
-	/* event dispatch timer */
-	private Timer dispatchTimer;
+	/* answers ident queries , started with the first connection */
+	private int identPort = 113;
+	private IdentResponder ident;
 
 	/* default user profile to use for new connections */
 	private Profile defaultProfile;
 
-	/* NIO Selector */
-	private Selector selector;
-
 	/**
 	 * Takes a profile to use as default profile for new
-	 * Connections
+	 * Connections. Sessions are spread over one io thread per processor.
 	 * 
 	 * @param defaultProfile default user profile
 	 * @see Profile
 	 */
 	public ConnectionManager(Profile defaultProfile)
+	{
+		this(defaultProfile, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Takes a profile to use as default profile for new
+	 * Connections and the number of io threads to spread Sessions over.
+	 * Each io thread has its own Selector , both are only opened once a
+	 * Session is put on it.
+	 * 
+	 * @param defaultProfile default user profile
+	 * @param ioThreads number of io threads , at least 1
+	 * @see Profile
+	 */
+	public ConnectionManager(Profile defaultProfile, int ioThreads)
 	{
 		this.defaultProfile = defaultProfile;
 
-		try
+		shards = new IoShard[Math.max(ioThreads, 1)];
+		for (int i = 0; i < shards.length; i++)
 		{
-			selector = Selector.open();
+			shards[i] = new IoShard(this, i);
 		}
-		catch (IOException e)
-		{
-			e.printStackTrace();
-		}
-
-		startMainLoop();
 	}
 
 	/**
@@ -123,6 +159,86 @@ public class ConnectionManager
 		return reconTries;
 	}
 	
+	/**
+	 * Sets how long a connection may go without a PING or PONG from
+	 * the server before it is pinged. Defaults to 200 seconds.
+	 * 
+	 * @param millis
+	 */
+	public void setPingInterval(long millis)
+	{
+		pingInterval = millis;
+	}
+	
+	/**
+	 * Sets how long to wait for the server to answer a ping before the
+	 * connection is dropped and a reconnect is scheduled. Defaults to 100 seconds.
+	 * 
+	 * @param millis
+	 */
+	public void setPingTimeout(long millis)
+	{
+		pingTimeout = millis;
+	}
+	
+	/**
+	 * Sets how long connecting and registering with a server may take
+	 * before the attempt is given up. Defaults to 60 seconds.
+	 * 
+	 * @param millis
+	 */
+	public void setConnectTimeout(long millis)
+	{
+		connectTimeout = millis;
+	}
+	
+	/**
+	 * Sets the backoff used between reconnect attempts. The delay starts at initialDelay
+	 * and doubles with every failed attempt up to maxDelay , then up to jitter of it
+	 * is randomly taken off so Sessions that dropped together do not reconnect together.
+	 * Defaults to 5 seconds , 5 minutes and 0.25.
+	 * 
+	 * @param initialDelay delay before the first reconnect in milliseconds
+	 * @param maxDelay longest delay in milliseconds
+	 * @param jitter fraction of the delay to randomize , 0 to 1
+	 */
+	public void setReconnectBackoff(long initialDelay, long maxDelay, double jitter)
+	{
+		if (initialDelay < 0 || maxDelay < initialDelay || jitter < 0 || jitter > 1)
+		{
+			throw new IllegalArgumentException("Bad reconnect backoff " + initialDelay + " , " + maxDelay + " , " + jitter);
+		}
+		reconnectDelay = initialDelay;
+		maxReconnectDelay = maxDelay;
+		reconnectJitter = jitter;
+	}
+	
+	/**
+	 * Sets the port ident queries are answered on. Servers ask on 113 ,
+	 * which Android and most systems only let root bind , so another port
+	 * is only useful for testing or behind a port forward. If the port can
+	 * not be bound ident is left off. Defaults to 113.
+	 * 
+	 * @param port port to listen on , 0 or less to turn ident off
+	 */
+	public synchronized void setIdentPort(int port)
+	{
+		if (port == identPort) return;
+		identPort = port;
+		stopIdent();
+		if (!sessionMap.isEmpty()) startIdent();
+	}
+	
+	/**
+	 * Gets the port ident queries are answered on
+	 * 
+	 * @return port , -1 if ident is off or the port could not be bound
+	 */
+	public synchronized int getIdentPort()
+	{
+		return ident == null ? -1 : ident.getLocalPort();
+	}
+	
 	/**
 	 * get a list of Sessions
 	 * 
@@ -144,6 +260,68 @@ public class ConnectionManager
 		return sessionMap.get(name);
 	}
 
+	/**
+	 * Gets a snapshot of the counters of each io thread
+	 * 
+	 * @return one ShardMetrics per io thread
+	 */
+	public List<ShardMetrics> getShardMetrics()
+	{
+		List<ShardMetrics> metrics = new ArrayList<ShardMetrics>(shards.length);
+		for (IoShard shard : shards)
+		{
+			metrics.add(shard.getMetrics());
+		}
+		return Collections.unmodifiableList(metrics);
+	}
+
+	/**
+	 * Gets a copy of the counters and latency histograms of each Session
+	 * 
+	 * @return one SessionMetrics per Session
+	 * @see Session#getMetrics()
+	 */
+	public List<SessionMetrics> getSessionMetrics()
+	{
+		List<Session> sessions = getSessions();
+		List<SessionMetrics> metrics = new ArrayList<SessionMetrics>(sessions.size());
+		for (Session session : sessions)
+		{
+			metrics.add(session.getMetrics());
+		}
+		return Collections.unmodifiableList(metrics);
+	}
+
+	/**
+	 * Adds a listener to be handed the Session and io thread metrics every
+	 * interval , on the thread listeners are notified on. Adding a listener
+	 * again changes its interval.
+	 * 
+	 * @param listener
+	 * @param intervalMillis milliseconds between updates
+	 */
+	public void addMetricsListener(MetricsListener listener, long intervalMillis)
+	{
+		if (intervalMillis <= 0) throw new IllegalArgumentException("Bad metrics interval " + intervalMillis);
+		removeMetricsListener(listener);
+		if (shards.length == 0) return;
+
+		MetricsPush push = new MetricsPush(listener, intervalMillis);
+		metricsListeners.put(listener, push);
+		push.schedule();
+	}
+
+	/**
+	 * Stops handing metrics to a listener
+	 * 
+	 * @param listener
+	 */
+	public void removeMetricsListener(MetricsListener listener)
+	{
+		MetricsPush push = metricsListeners.remove(listener);
+		if (push != null) push.cancel();
+	}
+
 	/**
 	 * Adds a listener to be notified of all writes
 	 * 
@@ -199,11 +377,15 @@ public class ConnectionManager
 	{
 		RequestedConnection rCon = new RequestedConnection(hostName, port, profile);
 
-		Session session = new Session(rCon , this);
+		Session session = new Session(rCon , this , leastLoadedShard());
 		session.setInternalParser(internalEventParser);
 		sessionMap.put(hostName, session);
+		session.getShard().add(session);
+		
+		startIdent();
 		
-		new IdentServer(defaultProfile.getName());
+		/* let the io thread start connecting right away */
+		scheduleConnect(session, 0);
 		
 		return session;
 	}
@@ -215,10 +397,11 @@ public class ConnectionManager
 	 */
 	public synchronized void quit(String quitMsg)
 	{
-
-		loopTimer.cancel();
-
-		dispatchTimer.cancel();
+		/* wait for the io threads to leave their selectors */
+		for (IoShard shard : shards)
+		{
+			shard.stop();
+		}
 
 //		System.out.println("NERTS2");
 		for (Session session : new ArrayList<Session>(sessionMap.values()))
@@ -228,15 +411,22 @@ public class ConnectionManager
 //		System.out.println("NERTS3");
 		sessionMap.clear();
 
-		socChanMap.clear();
+		for (MetricsListener listener : new ArrayList<MetricsListener>(metricsListeners.keySet()))
+		{
+			removeMetricsListener(listener);
+		}
+		dispatchExecutor.shutdown();
+		resolver.shutdown();
 
-		try
+		if (ident != null)
 		{
-			selector.close();
+			ident.close();
+			ident = null;
 		}
-		catch (IOException e)
+
+		for (IoShard shard : shards)
 		{
-			e.printStackTrace();
+			shard.close();
 		}
 
 	}
@@ -321,15 +511,131 @@ public class ConnectionManager
 	 */
 	void removeSession(Session session)
 	{
+		session.setDeadline(null);
+		abortConnect(session);
 		sessionMap.remove(session.getRequestedConnection().getHostName());
-		for (Iterator<Session> it = socChanMap.values().iterator(); it.hasNext();)
+		session.getShard().remove(session);
+	}
+
+	/**
+	 * Finds the Session an ident query is about
+	 * 
+	 * @param server address of the host asking
+	 * @param localPort port of the connection on this host
+	 * @param remotePort port of the connection on the server
+	 * @return the Session , null if none has that connection
+	 */
+	Session findSession(InetAddress server, int localPort, int remotePort)
+	{
+		for (Session session : getSessions())
 		{
-			if (it.next().equals(session))
+			Connection con = session.getConnection();
+			if (con == null) continue;
+
+			Socket socket = con.getSocket();
+			if (socket.getLocalPort() == localPort && socket.getPort() == remotePort && server.equals(socket.getInetAddress()))
 			{
-				it.remove();
+				return session;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Hands metrics to a MetricsListener every interval. The timer runs on the
+	 * first io thread , the listener is called on the dispatch executor.
+	 */
+	private class MetricsPush implements Runnable
+	{
+		private final MetricsListener listener;
+		private final long interval;
+		private volatile boolean canceled;
+		private TimerWheel.Timeout timeout;
+
+		MetricsPush(MetricsListener listener, long interval)
+		{
+			this.listener = listener;
+			this.interval = interval;
+		}
+
+		synchronized void schedule()
+		{
+			if (canceled) return;
+			timeout = shards[0].getTimers().schedule(this, interval, System.currentTimeMillis());
+			shards[0].wakeup();
+		}
+
+		synchronized void cancel()
+		{
+			canceled = true;
+			if (timeout != null) timeout.cancel();
+		}
+
+		public void run()
+		{
+			if (canceled) return;
+			final List<SessionMetrics> sessions = getSessionMetrics();
+			final List<ShardMetrics> shardMetrics = getShardMetrics();
+			try
+			{
+				dispatchExecutor.execute(new Runnable()
+				{
+					public void run()
+					{
+						if (!canceled) listener.metricsUpdated(sessions, shardMetrics);
+					}
+				});
+			}
+			catch (RejectedExecutionException e)
+			{
+				// quit , nothing left to report
 				return;
 			}
+			schedule();
+		}
+	}
+
+	/**
+	 * Starts answering ident queries on the first io thread if not already
+	 */
+	private synchronized void startIdent()
+	{
+		if (ident != null || identPort <= 0 || shards.length == 0) return;
+		ident = new IdentResponder(this, shards[0], identPort);
+		ident.start();
+	}
+
+	/**
+	 * Stops answering ident queries , the responder is closed on its io thread
+	 */
+	private synchronized void stopIdent()
+	{
+		final IdentResponder old = ident;
+		ident = null;
+		if (old == null) return;
+		shards[0].getTimers().schedule(new Runnable()
+		{
+			public void run()
+			{
+				old.close();
+			}
+		}, 0, System.currentTimeMillis());
+		shards[0].wakeup();
+	}
+
+	/**
+	 * Picks the io thread with the fewest Sessions for a new Session
+	 * 
+	 * @return shard
+	 */
+	private IoShard leastLoadedShard()
+	{
+		IoShard best = shards[0];
+		for (IoShard shard : shards)
+		{
+			if (shard.getSessionCount() < best.getSessionCount()) best = shard;
 		}
+		return best;
 	}
 
 	/**
@@ -339,7 +645,7 @@ public class ConnectionManager
 	 */
 	void addToEventQueue(IRCEvent event)
 	{
-		eventQueue.add(event);
+		event.getSession().getShard().addToEventQueue(event);
 	}
 
 	/**
@@ -356,377 +662,435 @@ public class ConnectionManager
 			return;
 		}
 
-		synchronized (relayQueue)
+		Session session = event.getSession();
+
+		// if session is null , this means the session has been removed or
+		// quit() in Session has been called , but not before a few
+		// events could queue up for that session.
+		if (session != null)
 		{
-			relayQueue.add(event);
+			session.relay(event);
 		}
 	}
 
 	/**
-	 * Starts a Thread for IO/Parsing/Checking-Making Connections
-	 * Start another Thread for relaying events
+	 * Tests if the internal event handler needs events of a Type to keep
+	 * Session and Channel state correct. A handler that is not a
+	 * DefaultInternalEventHandler is assumed to need all of them.
+	 * 
+	 * @param type
+	 * @return true if needed
 	 */
-	void startMainLoop()
+	boolean needsInternally(Type type)
 	{
-		dispatchTimer = new Timer();
-
-		loopTimer = new Timer();
-
-		TimerTask dispatchTask = new TimerTask()
+		IRCEventListener handler = internalEventHandler;
+		if (handler instanceof DefaultInternalEventHandler)
 		{
-			public void run()
-			{
-				relayEvents();
-				notifyWriteListeners();
-			}
-		};
-
-		TimerTask loopTask = new TimerTask()
-		{
-			public void run()
-			{
-				makeConnections();
-				doNetworkIO();
-				parseEvents();
-				checkServerConnections();
-			}
-		};
-
-		loopTimer.schedule(loopTask, 0, 200);
-
-		dispatchTimer.schedule(dispatchTask, 0, 200);
+			return ((DefaultInternalEventHandler) handler).getEventHandler(type) != null;
+		}
+		return true;
 	}
 
 	/**
-	 * Makes read and write request via Connections when
-	 * they can be done without blocking.
+	 * Gets the Executor Sessions relay events on
 	 * 
+	 * @return executor
 	 */
-	void doNetworkIO()
+	Executor getDispatchExecutor()
 	{
-		try
-		{
-			if (selector.selectNow() > 0)
-			{
-				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-				while (it.hasNext())
-				{
-					SelectionKey key = it.next();
-					Session session = socChanMap.get(key.channel());
-					it.remove();
-
-					try
-					{
-						if (!key.isValid())
-						{
-							System.err.println("Key not valid");
-							continue;
-						}
-
-						if (key.isReadable())
-						{
-							socChanMap.get(key.channel()).getConnection().read();
-						}
-						if (key.isWritable())
-						{
-							socChanMap.get(key.channel()).getConnection().doWrites();
-						}
-						if (key.isConnectable())
-						{
-							finishConnection(key);
-						}
-					}
-					catch (CancelledKeyException ke) 
-					{
-						session.disconnected(ke);
-					}
-				}
-			}
-		}
-		catch (IOException e)
-		{
-			e.printStackTrace();
-		}
+		return dispatchExecutor;
 	}
 
 	/**
-	 * Attempts to finish a connection
+	 * Attempts to finish a connection , the first address of
+	 * a ConnectAttempt to connect wins
 	 * @param key
 	 */
 	void finishConnection(SelectionKey key)
 	{
+		ConnectAttempt attempt = (ConnectAttempt) key.attachment();
 		SocketChannel chan = (SocketChannel) key.channel();
-		Session session = socChanMap.get(chan);
 
-		if (chan.isConnectionPending())
+		try
 		{
-			try
+			if (key.isValid() && key.isConnectable() && chan.finishConnect())
 			{
-				if (session.getConnection().finishConnect())
-				{
-					session.halfConnected();
-					session.login();
-				}
-				else
-				{
-					session.connecting();
-				}
+				connected(attempt, key);
 			}
-			catch (IOException e)
+		}
+		catch (IOException e)
+		{
+			/* refused or unreachable , move on to the next address right away */
+			attempt.failed(key, e);
+			if (attempts.get(attempt.session) == attempt)
 			{
-				ErrorEvent error = new GenericErrorEvent(e.getMessage(),session,e);
-				addToRelayList(error);
-				session.markForRemoval();
-				key.cancel();
-				e.printStackTrace();
+				connectNext(attempt);
 			}
 		}
 	}
 
 	/**
-	 * Check livelyness of server connections
+	 * Parses an event read by an io thread and hands it to the internal event handler.
+	 * Lines in a held batch are kept until the batch ends.
+	 * 
+	 * @param event
 	 */
-	void checkServerConnections()
+	void parseEvent(IRCEvent event)
 	{
-		synchronized (sessionMap)
+		Session session = event.getSession();
+		BatchTracker batches = session.getBatches();
+		if (event.isCommand("BATCH"))
 		{
-			for (Iterator<Session> it = sessionMap.values().iterator(); it.hasNext();)
-			{
-				Session session = it.next();
-				State state = session.getState();
+			BatchTracker.Batch ended = batches.update(event);
+			if (ended != null) endBatch(session, batches, ended);
+			return;
+		}
 
-				if (state == State.MARKED_FOR_REMOVAL)
-				{
-					it.remove();
-				}
-				else if (state == State.NEED_TO_PING)
-				{
-					session.getConnection().ping();
-				}
-			}
+		BatchTracker.Batch batch = batches.get(event);
+		if (batch != null && batch.held)
+		{
+			batch.events.add(event);
+			return;
 		}
+
+		IRCEvent newEvent = parse(event);
+		// parser skipped an event nobody wants
+		if (newEvent == null) return;
+		if (batch != null) batch.events.add(newEvent);
+		internalEventHandler.receiveEvent(newEvent);
 	}
 
 	/**
-	 * Parse Events
+	 * Runs the parser of the Session , the event made keeps the message tags of the line.
+	 * The time it takes is recorded by command.
+	 * 
+	 * @param event
+	 * @return event made by the parser , null if it was skipped
 	 */
-	void parseEvents()
+	private IRCEvent parse(IRCEvent event)
 	{
-		synchronized (eventQueue)
-		{
-			if (eventQueue.isEmpty()) { return; }
-			for (IRCEvent event : eventQueue)
-			{
-				IRCEvent newEvent = event.getSession().getInternalEventParser().receiveEvent(event);
-				internalEventHandler.receiveEvent(newEvent);
-			}
-			eventQueue.clear();
-		}
+		Session session = event.getSession();
+		long start = System.nanoTime();
+		IRCEvent newEvent = session.getInternalEventParser().receiveEvent(event);
+		if (newEvent != null) newEvent.inheritTags(event);
+		session.getLiveMetrics().parsed(event.command(), System.nanoTime() - start);
+		return newEvent;
 	}
-	
+
 	/**
-	 * Remove Cancelled Tasks for a Session
+	 * Makes the BatchEvent of an ended batch. Held lines are parsed now , one
+	 * after the other , and the internal event handler applies them all when
+	 * it gets the BatchEvent. A batch nested in a held batch goes to its parent.
+	 * 
 	 * @param session
-	 * @return remanding valid tasks
+	 * @param batches
+	 * @param batch
 	 */
-	Map<Type, List<Task>> removeCanceled(Session session)
+	private void endBatch(Session session, BatchTracker batches, BatchTracker.Batch batch)
 	{
-		Map<Type, List<Task>> tasks = session.getTasks();
-		synchronized (tasks)
+		List<IRCEvent> events = batch.events;
+		if (batch.held)
 		{
-			for (Iterator<List<Task>> it = tasks.values().iterator(); it.hasNext();)
+			events = new ArrayList<IRCEvent>(batch.events.size());
+			for (IRCEvent line : batch.events)
 			{
-				List<Task> thisTasks = it.next();
-				for (Iterator<Task> x = thisTasks.iterator(); x.hasNext();)
-				{
-					Task rmTask = x.next();
-					if (rmTask.isCanceled())
-					{
-						x.remove();
-					}
-				}
+				IRCEvent newEvent = line instanceof BatchEvent ? line : parse(line);
+				if (newEvent != null) events.add(newEvent);
 			}
 		}
-		return tasks;
+
+		BatchEvent batchEvent = new BatchEvent(batch.rawEventData, session, batch.reference, batch.type, batch.parameters, Collections.unmodifiableList(events), batch.held);
+		BatchTracker.Batch parent = batch.parent;
+		if (parent != null && batches.isOpen(parent))
+		{
+			parent.events.add(batchEvent);
+			if (parent.held) return;
+		}
+		internalEventHandler.receiveEvent(batchEvent);
 	}
 
 	/**
-	 * Relay events to Listeners/Tasks
+	 * Schedules a connection attempt for a Session
+	 * 
+	 * @param session
+	 * @param delay milliseconds until the attempt
 	 */
-	void relayEvents()
+	void scheduleConnect(final Session session, long delay)
 	{
-		List<IRCEvent> events = new ArrayList<IRCEvent>();
-		List<IRCEventListener> templisteners = new ArrayList<IRCEventListener>();
-		Map<Type, List<Task>> tempTasks = new HashMap<Type, List<Task>>();
-
-		synchronized (relayQueue)
+		IoShard shard = session.getShard();
+		session.setDeadline(shard.getTimers().schedule(new Runnable()
 		{
-			events.addAll(relayQueue);
-			relayQueue.clear();
-		}
-
-		for (IRCEvent event : events)
-		{
-			Session s = event.getSession();
-
-			// if session is null , this means the session has been removed or
-			// quit() in Session has been called , but not before a few
-			// events could queue up for that session. So we should continue
-			// to the next event
-			if (s == null)
-			{
-				continue;
-			}
-
-			Collection<IRCEventListener> listeners = s.getIRCEventListeners();
-			synchronized (listeners)
-			{
-				templisteners.addAll(listeners);
-			}
-
-			tempTasks.putAll(removeCanceled(s));
-
-			List<Task> typeTasks = tempTasks.get(event.getType());
-			if (typeTasks != null)
+			public void run()
 			{
-				templisteners.addAll(typeTasks);
+				attemptConnection(session);
 			}
+		}, delay, System.currentTimeMillis()));
+		shard.wakeup();
+	}
 
-			List<Task> nullTasks = tempTasks.get(null);
-			if (nullTasks != null)
+	/**
+	 * Schedules a ping for a Session that has just heard from its server
+	 * 
+	 * @param session
+	 */
+	void schedulePing(final Session session)
+	{
+		session.setDeadline(session.getShard().getTimers().schedule(new Runnable()
+		{
+			public void run()
 			{
-				templisteners.addAll(nullTasks);
+				Connection con = session.getConnection();
+				if (session.getState() != State.CONNECTED || con == null) return;
+				con.ping();
+				scheduleTimeout(session, pingTimeout);
 			}
+		}, pingInterval, System.currentTimeMillis()));
+	}
 
-			for (IRCEventListener listener : templisteners)
+	/**
+	 * Drops the connection of a Session if it has not finished connecting
+	 * or answered a ping by the time the delay is up
+	 * 
+	 * @param session
+	 * @param delay milliseconds to wait
+	 */
+	private void scheduleTimeout(final Session session, long delay)
+	{
+		session.setDeadline(session.getShard().getTimers().schedule(new Runnable()
+		{
+			public void run()
 			{
-				try
-				{
-					listener.receiveEvent(event);
-				}
-				catch (Exception e)
+				State state = session.getState();
+				if (state == State.PING_SENT || state == State.CONNECTING || state == State.HALF_CONNECTED)
 				{
-					System.err.println("jerklib:Cought Client Exception");
-					e.printStackTrace();
+					session.disconnected(new Exception("Connection Timeout Possibly"));
 				}
 			}
-
-			templisteners.clear();
-			tempTasks.clear();
-		}
+		}, delay, System.currentTimeMillis()));
 	}
 
 	/**
-	 * Relay write requests to listeners
+	 * Schedules the next connection attempt of a disconnected Session with backoff ,
+	 * or removes the Session when it is out of attempts.
+	 * 
+	 * @param session
 	 */
-	void notifyWriteListeners()
+	void scheduleReconnect(Session session)
 	{
-		List<WriteRequestListener> list = new ArrayList<WriteRequestListener>();
-		List<WriteRequest> wRequests = new ArrayList<WriteRequest>();
-
-		synchronized (requestForWriteListenerEventQueue)
+		abortConnect(session);
+		if (!autoReCon || session.getRetries() >= reconTries)
 		{
-			if (requestForWriteListenerEventQueue.isEmpty()) { return; }
-			wRequests.addAll(requestForWriteListenerEventQueue);
-			requestForWriteListenerEventQueue.clear();
+			session.markForRemoval();
+			removeSession(session);
+			System.err.println("Retires up, marked for removal");
+			return;
 		}
 
-		synchronized (writeListeners)
+		long delay = getReconnectDelay(session.getRetries());
+		session.getLiveMetrics().reconnected();
+		addToRelayList(new ReconnectEvent(session, session.getRetries() + 1, delay));
+		scheduleConnect(session, delay);
+	}
+
+	/**
+	 * Exponential backoff with jitter
+	 * 
+	 * @param failures connection attempts that failed so far
+	 * @return milliseconds to wait before the next attempt
+	 */
+	long getReconnectDelay(int failures)
+	{
+		long max = maxReconnectDelay;
+		long delay = reconnectDelay;
+		for (int i = 0; i < failures && delay < max; i++)
 		{
-			list.addAll(writeListeners);
+			delay <<= 1;
 		}
+		delay = Math.min(delay, max);
 
-		for (WriteRequestListener listener : list)
+		double jitter;
+		synchronized (random)
 		{
-			for (WriteRequest request : wRequests)
-			{
-				listener.receiveEvent(request);
-			}
+			jitter = random.nextDouble();
 		}
+		return delay - (long) (delay * reconnectJitter * jitter);
 	}
 
 	/**
-	 * Make COnnections
+	 * Connects a Session whose connect deadline came up. The host is looked up
+	 * off the io thread , then its addresses are raced.
+	 * 
+	 * @param session
 	 */
-	void makeConnections()
+	private void attemptConnection(final Session session)
 	{
-		synchronized (sessionMap)
-		{
-			for (Iterator<Session> it = sessionMap.values().iterator(); it.hasNext();)
-			{
-				Session session = it.next();
-				State state = session.getState();
+		if (session.getState() != State.DISCONNECTED) return;
 
-				if (state == State.NEED_TO_RECONNECT)
-				{
-					session.disconnected(new Exception("Connection Timeout Possibly"));
-				}
+		session.retried();
+		session.connecting();
+		scheduleTimeout(session, connectTimeout);
+
+		final ConnectAttempt attempt = new ConnectAttempt(session);
+		attempts.put(session, attempt);
 
-				if (state == State.DISCONNECTED)
+		final String hostName = session.getRequestedConnection().getHostName();
+		resolver.resolve(hostName, new Resolver.Callback()
+		{
+			public void resolved(final InetAddress[] addresses, final UnknownHostException error)
+			{
+				/* back on the io thread */
+				IoShard shard = session.getShard();
+				shard.getTimers().schedule(new Runnable()
 				{
-					long last = session.getLastRetry();
-					long current = System.currentTimeMillis();
-					if (last > 0 && current - last < 10000)
+					public void run()
 					{
-						continue;
+						if (attempts.get(session) != attempt) return;
+						if (addresses == null || addresses.length == 0)
+						{
+							String msg = "UnresolvedAddressException ";
+							UnresolvedAddressException e = new UnresolvedAddressException();
+							e.initCause(error);
+							connectFailed(attempt, new UnresolvedHostnameErrorEvent(session, msg, hostName, e));
+							return;
+						}
+						attempt.setAddresses(addresses);
+						connectNext(attempt);
 					}
+				}, 0, System.currentTimeMillis());
+				shard.wakeup();
+			}
+		});
+	}
+
+	/**
+	 * Starts connecting to the next address of an attempt and schedules the
+	 * one after it. Addresses that fail right away are skipped.
+	 * 
+	 * @param attempt
+	 */
+	private void connectNext(final ConnectAttempt attempt)
+	{
+		attempt.setStagger(null);
+		int port = attempt.session.getRequestedConnection().getPort();
 
-					try
+		while (attempt.hasNext())
+		{
+			InetAddress address = attempt.nextAddress();
+			SelectionKey key = null;
+			try
+			{
+				key = connect(address, port, attempt);
+				if (key == null) return;
+				if (attempt.hasNext())
+				{
+					attempt.setStagger(attempt.session.getShard().getTimers().schedule(new Runnable()
 					{
-						if(!autoReCon || session.getRetries() >= reconTries)
-						{
-							session.markForRemoval();
-							System.err.println("Retires up, marked for removal");
-						}
-						else
+						public void run()
 						{
-							session.retried();
-							connect(session);
+							if (attempts.get(attempt.session) == attempt) connectNext(attempt);
 						}
-					}
-					catch (UnresolvedAddressException e)
-					{
-						String msg = e.getMessage() == null?e.toString():e.getMessage();
-						msg = "UnresolvedAddressException ";
-						ErrorEvent error = new UnresolvedHostnameErrorEvent(session, msg, session.getRequestedConnection().getHostName(), e);
-						addToRelayList(error);
-						session.disconnected(e);
-					}
-					catch (IOException e)
-					{
-						String msg = e.getMessage() == null?e.toString():e.getMessage();
-						msg = "IOException ";
-						ErrorEvent error = new GenericErrorEvent(msg,session,e);
-						addToRelayList(error);
-						session.disconnected(e);
-					}
+					}, ConnectAttempt.ATTEMPT_DELAY, System.currentTimeMillis()));
 				}
+				return;
+			}
+			catch (IOException e)
+			{
+				attempt.failed(key, e);
 			}
 		}
+
+		if (!attempt.isConnecting())
+		{
+			IOException e = attempt.getLastError();
+			connectFailed(attempt, new GenericErrorEvent("IOException ", attempt.session, e));
+		}
 	}
 
 	/**
-	 * Connect a Session to a server
+	 * Opens a channel and starts connecting it
 	 * 
-	 * @param session
+	 * @param address
+	 * @param port
+	 * @param attempt
+	 * @return key of the connecting channel , null if it connected right away
 	 * @throws IOException
 	 */
-	void connect(Session session) throws IOException
+	private SelectionKey connect(InetAddress address, int port, ConnectAttempt attempt) throws IOException
 	{
 		SocketChannel sChannel = SocketChannel.open();
-		sChannel.socket().setSoTimeout(500);
-
-		sChannel.configureBlocking(false);
+		SelectionKey key;
+		try
+		{
+			sChannel.configureBlocking(false);
+			key = sChannel.register(attempt.session.getShard().getSelector(), SelectionKey.OP_CONNECT, attempt);
+			if (sChannel.connect(new InetSocketAddress(address, port)))
+			{
+				connected(attempt, key);
+				return null;
+			}
+		}
+		catch (IOException e)
+		{
+			sChannel.close();
+			throw e;
+		}
+		attempt.connecting(key);
+		return key;
+	}
 
-		sChannel.connect(new InetSocketAddress(session.getRequestedConnection().getHostName(), session.getRequestedConnection().getPort()));
+	/**
+	 * A channel of an attempt connected , it becomes the Session's Connection
+	 * 
+	 * @param attempt
+	 * @param key
+	 */
+	private void connected(ConnectAttempt attempt, SelectionKey key)
+	{
+		Session session = attempt.session;
+		attempts.remove(session);
+		attempt.finish(key);
 
-		sChannel.register(selector, sChannel.validOps());
+		SocketChannel sChannel = (SocketChannel) key.channel();
+		resolver.connected(session.getRequestedConnection().getHostName(), sChannel.socket().getInetAddress());
 
 		Connection con = new Connection(this, sChannel, session);
-		
+		con.setSelectionKey(key);
 		session.setConnection(con);
 
-		socChanMap.put(sChannel, session);
-		
+		key.attach(session);
+		/* connected sockets stay connectable , stop asking or select() will spin */
+		key.interestOps(SelectionKey.OP_READ);
+
+		session.halfConnected();
+		session.login();
+	}
+
+	/**
+	 * No address of an attempt could be connected
+	 * 
+	 * @param attempt
+	 * @param error event describing why
+	 */
+	private void connectFailed(ConnectAttempt attempt, ErrorEvent error)
+	{
+		attempts.remove(attempt.session);
+		attempt.finish(null);
+		addToRelayList(error);
+		attempt.session.connectFailed();
+		scheduleReconnect(attempt.session);
+	}
+
+	/**
+	 * Stops a Session's attempt to connect , if it has one
+	 * 
+	 * @param session
+	 */
+	void abortConnect(Session session)
+	{
+		ConnectAttempt attempt = attempts.remove(session);
+		if (attempt != null)
+		{
+			attempt.finish(null);
+		}
 	}
 }
@@ -1,9 +1,12 @@
 package jerklib;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
+import jerklib.events.BatchEvent;
 import jerklib.events.ConnectionCompleteEvent;
 import jerklib.events.IRCEvent;
 import jerklib.events.JoinCompleteEvent;
@@ -110,6 +113,10 @@ public class DefaultInternalEventHandler implements IRCEventListener
 			{
 				event.getSession().getConnection().gotPong();
 			}
+			else if(command.equals("CAP"))
+			{
+				event.getSession().getCapNegotiator().received(event);
+			}
 		}
 		
 		manager.addToRelayList(event);
@@ -123,6 +130,10 @@ public class DefaultInternalEventHandler implements IRCEventListener
 	public void joinComplete(IRCEvent e)
 	{
 		JoinCompleteEvent jce = (JoinCompleteEvent)e;
+		if(e.getHostName().length() > 0)
+		{
+			e.getSession().setUserHost(e.getUserName() + "@" + e.getHostName());
+		}
 		if(e.getSession().getChannel(jce.getChannel().getName()) == null)
 		{
 			e.getSession().addChannel(jce.getChannel());
@@ -275,6 +286,15 @@ public class DefaultInternalEventHandler implements IRCEventListener
 			manager.addToRelayList(nce);
 		}
 		
+		/* most servers end the welcome message with nick!user@host */
+		String welcome = e.arg(e.args().size() - 1);
+		String mask = welcome.substring(welcome.lastIndexOf(' ') + 1);
+		int bang = mask.indexOf('!');
+		if(bang > 0 && mask.indexOf('@', bang) != -1)
+		{
+			session.setUserHost(mask.substring(bang + 1));
+		}
+		
 		ConnectionCompleteEvent ccEvent = (ConnectionCompleteEvent)e;
 		session.getConnection().setHostName(ccEvent.getActualHostName());
 		session.loginSuccess();
@@ -306,6 +326,57 @@ public class DefaultInternalEventHandler implements IRCEventListener
 	
 	
 	
+	/**
+	 * Called when a BatchEvent is received. The events of a held batch
+	 * are applied here all at once , they are not relayed on their own.
+	 * The nicks of a run of QUITs , like a netsplit , are removed in one
+	 * pass per channel.
+	 * 
+	 * @param e the event
+	 */
+	public void batch(IRCEvent e)
+	{
+		BatchEvent be = (BatchEvent)e;
+		if(!be.isHeld()) return;
+		
+		List<String> quits = new ArrayList<String>();
+		for(IRCEvent event : be.getEvents())
+		{
+			if(event.getType() == QUIT)
+			{
+				quits.add(((QuitEvent)event).getNick());
+				continue;
+			}
+			
+			/* keep the order of the QUITs and the events around them */
+			if(!quits.isEmpty())
+			{
+				e.getSession().removeNicksFromAllChannels(quits);
+				quits.clear();
+			}
+			IRCEventListener l = stratMap.get(event.getType());
+			if(l != null)
+			{
+				l.receiveEvent(event);
+			}
+		}
+		if(!quits.isEmpty())
+		{
+			e.getSession().removeNicksFromAllChannels(quits);
+		}
+	}
+	
+	/**
+	 * Called when a ServerInformationEvent is received
+	 * 
+	 * @param e the event
+	 */
+	public void serverInformation(IRCEvent e)
+	{
+		e.getSession().updateCaseMapping();
+	}
+	
+	
 	private void initStratMap()
 	{
 		stratMap.put(CONNECT_COMPLETE, new IRCEventListener()
@@ -380,5 +451,21 @@ public class DefaultInternalEventHandler implements IRCEventListener
 			}
 		});
 		
+		stratMap.put(SERVER_INFORMATION, new IRCEventListener()
+		{
+			public void receiveEvent(IRCEvent e)
+			{
+				serverInformation(e);
+			}
+		});
+		
+		stratMap.put(BATCH, new IRCEventListener()
+		{
+			public void receiveEvent(IRCEvent e)
+			{
+				batch(e);
+			}
+		});
+		
 	}
 }
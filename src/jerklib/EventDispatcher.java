@@ -0,0 +1,143 @@
+package jerklib;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jerklib.events.IRCEvent;
+
+/**
+ * Relays the events of one Session to its listeners on a shared Executor.
+ * 
+ * At most one task per Session is on the Executor at a time , so events of a
+ * Session are relayed in order while different Sessions are relayed in
+ * parallel. The task is submitted as soon as an event is queued.
+ * 
+ * Events are kept in a ring with the time they were queued , so the wait
+ * until their listeners are called is recorded without allocating.
+ */
+class EventDispatcher implements Runnable
+{
+	/* events relayed before giving the thread back to other Sessions */
+	private static final int MAX_BATCH = 64;
+
+	private final Executor executor;
+	private final ListenerRegistry registry;
+	private final SessionMetrics metrics;
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	/* queued events and their System.nanoTime() , guarded by this */
+	private IRCEvent[] events = new IRCEvent[16];
+	private long[] queuedAt = new long[16];
+	private int head , size;
+
+	/**
+	 * @param executor executor to relay on
+	 * @param registry listeners to relay to
+	 * @param metrics where queue depth and relay latency are recorded
+	 */
+	EventDispatcher(Executor executor, ListenerRegistry registry, SessionMetrics metrics)
+	{
+		this.executor = executor;
+		this.registry = registry;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Queues an event to be relayed
+	 * 
+	 * @param event
+	 */
+	void dispatch(IRCEvent event)
+	{
+		int depth;
+		synchronized (this)
+		{
+			if (size == events.length) grow();
+			int tail = (head + size) & (events.length - 1);
+			events[tail] = event;
+			queuedAt[tail] = System.nanoTime();
+			depth = ++size;
+		}
+		metrics.relayQueued(depth);
+		schedule();
+	}
+
+	/**
+	 * @return events waiting to be relayed
+	 */
+	synchronized int size()
+	{
+		return size;
+	}
+
+	/* doubles the ring , unwrapping it to start at 0 */
+	private void grow()
+	{
+		int n = events.length;
+		IRCEvent[] bigger = new IRCEvent[n << 1];
+		long[] times = new long[n << 1];
+		for (int i = 0; i < n; i++)
+		{
+			bigger[i] = events[(head + i) & (n - 1)];
+			times[i] = queuedAt[(head + i) & (n - 1)];
+		}
+		events = bigger;
+		queuedAt = times;
+		head = 0;
+	}
+
+	private synchronized void clear()
+	{
+		Arrays.fill(events, null);
+		head = size = 0;
+	}
+
+	private void schedule()
+	{
+		if (scheduled.compareAndSet(false, true))
+		{
+			try
+			{
+				executor.execute(this);
+			}
+			catch (RejectedExecutionException e)
+			{
+				// ConnectionManager has quit , nobody is left to relay to
+				clear();
+				scheduled.set(false);
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run()
+	{
+		for (int relayed = 0; relayed < MAX_BATCH; relayed++)
+		{
+			IRCEvent event;
+			long queued;
+			int depth;
+			synchronized (this)
+			{
+				if (size == 0) break;
+				event = events[head];
+				queued = queuedAt[head];
+				events[head] = null;
+				head = (head + 1) & (events.length - 1);
+				depth = --size;
+			}
+			metrics.relayed(queued, System.nanoTime(), depth);
+			registry.fire(event);
+		}
+
+		scheduled.set(false);
+		if (size() > 0)
+		{
+			schedule();
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package jerklib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A map from nick or channel names to values that treats names as equal
+ * when they fold to the same name under a {@link CaseMapping}.
+ *
+ * Lookups hash and compare through the fold table , so they never build
+ * a folded String. Names are kept as last put , so they can be shown as
+ * the server sent them , and are iterated in the order they were first put.
+ */
+class FoldedMap<V>
+{
+	private static final int INITIAL_CAPACITY = 16;
+
+	private CaseMapping mapping;
+	private Entry<V>[] buckets;
+	private int size;
+
+	/* insertion order */
+	private Entry<V> head, tail;
+
+	FoldedMap(CaseMapping mapping)
+	{
+		this.mapping = mapping;
+		buckets = newBuckets(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @param name
+	 * @return value for name , null if there is none
+	 */
+	synchronized V get(CharSequence name)
+	{
+		Entry<V> e = find(name);
+		return e == null ? null : e.value;
+	}
+
+	/**
+	 * @param name
+	 * @return true if there is a value for name
+	 */
+	synchronized boolean containsKey(CharSequence name)
+	{
+		return find(name) != null;
+	}
+
+	/**
+	 * Gets a name as it was put
+	 *
+	 * @param name name in any case
+	 * @return the stored name , null if there is none
+	 */
+	synchronized String getName(CharSequence name)
+	{
+		Entry<V> e = find(name);
+		return e == null ? null : e.name;
+	}
+
+	/**
+	 * Puts a value , an existing entry keeps its place and takes the new name
+	 *
+	 * @param name
+	 * @param value
+	 * @return the value that was replaced , null if there was none
+	 */
+	synchronized V put(String name, V value)
+	{
+		int hash = mapping.hashCode(name);
+		Entry<V> e = find(name, hash);
+		if (e != null)
+		{
+			V old = e.value;
+			e.name = name;
+			e.value = value;
+			return old;
+		}
+
+		if (size >= buckets.length - (buckets.length >> 2))
+		{
+			rehash(buckets.length << 1);
+		}
+
+		e = new Entry<V>(name, hash, value);
+		int index = indexFor(hash, buckets.length);
+		e.next = buckets[index];
+		buckets[index] = e;
+
+		e.before = tail;
+		if (tail == null) head = e;
+		else tail.after = e;
+		tail = e;
+
+		size++;
+		return null;
+	}
+
+	/**
+	 * @param name
+	 * @return the value that was removed , null if there was none
+	 */
+	synchronized V remove(CharSequence name)
+	{
+		int hash = mapping.hashCode(name);
+		int index = indexFor(hash, buckets.length);
+		Entry<V> prev = null;
+		for (Entry<V> e = buckets[index]; e != null; prev = e, e = e.next)
+		{
+			if (e.hash == hash && mapping.equals(e.name, name))
+			{
+				if (prev == null) buckets[index] = e.next;
+				else prev.next = e.next;
+
+				if (e.before == null) head = e.after;
+				else e.before.after = e.after;
+				if (e.after == null) tail = e.before;
+				else e.after.before = e.before;
+
+				size--;
+				return e.value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Renames an entry , keeping its value
+	 *
+	 * @param oldName
+	 * @param newName
+	 * @return the value , null if there was no entry for oldName
+	 */
+	synchronized V rename(CharSequence oldName, String newName)
+	{
+		if (!containsKey(oldName)) return null;
+		V value = remove(oldName);
+		put(newName, value);
+		return value;
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	synchronized int size()
+	{
+		return size;
+	}
+
+	synchronized void clear()
+	{
+		buckets = newBuckets(INITIAL_CAPACITY);
+		head = tail = null;
+		size = 0;
+	}
+
+	/**
+	 * @return names as put , in the order they were put
+	 */
+	synchronized List<String> names()
+	{
+		List<String> names = new ArrayList<String>(size);
+		for (Entry<V> e = head; e != null; e = e.after)
+		{
+			names.add(e.name);
+		}
+		return names;
+	}
+
+	/**
+	 * @return values in the order they were put
+	 */
+	synchronized List<V> values()
+	{
+		List<V> values = new ArrayList<V>(size);
+		for (Entry<V> e = head; e != null; e = e.after)
+		{
+			values.add(e.value);
+		}
+		return values;
+	}
+
+	/**
+	 * Switches to another mapping , names that now fold to the
+	 * same name are merged , the one put first wins
+	 *
+	 * @param mapping
+	 */
+	synchronized void setCaseMapping(CaseMapping mapping)
+	{
+		if (mapping == this.mapping) return;
+		this.mapping = mapping;
+
+		Entry<V> e = head;
+		clear();
+		for (; e != null; e = e.after)
+		{
+			if (!containsKey(e.name)) put(e.name, e.value);
+		}
+	}
+
+	private Entry<V> find(CharSequence name)
+	{
+		return find(name, mapping.hashCode(name));
+	}
+
+	private Entry<V> find(CharSequence name, int hash)
+	{
+		for (Entry<V> e = buckets[indexFor(hash, buckets.length)]; e != null; e = e.next)
+		{
+			if (e.hash == hash && mapping.equals(e.name, name)) return e;
+		}
+		return null;
+	}
+
+	private void rehash(int capacity)
+	{
+		Entry<V>[] bigger = newBuckets(capacity);
+		for (Entry<V> e = head; e != null; e = e.after)
+		{
+			int index = indexFor(e.hash, capacity);
+			e.next = bigger[index];
+			bigger[index] = e;
+		}
+		buckets = bigger;
+	}
+
+	private static int indexFor(int hash, int capacity)
+	{
+		return (hash ^ (hash >>> 16)) & (capacity - 1);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> Entry<V>[] newBuckets(int capacity)
+	{
+		return (Entry<V>[]) new Entry<?>[capacity];
+	}
+
+	private static class Entry<V>
+	{
+		String name;
+		final int hash;
+		V value;
+		Entry<V> next , before , after;
+
+		Entry(String name, int hash, V value)
+		{
+			this.name = name;
+			this.hash = hash;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package jerklib;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Answers RFC 1413 ident queries for the Sessions of a ConnectionManager.
+ *
+ * The listening channel is registered with the Selector of the first io thread ,
+ * so it costs nothing until a server connects. Any number of queries may be open
+ * at once , each is answered with the name of the Profile of the Session whose
+ * connection has the queried port pair , or NO-USER. Queries that do not send a
+ * line within {@link #QUERY_TIMEOUT} ms are dropped. Only used on the io thread
+ * of its shard , except for start() and close().
+ *
+ * @see ConnectionManager#setIdentPort(int)
+ */
+class IdentResponder
+{
+	/* how long a server may take to send its query */
+	static final long QUERY_TIMEOUT = 30000;
+
+	/* RFC 1413 caps a query at 1000 bytes */
+	private static final int MAX_QUERY = 1000;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private Logger log = Logger.getLogger(this.getClass().getName());
+
+	private final ConnectionManager manager;
+	private final IoShard shard;
+	private final int port;
+	private volatile ServerSocketChannel server;
+
+	/* queries waiting for their line */
+	private final Map<SelectionKey, Query> queries = new HashMap<SelectionKey, Query>();
+
+	/**
+	 * @param manager
+	 * @param shard io thread whose Selector the responder uses
+	 * @param port port to listen on , 113 for real servers
+	 */
+	IdentResponder(ConnectionManager manager, IoShard shard, int port)
+	{
+		this.manager = manager;
+		this.shard = shard;
+		this.port = port;
+	}
+
+	/**
+	 * Binds the port and registers it on the io thread. A port that can not
+	 * be bound , like 113 without root , only turns ident off.
+	 */
+	void start()
+	{
+		try
+		{
+			final ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setReuseAddress(true);
+			channel.socket().bind(new InetSocketAddress(port));
+			server = channel;
+
+			/* register on the io thread so it is not blocked in select() */
+			shard.getTimers().schedule(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						channel.register(shard.getSelector(), SelectionKey.OP_ACCEPT, IdentResponder.this);
+					}
+					catch (IOException e)
+					{
+						log.warning("Ident disabled , could not register port " + port + " : " + e.getMessage());
+						close();
+					}
+				}
+			}, 0, System.currentTimeMillis());
+			shard.wakeup();
+		}
+		catch (IOException e)
+		{
+			log.warning("Ident disabled , could not listen on port " + port + " : " + e.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * @return port the responder listens on , -1 if it is not listening
+	 */
+	int getLocalPort()
+	{
+		ServerSocketChannel channel = server;
+		return channel == null ? -1 : channel.socket().getLocalPort();
+	}
+
+	/**
+	 * Stops listening and drops open queries , called after the io thread has stopped
+	 */
+	void close()
+	{
+		ServerSocketChannel channel = server;
+		server = null;
+		for (SelectionKey key : new ArrayList<SelectionKey>(queries.keySet()))
+		{
+			close(key);
+		}
+		if (channel == null) return;
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			log.fine("Could not close ident port " + port + " : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Handles a ready key of the listening channel or of a query ,
+	 * both have the responder attached
+	 *
+	 * @param key
+	 */
+	void handle(SelectionKey key)
+	{
+		try
+		{
+			if (!key.isValid()) return;
+			if (key.isAcceptable()) accept();
+			else if (key.isReadable()) read(key);
+		}
+		catch (CancelledKeyException e)
+		{
+			close(key);
+		}
+	}
+
+	private void accept()
+	{
+		ServerSocketChannel channel = server;
+		if (channel == null) return;
+
+		SocketChannel client;
+		try
+		{
+			while ((client = channel.accept()) != null)
+			{
+				client.configureBlocking(false);
+				final SelectionKey key = client.register(shard.getSelector(), SelectionKey.OP_READ, this);
+				Query query = new Query();
+				queries.put(key, query);
+				query.timeout = shard.getTimers().schedule(new Runnable()
+				{
+					public void run()
+					{
+						close(key);
+					}
+				}, QUERY_TIMEOUT, System.currentTimeMillis());
+			}
+		}
+		catch (IOException e)
+		{
+			log.warning("Could not accept an ident query : " + e.getMessage());
+		}
+	}
+
+	private void read(SelectionKey key)
+	{
+		SocketChannel client = (SocketChannel) key.channel();
+		Query query = queries.get(key);
+		if (query == null) return;
+		try
+		{
+			if (client.read(query.in) == -1)
+			{
+				close(key);
+				return;
+			}
+
+			String line = query.line();
+			if (line == null)
+			{
+				if (!query.in.hasRemaining()) close(key);
+				return;
+			}
+
+			/* small enough to fit the socket buffer , a short write just drops the reply */
+			client.write(ASCII.encode(reply(line, client.socket())));
+		}
+		catch (IOException e)
+		{
+			/* server went away */
+		}
+		close(key);
+	}
+
+	/**
+	 * Builds the reply to a query line , &lt;port-on-server&gt; , &lt;port-on-client&gt;.
+	 * The server is the host asking , so its port is our local port.
+	 *
+	 * @param line query without the line end
+	 * @param client socket the query came in on
+	 * @return reply with line end
+	 */
+	private String reply(String line, Socket client)
+	{
+		int comma = line.indexOf(',');
+		int localPort = comma == -1 ? -1 : parsePort(line.substring(0, comma));
+		int remotePort = comma == -1 ? -1 : parsePort(line.substring(comma + 1));
+		if (localPort == -1 || remotePort == -1)
+		{
+			return line.trim() + " : ERROR : INVALID-PORT\r\n";
+		}
+
+		String ports = localPort + " , " + remotePort;
+		Session session = manager.findSession(client.getInetAddress(), localPort, remotePort);
+		if (session == null)
+		{
+			return ports + " : ERROR : NO-USER\r\n";
+		}
+		return ports + " : USERID : UNIX : " + session.getRequestedConnection().getProfile().getName() + "\r\n";
+	}
+
+	private static int parsePort(String s)
+	{
+		try
+		{
+			int port = Integer.parseInt(s.trim());
+			return port > 0 && port < 65536 ? port : -1;
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	private void close(SelectionKey key)
+	{
+		Query query = queries.remove(key);
+		if (query != null && query.timeout != null) query.timeout.cancel();
+		key.cancel();
+		try
+		{
+			key.channel().close();
+		}
+		catch (IOException e)
+		{
+			log.fine("Could not close an ident query : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Bytes of one query read so far
+	 */
+	private static class Query
+	{
+		final ByteBuffer in = ByteBuffer.allocate(MAX_QUERY);
+		TimerWheel.Timeout timeout;
+
+		/**
+		 * @return the first line if it has been read completely , else null
+		 */
+		String line()
+		{
+			for (int i = 0; i < in.position(); i++)
+			{
+				byte b = in.get(i);
+				if (b == '\n' || b == '\r') return new String(in.array(), 0, i, ASCII);
+			}
+			return null;
+		}
+	}
+}
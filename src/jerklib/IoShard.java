@@ -0,0 +1,364 @@
+package jerklib;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jerklib.events.IRCEvent;
+
+/**
+ * One io thread with its own Selector and timers.
+ *
+ * The ConnectionManager spreads Sessions over its shards , every read , write ,
+ * parse and timer of a Session happens on the thread of its shard so a busy
+ * network only delays the Sessions that share its shard. The Selector is opened
+ * and the thread started when the first Session is added , so a shard that
+ * never gets a Session holds no file descriptors or threads.
+ */
+class IoShard
+{
+	private Logger log = Logger.getLogger(this.getClass().getName());
+
+	private static final long TIMER_TICK = 100;
+	private static final int TIMER_SLOTS = 512;
+
+	private final ConnectionManager manager;
+	private final int index;
+	/* opened by start() */
+	private volatile Selector selector;
+	private final TimerWheel timers = new TimerWheel(TIMER_TICK, TIMER_SLOTS, System.currentTimeMillis());
+	private final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+
+	/* lines read on this shard , only touched by its thread */
+	private final List<IRCEvent> eventQueue = new ArrayList<IRCEvent>();
+
+	private Thread thread;
+	private volatile boolean running;
+
+	/* metrics , only written by the shard thread */
+	private volatile long loops, readyKeys, eventsParsed, timersRun, busyNanos;
+	private volatile int eventQueuePeak;
+
+	/**
+	 * @param manager
+	 * @param index number of this shard , used in the thread name
+	 */
+	IoShard(ConnectionManager manager, int index)
+	{
+		this.manager = manager;
+		this.index = index;
+	}
+
+	/**
+	 * Assigns a Session to this shard and starts the thread if needed
+	 *
+	 * @param session
+	 */
+	void add(Session session)
+	{
+		sessions.add(session);
+		start();
+	}
+
+	/**
+	 * @param session
+	 */
+	void remove(Session session)
+	{
+		sessions.remove(session);
+	}
+
+	/**
+	 * @return number of Sessions on this shard
+	 */
+	int getSessionCount()
+	{
+		return sessions.size();
+	}
+
+	/**
+	 * @return the Selector of this shard , null until the first Session is added
+	 */
+	Selector getSelector()
+	{
+		return selector;
+	}
+
+	TimerWheel getTimers()
+	{
+		return timers;
+	}
+
+	/**
+	 * Wakes the shard thread if it is blocked in select().
+	 * Called when a WriteRequest is queued or a timer is added from another thread.
+	 */
+	void wakeup()
+	{
+		Selector s = selector;
+		if (s != null) s.wakeup();
+	}
+
+	/**
+	 * @return true if the thread of this shard is running and has not been stopped
+	 */
+	boolean isRunning()
+	{
+		return running;
+	}
+
+	/**
+	 * @return true if called on the thread of this shard
+	 */
+	synchronized boolean isShardThread()
+	{
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Queues a line read on this shard to be parsed
+	 *
+	 * @param event
+	 */
+	void addToEventQueue(IRCEvent event)
+	{
+		eventQueue.add(event);
+	}
+
+	/**
+	 * @return a snapshot of the metrics of this shard
+	 */
+	ShardMetrics getMetrics()
+	{
+		return new ShardMetrics(index, sessions.size(), loops, readyKeys, eventsParsed, eventQueuePeak, timersRun, busyNanos / 1000000);
+	}
+
+	private synchronized void start()
+	{
+		if (thread != null) return;
+		try
+		{
+			selector = Selector.open();
+		}
+		catch (IOException e)
+		{
+			/* the next Session added tries again */
+			log.log(Level.SEVERE, "Could not open a Selector for io thread " + index, e);
+			return;
+		}
+		running = true;
+
+		thread = new Thread("jerklib-io-" + index)
+		{
+			public void run()
+			{
+				long timeout = 0;
+				while (running)
+				{
+					int ready = select(timeout);
+					long start = System.nanoTime();
+					if (ready > 0) doNetworkIO();
+					timersRun += timers.advance(System.currentTimeMillis());
+					parseEvents();
+					timeout = nextTimeout();
+					busyNanos += System.nanoTime() - start;
+					loops++;
+				}
+			}
+		};
+		thread.start();
+	}
+
+	/**
+	 * Stops the thread and waits for it to leave the selector ,
+	 * unless called from it
+	 */
+	void stop()
+	{
+		Thread t;
+		synchronized (this)
+		{
+			running = false;
+			t = thread;
+		}
+		wakeup();
+
+		if (t != null && Thread.currentThread() != t)
+		{
+			try
+			{
+				t.join(1000);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Closes the Selector , call after stop()
+	 */
+	void close()
+	{
+		Selector s = selector;
+		if (s == null) return;
+		try
+		{
+			s.close();
+		}
+		catch (IOException e)
+		{
+			log.log(Level.WARNING, "Could not close the Selector of io thread " + index, e);
+		}
+	}
+
+	/**
+	 * How long the shard thread may block in select() , so it wakes up for
+	 * the next timer deadline or throttled write but not in between.
+	 *
+	 * @return milliseconds to block , 0 to not block , -1 to block until woken up
+	 */
+	private long nextTimeout()
+	{
+		long writeDelay = updateInterestOps();
+		long timerDelay = timers.getDelay(System.currentTimeMillis());
+		if (timerDelay == 0) return 0;
+		if (writeDelay < 0) return timerDelay;
+		if (timerDelay < 0) return writeDelay;
+		return Math.min(writeDelay, timerDelay);
+	}
+
+	/**
+	 * Only asks the selector for write readiness on Connections that
+	 * have requests waiting and are allowed to write by flood control.
+	 *
+	 * @return how long until a throttled Connection can write again , -1 if none is waiting
+	 */
+	private long updateInterestOps()
+	{
+		long timeout = -1;
+		for (Session session : sessions)
+		{
+			Connection con = session.getConnection();
+			if (con == null) continue;
+
+			long delay = con.getWriteDelay();
+			con.setWriteInterest(delay == 0);
+			if (delay > 0 && (timeout < 0 || delay < timeout))
+			{
+				timeout = delay;
+			}
+		}
+		return timeout;
+	}
+
+	/**
+	 * Blocks until a registered channel is ready , the selector is woken up
+	 * or the timeout expires
+	 *
+	 * @param timeout max time to block in milliseconds , 0 to not block at all ,
+	 * -1 to block until a channel is ready or the selector is woken up
+	 * @return number of ready channels
+	 */
+	private int select(long timeout)
+	{
+		try
+		{
+			int ready;
+			if (timeout > 0) ready = selector.select(timeout);
+			else if (timeout < 0) ready = selector.select();
+			else ready = selector.selectNow();
+			readyKeys += ready;
+			return ready;
+		}
+		catch (IOException e)
+		{
+			log.log(Level.WARNING, "select failed on io thread " + index, e);
+		}
+		catch (ClosedSelectorException e)
+		{
+			running = false;
+		}
+		return 0;
+	}
+
+	/**
+	 * Makes read and write requests via the Connections of ready channels ,
+	 * finishes connects and answers ident queries. The Session is the key's attachment.
+	 */
+	private void doNetworkIO()
+	{
+		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while (it.hasNext())
+		{
+			SelectionKey key = it.next();
+			it.remove();
+
+			Object attachment = key.attachment();
+			if (attachment instanceof ConnectAttempt)
+			{
+				manager.finishConnection(key);
+				continue;
+			}
+			if (attachment instanceof IdentResponder)
+			{
+				((IdentResponder) attachment).handle(key);
+				continue;
+			}
+
+			Session session = (Session) attachment;
+			try
+			{
+				if (!key.isValid())
+				{
+					System.err.println("Key not valid");
+					continue;
+				}
+
+				Connection con = session.getConnection();
+				if (con == null)
+				{
+					key.cancel();
+					continue;
+				}
+				if (key.isReadable())
+				{
+					con.read();
+				}
+				if (key.isValid() && key.isWritable())
+				{
+					con.doWrites();
+				}
+			}
+			catch (CancelledKeyException ke)
+			{
+				session.disconnected(ke);
+			}
+		}
+	}
+
+	/**
+	 * Parses the lines read since the last call
+	 */
+	private void parseEvents()
+	{
+		if (eventQueue.isEmpty()) return;
+		if (eventQueue.size() > eventQueuePeak) eventQueuePeak = eventQueue.size();
+
+		for (int i = 0; i < eventQueue.size(); i++)
+		{
+			manager.parseEvent(eventQueue.get(i));
+		}
+		eventsParsed += eventQueue.size();
+		eventQueue.clear();
+	}
+}
@@ -0,0 +1,142 @@
+package jerklib;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds with fixed memory , in the style of
+ * HdrHistogram.
+ *
+ * Values below 64 have a bucket each , above that every power of two is split
+ * into 32 buckets , so a recorded value is off by at most 1/32 (about 3%).
+ * Values above {@link #MAX_VALUE} (about 18 minutes) are counted as MAX_VALUE.
+ * Recording is a few shifts and one atomic increment , it never allocates and
+ * may be done from any thread.
+ *
+ * @see SessionMetrics
+ */
+public class LatencyHistogram
+{
+	/* bits of precision kept below the highest set bit */
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF = SUB_BUCKETS >> 1;
+
+	/** largest value that is told apart , 2^40 ns */
+	public static final long MAX_VALUE = 1L << 40;
+
+	private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+	/* slot BUCKETS is the running total , BUCKETS + 1 the sum , BUCKETS + 2 the max */
+	private final AtomicLongArray counts;
+
+	public LatencyHistogram()
+	{
+		counts = new AtomicLongArray(BUCKETS + 3);
+	}
+
+	/**
+	 * Records a duration
+	 *
+	 * @param nanos duration , negative values are counted as 0
+	 */
+	public void record(long nanos)
+	{
+		long value = nanos < 0 ? 0 : nanos > MAX_VALUE ? MAX_VALUE : nanos;
+		counts.incrementAndGet(index(value));
+		counts.incrementAndGet(BUCKETS);
+		counts.addAndGet(BUCKETS + 1, value);
+
+		long max;
+		while (value > (max = counts.get(BUCKETS + 2)))
+		{
+			if (counts.compareAndSet(BUCKETS + 2, max, value)) break;
+		}
+	}
+
+	/**
+	 * @return number of values recorded
+	 */
+	public long getCount()
+	{
+		return counts.get(BUCKETS);
+	}
+
+	/**
+	 * @return largest value recorded , 0 if none
+	 */
+	public long getMax()
+	{
+		return counts.get(BUCKETS + 2);
+	}
+
+	/**
+	 * @return mean of the values recorded , 0 if none
+	 */
+	public double getMean()
+	{
+		long count = getCount();
+		return count == 0 ? 0 : counts.get(BUCKETS + 1) / (double) count;
+	}
+
+	/**
+	 * Gets the value a percentage of the recorded values are at or below
+	 *
+	 * @param percentile 0 to 100 , like 99.9
+	 * @return value , 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		long count = getCount();
+		if (count == 0) return 0;
+
+		double p = Math.min(Math.max(percentile, 0), 100);
+		long wanted = Math.max(1, (long) Math.ceil(p / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts.get(i);
+			if (seen >= wanted) return Math.min(highestValue(i), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * @return a copy of the histogram as it is now
+	 */
+	public LatencyHistogram copy()
+	{
+		LatencyHistogram copy = new LatencyHistogram();
+		for (int i = 0; i < counts.length(); i++)
+		{
+			copy.counts.set(i, counts.get(i));
+		}
+		return copy;
+	}
+
+	public String toString()
+	{
+		return "count:" + getCount() + " mean:" + (long) getMean() + " p50:" + getValueAtPercentile(50) + " p99:" + getValueAtPercentile(99) + " max:" + getMax() + "ns";
+	}
+
+	/**
+	 * Bucket of a value , values below SUB_BUCKETS are exact. Above that the
+	 * highest set bit picks the power of two and the HALF bits below it the bucket.
+	 */
+	private static int index(long value)
+	{
+		if (value < SUB_BUCKETS) return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	/**
+	 * @return largest value that falls in a bucket
+	 */
+	private static long highestValue(int index)
+	{
+		if (index < SUB_BUCKETS) return index;
+		int shift = (index - SUB_BUCKETS) / HALF + 1;
+		long mantissa = (index - SUB_BUCKETS) % HALF + HALF;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
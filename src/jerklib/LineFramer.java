@@ -0,0 +1,181 @@
+package jerklib;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Splits bytes read from an IRC connection into lines.
+ *
+ * Lines are found by scanning for LF in the raw bytes , a CR right before it
+ * is dropped. Bytes of a line that has not been terminated yet are kept until
+ * the next read , so multi byte characters split across reads are decoded whole.
+ * Each complete line is decoded with the charset of the Profile , if the line is
+ * not valid in that charset it is decoded as Latin-1 instead.
+ */
+abstract class LineFramer
+{
+	/* lines longer than this are dropped whole , IRC allows 512 bytes + tags */
+	static final int MAX_LINE_LENGTH = 16384;
+
+	private static final Charset FALLBACK = Charset.forName("ISO-8859-1");
+
+	private final CharsetDecoder decoder;
+	private final CharsetDecoder fallbackDecoder = FALLBACK.newDecoder();
+
+	/* bytes of an unterminated line */
+	private byte[] partial = new byte[512];
+	private int partialLength;
+
+	/* true after an unterminated line overflowed , its bytes are dropped through the next LF */
+	private boolean discarding;
+
+	/* reused decode output */
+	private CharBuffer chars = CharBuffer.allocate(512);
+
+	/**
+	 * @param charset charset lines are encoded in
+	 */
+	LineFramer(Charset charset)
+	{
+		decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPORT)
+			.onUnmappableCharacter(CodingErrorAction.REPORT);
+	}
+
+	/**
+	 * Called for every complete , non empty line
+	 *
+	 * @param line the decoded line without CRLF
+	 */
+	abstract void lineReceived(String line);
+
+	/**
+	 * Frames all bytes between position and limit of a heap buffer.
+	 * The buffer's position is moved to its limit.
+	 *
+	 * @param buffer flipped buffer that was just read into
+	 */
+	void frame(ByteBuffer buffer)
+	{
+		byte[] data = buffer.array();
+		int offset = buffer.arrayOffset();
+		int start = offset + buffer.position();
+		int end = offset + buffer.limit();
+
+		for (int i = start; i < end; i++)
+		{
+			if (data[i] != '\n') continue;
+
+			if (partialLength > 0 || discarding)
+			{
+				append(data, start, i - start);
+				if (!discarding) emit(partial, 0, partialLength);
+				partialLength = 0;
+				discarding = false;
+			}
+			else if (i - start <= MAX_LINE_LENGTH)
+			{
+				emit(data, start, i - start);
+			}
+			start = i + 1;
+		}
+
+		if (start < end)
+		{
+			append(data, start, end - start);
+		}
+		buffer.position(buffer.limit());
+	}
+
+	/**
+	 * Drops any unterminated line , used when the connection is reset
+	 */
+	void reset()
+	{
+		partialLength = 0;
+		discarding = false;
+	}
+
+	/**
+	 * Keeps bytes of an unterminated line , or starts discarding it once it is
+	 * too long so its tail is not taken for a line of its own
+	 */
+	private void append(byte[] data, int offset, int length)
+	{
+		if (discarding) return;
+		int needed = partialLength + length;
+		if (needed > MAX_LINE_LENGTH)
+		{
+			partialLength = 0;
+			discarding = true;
+			return;
+		}
+		if (needed > partial.length)
+		{
+			byte[] bigger = new byte[Math.max(needed, partial.length * 2)];
+			System.arraycopy(partial, 0, bigger, 0, partialLength);
+			partial = bigger;
+		}
+		System.arraycopy(data, offset, partial, partialLength, length);
+		partialLength = needed;
+	}
+
+	/**
+	 * Decodes a line and hands it to lineReceived()
+	 */
+	private void emit(byte[] data, int offset, int length)
+	{
+		if (length > 0 && data[offset + length - 1] == '\r')
+		{
+			length--;
+		}
+		if (length == 0) return;
+
+		ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+		String line;
+		try
+		{
+			line = decode(decoder, in, length);
+		}
+		catch (CharacterCodingException e)
+		{
+			in.position(offset);
+			try
+			{
+				line = decode(fallbackDecoder, in, length);
+			}
+			catch (CharacterCodingException never)
+			{
+				// Latin-1 maps every byte
+				return;
+			}
+		}
+		lineReceived(line);
+	}
+
+	/**
+	 * Decodes into the reused char buffer
+	 */
+	private String decode(CharsetDecoder dec, ByteBuffer in, int length) throws CharacterCodingException
+	{
+		int maxChars = (int) Math.ceil(length * (double) dec.maxCharsPerByte());
+		if (chars.capacity() < maxChars)
+		{
+			chars = CharBuffer.allocate(maxChars);
+		}
+		chars.clear();
+		dec.reset();
+
+		CoderResult result = dec.decode(in, chars, true);
+		if (!result.isUnderflow()) result.throwException();
+		result = dec.flush(chars);
+		if (!result.isUnderflow()) result.throwException();
+
+		return new String(chars.array(), 0, chars.position());
+	}
+}
@@ -0,0 +1,292 @@
+package jerklib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jerklib.events.IRCEvent;
+import jerklib.events.IRCEvent.Type;
+import jerklib.listeners.IRCEventListener;
+import jerklib.tasks.Task;
+
+/**
+ * Holds the IRCEventListeners and Tasks of a Session.
+ * 
+ * Every add or remove builds new arrays and swaps them in , so firing an
+ * event reads the current arrays without locking or copying. Listeners that
+ * declared the Types they want and Tasks are indexed by Type so an event only
+ * reaches those that want it.
+ */
+class ListenerRegistry
+{
+	private static final IRCEventListener[] NO_LISTENERS = new IRCEventListener[0];
+	private static final Task[] NO_TASKS = new Task[0];
+
+	/* these are replaced , never changed */
+	private volatile IRCEventListener[] listeners = NO_LISTENERS;
+	private volatile EnumMap<Type, IRCEventListener[]> typeListeners = new EnumMap<Type, IRCEventListener[]>(Type.class);
+	private volatile Task[] anyTypeTasks = NO_TASKS;
+	private volatile EnumMap<Type, Task[]> typeTasks = new EnumMap<Type, Task[]>(Type.class);
+
+	/**
+	 * Adds a listener for all events
+	 * 
+	 * @param listener
+	 */
+	synchronized void addListener(IRCEventListener listener)
+	{
+		IRCEventListener[] current = listeners;
+		IRCEventListener[] updated = new IRCEventListener[current.length + 1];
+		System.arraycopy(current, 0, updated, 0, current.length);
+		updated[current.length] = listener;
+		listeners = updated;
+	}
+
+	/**
+	 * Adds a listener for some types of events
+	 * 
+	 * @param listener
+	 * @param type
+	 */
+	synchronized void addListener(IRCEventListener listener, Type type)
+	{
+		EnumMap<Type, IRCEventListener[]> updated = new EnumMap<Type, IRCEventListener[]>(typeListeners);
+		IRCEventListener[] current = updated.get(type);
+		if (current == null) current = NO_LISTENERS;
+		IRCEventListener[] added = new IRCEventListener[current.length + 1];
+		System.arraycopy(current, 0, added, 0, current.length);
+		added[current.length] = listener;
+		updated.put(type, added);
+		typeListeners = updated;
+	}
+
+	/**
+	 * Removes a listener for all types it was added for
+	 * 
+	 * @param listener
+	 * @return true if listener was removed
+	 */
+	synchronized boolean removeListener(IRCEventListener listener)
+	{
+		List<IRCEventListener> updated = new ArrayList<IRCEventListener>(Arrays.asList(listeners));
+		boolean removed = updated.remove(listener);
+		if (removed)
+		{
+			listeners = updated.toArray(new IRCEventListener[updated.size()]);
+		}
+
+		EnumMap<Type, IRCEventListener[]> updatedTypes = new EnumMap<Type, IRCEventListener[]>(Type.class);
+		for (Map.Entry<Type, IRCEventListener[]> entry : typeListeners.entrySet())
+		{
+			List<IRCEventListener> kept = new ArrayList<IRCEventListener>(Arrays.asList(entry.getValue()));
+			removed |= kept.remove(listener);
+			if (!kept.isEmpty())
+			{
+				updatedTypes.put(entry.getKey(), kept.toArray(new IRCEventListener[kept.size()]));
+			}
+		}
+		typeListeners = updatedTypes;
+		return removed;
+	}
+
+	/**
+	 * Gets the listeners at the time of the call
+	 * 
+	 * @return unmodifiable listeners
+	 */
+	Collection<IRCEventListener> getListeners()
+	{
+		Set<IRCEventListener> all = new LinkedHashSet<IRCEventListener>(Arrays.asList(listeners));
+		for (IRCEventListener[] typed : typeListeners.values())
+		{
+			all.addAll(Arrays.asList(typed));
+		}
+		return Collections.unmodifiableCollection(all);
+	}
+
+	/**
+	 * Tests if any listener or task would receive an event of a type
+	 * 
+	 * @param type
+	 * @return true if someone wants the type
+	 */
+	boolean wants(Type type)
+	{
+		return listeners.length > 0 || anyTypeTasks.length > 0 || typeListeners.containsKey(type)
+				|| typeTasks.containsKey(type);
+	}
+
+	/**
+	 * Adds a task for a type of event
+	 * 
+	 * @param task
+	 * @param type type or null for all events
+	 */
+	synchronized void addTask(Task task, Type type)
+	{
+		if (type == null)
+		{
+			anyTypeTasks = append(anyTypeTasks, task);
+		}
+		else
+		{
+			EnumMap<Type, Task[]> updated = new EnumMap<Type, Task[]>(typeTasks);
+			Task[] tasks = updated.get(type);
+			updated.put(type, append(tasks == null ? NO_TASKS : tasks, task));
+			typeTasks = updated;
+		}
+	}
+
+	/**
+	 * Removes a task from all types it was added for
+	 * 
+	 * @param task
+	 */
+	synchronized void removeTask(Task task)
+	{
+		anyTypeTasks = without(anyTypeTasks, task, false);
+		EnumMap<Type, Task[]> updated = new EnumMap<Type, Task[]>(Type.class);
+		for (Map.Entry<Type, Task[]> entry : typeTasks.entrySet())
+		{
+			Task[] tasks = without(entry.getValue(), task, false);
+			if (tasks.length > 0) updated.put(entry.getKey(), tasks);
+		}
+		typeTasks = updated;
+	}
+
+	/**
+	 * Removes tasks that have been canceled
+	 */
+	synchronized void removeCanceled()
+	{
+		anyTypeTasks = without(anyTypeTasks, null, true);
+		EnumMap<Type, Task[]> updated = new EnumMap<Type, Task[]>(Type.class);
+		for (Map.Entry<Type, Task[]> entry : typeTasks.entrySet())
+		{
+			Task[] tasks = without(entry.getValue(), null, true);
+			if (tasks.length > 0) updated.put(entry.getKey(), tasks);
+		}
+		typeTasks = updated;
+	}
+
+	/**
+	 * Gets the tasks at the time of the call indexed by type. 
+	 * Tasks for all types are under null.
+	 * 
+	 * @return tasks
+	 */
+	Map<Type, List<Task>> getTasks()
+	{
+		Map<Type, List<Task>> tasks = new HashMap<Type, List<Task>>();
+		for (Map.Entry<Type, Task[]> entry : typeTasks.entrySet())
+		{
+			tasks.put(entry.getKey(), Collections.unmodifiableList(Arrays.asList(entry.getValue())));
+		}
+		Task[] any = anyTypeTasks;
+		if (any.length > 0)
+		{
+			tasks.put(null, Collections.unmodifiableList(Arrays.asList(any)));
+		}
+		return Collections.unmodifiableMap(tasks);
+	}
+
+	/**
+	 * Sends an event to all listeners , then to tasks for its type , then to
+	 * tasks for all types. Canceled tasks are skipped and removed.
+	 * 
+	 * @param event
+	 */
+	void fire(IRCEvent event)
+	{
+		for (IRCEventListener listener : listeners)
+		{
+			deliver(listener, event);
+		}
+
+		IRCEventListener[] typed = typeListeners.get(event.getType());
+		if (typed != null)
+		{
+			for (IRCEventListener listener : typed)
+			{
+				deliver(listener, event);
+			}
+		}
+
+		boolean sawCanceled = false;
+		Task[] tasks = typeTasks.get(event.getType());
+		if (tasks != null)
+		{
+			sawCanceled = fireTasks(tasks, event);
+		}
+		sawCanceled |= fireTasks(anyTypeTasks, event);
+
+		if (sawCanceled)
+		{
+			removeCanceled();
+		}
+	}
+
+	/**
+	 * @return true if a canceled task was found
+	 */
+	private boolean fireTasks(Task[] tasks, IRCEvent event)
+	{
+		boolean sawCanceled = false;
+		for (Task task : tasks)
+		{
+			if (task.isCanceled())
+			{
+				sawCanceled = true;
+			}
+			else
+			{
+				deliver(task, event);
+			}
+		}
+		return sawCanceled;
+	}
+
+	private void deliver(IRCEventListener listener, IRCEvent event)
+	{
+		try
+		{
+			listener.receiveEvent(event);
+		}
+		catch (Exception e)
+		{
+			System.err.println("jerklib:Cought Client Exception");
+			e.printStackTrace();
+		}
+	}
+
+	private static Task[] append(Task[] tasks, Task task)
+	{
+		Task[] updated = new Task[tasks.length + 1];
+		System.arraycopy(tasks, 0, updated, 0, tasks.length);
+		updated[tasks.length] = task;
+		return updated;
+	}
+
+	/**
+	 * Copy of tasks without task , or without canceled tasks
+	 */
+	private static Task[] without(Task[] tasks, Task task, boolean canceled)
+	{
+		List<Task> kept = new ArrayList<Task>(tasks.length);
+		for (Task t : tasks)
+		{
+			if (canceled ? !t.isCanceled() : !t.equals(task))
+			{
+				kept.add(t);
+			}
+		}
+		return kept.size() == tasks.length ? tasks : kept.toArray(new Task[kept.size()]);
+	}
+}
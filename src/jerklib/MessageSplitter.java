@@ -0,0 +1,246 @@
+package jerklib;
+
+import java.nio.charset.Charset;
+
+import jerklib.util.FormattedText;
+
+/**
+ * Splits message text into pieces that fit in an IRC line.
+ * 
+ * Lengths are counted in encoded bytes , not chars. Pieces are cut at a space
+ * when there is one , else at a code point boundary , and never inside a
+ * mIRC control sequence such as a color code. Formatting that is still on at
+ * a cut is turned on again at the start of the next piece so it reads the same ,
+ * except hex colors (^D) , which FormattedText does not keep either.
+ * Each piece is filled as far as it can go so a paste needs the fewest lines.
+ */
+class MessageSplitter
+{
+	/* longest line a server accepts , including CRLF */
+	static final int MAX_LINE_BYTES = 512;
+
+	static final char BOLD = '\u0002', COLOR = '\u0003', HEX_COLOR = '\u0004', RESET = '\u000F', MONOSPACE = '\u0011',
+			REVERSE = '\u0016', ITALIC = '\u001D', STRIKETHROUGH = '\u001E', UNDERLINE = '\u001F';
+
+	/* codes turned on again after a cut and the FormattedText style each one toggles */
+	private static final char[] STYLE_CODES = { BOLD, ITALIC, UNDERLINE, STRIKETHROUGH, MONOSPACE, REVERSE };
+	private static final int[] STYLES = { FormattedText.BOLD, FormattedText.ITALIC, FormattedText.UNDERLINE, FormattedText.STRIKETHROUGH,
+			FormattedText.MONOSPACE, FormattedText.REVERSE };
+
+	private final boolean utf8;
+	private final int bytesPerChar;
+
+	/**
+	 * @param charset charset the text will be sent in
+	 */
+	MessageSplitter(Charset charset)
+	{
+		utf8 = charset.name().equals("UTF-8");
+		bytesPerChar = (int) Math.ceil(charset.newEncoder().maxBytesPerChar());
+	}
+
+	/**
+	 * Counts the bytes text will take when encoded
+	 * 
+	 * @param text
+	 * @return byte length
+	 */
+	int byteLength(CharSequence text)
+	{
+		return byteLength(text, 0, text.length());
+	}
+
+	/**
+	 * Counts the bytes part of text will take when encoded
+	 * 
+	 * @param text
+	 * @param start
+	 * @param end
+	 * @return byte length
+	 */
+	int byteLength(CharSequence text, int start, int end)
+	{
+		int bytes = 0;
+		for (int i = start; i < end; i++)
+		{
+			char c = text.charAt(i);
+			if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1)))
+			{
+				bytes += utf8 ? 4 : 2 * bytesPerChar;
+				i++;
+			}
+			else
+			{
+				bytes += charBytes(c);
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Cuts the first piece off a message
+	 * 
+	 * @param message text to split
+	 * @param budget bytes the piece may take
+	 * @return the piece and the rest of the message , the rest is null if the
+	 * whole message fits
+	 */
+	String[] split(String message, int budget)
+	{
+		if (byteLength(message) <= budget)
+		{
+			return new String[] { message, null };
+		}
+
+		int length = message.length();
+		int bytes = 0;
+
+		/* formatting at the current position , colors are the digits of the last ^C that set them */
+		int style = 0;
+		String fg = null, bg = null;
+
+		/* best cut so far: end of the piece , where the rest starts and the
+		 * formatting to turn on again for the rest */
+		int wordEnd = -1, wordRest = -1, hardEnd = -1;
+		String wordState = "", hardState = "";
+
+		/* a cut at a space needs some text before it */
+		boolean text = false;
+
+		int i = 0;
+		while (i < length)
+		{
+			char c = message.charAt(i);
+			int next;
+			if (c == COLOR || c == HEX_COLOR)
+			{
+				next = FormattedText.codeEnd(message, i);
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(message.charAt(i + 1)))
+			{
+				next = i + 2;
+			}
+			else
+			{
+				next = i + 1;
+			}
+
+			int unitBytes = byteLength(message, i, next);
+			if (bytes + unitBytes > budget && (wordEnd > 0 || hardEnd > 0))
+			{
+				break;
+			}
+
+			bytes += unitBytes;
+			switch (c)
+			{
+				case RESET:
+					style = 0;
+					fg = bg = null;
+					break;
+				case COLOR:
+					if (next - i == 1)
+					{
+						fg = bg = null;
+					}
+					else
+					{
+						int comma = i + 1;
+						while (comma < next && message.charAt(comma) != ',')
+						{
+							comma++;
+						}
+						if (comma == next)
+						{
+							fg = message.substring(i + 1, next);
+						}
+						else
+						{
+							fg = message.substring(i + 1, comma);
+							bg = message.substring(comma + 1, next);
+						}
+					}
+					break;
+				case HEX_COLOR:
+					break;
+				case ' ':
+					if (text)
+					{
+						wordEnd = i;
+						wordRest = next;
+						wordState = state(style, fg, bg);
+					}
+					break;
+				default:
+					int s = styleIndex(c);
+					if (s == -1) text = true;
+					else style ^= STYLES[s];
+			}
+
+			i = next;
+			hardEnd = i;
+			hardState = state(style, fg, bg);
+		}
+
+		if (wordEnd > 0)
+		{
+			return new String[] { message.substring(0, wordEnd), rest(wordState, message, wordRest) };
+		}
+		return new String[] { message.substring(0, hardEnd), rest(hardState, message, hardEnd) };
+	}
+
+	/**
+	 * The rest of a message after a cut , null if nothing but spaces is left
+	 */
+	private String rest(String state, String message, int start)
+	{
+		if (message.substring(start).trim().length() == 0) return null;
+		return state + message.substring(start);
+	}
+
+	/**
+	 * Control codes that turn the given formatting on. Colors are written
+	 * with two digits and both colors , 99 being the default , so digits or
+	 * a comma at the start of the rest are not read as part of the code.
+	 */
+	private static String state(int style, String fg, String bg)
+	{
+		if (style == 0 && fg == null && bg == null) return "";
+		StringBuilder sb = new StringBuilder(16);
+		if (fg != null || bg != null)
+		{
+			sb.append(COLOR).append(twoDigits(fg)).append(',').append(twoDigits(bg));
+		}
+		for (int s = 0; s < STYLE_CODES.length; s++)
+		{
+			if ((style & STYLES[s]) != 0) sb.append(STYLE_CODES[s]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Index of a style code in STYLE_CODES , -1 if c is not one
+	 */
+	private static int styleIndex(char c)
+	{
+		for (int s = 0; s < STYLE_CODES.length; s++)
+		{
+			if (c == STYLE_CODES[s]) return s;
+		}
+		return -1;
+	}
+
+	private static String twoDigits(String color)
+	{
+		if (color == null) return "99";
+		return color.length() == 1 ? "0" + color : color;
+	}
+
+	private int charBytes(char c)
+	{
+		if (!utf8) return bytesPerChar;
+		if (c < 0x80) return 1;
+		if (c < 0x800) return 2;
+		return 3;
+	}
+}
@@ -10,6 +10,7 @@ package jerklib;
 public class Profile
 {
 	private String name, realName , actualNick, firstNick, secondNick, thirdNick;
+	private String encoding = "UTF-8";
 
 	/**
 	 * Create a new Profile
@@ -156,7 +157,31 @@ public class Profile
     public void setRealName(String realName)
     {
         this.realName = realName;
-    }/* (non-Javadoc)
+    }
+
+	/**
+	 * Get the name of the charset used to decode text from the server.
+	 * UTF-8 by default.
+	 * 
+	 * @return charset name
+	 */
+	public String getEncoding()
+	{
+		return encoding;
+	}
+
+	/**
+	 * Set the charset used to decode text from the server. Lines that are
+	 * not valid in this charset are decoded as Latin-1.
+	 * 
+	 * @param encoding charset name , like UTF-8 or ISO-8859-15
+	 */
+	public void setEncoding(String encoding)
+	{
+		this.encoding = encoding == null ? "UTF-8" : encoding;
+	}
+
+	/* (non-Javadoc)
 	 * @see java.lang.Object#equals(java.lang.Object)
 	 */
 	public boolean equals(Object o)
@@ -190,6 +215,7 @@ public class Profile
 	{
 		Profile impl = new Profile(name, realName, firstNick, secondNick, thirdNick);
 		impl.setActualNick(actualNick);
+		impl.setEncoding(encoding);
 		return impl;
 	}
 }
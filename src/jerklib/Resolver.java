@@ -0,0 +1,250 @@
+package jerklib;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves host names off the io thread.
+ *
+ * Lookups run on a small pool whose threads exit when idle. Results are cached
+ * for the JVM's networkaddress.cache.ttl (30 seconds when it is not set) , Java
+ * does not expose the TTL of the DNS record itself. Concurrent lookups of the
+ * same host share one query , and when a lookup fails an expired entry is
+ * used rather than failing the connect on a flaky network.
+ */
+class Resolver
+{
+	private Logger log = Logger.getLogger(this.getClass().getName());
+
+	/**
+	 * Receives the result of a lookup , called on a resolver thread
+	 * or on the calling thread when the answer is cached
+	 */
+	interface Callback
+	{
+		/**
+		 * @param addresses addresses of the host , null if the lookup failed
+		 * @param error why the lookup failed , null if it did not
+		 */
+		void resolved(InetAddress[] addresses, UnknownHostException error);
+	}
+
+	private static final int POOL_SIZE = 2;
+	private static final long DEFAULT_TTL = 30000;
+	private static final long DEFAULT_NEGATIVE_TTL = 10000;
+
+	private final long ttl = securityTtl("networkaddress.cache.ttl", DEFAULT_TTL);
+	private final long negativeTtl = securityTtl("networkaddress.cache.negative.ttl", DEFAULT_NEGATIVE_TTL);
+
+	private final Map<String, Entry> cache = new HashMap<String, Entry>();
+	private final Map<String, List<Callback>> inFlight = new HashMap<String, List<Callback>>();
+	private final ThreadPoolExecutor pool;
+
+	Resolver()
+	{
+		pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "jerklib-resolver-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Looks up a host , the callback runs right away if the answer is cached
+	 *
+	 * @param host name or literal address
+	 * @param callback
+	 */
+	void resolve(final String host, Callback callback)
+	{
+		Entry entry;
+		synchronized (this)
+		{
+			entry = cache.get(host);
+			if (entry == null || entry.expires <= System.currentTimeMillis())
+			{
+				entry = null;
+				List<Callback> waiting = inFlight.get(host);
+				if (waiting != null)
+				{
+					waiting.add(callback);
+					return;
+				}
+				waiting = new ArrayList<Callback>(1);
+				waiting.add(callback);
+				inFlight.put(host, waiting);
+			}
+			else if (entry.addresses != null)
+			{
+				entry = new Entry(entry.addresses.clone(), entry.expires);
+			}
+		}
+
+		if (entry == null)
+		{
+			pool.execute(new Runnable()
+			{
+				public void run()
+				{
+					lookup(host);
+				}
+			});
+		}
+		else if (entry.addresses == null)
+		{
+			callback.resolved(null, new UnknownHostException(host));
+		}
+		else
+		{
+			callback.resolved(entry.addresses, null);
+		}
+	}
+
+	/**
+	 * Moves an address to the front of a cached answer ,
+	 * so the address that connected last is tried first next time
+	 *
+	 * @param host
+	 * @param address
+	 */
+	synchronized void connected(String host, InetAddress address)
+	{
+		Entry entry = cache.get(host);
+		if (entry == null || entry.addresses == null) return;
+
+		InetAddress[] addresses = entry.addresses;
+		for (int i = 1; i < addresses.length; i++)
+		{
+			if (addresses[i].equals(address))
+			{
+				System.arraycopy(addresses, 0, addresses, 1, i);
+				addresses[0] = address;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stops the resolver threads
+	 */
+	void shutdown()
+	{
+		pool.shutdown();
+	}
+
+	/**
+	 * Runs on a resolver thread
+	 */
+	private void lookup(String host)
+	{
+		InetAddress[] addresses = null;
+		UnknownHostException error = null;
+		try
+		{
+			addresses = InetAddress.getAllByName(host);
+		}
+		catch (UnknownHostException e)
+		{
+			error = e;
+		}
+		catch (SecurityException e)
+		{
+			error = new UnknownHostException(host + " " + e.getMessage());
+		}
+
+		List<Callback> waiting;
+		synchronized (this)
+		{
+			long now = System.currentTimeMillis();
+			Entry old = cache.get(host);
+			if (addresses != null)
+			{
+				cache.put(host, new Entry(addresses.clone(), now + ttl));
+			}
+			else if (old != null && old.addresses != null)
+			{
+				/* keep using what worked before , try again after the negative ttl */
+				addresses = old.addresses.clone();
+				old.expires = now + negativeTtl;
+				error = null;
+			}
+			else
+			{
+				cache.put(host, new Entry(null, now + negativeTtl));
+			}
+			waiting = inFlight.remove(host);
+		}
+
+		for (Callback callback : waiting)
+		{
+			try
+			{
+				callback.resolved(addresses == null ? null : addresses.clone(), error);
+			}
+			catch (RuntimeException e)
+			{
+				log.log(Level.WARNING, "Resolver callback for " + host + " failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Reads a cache ttl in seconds from the security properties
+	 *
+	 * @return ttl in milliseconds
+	 */
+	private static long securityTtl(String name, long defaultTtl)
+	{
+		try
+		{
+			String value = Security.getProperty(name);
+			if (value != null)
+			{
+				long seconds = Long.parseLong(value.trim());
+				/* -1 means forever , keep it bounded so a moved server is found again */
+				return seconds < 0 ? 24 * 60 * 60 * 1000L : seconds * 1000;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+		}
+		catch (SecurityException e)
+		{
+		}
+		return defaultTtl;
+	}
+
+	/**
+	 * A cached answer , addresses is null for a failed lookup
+	 */
+	private static class Entry
+	{
+		final InetAddress[] addresses;
+		long expires;
+
+		Entry(InetAddress[] addresses, long expires)
+		{
+			this.addresses = addresses;
+			this.expires = expires;
+		}
+	}
+}
@@ -21,6 +21,7 @@ public class ServerInformation
     private boolean supportsKnock, supportsWhox, supportsWallchops, supportsWallVoices, supportsUserIP, supportsEtrace;
     private Map<String, Integer> joinLimits = new HashMap<String, Integer>();
     private Map<String, String> nickPrefixMap = new LinkedHashMap<String, String>();
+    private String nickPrefixChars = "@%+", nickPrefixModes = "ohv";
     private Map<String, ModeType> modeMap = new HashMap<String, ModeType>();
 
     /**
@@ -91,9 +92,7 @@ public class ServerInformation
             }
             else if (subTokens[0].equals("CHANTYPES") && subTokens.length == 2)
             {
-                String[] data = subTokens[1].split("");
-                channelPrefixes = new String[data.length - 1];
-                System.arraycopy(data, 1, channelPrefixes, 0, data.length - 1);
+                channelPrefixes = characters(subTokens[1]);
             }
             else if (subTokens[0].equals("EXCEPTS"))
             {
@@ -238,6 +237,7 @@ public class ServerInformation
                         modeMap.put(modes[x], ModeType.GROUP_B);
                     }
                 }
+                updateNickPrefixes();
             }
             else if (subTokens[0].equals("MODES"))
             {
@@ -249,9 +249,7 @@ public class ServerInformation
             else if (subTokens[0].equals("STATUSMSG"))
             {
                 supportsStatusNotice = true;
-                String[] tmp = subTokens[1].split("");
-                statusPrefixes = new String[tmp.length - 1];
-                System.arraycopy(tmp, 1, statusPrefixes, 0, tmp.length - 1);
+                statusPrefixes = characters(subTokens[1]);
             }
 
             else if (subTokens[0].equals("CHANMODES"))
@@ -646,6 +644,44 @@ public class ServerInformation
         return new ArrayList<String>(nickPrefixMap.values());
     }
 
+    /**
+     * Get the nick prefix characters , highest rank first. Same order
+     * as {@link #getNickPrefixModes()}. Example: "@%+"
+     *
+     * @return the nick prefix characters
+     */
+    public String getNickPrefixChars()
+    {
+        return nickPrefixChars;
+    }
+
+    /**
+     * Get the modes of the nick prefixes , highest rank first. Same order
+     * as {@link #getNickPrefixChars()}. Example: "ohv"
+     *
+     * A new String is made each time PREFIX is parsed , so it can be
+     * compared by reference to see if PREFIX changed.
+     *
+     * @return the nick prefix modes
+     */
+    public String getNickPrefixModes()
+    {
+        return nickPrefixModes;
+    }
+
+    private void updateNickPrefixes()
+    {
+        StringBuilder chars = new StringBuilder();
+        StringBuilder modes = new StringBuilder();
+        for (Map.Entry<String, String> entry : nickPrefixMap.entrySet())
+        {
+            chars.append(entry.getKey());
+            modes.append(entry.getValue());
+        }
+        nickPrefixChars = chars.toString();
+        nickPrefixModes = modes.toString();
+    }
+
     /**
      * Get The nickprefixes supported
      *
@@ -666,6 +702,20 @@ public class ServerInformation
         return statusPrefixes;
     }
 
+    /*
+     * split("") only gives a leading empty string on older runtimes ,
+     * so do not rely on it
+     */
+    private static String[] characters(String s)
+    {
+        String[] chars = new String[s.length()];
+        for (int i = 0; i < chars.length; i++)
+        {
+            chars[i] = s.substring(i, i + 1);
+        }
+        return chars;
+    }
+
     /**
      * Get the channel prefixes
      *
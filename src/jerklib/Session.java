@@ -2,15 +2,15 @@ package jerklib;
 
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
 
 import jerklib.ModeAdjustment.Action;
 import jerklib.events.ConnectionLostEvent;
+import jerklib.events.IRCEvent;
 import jerklib.events.IRCEvent.Type;
 import jerklib.listeners.IRCEventListener;
 import jerklib.parsers.CommandParser;
@@ -43,20 +43,32 @@ import jerklib.tasks.TaskImpl;
 public class Session extends RequestGenerator
 {
 
-	private final List<IRCEventListener> listenerList = new ArrayList<IRCEventListener>();
-	private final Map<Type, List<Task>> taskMap = new HashMap<Type, List<Task>>();
+	private final ListenerRegistry listenerRegistry = new ListenerRegistry();
+	private final EventDispatcher dispatcher;
+	private final SessionMetrics metrics;
 	private final RequestedConnection rCon;
 	private Connection con;
 	private final ConnectionManager conman;
+	private final IoShard shard;
 	private boolean rejoinOnKick = true, isAway , isLoggedIn , useAltNicks = true;
-	private long lastRetry = -1, lastResponse = System.currentTimeMillis();
+	private long lastRetry = -1;
 	private ServerInformation serverInfo = new ServerInformation();
-	private State state = State.DISCONNECTED;
+	private volatile State state = State.DISCONNECTED;
 	private InternalEventParser parser;
 	private IRCEventListener internalEventHandler;
 	private List<ModeAdjustment> userModes = new ArrayList<ModeAdjustment>();
-	private final Map<String, Channel> channelMap = new HashMap<String, Channel>();
+	private volatile CaseMapping caseMapping = CaseMapping.RFC1459;
+	private final FoldedMap<Channel> channelMap = new FoldedMap<Channel>(caseMapping);
+	/* channels each nick is in , so nick changes and quits only touch those */
+	private final FoldedMap<List<Channel>> nickChannels = new FoldedMap<List<Channel>>(caseMapping);
 	private int retries = 0;
+	private volatile WriteScheduler writeScheduler = new TokenBucketScheduler();
+	private volatile String userHost;
+	/* pending ping , ping timeout , connect timeout or reconnect , only one at a time */
+	private TimerWheel.Timeout deadline;
+	private final CapNegotiator caps = new CapNegotiator(this);
+	/* only used on the io thread */
+	private final BatchTracker batches = new BatchTracker();
 	
 	public enum State
 	{
@@ -65,8 +77,10 @@ public class Session extends RequestGenerator
 		HALF_CONNECTED, 
 		DISCONNECTED, 
 		MARKED_FOR_REMOVAL, 
+		/* no longer entered , pings are scheduled by the ConnectionManager */
 		NEED_TO_PING, 
 		PING_SENT, 
+		/* no longer entered , a ping timeout disconnects right away */
 		NEED_TO_RECONNECT
 	}
 
@@ -74,11 +88,15 @@ public class Session extends RequestGenerator
 	/**
 	 * @param rCon
 	 * @param conman
+	 * @param shard io thread this Session's connection is handled on
 	 */
-	Session(RequestedConnection rCon, ConnectionManager conman)
+	Session(RequestedConnection rCon, ConnectionManager conman, IoShard shard)
 	{
 		this.rCon = rCon;
 		this.conman = conman;
+		this.shard = shard;
+		this.metrics = new SessionMetrics(rCon.getHostName());
+		this.dispatcher = new EventDispatcher(conman.getDispatchExecutor(), listenerRegistry, metrics);
 		setSession(this);
 	}
 	
@@ -268,6 +286,52 @@ public class Session extends RequestGenerator
 	void loginSuccess()
 	{
 		isLoggedIn = true;
+		caps.registered();
+	}
+
+	/**
+	 * Tests if the server enabled an IRCv3 capability for this connection.
+	 * jerklib requests multi-prefix , userhost-in-names , server-time and batch
+	 * when the server offers them.
+	 * 
+	 * @param cap capability name like server-time
+	 * @return true if enabled
+	 */
+	public boolean hasCapability(String cap)
+	{
+		return caps.isEnabled(cap);
+	}
+
+	/**
+	 * Gets the IRCv3 capabilities the server enabled for this connection
+	 * 
+	 * @return list of capability names
+	 */
+	public List<String> getCapabilities()
+	{
+		return caps.getEnabled();
+	}
+
+	/**
+	 * Asks for an IRCv3 capability when connecting , if the server offers it.
+	 * Takes effect on the next connect. Listeners must handle what the
+	 * capability changes , jerklib only understands the ones it requests itself.
+	 * 
+	 * @param cap capability name
+	 */
+	public void requestCapability(String cap)
+	{
+		caps.want(cap);
+	}
+
+	CapNegotiator getCapNegotiator()
+	{
+		return caps;
+	}
+
+	BatchTracker getBatches()
+	{
+		return batches;
 	}
 	
 	
@@ -307,6 +371,73 @@ public class Session extends RequestGenerator
 	}
 	
 	
+	/**
+	 * Sets the scheduler that decides when writes are sent. Requests already
+	 * queued in the old scheduler are not moved , so this should be set before
+	 * connecting.
+	 * 
+	 * @param scheduler
+	 * @see TokenBucketScheduler
+	 */
+	public void setWriteScheduler(WriteScheduler scheduler)
+	{
+		if (scheduler == null) throw new IllegalArgumentException("scheduler can not be null");
+		writeScheduler = scheduler;
+	}
+	
+	/**
+	 * Gets the scheduler that decides when writes are sent.
+	 * A TokenBucketScheduler by default.
+	 * 
+	 * @return the scheduler
+	 */
+	public WriteScheduler getWriteScheduler()
+	{
+		return writeScheduler;
+	}
+	
+	/**
+	 * Gets the user@host the server shows for this Session , learned from the
+	 * welcome message or from joining a channel.
+	 * 
+	 * @return user@host or null if not known yet
+	 */
+	public String getUserHost()
+	{
+		return userHost;
+	}
+	
+	/**
+	 * Sets the user@host the server shows for this Session
+	 * 
+	 * @param userHost
+	 */
+	void setUserHost(String userHost)
+	{
+		this.userHost = userHost;
+	}
+	
+	/**
+	 * Number of writes waiting to be sent
+	 * 
+	 * @return queue depth
+	 */
+	public int getWriteQueueSize()
+	{
+		return writeScheduler.size();
+	}
+	
+	/**
+	 * Time until the next queued write is sent
+	 * 
+	 * @return milliseconds , 0 if a write can be sent now or -1 if nothing is queued
+	 */
+	public long getTimeUntilNextWrite()
+	{
+		return writeScheduler.getDelay(System.currentTimeMillis());
+	}
+	
+	
 	/**
 	 * Disconnect from server and destroy Session
 	 * 
@@ -314,6 +445,8 @@ public class Session extends RequestGenerator
 	 */
 	public void close(String quitMessage)
 	{
+		/* so losing the connection while quitting does not reconnect */
+		markForRemoval();
 //		System.out.println("NERTS1-1");
 		if (con != null)
 		{
@@ -419,7 +552,36 @@ public class Session extends RequestGenerator
 	 */
 	public void addIRCEventListener(IRCEventListener listener)
 	{
-		listenerList.add(listener);
+		listenerRegistry.addListener(listener);
+	}
+
+	/**
+	 * Adds an IRCEventListener that is only notified of the given Types
+	 * of IRCEvents. Events no listener or task wants may not be parsed at all.
+	 * 
+	 * @param listener
+	 * @param types
+	 * @see Session#wantsEvent(Type)
+	 */
+	public void addIRCEventListener(IRCEventListener listener, Type... types)
+	{
+		for (Type type : types)
+		{
+			listenerRegistry.addListener(listener, type);
+		}
+	}
+
+	/**
+	 * Tests if an IRCEvent of a Type would reach anyone. True if a listener
+	 * for all events , a listener or task for the Type , or the internal event
+	 * handler of the ConnectionManager needs it.
+	 * 
+	 * @param type
+	 * @return true if events of type are wanted
+	 */
+	public boolean wantsEvent(Type type)
+	{
+		return listenerRegistry.wants(type) || conman.needsInternally(type);
 	}
 
 	/**
@@ -430,17 +592,18 @@ public class Session extends RequestGenerator
 	 */
 	public boolean removeIRCEventListener(IRCEventListener listener)
 	{
-		return listenerList.remove(listener);
+		return listenerRegistry.removeListener(listener);
 	}
 
 	/**
 	 * Get a collection of all IRCEventListeners attached to Session
+	 * at the time of the call
 	 * 
 	 * @return listeners
 	 */
 	public Collection<IRCEventListener> getIRCEventListeners()
 	{
-		return Collections.unmodifiableCollection(listenerList);
+		return listenerRegistry.getListeners();
 	}
 
 	/**
@@ -466,21 +629,9 @@ public class Session extends RequestGenerator
 	 */
 	public void onEvent(Task task, Type... types)
 	{
-		synchronized (taskMap)
+		for (Type type : types)
 		{
-			for (Type type : types)
-			{
-				if (!taskMap.containsKey(type))
-				{
-					List<Task> tasks = new ArrayList<Task>();
-					tasks.add(task);
-					taskMap.put(type, tasks);
-				}
-				else
-				{
-					taskMap.get(type).add(task);
-				}
-			}
+			listenerRegistry.addTask(task, type);
 		}
 	}
 	
@@ -494,7 +645,7 @@ public class Session extends RequestGenerator
 	 */
 	Map<Type, List<Task>> getTasks()
 	{
-		return Collections.unmodifiableMap(new HashMap<Type, List<Task>>(taskMap));
+		return listenerRegistry.getTasks();
 	}
 
 	/**
@@ -505,20 +656,21 @@ public class Session extends RequestGenerator
 	 */
 	public void removeTask(Task t)
 	{
-		synchronized (taskMap)
-		{
-			for (Iterator<Type> it = taskMap.keySet().iterator(); it.hasNext();)
-			{
-				List<Task> tasks = taskMap.get(it.next());
-				if (tasks != null)
-				{
-					tasks.remove(t);
-				}
-			}
-		}
+		listenerRegistry.removeTask(t);
 	}
 
 
+	/**
+	 * Queues an event to be relayed to the listeners and tasks of this Session
+	 * 
+	 * @param event
+	 */
+	void relay(IRCEvent event)
+	{
+		dispatcher.dispatch(event);
+	}
+	
+	
 	/**
 	 * Get a List of Channels Session is currently in
 	 * 
@@ -527,7 +679,7 @@ public class Session extends RequestGenerator
 	 */
 	public List<Channel> getChannels()
 	{
-		return Collections.unmodifiableList(new ArrayList<Channel>(channelMap.values()));
+		return Collections.unmodifiableList(channelMap.values());
 	}
 
 	/**
@@ -538,7 +690,7 @@ public class Session extends RequestGenerator
 	 */
 	public Channel getChannel(String channelName)
 	{
-		return channelMap.get(channelName.toLowerCase());
+		return channelMap.get(channelName);
 	}
 
 	/**
@@ -548,7 +700,11 @@ public class Session extends RequestGenerator
 	 */
 	void addChannel(Channel channel)
 	{
-		channelMap.put(channel.getName().toLowerCase(), channel);
+		channelMap.put(channel.getName(), channel);
+		for (String nick : channel.getNickView())
+		{
+			nickAdded(channel, nick);
+		}
 	}
 
 	/**
@@ -558,7 +714,46 @@ public class Session extends RequestGenerator
 	 */
 	boolean removeChannel(Channel channel)
 	{
-		return channelMap.remove(channel.getName().toLowerCase()) == null;
+		if (channelMap.remove(channel.getName()) == null) return false;
+		for (String nick : channel.getNickView())
+		{
+			nickRemoved(channel, nick);
+		}
+		return true;
+	}
+
+	/**
+	 * Called by a joined Channel when a nick is added to it
+	 * 
+	 * @param channel
+	 * @param nick
+	 */
+	void nickAdded(Channel channel, String nick)
+	{
+		if (channelMap.get(channel.getName()) != channel) return;
+
+		List<Channel> channels = nickChannels.get(nick);
+		if (channels == null)
+		{
+			channels = new ArrayList<Channel>(2);
+			nickChannels.put(nick, channels);
+		}
+		if (!channels.contains(channel)) channels.add(channel);
+	}
+
+	/**
+	 * Called by a Channel when a nick is removed from it
+	 * 
+	 * @param channel
+	 * @param nick
+	 */
+	void nickRemoved(Channel channel, String nick)
+	{
+		List<Channel> channels = nickChannels.get(nick);
+		if (channels == null) return;
+
+		channels.remove(channel);
+		if (channels.isEmpty()) nickChannels.remove(nick);
 	}
 
 	/**
@@ -569,16 +764,14 @@ public class Session extends RequestGenerator
 	 */
 	void nickChanged(String oldNick, String newNick)
 	{
-		synchronized (channelMap)
+		List<Channel> channels = nickChannels.remove(oldNick);
+		if (channels == null) return;
+
+		for (Channel chan : channels)
 		{
-			for (Channel chan : channelMap.values())
-			{
-				if (chan.getNicks().contains(oldNick))
-				{
-					chan.nickChanged(oldNick, newNick);
-				}
-			}
+			chan.nickChanged(oldNick, newNick);
 		}
+		nickChannels.put(newNick, channels);
 	}
 	
 	/**
@@ -588,15 +781,86 @@ public class Session extends RequestGenerator
 	 */
 	public List<Channel> removeNickFromAllChannels(String nick)
 	{
-		List<Channel> returnList = new ArrayList<Channel>();
-		for (Channel chan : channelMap.values())
+		List<Channel> channels = nickChannels.remove(nick);
+		if (channels == null) return Collections.emptyList();
+
+		for (Channel chan : channels)
+		{
+			chan.removeNick(nick);
+		}
+		return Collections.unmodifiableList(channels);
+	}
+
+	/**
+	 * Removes nicks from all channels , each channel drops all of its
+	 * nicks in one pass. Used for the QUITs of a netsplit batch.
+	 * @param nicks
+	 */
+	void removeNicksFromAllChannels(List<String> nicks)
+	{
+		Map<Channel, List<String>> gone = new LinkedHashMap<Channel, List<String>>();
+		for (String nick : nicks)
 		{
-			if (chan.removeNick(nick))
+			List<Channel> channels = nickChannels.remove(nick);
+			if (channels == null) continue;
+
+			for (Channel chan : channels)
 			{
-				returnList.add(chan);
+				List<String> chanNicks = gone.get(chan);
+				if (chanNicks == null)
+				{
+					chanNicks = new ArrayList<String>();
+					gone.put(chan, chanNicks);
+				}
+				chanNicks.add(nick);
 			}
 		}
-		return Collections.unmodifiableList(returnList);
+
+		for (Map.Entry<Channel, List<String>> entry : gone.entrySet())
+		{
+			entry.getKey().removeNicks(entry.getValue());
+		}
+	}
+
+	/**
+	 * Gets the joined channels a nick is in
+	 * @param nick
+	 * @return list of Channels nick is in
+	 */
+	public List<Channel> getChannelsOf(String nick)
+	{
+		List<Channel> channels = nickChannels.get(nick);
+		if (channels == null) return Collections.emptyList();
+		return Collections.unmodifiableList(new ArrayList<Channel>(channels));
+	}
+
+	/**
+	 * Gets the case mapping the server uses to compare nicks and channel names.
+	 * rfc1459 until the server announces one in numeric 005.
+	 * 
+	 * @return CaseMapping of the server
+	 */
+	public CaseMapping getCaseMapping()
+	{
+		return caseMapping;
+	}
+
+	/**
+	 * Called when numeric 005 was parsed , switches the nick and channel
+	 * indexes to the CASEMAPPING of the server
+	 */
+	void updateCaseMapping()
+	{
+		CaseMapping mapping = CaseMapping.forName(serverInfo.getCaseMapping());
+		if (mapping == caseMapping) return;
+
+		caseMapping = mapping;
+		channelMap.setCaseMapping(mapping);
+		nickChannels.setCaseMapping(mapping);
+		for (Channel chan : channelMap.values())
+		{
+			chan.setCaseMapping(mapping);
+		}
 	}
 
 	/* methods to track connection attempts */
@@ -620,6 +884,34 @@ public class Session extends RequestGenerator
 		lastRetry = System.currentTimeMillis();
 	}
 
+	/**
+	 * Gets a copy of the counters and latency histograms of this Session
+	 * 
+	 * @return metrics as they are now
+	 * @see ConnectionManager#getSessionMetrics()
+	 */
+	public SessionMetrics getMetrics()
+	{
+		return metrics.snapshot();
+	}
+
+	/**
+	 * @return the metrics this Session records into
+	 */
+	SessionMetrics getLiveMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Gets the io thread this Session's connection is handled on
+	 * @return shard
+	 */
+	IoShard getShard()
+	{
+		return shard;
+	}
+
 	/**
 	 * Sets the connection for this Session
 	 * @param con
@@ -642,12 +934,29 @@ public class Session extends RequestGenerator
 
 
 	/**
-	 * Got ping response
+	 * Replaces the pending timer deadline of this Session
+	 * 
+	 * @param timeout new deadline , null to just cancel the pending one
+	 */
+	synchronized void setDeadline(TimerWheel.Timeout timeout)
+	{
+		if (deadline != null)
+		{
+			deadline.cancel();
+		}
+		deadline = timeout;
+	}
+
+	/**
+	 * Got ping response , the next ping is due a ping interval from now.
+	 * Before 001 the server may PING too , that leaves the registration
+	 * deadline in place so a server that never sends 001 still times out.
 	 */
 	void gotResponse()
 	{
-		lastResponse = System.currentTimeMillis();
+		if (!isLoggedIn) return;
 		state = State.CONNECTED;
+		conman.schedulePing(this);
 	}
 
 	/**
@@ -663,8 +972,9 @@ public class Session extends RequestGenerator
 	 */
 	void disconnected(Exception e)
 	{
-		if (state == State.DISCONNECTED) return;
+		if (state == State.DISCONNECTED || state == State.MARKED_FOR_REMOVAL) return;
 		state = State.DISCONNECTED;
+		setDeadline(null);
 		if (con != null)
 		{
 			con.quit("");
@@ -673,6 +983,17 @@ public class Session extends RequestGenerator
 		
 		isLoggedIn = false;
 		conman.addToRelayList(new ConnectionLostEvent("",this,e));
+		conman.scheduleReconnect(this);
+	}
+
+	/**
+	 * Session could not connect , no Connection was made so
+	 * no ConnectionLostEvent is fired
+	 */
+	void connectFailed()
+	{
+		state = State.DISCONNECTED;
+		setDeadline(null);
 	}
 
 	/**
@@ -706,28 +1027,18 @@ public class Session extends RequestGenerator
 	void markForRemoval()
 	{
 		state = State.MARKED_FOR_REMOVAL;
+		setDeadline(null);
 	}
 
 	/**
-	 * Get the State of the Session
+	 * Get the State of the Session. Pings and timeouts are driven by
+	 * the ConnectionManager's timers , so this is just the current state.
 	 * @return Session state
 	 * @see State
+	 * @see ConnectionManager#setPingInterval(long)
 	 */
 	public State getState()
 	{
-		long current = System.currentTimeMillis();
-
-		if (state == State.DISCONNECTED) return state;
-
-		if (current - lastResponse > 300000 && state == State.NEED_TO_PING)
-		{
-			state = State.NEED_TO_RECONNECT;
-		}
-		else if (current - lastResponse > 200000 && state != State.PING_SENT)
-		{
-			state = State.NEED_TO_PING;
-		}
-
 		return state;
 	}
 
@@ -758,8 +1069,8 @@ public class Session extends RequestGenerator
 	 */
         void login()
         {
-            // test :irc.inter.net.il CAP * LS :multi-prefix
-            // writeRequests.add(new WriteRequest("CAP LS", this));
+            batches.clear();
+            caps.start();
             sayRaw("NICK " + getNick());
             sayRaw("USER " + rCon.getProfile().getName() + " 0 0 :" + rCon.getProfile().getRealName());
         }
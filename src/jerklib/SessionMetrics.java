@@ -0,0 +1,303 @@
+package jerklib;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counters and latency histograms of one Session.
+ *
+ * A Session records into its own instance as it reads , parses , relays and
+ * writes , {@link Session#getMetrics()} hands out copies. Counters are totals
+ * since the Session was created and are kept across reconnects. Recording
+ * never allocates , except the first time a command is parsed.
+ *
+ * @see ConnectionManager#getSessionMetrics()
+ * @see jerklib.listeners.MetricsListener
+ */
+public class SessionMetrics
+{
+	/* commands timed separately , the rest are counted as * */
+	private static final int MAX_COMMANDS = 64;
+	private static final String OTHER = "*";
+
+	private final String hostName;
+
+	/* written by the io thread of the Session */
+	private volatile long bytesIn , linesIn , bytesOut , linesOut , writeStalls , reconnects;
+	private volatile int relayQueuePeak;
+	private volatile int relayQueueDepth;
+
+	/* enqueue for relaying to listener called , queued to written */
+	private final LatencyHistogram relayLatency , writeWait;
+
+	/* parse time by command , open addressing over String keys */
+	private final String[] commands;
+	private final long[] parseCounts , parseNanos , parseMax;
+	private int commandCount;
+
+	SessionMetrics(String hostName)
+	{
+		this.hostName = hostName;
+		relayLatency = new LatencyHistogram();
+		writeWait = new LatencyHistogram();
+		commands = new String[MAX_COMMANDS * 2];
+		parseCounts = new long[commands.length];
+		parseNanos = new long[commands.length];
+		parseMax = new long[commands.length];
+	}
+
+	/**
+	 * Copies another instance
+	 */
+	private SessionMetrics(SessionMetrics other)
+	{
+		hostName = other.hostName;
+		bytesIn = other.bytesIn;
+		linesIn = other.linesIn;
+		bytesOut = other.bytesOut;
+		linesOut = other.linesOut;
+		writeStalls = other.writeStalls;
+		reconnects = other.reconnects;
+		relayQueuePeak = other.relayQueuePeak;
+		relayQueueDepth = other.relayQueueDepth;
+		relayLatency = other.relayLatency.copy();
+		writeWait = other.writeWait.copy();
+		synchronized (other)
+		{
+			commands = other.commands.clone();
+			parseCounts = other.parseCounts.clone();
+			parseNanos = other.parseNanos.clone();
+			parseMax = other.parseMax.clone();
+			commandCount = other.commandCount;
+		}
+	}
+
+	/**
+	 * @return a copy of the metrics as they are now
+	 */
+	SessionMetrics snapshot()
+	{
+		return new SessionMetrics(this);
+	}
+
+	void bytesRead(int bytes)
+	{
+		bytesIn += bytes;
+	}
+
+	void lineRead()
+	{
+		linesIn++;
+	}
+
+	/**
+	 * @param bytes bytes the socket took
+	 */
+	void bytesWritten(long bytes)
+	{
+		bytesOut += bytes;
+	}
+
+	/**
+	 * @param queuedNanos System.nanoTime() when the line was queued
+	 * @param now System.nanoTime()
+	 */
+	void lineWritten(long queuedNanos, long now)
+	{
+		linesOut++;
+		writeWait.record(now - queuedNanos);
+	}
+
+	/**
+	 * Flood control started holding back queued lines
+	 */
+	void writeStalled()
+	{
+		writeStalls++;
+	}
+
+	void reconnected()
+	{
+		reconnects++;
+	}
+
+	/**
+	 * @param depth events waiting to be relayed after one was queued
+	 */
+	void relayQueued(int depth)
+	{
+		relayQueueDepth = depth;
+		if (depth > relayQueuePeak) relayQueuePeak = depth;
+	}
+
+	/**
+	 * @param queuedNanos System.nanoTime() when the event was queued
+	 * @param now System.nanoTime() right before the listeners are called
+	 * @param depth events still waiting
+	 */
+	void relayed(long queuedNanos, long now, int depth)
+	{
+		relayQueueDepth = depth;
+		relayLatency.record(now - queuedNanos);
+	}
+
+	/**
+	 * @param command command of the line , like PRIVMSG or 353
+	 * @param nanos time the parser took
+	 */
+	synchronized void parsed(String command, long nanos)
+	{
+		int slot = slot(command);
+		parseCounts[slot]++;
+		parseNanos[slot] += nanos;
+		if (nanos > parseMax[slot]) parseMax[slot] = nanos;
+	}
+
+	/**
+	 * @return slot of a command , taken if new , the slot of * once MAX_COMMANDS are taken
+	 */
+	private int slot(String command)
+	{
+		int mask = commands.length - 1;
+		int i = command.hashCode() & mask;
+		for (String c; (c = commands[i]) != null; i = (i + 1) & mask)
+		{
+			if (c.equals(command)) return i;
+		}
+		if (commandCount < MAX_COMMANDS - 1 || command == OTHER)
+		{
+			commands[i] = command;
+			commandCount++;
+			return i;
+		}
+		return slot(OTHER);
+	}
+
+	/**
+	 * @return host name of the Session
+	 */
+	public String getHostName()
+	{
+		return hostName;
+	}
+
+	/**
+	 * @return bytes read from the server
+	 */
+	public long getBytesIn()
+	{
+		return bytesIn;
+	}
+
+	/**
+	 * @return lines read from the server
+	 */
+	public long getLinesIn()
+	{
+		return linesIn;
+	}
+
+	/**
+	 * @return bytes written to the server
+	 */
+	public long getBytesOut()
+	{
+		return bytesOut;
+	}
+
+	/**
+	 * @return lines written to the server
+	 */
+	public long getLinesOut()
+	{
+		return linesOut;
+	}
+
+	/**
+	 * @return times flood control held back lines that were ready to go
+	 */
+	public long getWriteStalls()
+	{
+		return writeStalls;
+	}
+
+	/**
+	 * @return reconnect attempts
+	 */
+	public long getReconnects()
+	{
+		return reconnects;
+	}
+
+	/**
+	 * @return events waiting to be relayed to listeners
+	 */
+	public int getRelayQueueDepth()
+	{
+		return relayQueueDepth;
+	}
+
+	/**
+	 * @return most events that were ever waiting to be relayed
+	 */
+	public int getRelayQueuePeak()
+	{
+		return relayQueuePeak;
+	}
+
+	/**
+	 * @return nanoseconds from an event being queued to its listeners being called
+	 */
+	public LatencyHistogram getRelayLatency()
+	{
+		return relayLatency;
+	}
+
+	/**
+	 * @return nanoseconds from a WriteRequest being queued to it being written ,
+	 * flood control delays included
+	 */
+	public LatencyHistogram getWriteWait()
+	{
+		return writeWait;
+	}
+
+	/**
+	 * Gets parse times by command
+	 *
+	 * @return command to { lines parsed , total nanoseconds , max nanoseconds } ,
+	 * commands past the first 63 are counted under *
+	 */
+	public synchronized Map<String, long[]> getParseTimes()
+	{
+		Map<String, long[]> times = new LinkedHashMap<String, long[]>();
+		for (int i = 0; i < commands.length; i++)
+		{
+			if (commands[i] != null) times.put(commands[i], new long[] { parseCounts[i], parseNanos[i], parseMax[i] });
+		}
+		return Collections.unmodifiableMap(times);
+	}
+
+	/**
+	 * @return lines parsed and nanoseconds spent parsing , over all commands
+	 */
+	public synchronized long[] getTotalParseTime()
+	{
+		long count = 0 , nanos = 0;
+		for (int i = 0; i < commands.length; i++)
+		{
+			count += parseCounts[i];
+			nanos += parseNanos[i];
+		}
+		return new long[] { count, nanos };
+	}
+
+	public String toString()
+	{
+		long[] parse = getTotalParseTime();
+		return hostName + " in:" + bytesIn + "b/" + linesIn + " out:" + bytesOut + "b/" + linesOut + " parsed:" + parse[0] + " in " + parse[1] / 1000 + "us"
+				+ " relay queue:" + relayQueueDepth + " peak:" + relayQueuePeak + " stalls:" + writeStalls + " reconnects:" + reconnects
+				+ " relay latency " + relayLatency + " write wait " + writeWait;
+	}
+}
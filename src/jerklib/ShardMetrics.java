@@ -0,0 +1,94 @@
+package jerklib;
+
+/**
+ * A snapshot of the counters of one io thread of a ConnectionManager.
+ * Counters are totals since the thread started.
+ * 
+ * @see ConnectionManager#getShardMetrics()
+ */
+public class ShardMetrics
+{
+	private final int index , sessions , eventQueuePeak;
+	private final long loops , readyKeys , eventsParsed , timersRun , busyTime;
+
+	ShardMetrics(int index, int sessions, long loops, long readyKeys, long eventsParsed, int eventQueuePeak, long timersRun, long busyTime)
+	{
+		this.index = index;
+		this.sessions = sessions;
+		this.eventQueuePeak = eventQueuePeak;
+		this.loops = loops;
+		this.readyKeys = readyKeys;
+		this.eventsParsed = eventsParsed;
+		this.timersRun = timersRun;
+		this.busyTime = busyTime;
+	}
+
+	/**
+	 * @return number of the shard , its thread is named jerklib-io-index
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * @return Sessions currently on the shard
+	 */
+	public int getSessionCount()
+	{
+		return sessions;
+	}
+
+	/**
+	 * @return times the thread returned from select()
+	 */
+	public long getLoopCount()
+	{
+		return loops;
+	}
+
+	/**
+	 * @return channels select() reported ready
+	 */
+	public long getReadyKeyCount()
+	{
+		return readyKeys;
+	}
+
+	/**
+	 * @return lines parsed
+	 */
+	public long getEventsParsed()
+	{
+		return eventsParsed;
+	}
+
+	/**
+	 * @return most lines read in one pass of the thread , waiting to be parsed together
+	 */
+	public int getEventQueuePeak()
+	{
+		return eventQueuePeak;
+	}
+
+	/**
+	 * @return ping , timeout and reconnect timers run
+	 */
+	public long getTimersRun()
+	{
+		return timersRun;
+	}
+
+	/**
+	 * @return milliseconds spent outside select() reading , writing , parsing and running timers
+	 */
+	public long getBusyTime()
+	{
+		return busyTime;
+	}
+
+	public String toString()
+	{
+		return "shard " + index + " sessions:" + sessions + " loops:" + loops + " ready:" + readyKeys + " parsed:" + eventsParsed + " queue peak:" + eventQueuePeak + " timers:" + timersRun + " busy:" + busyTime + "ms";
+	}
+}
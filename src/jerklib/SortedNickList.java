@@ -0,0 +1,358 @@
+package jerklib;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * Nicks of a Channel in the order clients show them , highest nick prefix first
+ * (like @ before + before none) then by name under the server's CaseMapping.
+ *
+ * Adding , removing , renaming or changing the prefix of one nick is a lookup ,
+ * a binary search and one array copy , so a nick list can be kept up to date from
+ * JOIN , PART , QUIT , NICK , KICK and MODE events instead of being rebuilt and
+ * sorted. Those methods return the index the nick ended up at so a list view can
+ * update just that row.
+ *
+ * get() returns nicks without their prefix , see {@link #getPrefix(int)}.
+ * indexOf() and contains() compare as the server does. Methods are synchronized ,
+ * a list filled on one thread may be read from another.
+ *
+ * @see Channel#getNickList()
+ * @see jerklib.events.NickListEvent#getNickList()
+ */
+public class SortedNickList extends AbstractList<String>
+{
+	/* no prefix ranks after every prefix */
+	private static final int NO_PREFIX = 32;
+
+	/* nick prefixes like @%+ and their modes like ohv , highest rank first */
+	private final String prefixes , modes;
+	private CaseMapping mapping;
+	private final FoldedMap<Entry> entries;
+	private Entry[] sorted;
+	private int size;
+
+	private final Comparator<Entry> order = new Comparator<Entry>()
+	{
+		public int compare(Entry a, Entry b)
+		{
+			int diff = a.rank() - b.rank();
+			return diff != 0 ? diff : mapping.compare(a.nick, b.nick);
+		}
+	};
+
+	/**
+	 * Creates an empty list for the PREFIX and CASEMAPPING a server announced
+	 *
+	 * @param info
+	 * @param mapping
+	 */
+	public SortedNickList(ServerInformation info, CaseMapping mapping)
+	{
+		this.prefixes = info.getNickPrefixChars();
+		this.modes = info.getNickPrefixModes();
+		this.mapping = mapping;
+		entries = new FoldedMap<Entry>(mapping);
+		sorted = new Entry[16];
+	}
+
+	/**
+	 * Copies a list
+	 *
+	 * @param other
+	 */
+	public SortedNickList(SortedNickList other)
+	{
+		synchronized (other)
+		{
+			prefixes = other.prefixes;
+			modes = other.modes;
+			mapping = other.mapping;
+			entries = new FoldedMap<Entry>(mapping);
+			sorted = new Entry[Math.max(16, other.size)];
+			for (int i = 0; i < other.size; i++)
+			{
+				Entry e = new Entry(other.sorted[i].nick, other.sorted[i].bits);
+				sorted[i] = e;
+				entries.put(e.nick, e);
+			}
+			size = other.size;
+		}
+	}
+
+	/**
+	 * Adds a nick as it appears in a NAMES reply , leading nick prefixes
+	 * like @+ set its modes. If the nick is already in the list its modes
+	 * are replaced.
+	 *
+	 * @param name nick with optional prefixes
+	 * @return index of the nick
+	 */
+	public synchronized int addNick(String name)
+	{
+		int bits = 0 , start = 0;
+		for (; start < name.length() - 1; start++)
+		{
+			int bit = prefixes.indexOf(name.charAt(start));
+			if (bit == -1) break;
+			if (bit < NO_PREFIX) bits |= 1 << bit;
+		}
+		return put(name.substring(start), bits);
+	}
+
+	/**
+	 * Same as {@link #addNick(String)} , the nick is inserted at its sorted place
+	 * and not appended
+	 */
+	public boolean add(String name)
+	{
+		addNick(name);
+		return true;
+	}
+
+	/**
+	 * Adds a nick or replaces its modes
+	 *
+	 * @param nick nick without prefixes
+	 * @param bits bit i set for mode i of PREFIX
+	 * @return index of the nick
+	 */
+	synchronized int put(String nick, int bits)
+	{
+		Entry e = entries.get(nick);
+		if (e != null)
+		{
+			if (e.bits == bits) return find(e);
+			delete(find(e));
+			e.bits = bits;
+		}
+		else
+		{
+			e = new Entry(nick, bits);
+			entries.put(nick, e);
+		}
+		return insert(e);
+	}
+
+	/**
+	 * Removes a nick
+	 *
+	 * @param nick
+	 * @return index the nick was at , -1 if it was not in the list
+	 */
+	public synchronized int removeNick(String nick)
+	{
+		Entry e = entries.remove(nick);
+		if (e == null) return -1;
+
+		int index = find(e);
+		delete(index);
+		return index;
+	}
+
+	public boolean remove(Object o)
+	{
+		return o != null && removeNick(o.toString()) != -1;
+	}
+
+	/**
+	 * Removes several nicks , like the QUITs of a netsplit , in one pass over
+	 * the list instead of one array copy per nick
+	 *
+	 * @param nicks
+	 * @return number of nicks that were in the list
+	 */
+	public synchronized int removeNicks(Collection<String> nicks)
+	{
+		int removed = 0;
+		for (String nick : nicks)
+		{
+			Entry e = entries.remove(nick);
+			if (e == null) continue;
+			e.removed = true;
+			removed++;
+		}
+		if (removed == 0) return 0;
+
+		int kept = 0;
+		for (int i = 0; i < size; i++)
+		{
+			if (!sorted[i].removed) sorted[kept++] = sorted[i];
+		}
+		Arrays.fill(sorted, kept, size, null);
+		size = kept;
+		modCount++;
+		return removed;
+	}
+
+	/**
+	 * Renames a nick , keeping its modes
+	 *
+	 * @param oldNick
+	 * @param newNick
+	 * @return new index of the nick , -1 if oldNick was not in the list
+	 */
+	public synchronized int rename(String oldNick, String newNick)
+	{
+		Entry e = entries.remove(oldNick);
+		if (e == null) return -1;
+
+		delete(find(e));
+		e.nick = newNick;
+		entries.put(newNick, e);
+		return insert(e);
+	}
+
+	/**
+	 * Sets or unsets a nick prefix mode of a nick. Modes that
+	 * are not in PREFIX are ignored.
+	 *
+	 * @param nick
+	 * @param mode like o or v
+	 * @param set true for +mode , false for -mode
+	 * @return new index of the nick , -1 if the nick is not in the list or the mode is not a prefix mode
+	 */
+	public synchronized int setMode(String nick, char mode, boolean set)
+	{
+		int bit = modes.indexOf(mode);
+		Entry e = bit == -1 || bit >= NO_PREFIX ? null : entries.get(nick);
+		if (e == null) return -1;
+
+		int bits = set ? e.bits | (1 << bit) : e.bits & ~(1 << bit);
+		return put(e.nick, bits);
+	}
+
+	/**
+	 * @return nick at index , without prefix
+	 */
+	public synchronized String get(int index)
+	{
+		if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		return sorted[index].nick;
+	}
+
+	/**
+	 * Gets the highest nick prefix of the nick at an index
+	 *
+	 * @param index
+	 * @return prefix like @ , or an empty String for none
+	 */
+	public synchronized String getPrefix(int index)
+	{
+		if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		int rank = sorted[index].rank();
+		return rank < prefixes.length() ? String.valueOf(prefixes.charAt(rank)) : "";
+	}
+
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	public synchronized int indexOf(Object o)
+	{
+		Entry e = o == null ? null : entries.get(o.toString());
+		return e == null ? -1 : find(e);
+	}
+
+	public int lastIndexOf(Object o)
+	{
+		return indexOf(o);
+	}
+
+	public boolean contains(Object o)
+	{
+		return indexOf(o) != -1;
+	}
+
+	public synchronized void clear()
+	{
+		entries.clear();
+		Arrays.fill(sorted, 0, size, null);
+		size = 0;
+		modCount++;
+	}
+
+	/**
+	 * Called when the server announces a CASEMAPPING
+	 *
+	 * @param mapping
+	 */
+	synchronized void setCaseMapping(CaseMapping mapping)
+	{
+		if (mapping == this.mapping) return;
+		this.mapping = mapping;
+		entries.setCaseMapping(mapping);
+		Arrays.sort(sorted, 0, size, order);
+		modCount++;
+	}
+
+	/**
+	 * @return index of an Entry that is in the list
+	 */
+	private int find(Entry e)
+	{
+		int low = 0 , high = size - 1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int cmp = order.compare(sorted[mid], e);
+			if (cmp < 0) low = mid + 1;
+			else if (cmp > 0) high = mid - 1;
+			else return mid;
+		}
+		/* only if nicks differ but fold the same , can not happen through the map */
+		for (int i = 0; i < size; i++)
+		{
+			if (sorted[i] == e) return i;
+		}
+		return -1;
+	}
+
+	private int insert(Entry e)
+	{
+		int low = 0 , high = size;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (order.compare(sorted[mid], e) < 0) low = mid + 1;
+			else high = mid;
+		}
+
+		if (size == sorted.length) sorted = Arrays.copyOf(sorted, size << 1);
+		System.arraycopy(sorted, low, sorted, low + 1, size - low);
+		sorted[low] = e;
+		size++;
+		modCount++;
+		return low;
+	}
+
+	private void delete(int index)
+	{
+		System.arraycopy(sorted, index + 1, sorted, index, size - index - 1);
+		sorted[--size] = null;
+		modCount++;
+	}
+
+	private static class Entry
+	{
+		String nick;
+		int bits;
+		/* set by removeNicks() until the list is compacted */
+		boolean removed;
+
+		Entry(String nick, int bits)
+		{
+			this.nick = nick;
+			this.bits = bits;
+		}
+
+		/* lowest bit is the highest prefix */
+		int rank()
+		{
+			return bits == 0 ? NO_PREFIX : Integer.numberOfTrailingZeros(bits);
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package jerklib;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timer wheel used by the io thread for ping , ping timeout and
+ * reconnect deadlines.
+ *
+ * Timeouts are hashed into a slot by their deadline tick and kept in a
+ * doubly linked list , timeouts without a delay go on a list of their own , so scheduling and canceling are O(1) no matter how
+ * many Sessions there are. {@link #advance(long)} only walks slots when the
+ * earliest deadline has been reached , and {@link #getDelay(long)} tells the
+ * io thread how long it may sleep , so an idle wheel costs nothing.
+ *
+ * Timeouts may be scheduled and canceled from any thread , tasks are run
+ * by the thread calling advance().
+ */
+class TimerWheel
+{
+	private Logger log = Logger.getLogger(this.getClass().getName());
+
+	private final long tickDuration;
+	private final Timeout[] slots;
+	private final int mask;
+
+	/* last tick that was processed */
+	private long currentTick;
+
+	/* never later than the earliest pending deadline , may be earlier after a cancel */
+	private long earliestTick = Long.MAX_VALUE;
+
+	/* timeouts scheduled without a delay , run by the next advance() */
+	private Timeout dueNow;
+	private static final long DUE_NOW = -1;
+
+	private int size;
+
+	/**
+	 * @param tickDuration length of a tick in milliseconds
+	 * @param slotCount number of slots , rounded up to a power of two
+	 * @param now current time in milliseconds
+	 */
+	TimerWheel(long tickDuration, int slotCount, long now)
+	{
+		int n = 1;
+		while (n < slotCount) n <<= 1;
+		this.tickDuration = tickDuration;
+		this.slots = new Timeout[n];
+		this.mask = n - 1;
+		this.currentTick = now / tickDuration;
+	}
+
+	/**
+	 * Schedules a task
+	 *
+	 * @param task task to run
+	 * @param delay milliseconds from now , rounded up to the next tick
+	 * @param now current time in milliseconds
+	 * @return Timeout that can be used to cancel the task
+	 */
+	synchronized Timeout schedule(Runnable task, long delay, long now)
+	{
+		size++;
+		if (delay <= 0)
+		{
+			Timeout timeout = new Timeout(this, task, DUE_NOW);
+			timeout.next = dueNow;
+			if (dueNow != null) dueNow.prev = timeout;
+			dueNow = timeout;
+			return timeout;
+		}
+
+		long tick = (now + delay + tickDuration - 1) / tickDuration;
+		/* never put a timeout in a slot that has already been processed */
+		if (tick <= currentTick) tick = currentTick + 1;
+
+		Timeout timeout = new Timeout(this, task, tick);
+		int index = (int) (tick & mask);
+		timeout.next = slots[index];
+		if (timeout.next != null) timeout.next.prev = timeout;
+		slots[index] = timeout;
+
+		if (tick < earliestTick) earliestTick = tick;
+		return timeout;
+	}
+
+	/**
+	 * Runs every task whose deadline has passed
+	 *
+	 * @param now current time in milliseconds
+	 * @return number of tasks run
+	 */
+	int advance(long now)
+	{
+		Timeout expired = null;
+		synchronized (this)
+		{
+			while (dueNow != null)
+			{
+				Timeout t = dueNow;
+				unlink(t);
+				t.expired = true;
+				t.next = expired;
+				expired = t;
+			}
+
+			long nowTick = now / tickDuration;
+			if (nowTick < earliestTick)
+			{
+				/* nothing due , no timeout lives in the skipped slots */
+				if (nowTick > currentTick) currentTick = nowTick;
+			}
+			else
+			{
+				/* a slot holds every deadline hashed to it , one lap covers them all */
+				long last = Math.min(nowTick, currentTick + slots.length);
+				for (long tick = currentTick + 1; tick <= last; tick++)
+				{
+					Timeout t = slots[(int) (tick & mask)];
+					while (t != null)
+					{
+						Timeout next = t.next;
+						if (t.tick <= nowTick)
+						{
+							unlink(t);
+							t.expired = true;
+							t.next = expired;
+							expired = t;
+						}
+						t = next;
+					}
+				}
+				currentTick = nowTick;
+				earliestTick = findEarliest();
+			}
+		}
+
+		int count = 0;
+		while (expired != null)
+		{
+			Timeout t = expired;
+			expired = t.next;
+			t.next = null;
+			synchronized (this)
+			{
+				/* canceled by a task that ran before it */
+				if (t.wheel == null) continue;
+				t.wheel = null;
+			}
+			try
+			{
+				t.task.run();
+			}
+			catch (RuntimeException e)
+			{
+				log.log(Level.WARNING, "Timer task failed", e);
+			}
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * How long the io thread may block before advance() has work to do
+	 *
+	 * @param now current time in milliseconds
+	 * @return milliseconds until the earliest deadline , 0 if one is due , -1 if nothing is scheduled
+	 */
+	synchronized long getDelay(long now)
+	{
+		if (dueNow != null) return 0;
+		if (earliestTick == Long.MAX_VALUE) return -1;
+		return Math.max(earliestTick * tickDuration - now, 0);
+	}
+
+	/**
+	 * @return number of pending timeouts
+	 */
+	synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Finds the earliest pending tick by walking slots from the current tick ,
+	 * the first timeout due within one lap ends the walk.
+	 */
+	private long findEarliest()
+	{
+		if (size == 0) return Long.MAX_VALUE;
+
+		long earliest = Long.MAX_VALUE;
+		for (int i = 1; i <= slots.length; i++)
+		{
+			long tick = currentTick + i;
+			for (Timeout t = slots[(int) (tick & mask)]; t != null; t = t.next)
+			{
+				if (t.tick == tick) return tick;
+				if (t.tick < earliest) earliest = t.tick;
+			}
+		}
+		return earliest;
+	}
+
+	private void unlink(Timeout t)
+	{
+		if (t.prev != null) t.prev.next = t.next;
+		else if (t.tick == DUE_NOW) dueNow = t.next;
+		else slots[(int) (t.tick & mask)] = t.next;
+		if (t.next != null) t.next.prev = t.prev;
+		t.prev = null;
+		t.next = null;
+		size--;
+	}
+
+	/**
+	 * A scheduled task
+	 */
+	static class Timeout
+	{
+		private volatile TimerWheel wheel;
+		private final Runnable task;
+		private final long tick;
+		private Timeout prev, next;
+
+		/* taken off the wheel by advance() , about to run */
+		private boolean expired;
+
+		private Timeout(TimerWheel wheel, Runnable task, long tick)
+		{
+			this.wheel = wheel;
+			this.task = task;
+			this.tick = tick;
+		}
+
+		/**
+		 * Cancels the task if it has not run yet
+		 *
+		 * @return true if the task was still pending
+		 */
+		boolean cancel()
+		{
+			TimerWheel w = wheel;
+			if (w == null) return false;
+			synchronized (w)
+			{
+				if (wheel == null) return false;
+				if (!expired) w.unlink(this);
+				wheel = null;
+				return true;
+			}
+		}
+
+		/**
+		 * @return true if the task has neither run nor been canceled
+		 */
+		boolean isPending()
+		{
+			return wheel != null;
+		}
+	}
+}
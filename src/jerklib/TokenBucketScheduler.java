@@ -0,0 +1,271 @@
+package jerklib;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Default WriteScheduler. Rate limits writes with a token bucket and
+ * sends control traffic ahead of everything else.
+ * 
+ * The bucket holds burst tokens and gets one back every interval milliseconds ,
+ * each write takes one. When the bucket is empty normal requests wait.
+ * PING , PONG , QUIT , NICK and CAP lines go in a priority lane that is always
+ * sent right away , they still take a token so the server sees the same rate.
+ * 
+ * With fairness on , normal requests are queued per target (channel or nick) and
+ * targets take turns , so a long paste to one channel does not hold up a reply
+ * in another , even when each line of the paste is split in several. Requests
+ * without a target share one queue. Fairness is off by default , requests are
+ * then sent in the order they were added.
+ */
+public class TokenBucketScheduler implements WriteScheduler
+{
+	private static final String[] PRIORITY_COMMANDS = { "PONG", "PING", "QUIT", "NICK", "CAP" };
+
+	private final LinkedList<WriteRequest> priority = new LinkedList<WriteRequest>();
+	private final Map<String, LinkedList<WriteRequest>> targetQueues = new HashMap<String, LinkedList<WriteRequest>>();
+
+	/* targets with queued requests , head is next to send */
+	private final LinkedList<String> targetOrder = new LinkedList<String>();
+
+	private long interval;
+	private int burst;
+	private boolean fair;
+	private int size;
+
+	/* time the bucket will be full again , the bucket is empty
+	 * when this is burst * interval in the future */
+	private long fullAt;
+
+	/**
+	 * Creates a scheduler that allows 5 writes at once and one more every 2 seconds
+	 */
+	public TokenBucketScheduler()
+	{
+		this(2000, 5);
+	}
+
+	/**
+	 * @param interval milliseconds to get a token back
+	 * @param burst size of the bucket
+	 */
+	public TokenBucketScheduler(long interval, int burst)
+	{
+		setRate(interval, burst);
+	}
+
+	/**
+	 * Changes the rate , takes effect for the next write.
+	 * 
+	 * @param interval milliseconds to get a token back
+	 * @param burst size of the bucket
+	 */
+	public synchronized void setRate(long interval, int burst)
+	{
+		if (interval < 0 || burst < 1) throw new IllegalArgumentException("interval must be >= 0 and burst >= 1");
+		this.interval = interval;
+		this.burst = burst;
+	}
+
+	/**
+	 * Turns round robin between targets on or off
+	 * 
+	 * @param fair
+	 */
+	public synchronized void setFair(boolean fair)
+	{
+		this.fair = fair;
+	}
+
+	/**
+	 * @return true if targets take turns
+	 */
+	public synchronized boolean isFair()
+	{
+		return fair;
+	}
+
+	/* (non-Javadoc)
+	 * @see jerklib.WriteScheduler#add(jerklib.WriteRequest)
+	 */
+	public synchronized void add(WriteRequest request)
+	{
+		if (isPriority(request))
+		{
+			priority.addLast(request);
+		}
+		else
+		{
+			String target = targetOf(request);
+			LinkedList<WriteRequest> queue = targetQueues.get(target);
+			if (queue == null)
+			{
+				queue = new LinkedList<WriteRequest>();
+				targetQueues.put(target, queue);
+				targetOrder.addLast(target);
+			}
+			queue.addLast(request);
+		}
+		size++;
+	}
+
+	/* (non-Javadoc)
+	 * @see jerklib.WriteScheduler#addFirst(jerklib.WriteRequest)
+	 */
+	public synchronized void addFirst(WriteRequest request)
+	{
+		if (isPriority(request))
+		{
+			priority.addFirst(request);
+		}
+		else
+		{
+			/* the rest of a split message , its target keeps its place in the turns */
+			String target = targetOf(request);
+			LinkedList<WriteRequest> queue = targetQueues.get(target);
+			if (queue == null)
+			{
+				queue = new LinkedList<WriteRequest>();
+				targetQueues.put(target, queue);
+				// the target just had its turn
+				if (fair) targetOrder.addLast(target);
+				else targetOrder.addFirst(target);
+			}
+			queue.addFirst(request);
+		}
+		size++;
+	}
+
+	/* (non-Javadoc)
+	 * @see jerklib.WriteScheduler#next(long)
+	 */
+	public synchronized WriteRequest next(long now)
+	{
+		if (!priority.isEmpty())
+		{
+			take(now);
+			size--;
+			return priority.removeFirst();
+		}
+
+		if (targetOrder.isEmpty() || tokenDelay(now) > 0) return null;
+
+		String target = targetOrder.removeFirst();
+		LinkedList<WriteRequest> queue = targetQueues.get(target);
+		WriteRequest request = queue.removeFirst();
+		if (queue.isEmpty())
+		{
+			targetQueues.remove(target);
+		}
+		else if (fair)
+		{
+			targetOrder.addLast(target);
+		}
+		else
+		{
+			targetOrder.addFirst(target);
+		}
+
+		take(now);
+		size--;
+		return request;
+	}
+
+	/* (non-Javadoc)
+	 * @see jerklib.WriteScheduler#getDelay(long)
+	 */
+	public synchronized long getDelay(long now)
+	{
+		if (size == 0) return -1;
+		if (!priority.isEmpty()) return 0;
+		return tokenDelay(now);
+	}
+
+	/* (non-Javadoc)
+	 * @see jerklib.WriteScheduler#size()
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/* (non-Javadoc)
+	 * @see jerklib.WriteScheduler#clear()
+	 */
+	public synchronized void clear()
+	{
+		priority.clear();
+		targetQueues.clear();
+		targetOrder.clear();
+		size = 0;
+	}
+
+	/**
+	 * Milliseconds until the bucket has a token
+	 */
+	private long tokenDelay(long now)
+	{
+		return Math.max(fullAt - now - (burst - 1) * interval, 0);
+	}
+
+	/**
+	 * Takes a token , the bucket can go below empty for priority requests
+	 */
+	private void take(long now)
+	{
+		fullAt = Math.max(fullAt, now) + interval;
+	}
+
+	/**
+	 * Tests if a request is control traffic that should not wait behind chat
+	 * 
+	 * @param request
+	 * @return true if request goes in the priority lane
+	 */
+	protected boolean isPriority(WriteRequest request)
+	{
+		if (request.getType() != WriteRequest.Type.RAW_MSG) return false;
+		String message = request.getMessage();
+		for (String command : PRIORITY_COMMANDS)
+		{
+			int length = command.length();
+			if (message.regionMatches(true, 0, command, 0, length)
+					&& (message.length() == length || message.charAt(length) == ' ' || message.charAt(length) == '\r'))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the key requests are queued under when fairness is on. Targets
+	 * are folded with the CASEMAPPING of the Session , so one channel or nick
+	 * always gets one queue whatever the case or default locale.
+	 * 
+	 * @param request
+	 * @return folded target or empty string if request has no target
+	 */
+	protected String targetOf(WriteRequest request)
+	{
+		if (!fair) return "";
+		CaseMapping mapping = request.getSession() == null ? CaseMapping.RFC1459 : request.getSession().getCaseMapping();
+		switch (request.getType())
+		{
+			case CHANNEL_MSG:
+				return mapping.fold(request.getChannel().getName());
+			case PRIVATE_MSG:
+				return mapping.fold(request.getNick());
+			default:
+				String message = request.getMessage();
+				if (message.regionMatches(true, 0, "PRIVMSG ", 0, 8) || message.regionMatches(true, 0, "NOTICE ", 0, 7))
+				{
+					int start = message.indexOf(' ') + 1;
+					int end = message.indexOf(' ', start);
+					return mapping.fold(end == -1 ? message.substring(start) : message.substring(start, end));
+				}
+				return "";
+		}
+	}
+}
@@ -15,6 +15,8 @@ public class WriteRequest
 	private final String message, nick;
 	private final Channel channel;
 	private final Session session;
+	/* System.nanoTime() when the request was made , for the write wait metric */
+	long queuedAt = System.nanoTime();
 
 	/**
 	 * Type enum is used to determine type. It is returned from getType() PRIV_MSG
@@ -0,0 +1,58 @@
+package jerklib;
+
+/**
+ * Decides when queued WriteRequests are sent to the server.
+ * 
+ * A Connection adds every request it is given to the scheduler of its Session and
+ * asks for the next one each time the socket is writable. Implementations must
+ * be thread safe , requests are added from any thread and taken from the
+ * ConnectionManager's io thread.
+ * @see TokenBucketScheduler
+ * @see Session#setWriteScheduler(WriteScheduler)
+ */
+public interface WriteScheduler
+{
+	/**
+	 * Queues a request
+	 * 
+	 * @param request
+	 */
+	public void add(WriteRequest request);
+
+	/**
+	 * Puts a request back at the head of its queue , used when only part
+	 * of a request could be sent.
+	 * 
+	 * @param request
+	 */
+	public void addFirst(WriteRequest request);
+
+	/**
+	 * Takes the next request that may be sent now.
+	 * 
+	 * @param now current time in milliseconds
+	 * @return request or null if nothing may be sent yet
+	 */
+	public WriteRequest next(long now);
+
+	/**
+	 * Gets how long until next() will return a request.
+	 * 
+	 * @param now current time in milliseconds
+	 * @return milliseconds until next send , 0 if a request may be sent now or -1
+	 * if nothing is queued
+	 */
+	public long getDelay(long now);
+
+	/**
+	 * Number of queued requests
+	 * 
+	 * @return queue depth
+	 */
+	public int size();
+
+	/**
+	 * Drops all queued requests
+	 */
+	public void clear();
+}
@@ -0,0 +1,84 @@
+package jerklib.events;
+
+import java.util.List;
+
+import jerklib.Session;
+
+/**
+ * The event fired when an IRCv3 batch ends. A batch groups messages the
+ * server sends together , like all the QUITs of a netsplit.
+ *
+ * The events of netsplit and netjoin batches are held until the batch ends ,
+ * then applied to the channels at once and only relayed as part of this event.
+ * The events of other batches are relayed as they arrive and are also
+ * listed here.
+ *
+ * @see IRCEvent#getTag(String)
+ *
+ */
+public class BatchEvent extends IRCEvent
+{
+	private final String reference , batchType;
+	private final List<String> parameters;
+	private final List<IRCEvent> events;
+	private final boolean held;
+
+	/**
+	 * @param rawEventData the line that started the batch
+	 * @param session
+	 * @param reference
+	 * @param batchType
+	 * @param parameters
+	 * @param events
+	 * @param held true if the events were not relayed on their own
+	 */
+	public BatchEvent(String rawEventData , Session session , String reference , String batchType , List<String> parameters , List<IRCEvent> events , boolean held)
+	{
+		super(rawEventData, session, Type.BATCH);
+		this.reference = reference;
+		this.batchType = batchType;
+		this.parameters = parameters;
+		this.events = events;
+		this.held = held;
+	}
+
+	/**
+	 * @return reference tag the server gave the batch
+	 */
+	public String getReference()
+	{
+		return reference;
+	}
+
+	/**
+	 * @return batch type , like netsplit , netjoin or chathistory
+	 */
+	public String getBatchType()
+	{
+		return batchType;
+	}
+
+	/**
+	 * @return parameters after the type , for a netsplit the two servers that split
+	 */
+	public List<String> getParameters()
+	{
+		return parameters;
+	}
+
+	/**
+	 * @return events in the batch in the order they arrived , nested batches included as BatchEvents
+	 */
+	public List<IRCEvent> getEvents()
+	{
+		return events;
+	}
+
+	/**
+	 * @return true if the events were held until the batch ended and not relayed on their own
+	 */
+	public boolean isHeld()
+	{
+		return held;
+	}
+}
@@ -1,7 +1,10 @@
 package jerklib.events;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * 
@@ -20,16 +23,44 @@ import java.util.List;
  *                NUL or CR or LF&gt;
  * </pre>
  * 
+ * The line is scanned once and only the offsets of the prefix , command and
+ * arguments are recorded. Strings are created the first time a part is asked
+ * for and are cached after that.
+ * 
+ * IRCv3 message tags (<code>@time=...;batch=1 :nick!user@host ...</code>) are
+ * split off before the line is parsed , so the raw event data and every offset
+ * refer to the line without its tags. Tag values are unescaped when asked for.
+ * 
  * @author mohadib
  *
  */
 public class EventToken
 {
-	private final String data; 
-	private String prefix = "", command = "";
-	private List<String>arguments = new ArrayList<String>();
-	private int offset = 0;
-	
+	/* initial number of arguments there is room for , RFC 1459 allows 15 */
+	private static final int MAX_PARAMS = 15;
+
+	private final String data;
+
+	/* message tags without the leading @ , null if the line had none */
+	private String tags;
+	private Map<String, String> tagMap;
+
+	/* offsets into data , -1 when the part is missing */
+	private int prefixStart = -1, prefixEnd = -1, bangIndex = -1, atIndex = -1;
+	private int commandStart, commandEnd;
+
+	/* argument i is data[argOffsets[2i] , argOffsets[2i + 1]) */
+	private int[] argOffsets = new int[MAX_PARAMS * 2];
+	private int argCount;
+
+	/* numeric value of a three digit command , else -1 */
+	private int numeric = -1;
+
+	/* lazily created strings */
+	private String prefix, command;
+	private String[] argStrings;
+	private List<String> argList;
+
 	/**
 	 * Create a new EventToken
 	 * 
@@ -37,6 +68,12 @@ public class EventToken
 	 */
 	public EventToken(String data)
 	{
+		if(data.length() > 0 && data.charAt(0) == '@')
+		{
+			int space = data.indexOf(' ');
+			tags = space == -1 ? data.substring(1) : data.substring(1, space);
+			data = space == -1 ? "" : data.substring(incTillChar(data, space));
+		}
 		this.data = data;
 		parse();
 	}
@@ -46,89 +83,146 @@ public class EventToken
 	 */
 	private void parse()
 	{
-		if(data.length() == 0) return;
+		int length = data.length();
+		if(length == 0) return;
+		
+		int offset = 0;
 		
 		//see if message has prefix
-		if(data.startsWith(":"))
+		if(data.charAt(0) == ':')
 		{
-			extractPrefix(data);
-			incTillChar();
+			offset = extractPrefix();
+			offset = incTillChar(offset);
 		}
 		
 		//get command
-		command = data.substring(offset , data.indexOf(" ", offset));
-		offset += command.length();
+		commandStart = offset;
+		while(offset < length && data.charAt(offset) != ' ')
+		{
+			offset++;
+		}
+		commandEnd = offset;
 		
-		incTillChar();
-		extractArguments();
+		if(commandEnd - commandStart == 3)
+		{
+			numeric = parseNumeric(commandStart);
+		}
+		
+		extractArguments(incTillChar(offset));
+	}
+	
+	/**
+	 * Extract prefix part of messgae
+	 * 
+	 * @return offset after the prefix
+	 */
+	private int extractPrefix()
+	{
+		int length = data.length();
+		
+		//set prefix - : is at 0
+		prefixStart = 1;
+		int i = 1;
+		for(; i < length; i++)
+		{
+			char c = data.charAt(i);
+			if(c == ' ') break;
+			if(c == '!' && bangIndex == -1) bangIndex = i;
+			else if(c == '@' && atIndex == -1) atIndex = i;
+		}
+		prefixEnd = i;
+		return i;
 	}
 	
 	/**
 	 * Extract arguments from message
+	 * 
+	 * @param offset where arguments start
 	 */
-	private void extractArguments()
+	private void extractArguments(int offset)
 	{
-		String argument = "";
-		for(int i = offset; i < data.length() ; i++)
+		int length = data.length();
+		int i = offset;
+		while(i < length)
 		{
-			if(!Character.isWhitespace(data.charAt(i)))
+			//if argument starts with : then arg is everything till EOL
+			if(data.charAt(i) == ':')
 			{
-				argument += data.charAt(i);
-				
-				//if argument.equals(":") then arg is everything till EOL
-				if(argument.length() == 1 && argument.equals(":"))
-				{
-					argument = data.substring(i + 1);
-					arguments.add(argument);
-					return;
-				}
-				offset++;
+				addArgument(i + 1, length);
+				return;
 			}
-			else
+			
+			int start = i;
+			while(i < length && !isWhitespace(data.charAt(i)))
 			{
-				if(argument.length() > 0)
-				{
-					arguments.add(argument);
-					argument = "";
-				}
-				offset++;
+				i++;
 			}
+			addArgument(start, i);
+			i = incTillChar(i);
 		}
-		
-		if(argument.length() != 0)
+	}
+	
+	/**
+	 * Records the offsets of an argument
+	 */
+	private void addArgument(int start, int end)
+	{
+		int index = argCount * 2;
+		if(index == argOffsets.length)
 		{
-			arguments.add(argument);
+			//servers that send more than 15 params still get parsed
+			int[] bigger = new int[argOffsets.length * 2];
+			System.arraycopy(argOffsets, 0, bigger, 0, argOffsets.length);
+			argOffsets = bigger;
 		}
+		argOffsets[index] = start;
+		argOffsets[index + 1] = end;
+		argCount++;
 	}
-	
 
 	/**
 	 * Increment offset until a non-whitespace char is found
+	 * 
+	 * @return offset of the next non-whitespace char or the length of the data
 	 */
-	private void incTillChar()
+	private int incTillChar(int offset)
+	{
+		return incTillChar(data, offset);
+	}
+
+	private static int incTillChar(String data, int offset)
 	{
-		for(int i = offset ; i < data.length(); i++)
+		int length = data.length();
+		while(offset < length && isWhitespace(data.charAt(offset)))
 		{
-			if(!Character.isWhitespace(data.charAt(i)))
-			{
-				return;
-			}
 			offset++;
 		}
+		return offset;
+	}
+	
+	/**
+	 * Space is by far the most common separator , check it before the table lookup
+	 */
+	private static boolean isWhitespace(char c)
+	{
+		return c == ' ' || Character.isWhitespace(c);
 	}
 	
 	/**
-	 * Extract prefix part of messgae , inc offset
+	 * Turns three digits into an int
 	 * 
-	 * @param data
+	 * @return the number or -1 if any char is not a digit
 	 */
-	private void extractPrefix(String data)
+	private int parseNumeric(int start)
 	{
-		//set prefix - : is at 0
-		prefix = data.substring(1 , data.indexOf(" "));
-		
-		//increment offset , +1 is for : removed
-		offset += prefix.length() + 1;
+		int value = 0;
+		for(int i = start; i < start + 3; i++)
+		{
+			int digit = data.charAt(i) - '0';
+			if(digit < 0 || digit > 9) return -1;
+			value = value * 10 + digit;
+		}
+		return value;
 	}
 	
 	/**
@@ -137,10 +231,9 @@ public class EventToken
 	 */
 	public String getHostName()
 	{
-		int index = prefix.indexOf('@');
-		if(index != -1 && index + 1 < prefix.length())
+		if(atIndex != -1 && atIndex + 1 < prefixEnd)
 		{
-			return prefix.substring(index + 1);
+			return data.substring(atIndex + 1, prefixEnd);
 		}
 		return "";
 	}
@@ -152,12 +245,10 @@ public class EventToken
 	 */
 	public String getUserName()
 	{
-		int sindex = prefix.indexOf('!');
-		int eindex = prefix.indexOf("@");
-		if(eindex == -1)eindex = prefix.length() - 1;
-		if(sindex != -1 && sindex + 1 < prefix.length())
+		if(bangIndex != -1 && bangIndex + 1 < prefixEnd)
 		{
-			return prefix.substring(sindex + 1 , eindex);
+			int end = atIndex > bangIndex ? atIndex : prefixEnd;
+			return data.substring(bangIndex + 1, end);
 		}
 		return "";
 	}
@@ -169,9 +260,9 @@ public class EventToken
 	 */
 	public String getNick()
 	{
-		if(prefix.indexOf("!") != -1)
+		if(bangIndex != -1)
 		{
-			return prefix.substring(0,prefix.indexOf('!'));
+			return data.substring(prefixStart, bangIndex);
 		}
 		return "";
 	}
@@ -182,6 +273,10 @@ public class EventToken
 	 */
 	public String prefix()
 	{
+		if(prefix == null)
+		{
+			prefix = prefixStart == -1 ? "" : data.substring(prefixStart, prefixEnd);
+		}
 		return prefix;
 	}
 	
@@ -192,17 +287,60 @@ public class EventToken
 	 */
 	public String command()
 	{
+		if(command == null)
+		{
+			command = data.substring(commandStart, commandEnd);
+		}
 		return command;
 	}
 	
 	/**
-	 * Gets list of arguments
+	 * Tests the command without creating a String for it
+	 * 
+	 * @param cmd command to compare with
+	 * @return true if the command is cmd
+	 */
+	public boolean isCommand(String cmd)
+	{
+		int length = commandEnd - commandStart;
+		return cmd.length() == length && data.regionMatches(commandStart, cmd, 0, length);
+	}
+	
+	/**
+	 * Gets list of arguments. The list is a read only view , 
+	 * argument Strings are created as they are read from it.
 	 * 
 	 * @return list of arguments
 	 */
 	public List<String>args()
 	{
-		return arguments;
+		if(argList == null)
+		{
+			argList = new AbstractList<String>()
+			{
+				public String get(int index)
+				{
+					if(index < 0 || index >= argCount) throw new IndexOutOfBoundsException(String.valueOf(index));
+					return arg(index);
+				}
+
+				public int size()
+				{
+					return argCount;
+				}
+			};
+		}
+		return argList;
+	}
+	
+	/**
+	 * Gets the number of arguments
+	 * 
+	 * @return argument count
+	 */
+	public int argCount()
+	{
+		return argCount;
 	}
 	
 	/**
@@ -213,13 +351,210 @@ public class EventToken
 	 */
 	public String arg(int index)
 	{
-		if(index < arguments.size())
+		if(index < 0 || index >= argCount)
+		{
+			return null;
+		}
+		if(argStrings == null)
 		{
-			return arguments.get(index);
+			argStrings = new String[argCount];
+		}
+		String arg = argStrings[index];
+		if(arg == null)
+		{
+			arg = data.substring(argOffsets[index * 2], argOffsets[index * 2 + 1]);
+			argStrings[index] = arg;
+		}
+		return arg;
+	}
+	
+	/**
+	 * Gets the offset in the raw data an argument starts at
+	 * 
+	 * @param index
+	 * @return offset or -1 if no argument at that index
+	 */
+	public int argStart(int index)
+	{
+		return index < 0 || index >= argCount ? -1 : argOffsets[index * 2];
+	}
+	
+	/**
+	 * Gets the offset in the raw data an argument ends at (exclusive)
+	 * 
+	 * @param index
+	 * @return offset or -1 if no argument at that index
+	 */
+	public int argEnd(int index)
+	{
+		return index < 0 || index >= argCount ? -1 : argOffsets[index * 2 + 1];
+	}
+	
+	/**
+	 * Gets the value of an IRCv3 message tag
+	 * 
+	 * @param key tag name like time or batch
+	 * @return unescaped value , an empty String for a tag without value , 
+	 * null if the line does not have the tag
+	 */
+	public String getTag(String key)
+	{
+		if(tags == null) return null;
+		
+		int length = tags.length();
+		int start = 0;
+		while(start < length)
+		{
+			int end = tags.indexOf(';', start);
+			if(end == -1) end = length;
+			
+			int keyEnd = start + key.length();
+			if(keyEnd <= end && tags.regionMatches(start, key, 0, key.length()))
+			{
+				if(keyEnd == end) return "";
+				if(tags.charAt(keyEnd) == '=') return unescape(tags, keyEnd + 1, end);
+			}
+			start = end + 1;
 		}
 		return null;
 	}
 	
+	/**
+	 * Gets all IRCv3 message tags of the line
+	 * 
+	 * @return read only map of tag names to unescaped values , empty if there are no tags
+	 */
+	public Map<String, String> getTags()
+	{
+		if(tags == null) return Collections.emptyMap();
+		if(tagMap == null)
+		{
+			Map<String, String> map = new LinkedHashMap<String, String>();
+			int length = tags.length();
+			int start = 0;
+			while(start < length)
+			{
+				int end = tags.indexOf(';', start);
+				if(end == -1) end = length;
+				
+				int equals = tags.indexOf('=', start);
+				if(equals == -1 || equals > end) map.put(tags.substring(start, end), "");
+				else if(equals > start) map.put(tags.substring(start, equals), unescape(tags, equals + 1, end));
+				start = end + 1;
+			}
+			tagMap = Collections.unmodifiableMap(map);
+		}
+		return tagMap;
+	}
+	
+	/**
+	 * Gets the time the server says the message was sent , from the
+	 * IRCv3 server-time tag. Servers replaying a backlog send the
+	 * time of each old message this way.
+	 * 
+	 * @return milliseconds since the epoch , -1 if the line has no valid time tag
+	 */
+	public long getServerTime()
+	{
+		String time = getTag("time");
+		return time == null ? -1 : parseTime(time);
+	}
+	
+	/**
+	 * Gives this token the message tags of another. Used when a parser builds
+	 * a typed event from the raw event data of a tagged line.
+	 * This method is for internal use only.
+	 * 
+	 * @param source token of the line the event was built from
+	 */
+	public void inheritTags(EventToken source)
+	{
+		if(tags == null && source != this)
+		{
+			tags = source.tags;
+			tagMap = source.tagMap;
+		}
+	}
+	
+	/**
+	 * Unescapes a tag value , \: is ; \s is space \\ is \ and \r \n are CR LF
+	 */
+	private static String unescape(String s, int start, int end)
+	{
+		int slash = s.indexOf('\\', start);
+		if(slash == -1 || slash >= end) return s.substring(start, end);
+		
+		StringBuilder sb = new StringBuilder(end - start);
+		for(int i = start; i < end; i++)
+		{
+			char c = s.charAt(i);
+			if(c != '\\')
+			{
+				sb.append(c);
+				continue;
+			}
+			if(++i == end) break;
+			c = s.charAt(i);
+			if(c == ':') sb.append(';');
+			else if(c == 's') sb.append(' ');
+			else if(c == 'r') sb.append('\r');
+			else if(c == 'n') sb.append('\n');
+			else sb.append(c);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Parses the UTC time of a server-time tag , like 2011-10-19T16:40:51.620Z
+	 * 
+	 * @return milliseconds since the epoch or -1 if the time is not valid
+	 */
+	static long parseTime(String time)
+	{
+		if(time.length() < 20 || time.charAt(4) != '-' || time.charAt(7) != '-' || time.charAt(10) != 'T'
+				|| time.charAt(13) != ':' || time.charAt(16) != ':' || time.charAt(time.length() - 1) != 'Z')
+		{
+			return -1;
+		}
+		
+		int year = digits(time, 0, 4), month = digits(time, 5, 2), day = digits(time, 8, 2);
+		int hour = digits(time, 11, 2), minute = digits(time, 14, 2), second = digits(time, 17, 2);
+		int millis = 0;
+		if(time.length() > 20)
+		{
+			if(time.charAt(19) != '.') return -1;
+			int fraction = time.length() - 21;
+			millis = digits(time, 20, Math.min(fraction, 3));
+			for(int i = fraction; i < 3 && millis >= 0; i++) millis *= 10;
+		}
+		if((year | month | day | hour | minute | second | millis) < 0 || month < 1 || month > 12) return -1;
+		
+		/* days from 1970-01-01 , from the civil calendar algorithm */
+		int y = month <= 2 ? year - 1 : year;
+		int era = y / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		long days = era * 146097L + dayOfEra - 719468;
+		
+		return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L + millis;
+	}
+	
+	/**
+	 * @return value of count decimal digits , -1 if any is not a digit
+	 */
+	private static int digits(String s, int start, int count)
+	{
+		int value = 0;
+		for(int i = start; i < start + count; i++)
+		{
+			int digit = s.charAt(i) - '0';
+			if(digit < 0 || digit > 9) return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+	
 	/**
 	 * Returns raw event data
 	 * 
@@ -237,13 +572,7 @@ public class EventToken
 	 */
 	public int numeric()
 	{
-		int i = -1;
-		try
-		{
-			i = Integer.parseInt(command);
-		}
-		catch (NumberFormatException e){}
-		return i;
+		return numeric;
 	}
 	
 	/* (non-Javadoc)
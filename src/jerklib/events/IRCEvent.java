@@ -98,6 +98,16 @@ public class IRCEvent extends EventToken
         ERROR,
         CTCP_EVENT,
         CONNECTION_LOST,
+
+        /**
+         * A reconnect has been scheduled after a lost or failed connection
+         */
+        RECONNECT_SCHEDULED,
+
+        /**
+         * An IRCv3 batch ended , like a netsplit
+         */
+        BATCH,
     }
 
     
@@ -111,7 +121,8 @@ public class IRCEvent extends EventToken
     	super(data);
     	this.type = type;
     	this.session = session;
-    	this.data = data;
+    	/* without IRCv3 message tags */
+    	this.data = super.getRawEventData();
     }
     
     
@@ -129,7 +140,8 @@ public class IRCEvent extends EventToken
 
 
     /**
-     * Returns the raw IRC data that makes up this event
+     * Returns the raw IRC data that makes up this event ,
+     * without IRCv3 message tags
      *
      * @return Raw IRC event text.
      */
@@ -5,6 +5,7 @@ import java.util.List;
 
 import jerklib.Channel;
 import jerklib.Session;
+import jerklib.SortedNickList;
 import jerklib.events.IRCEvent;
 
 /**
@@ -46,4 +47,17 @@ public class NickListEvent extends IRCEvent
 	{
 		return nicks;
 	}
+
+  /**
+   * Gets the nick list sorted by nick prefix then name. The list is a copy
+   * made for this event , it can be kept up to date from JOIN , PART , QUIT ,
+   * NICK , KICK and MODE events instead of waiting for the next NAMES.
+   *
+   * @return sorted nick list , null if the nicks given were not a SortedNickList
+   * @see SortedNickList
+   */
+	public SortedNickList getNickList()
+	{
+		return nicks instanceof SortedNickList ? (SortedNickList) nicks : null;
+	}
 }
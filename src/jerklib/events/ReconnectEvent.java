@@ -0,0 +1,37 @@
+package jerklib.events;
+
+import jerklib.Session;
+
+/**
+ * The event fired when a reconnect has been scheduled after a connection
+ * was lost or could not be made.
+ *
+ */
+public class ReconnectEvent extends IRCEvent
+{
+	private final int attempt;
+	private final long delay;
+	
+	public ReconnectEvent(Session session , int attempt , long delay)
+	{
+		super("",session,Type.RECONNECT_SCHEDULED);
+		this.attempt = attempt;
+		this.delay = delay;
+	}
+	
+	/**
+	 * @return number of the connection attempt that has been scheduled , starting at 1
+	 */
+	public int getAttempt()
+	{
+		return attempt;
+	}
+	
+	/**
+	 * @return milliseconds until the attempt is made , backoff and jitter included
+	 */
+	public long getDelay()
+	{
+		return delay;
+	}
+}
@@ -0,0 +1,27 @@
+package jerklib.listeners;
+
+import java.util.List;
+
+import jerklib.SessionMetrics;
+import jerklib.ShardMetrics;
+
+
+/**
+ * MetricsListener - Listener to be handed the metrics of a ConnectionManager
+ * at a fixed interval
+ *
+ * @see jerklib.ConnectionManager#addMetricsListener(MetricsListener, long)
+ */
+public interface MetricsListener
+{
+
+    /**
+     * metricsUpdated() - called every interval with copies of the metrics ,
+     * not on an io thread
+     *
+     * @param sessions metrics of each Session
+     * @param shards metrics of each io thread
+     */
+    public void metricsUpdated(List<SessionMetrics> sessions, List<ShardMetrics> shards);
+
+}
@@ -1,6 +1,4 @@
 package jerklib.parsers;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import jerklib.events.ChannelListEvent;
 import jerklib.events.IRCEvent;
@@ -8,21 +6,28 @@ import jerklib.events.IRCEvent;
 
 public class ChanListParser implements CommandParser
 {
+	/*
+	 * :irc.freenode.net 322 mohadib #jerklib 5 :Java IRC library
+	 * <nick> <channel> <# visible> :<topic>
+	 */
 	public IRCEvent createEvent(IRCEvent event)
 	{
 		String data = event.getRawEventData();
-		Pattern p = Pattern.compile("^:\\S+\\s322\\s\\S+\\s(\\S+)\\s(\\d+)\\s:(.*)$");
-		Matcher m = p.matcher(data);
-		if (m.matches()) 
-		{ 
-			return new ChannelListEvent
-			(
-				data, 
-				m.group(1), 
-				m.group(3), 
-				Integer.parseInt(m.group(2)), 
-				event.getSession()
-			); 
+		if (event.numeric() == 322 && event.prefix().length() > 0 && event.argCount() == 4
+				&& data.charAt(event.argStart(3) - 1) == ':')
+		{
+			int users = ParserUtils.parseDigits(data, event.argStart(2), event.argEnd(2));
+			if (users != -1)
+			{
+				return new ChannelListEvent
+				(
+					data, 
+					event.arg(1), 
+					event.arg(3), 
+					users, 
+					event.getSession()
+				);
+			}
 		}
 		return event;
 	}
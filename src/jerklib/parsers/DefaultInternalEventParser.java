@@ -1,15 +1,22 @@
 package jerklib.parsers;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import jerklib.Session;
 import jerklib.events.IRCEvent;
+import jerklib.events.IRCEvent.Type;
 
 
 /**
  * This is the default impl of InternalEventParser. This class is used to turn
  * raw irc text into IRCEvents. You can change the parsing of data and the creation of
  * events by adding/removing CommandParsers.
+ * <p>
+ * CommandParsers that only build an event , without changing any Session or
+ * Channel state , can be added with the Types of events they create. They are
+ * only run if the Session wants one of those Types , else the line is dropped.
  * 
  * 
  * @see CommandParser
@@ -19,6 +26,14 @@ import jerklib.events.IRCEvent;
 public class DefaultInternalEventParser implements InternalEventParser
 {
 	private final Map<String , CommandParser> parsers = new HashMap<String, CommandParser>();
+	
+	/* types created by parsers that can be skipped , keyed by command */
+	private final Map<String , Type[]> skippableTypes = new HashMap<String, Type[]>();
+	
+	/* same as above for three digit commands , indexed by numeric so most
+	 * server replies are looked up without creating the command String */
+	private final CommandParser[] numericParsers = new CommandParser[1000];
+	private final Type[][] numericSkippableTypes = new Type[1000][];
 	private CommandParser defaultParser;
 	
 	public DefaultInternalEventParser()
@@ -28,20 +43,108 @@ public class DefaultInternalEventParser implements InternalEventParser
 	
 	public IRCEvent receiveEvent(IRCEvent e)
 	{
-		CommandParser parser = parsers.get(e.command());
+		CommandParser parser;
+		Type[] types;
+		int numeric = e.numeric();
+		if(numeric != -1)
+		{
+			parser = numericParsers[numeric];
+			types = numericSkippableTypes[numeric];
+		}
+		else
+		{
+			String command = e.command();
+			parser = parsers.get(command);
+			types = skippableTypes.get(command);
+		}
+		
+		if(parser != null && !isWanted(e.getSession(), types))
+		{
+			return null;
+		}
 		parser = parser == null? defaultParser : parser;
 		return parser == null?e:parser.createEvent(e);
 	}
+	
+	/**
+	 * @return true if types is null or the Session wants one of them
+	 */
+	private boolean isWanted(Session session , Type[] types)
+	{
+		if(types == null || session == null) return true;
+		for(Type type : types)
+		{
+			if(session.wantsEvent(type)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @return index into the numeric tables or -1 if command is not three digits
+	 */
+	private static int numericIndex(String command)
+	{
+		if(command.length() != 3) return -1;
+		int value = 0;
+		for(int i = 0 ; i < 3 ; i++)
+		{
+			int digit = command.charAt(i) - '0';
+			if(digit < 0 || digit > 9) return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+	
+	private void put(String command , CommandParser parser , Type[] types)
+	{
+		if(parser == null)
+		{
+			parsers.remove(command);
+			skippableTypes.remove(command);
+		}
+		else
+		{
+			parsers.put(command, parser);
+			if(types == null) skippableTypes.remove(command);
+			else skippableTypes.put(command, types);
+		}
+		
+		int index = numericIndex(command);
+		if(index != -1)
+		{
+			numericParsers[index] = parser;
+			numericSkippableTypes[index] = types;
+		}
+	}
 
 	
 	public void removeAllParsers()
 	{
 		parsers.clear();
+		skippableTypes.clear();
+		Arrays.fill(numericParsers, null);
+		Arrays.fill(numericSkippableTypes, null);
 	}
 	
 	public void addParser(String command , CommandParser parser)
 	{
-		parsers.put(command, parser);
+		put(command, parser, null);
+	}
+	
+	/**
+	 * Adds a parser that has no side effects and only creates events
+	 * of the given Types. The parser is skipped when the Session does not
+	 * want any of the Types. A parser that changes Session or Channel state
+	 * or writes to the server , like TopicUpdatedParser , must be added
+	 * without Types so it always runs.
+	 * 
+	 * @param command
+	 * @param parser
+	 * @param types types of events the parser can create
+	 */
+	public void addParser(String command , CommandParser parser , Type... types)
+	{
+		put(command, parser, types.clone());
 	}
 	
 	public CommandParser getParser(String command)
@@ -51,7 +154,9 @@ public class DefaultInternalEventParser implements InternalEventParser
 	
 	public boolean removeParser(String command)
 	{
-		return parsers.remove(command) != null;
+		boolean removed = parsers.containsKey(command);
+		put(command, null, null);
+		return removed;
 	}
 	
 	public void setDefaultParser(CommandParser parser)
@@ -66,68 +171,77 @@ public class DefaultInternalEventParser implements InternalEventParser
 	
 	public void initDefaultParsers()
 	{
-		parsers.put("001" , new ConnectionCompleteParser());
-		parsers.put("002" , new ServerVersionParser());
-		parsers.put("005" , new ServerInformationParser());
+		/*
+		 * parsers that change Session or Channel state , or ask the server
+		 * for something , always run
+		 */
+		addParser("001" , new ConnectionCompleteParser());
+		addParser("005" , new ServerInformationParser());
 		
-		CommandParser awayParser = new AwayParser();
-		parsers.put("301" , awayParser);
-		parsers.put("305" , awayParser);
-		parsers.put("306" , awayParser);
+		WhoisParser whoisParser = new WhoisParser();
+		addParser("311", whoisParser);
+		addParser("312", whoisParser);
+		addParser("317", whoisParser);
+		addParser("318", whoisParser);
+		addParser("319", whoisParser);
+		addParser("320", whoisParser);
 		
-		parsers.put("314", new WhoWasParser());
+		addParser("324" , new ModeParser());
 		
-		WhoisParser whoisParser = new WhoisParser();
-		parsers.put("311", whoisParser);
-		parsers.put("312", whoisParser);
-		parsers.put("317", whoisParser);
-		parsers.put("318", whoisParser);
-		parsers.put("319", whoisParser);
-		parsers.put("320", whoisParser);
+		TopicParser topicParser = new TopicParser();
+		addParser("332", topicParser);
+		addParser("333", topicParser);
 		
-		ChanListParser chanListParser = new ChanListParser();
-		parsers.put("321" , chanListParser);
-		parsers.put("322" , chanListParser);
+		NamesParser namesParser = new NamesParser();
+		addParser("353" , namesParser);
+		addParser("366" , namesParser);
 		
-		parsers.put("324" , new ModeParser());
+		addParser("QUIT" , new QuitParser());
+		addParser("JOIN" , new JoinParser());
+		addParser("PART", new PartParser());
+		//asks for the topic so 332/333 update the Channel
+		addParser("TOPIC", new TopicUpdatedParser());
+		addParser("NICK", new NickParser());
+		addParser("MODE", new ModeParser());
+		addParser("KICK",new KickParser());
 		
-		TopicParser topicParser = new TopicParser();
-		parsers.put("332", topicParser);
-		parsers.put("333", topicParser);
+		/*
+		 * parsers that only build an event , skipped when the Session does
+		 * not want any of its Types
+		 */
+		addParser("002" , new ServerVersionParser() , Type.SERVER_VERSION_EVENT);
+		addParser("351" , new ServerVersionParser() , Type.SERVER_VERSION_EVENT);
 		
-		parsers.put("351" , new ServerVersionParser());
-		parsers.put("352", new WhoParser());
+		CommandParser awayParser = new AwayParser();
+		addParser("301" , awayParser , Type.AWAY_EVENT);
+		addParser("305" , awayParser , Type.AWAY_EVENT);
+		addParser("306" , awayParser , Type.AWAY_EVENT);
 		
-		NamesParser namesParser = new NamesParser();
-		parsers.put("353" , namesParser);
-		parsers.put("366" , namesParser);
+		addParser("314", new WhoWasParser() , Type.WHOWAS_EVENT);
+		
+		ChanListParser chanListParser = new ChanListParser();
+		addParser("321" , chanListParser , Type.CHANNEL_LIST_EVENT);
+		addParser("322" , chanListParser , Type.CHANNEL_LIST_EVENT);
+		
+		addParser("352", new WhoParser() , Type.WHO_EVENT);
 		
 		MotdParser motdParser = new MotdParser();
-		parsers.put("372", motdParser);
-		parsers.put("375", motdParser);
-		parsers.put("376", motdParser);
-		
-		
-		
-		parsers.put("PRIVMSG", new PrivMsgParser());
-		parsers.put("QUIT" , new QuitParser());
-		parsers.put("JOIN" , new JoinParser());
-		parsers.put("PART", new PartParser());
-		parsers.put("NOTICE", new NoticeParser());
-		parsers.put("TOPIC", new TopicUpdatedParser());
-		parsers.put("INVITE", new InviteParser());
-		parsers.put("NICK", new NickParser());
-		parsers.put("MODE", new ModeParser());
-        parsers.put("KICK",new KickParser());
-
+		addParser("372", motdParser , Type.MOTD);
+		addParser("375", motdParser , Type.MOTD);
+		addParser("376", motdParser , Type.MOTD);
+		
+		addParser("PRIVMSG", new PrivMsgParser() , Type.CHANNEL_MESSAGE , Type.PRIVATE_MESSAGE , Type.CTCP_EVENT);
+		addParser("NOTICE", new NoticeParser() , Type.NOTICE);
+		addParser("INVITE", new InviteParser() , Type.INVITE_EVENT);
 		
 		//numeric errors
 		CommandParser errorParser = new NumericErrorParser();
 		for(int i = 400 ; i < 553 ; i++)
 		{
-			parsers.put(String.valueOf(i), errorParser);
+			addParser(String.valueOf(i), errorParser , Type.ERROR);
 		}
 		
-		parsers.put("433", new NickInUseParser());
+		//picks an alternate nick while registering , always run
+		addParser("433", new NickInUseParser());
 	}
 }
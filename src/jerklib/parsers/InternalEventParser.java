@@ -4,5 +4,12 @@ import jerklib.events.IRCEvent;
 
 public interface InternalEventParser
 {
+	/**
+	 * Turns a raw event into a typed event
+	 * 
+	 * @param e event with Type.DEFAULT
+	 * @return the typed event , e if there is no typed event for it , or null
+	 * if the event is not wanted and should be dropped
+	 */
 	public IRCEvent receiveEvent(IRCEvent e);
 }
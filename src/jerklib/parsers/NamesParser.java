@@ -14,26 +14,27 @@ public class NamesParser implements CommandParser
 	public IRCEvent createEvent(IRCEvent event)
 	{
 
-		if (event.command().matches("366"))
+		if (event.numeric() == 366)
 		{
 			Session session = event.getSession();
+			Channel chan = session.getChannel(event.arg(1));
+			if (chan == null) return event;
 			return new NickListEvent
 			(
 				event.getRawEventData(), 
 				session, 
-				session.getChannel(event.arg(1)),
-				session.getChannel(event.arg(1)).getNicks());
+				chan,
+				chan.getNickList());
 		}
 
+		/* names are added to the channel as each 353 arrives , sorted as they go in */
 		Channel chan = event.getSession().getChannel(event.arg(2));
-		String[] names = event.arg(3).split("\\s+");
-
-		for (String name : names)
+		if (chan == null) return event;
+		for (String name : ParserUtils.splitWords(event.arg(3)))
 		{
-			if (name != null && name.length() > 0)
-			{
-				chan.addNick(name);
-			}
+			/* userhost-in-names sends nick!user@host */
+			int bang = name.indexOf('!');
+			chan.addNick(bang > 0 ? name.substring(0, bang) : name);
 		}
 		return event;
 	}
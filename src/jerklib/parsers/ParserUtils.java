@@ -0,0 +1,74 @@
+package jerklib.parsers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for CommandParsers that read parts of an argument without regex
+ */
+final class ParserUtils
+{
+	private ParserUtils()
+	{
+	}
+
+	/**
+	 * Splits text on runs of whitespace , empty words are left out.
+	 * Same as split("\\s+") without compiling a Pattern.
+	 * 
+	 * @param text
+	 * @return words
+	 */
+	static List<String> splitWords(String text)
+	{
+		List<String> words = new ArrayList<String>();
+		int length = text.length();
+		int i = 0;
+		while (i < length)
+		{
+			while (i < length && isWhitespace(text.charAt(i)))
+			{
+				i++;
+			}
+			int start = i;
+			while (i < length && !isWhitespace(text.charAt(i)))
+			{
+				i++;
+			}
+			if (i > start)
+			{
+				words.add(text.substring(start, i));
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * Parses a run of ASCII digits
+	 * 
+	 * @param text
+	 * @param start
+	 * @param end
+	 * @return the number or -1 if the run is empty , has a non digit or does not fit in an int
+	 */
+	static int parseDigits(String text, int start, int end)
+	{
+		if (start >= end || end - start > 9) return -1;
+		int value = 0;
+		for (int i = start; i < end; i++)
+		{
+			int digit = text.charAt(i) - '0';
+			if (digit < 0 || digit > 9) return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Whitespace as matched by \s in a regex
+	 */
+	static boolean isWhitespace(char c)
+	{
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+}
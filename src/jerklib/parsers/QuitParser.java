@@ -14,7 +14,8 @@ public class QuitParser implements CommandParser
 	{
 		Session session = event.getSession();
 		String nick = event.getNick();
-		List<Channel> chanList = event.getSession().removeNickFromAllChannels(nick);
+		/* the internal event handler removes the nick , a netsplit batch removes them all at once */
+		List<Channel> chanList = session.getChannelsOf(nick);
 		return new QuitEvent
 		(
 			event.getRawEventData(), 
@@ -1,19 +1,22 @@
 package jerklib.parsers;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import jerklib.events.IRCEvent;
 
 
 public class TopicUpdatedParser implements CommandParser
 {
+	/*
+	 * :nick!user@host TOPIC #channel :new topic
+	 * ask for the topic so 332/333 update the Channel
+	 */
 	public IRCEvent createEvent(IRCEvent event)
 	{
-		Pattern p = Pattern.compile("^.+?TOPIC\\s+(.+?)\\s+.*$");
-		Matcher m = p.matcher(event.getRawEventData());
-		m.matches();
-		event.getSession().sayRaw("TOPIC " + m.group(1));
+		String channel = event.arg(0);
+		if (channel != null && event.argCount() > 1)
+		{
+			event.getSession().sayRaw("TOPIC " + channel);
+		}
 		return event;
 	}
 }
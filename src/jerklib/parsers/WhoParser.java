@@ -1,7 +1,5 @@
 package jerklib.parsers;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import jerklib.events.IRCEvent;
 import jerklib.events.WhoEvent;
@@ -9,27 +7,45 @@ import jerklib.events.WhoEvent;
 
 public class WhoParser implements CommandParser
 {
+	/*
+	 * :irc.freenode.net 352 mohadib #jerklib ~user host.net irc.freenode.net nick H :0 Real Name
+	 * <nick> <channel> <user> <host> <server> <nick> <H|G>[*][@|+] :<hopcount> <real name>
+	 */
 	public IRCEvent createEvent(IRCEvent event)
 	{
+		if (event.argCount() != 8) return event;
+
 		String data = event.getRawEventData();
-		Pattern p = Pattern.compile("^:.+?\\s+352\\s+.+?\\s+(.+?)\\s+(.+?)\\s+(.+?)\\s+(.+?)\\s+(.+?)\\s+(.+?):(\\d+)\\s+(.+)$");
-		Matcher m = p.matcher(data);
-		if (m.matches())
+		int trailingStart = event.argStart(7);
+		int trailingEnd = event.argEnd(7);
+
+		int hopEnd = trailingStart;
+		while (hopEnd < trailingEnd && data.charAt(hopEnd) >= '0' && data.charAt(hopEnd) <= '9')
+		{
+			hopEnd++;
+		}
+		int realNameStart = hopEnd;
+		while (realNameStart < trailingEnd && ParserUtils.isWhitespace(data.charAt(realNameStart)))
 		{
-			
-			boolean away = m.group(6).charAt(0) == 'G';
-			return new WhoEvent(m.group(1), // channel
-					Integer.parseInt(m.group(7)), // hop count
-					m.group(3), // hostname
-					away, // status indicator
-					m.group(5), // nick
-					data, // raw event data
-					m.group(8), // real name
-					m.group(4), // server name
-					event.getSession(), // session
-					m.group(2) // username
-			);
+			realNameStart++;
 		}
-		return event;
+		int hopCount = ParserUtils.parseDigits(data, trailingStart, hopEnd);
+		if (hopCount == -1 || realNameStart == hopEnd || realNameStart == trailingEnd)
+		{
+			return event;
+		}
+
+		boolean away = event.arg(6).charAt(0) == 'G';
+		return new WhoEvent(event.arg(1), // channel
+				hopCount, // hop count
+				event.arg(3), // hostname
+				away, // status indicator
+				event.arg(5), // nick
+				data, // raw event data
+				data.substring(realNameStart, trailingEnd), // real name
+				event.arg(4), // server name
+				event.getSession(), // session
+				event.arg(2) // username
+		);
 	}
 }
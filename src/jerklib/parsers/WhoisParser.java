@@ -1,6 +1,5 @@
 package jerklib.parsers;
 
-import java.util.Arrays;
 import java.util.List;
 
 import jerklib.events.IRCEvent;
@@ -37,7 +36,7 @@ public class WhoisParser implements CommandParser
 				// kubrick.freenode.net 319 scripy mohadib :@#jerklib ##swing
 				if (we != null )
 				{
-					List<String> chanNames = Arrays.asList(event.arg(2).split("\\s+"));
+					List<String> chanNames = ParserUtils.splitWords(event.arg(2));
 					we.setChannelNamesList(chanNames);
 					we.appendRawEventData(event.getRawEventData());
 				}
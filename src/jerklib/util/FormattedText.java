@@ -0,0 +1,358 @@
+package jerklib.util;
+
+/**
+ * Splits a message with mIRC formatting codes into the text without the
+ * codes and the runs of text that have a style.
+ *
+ * <pre>
+ * FormattedText f = FormattedText.parse(message);
+ * String text = f.getText();
+ * for (int i = 0; i < f.getRunCount(); i++)
+ * {
+ * 	if (f.hasStyle(i, FormattedText.BOLD)) ...
+ * }
+ * </pre>
+ *
+ * Handles bold (^B) , italic (^]) , underline (^_) , strikethrough (^^) ,
+ * monospace (^Q) , reverse (^V) , reset (^O) and colors (^C). A color is
+ * ^C followed by up to two digits for the foreground and , if a digit
+ * follows a comma , up to two for the background. ^C with no digits resets
+ * both colors and 99 is the default color. Hex colors (^D) are removed but
+ * not kept. Runs only cover text with some style , never overlap , are in
+ * order and adjacent runs always differ.
+ *
+ * The message is read once , so this is linear in its length.
+ */
+public final class FormattedText
+{
+	public static final int BOLD = 1 , ITALIC = 2 , UNDERLINE = 4 , STRIKETHROUGH = 8 , MONOSPACE = 16 , REVERSE = 32;
+
+	/** foreground or background when none is set */
+	public static final int NO_COLOR = -1;
+
+	private static final FormattedText EMPTY = new FormattedText("");
+
+	/* start , end , style , foreground , background of each run */
+	private static final int FIELDS = 5;
+	private static final int[] NO_RUNS = new int[0];
+
+	private String text;
+	private int[] runs = NO_RUNS;
+	private int runCount;
+
+	private FormattedText(String text)
+	{
+		this.text = text;
+	}
+
+	/**
+	 * Parses a message
+	 *
+	 * @param message raw message , may be null
+	 * @return text and style runs
+	 */
+	public static FormattedText parse(String message)
+	{
+		if (message == null || message.length() == 0) return EMPTY;
+
+		int length = message.length();
+		int i = 0;
+		while (i < length && !isCode(message.charAt(i)))
+		{
+			i++;
+		}
+		FormattedText f = new FormattedText(message);
+		if (i == length) return f;
+
+		StringBuilder text = new StringBuilder(length);
+		text.append(message, 0, i);
+		int style = 0 , fg = NO_COLOR , bg = NO_COLOR;
+		/* where the text with the current style started */
+		int start = i;
+
+		while (i < length)
+		{
+			char c = message.charAt(i);
+			if (!isCode(c))
+			{
+				/* copy up to the next code at once */
+				int end = i + 1;
+				while (end < length && !isCode(message.charAt(end)))
+				{
+					end++;
+				}
+				text.append(message, i, end);
+				i = end;
+				continue;
+			}
+
+			int newStyle = style , newFg = fg , newBg = bg;
+			i++;
+			switch (c)
+			{
+				case '\u0002':
+					newStyle ^= BOLD;
+					break;
+				case '\u001d':
+					newStyle ^= ITALIC;
+					break;
+				case '\u001f':
+					newStyle ^= UNDERLINE;
+					break;
+				case '\u001e':
+					newStyle ^= STRIKETHROUGH;
+					break;
+				case '\u0011':
+					newStyle ^= MONOSPACE;
+					break;
+				case '\u0016':
+					newStyle ^= REVERSE;
+					break;
+				case '\u000f':
+					newStyle = 0;
+					newFg = newBg = NO_COLOR;
+					break;
+				case '\u0003':
+				{
+					int end = codeEnd(message, i - 1);
+					int digits = digits(message, i);
+					if (digits == 0)
+					{
+						newFg = newBg = NO_COLOR;
+					}
+					else
+					{
+						newFg = color(message, i, digits);
+						if (end > i + digits) newBg = color(message, i + digits + 1, end - i - digits - 1);
+					}
+					i = end;
+					break;
+				}
+				case '\u0004':
+					/* removed */
+					i = codeEnd(message, i - 1);
+					break;
+			}
+
+			if (newStyle == style && newFg == fg && newBg == bg) continue;
+			if (text.length() > start)
+			{
+				f.close(start, text.length(), style, fg, bg);
+				start = text.length();
+			}
+			style = newStyle;
+			fg = newFg;
+			bg = newBg;
+		}
+		f.close(start, text.length(), style, fg, bg);
+		f.text = text.toString();
+		return f;
+	}
+
+	/*
+	 * Ends text with a style , adding a run if the style is not plain.
+	 * Codes that undo each other leave the previous run going.
+	 */
+	private void close(int start, int end, int style, int fg, int bg)
+	{
+		if (end == start || (style == 0 && fg == NO_COLOR && bg == NO_COLOR)) return;
+		int last = (runCount - 1) * FIELDS;
+		if (runCount > 0 && runs[last + 1] == start && runs[last + 2] == style && runs[last + 3] == fg && runs[last + 4] == bg)
+		{
+			runs[last + 1] = end;
+			return;
+		}
+		if (runs.length < (runCount + 1) * FIELDS)
+		{
+			int[] grown = new int[Math.max(FIELDS * 4, runs.length * 2)];
+			System.arraycopy(runs, 0, grown, 0, runCount * FIELDS);
+			runs = grown;
+		}
+		int r = runCount * FIELDS;
+		runs[r] = start;
+		runs[r + 1] = end;
+		runs[r + 2] = style;
+		runs[r + 3] = fg;
+		runs[r + 4] = bg;
+		runCount++;
+	}
+
+	/**
+	 * Finds the end of a formatting code. Most codes are one char , ^C takes
+	 * the digits of its colors and ^D a hex color RRGGBB[,RRGGBB].
+	 *
+	 * @param message
+	 * @param start index of the code
+	 * @return index after the code
+	 */
+	public static int codeEnd(String message, int start)
+	{
+		int i = start + 1;
+		switch (message.charAt(start))
+		{
+			case '\u0003':
+			{
+				int digits = digits(message, i);
+				if (digits == 0) return i;
+				i += digits;
+				if (i + 1 < message.length() && message.charAt(i) == ',' && isDigit(message.charAt(i + 1)))
+				{
+					i += 1 + digits(message, i + 1);
+				}
+				return i;
+			}
+			case '\u0004':
+			{
+				int hex = hex(message, i);
+				if (hex == 6 && i + 7 < message.length() && message.charAt(i + 6) == ',' && hex(message, i + 7) == 6) hex = 13;
+				return i + hex;
+			}
+			default:
+				return i;
+		}
+	}
+
+	/**
+	 * Removes all formatting codes
+	 *
+	 * @param message raw message
+	 * @return the text
+	 */
+	public static String strip(String message)
+	{
+		return parse(message).getText();
+	}
+
+	/**
+	 * @return the message without formatting codes
+	 */
+	public String getText()
+	{
+		return text;
+	}
+
+	/**
+	 * @return number of runs with a style
+	 */
+	public int getRunCount()
+	{
+		return runCount;
+	}
+
+	/**
+	 * @return index in getText() the run starts at
+	 */
+	public int getStart(int run)
+	{
+		return runs[check(run)];
+	}
+
+	/**
+	 * @return index in getText() after the end of the run
+	 */
+	public int getEnd(int run)
+	{
+		return runs[check(run) + 1];
+	}
+
+	/**
+	 * @return style flags of the run , BOLD | ITALIC ...
+	 */
+	public int getStyle(int run)
+	{
+		return runs[check(run) + 2];
+	}
+
+	public boolean hasStyle(int run, int flag)
+	{
+		return (getStyle(run) & flag) != 0;
+	}
+
+	/**
+	 * @return mIRC color number 0 - 98 , or NO_COLOR
+	 */
+	public int getForeground(int run)
+	{
+		return runs[check(run) + 3];
+	}
+
+	/**
+	 * @return mIRC color number 0 - 98 , or NO_COLOR
+	 */
+	public int getBackground(int run)
+	{
+		return runs[check(run) + 4];
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder(text);
+		for (int i = 0; i < runCount; i++)
+		{
+			sb.append(" [").append(getStart(i)).append(',').append(getEnd(i)).append(" style ").append(getStyle(i));
+			sb.append(" fg ").append(getForeground(i)).append(" bg ").append(getBackground(i)).append(']');
+		}
+		return sb.toString();
+	}
+
+	private int check(int run)
+	{
+		if (run < 0 || run >= runCount) throw new IndexOutOfBoundsException("run " + run + " of " + runCount);
+		return run * FIELDS;
+	}
+
+	private static boolean isCode(char c)
+	{
+		switch (c)
+		{
+			case '\u0002':
+			case '\u0003':
+			case '\u0004':
+			case '\u000f':
+			case '\u0011':
+			case '\u0016':
+			case '\u001d':
+			case '\u001e':
+			case '\u001f':
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static boolean isDigit(char c)
+	{
+		return c >= '0' && c <= '9';
+	}
+
+	/* digits at i , at most 2 */
+	private static int digits(String s, int i)
+	{
+		int n = 0;
+		while (n < 2 && i + n < s.length() && isDigit(s.charAt(i + n)))
+		{
+			n++;
+		}
+		return n;
+	}
+
+	private static int color(String s, int i, int digits)
+	{
+		int color = s.charAt(i) - '0';
+		if (digits == 2) color = color * 10 + s.charAt(i + 1) - '0';
+		return color == 99 ? NO_COLOR : color;
+	}
+
+	/* 6 if there is a hex color at i , else 0 */
+	private static int hex(String s, int i)
+	{
+		if (i + 6 > s.length()) return 0;
+		for (int n = 0; n < 6; n++)
+		{
+			char c = s.charAt(i + n);
+			if (!isDigit(c) && (c < 'a' || c > 'f') && (c < 'A' || c > 'F')) return 0;
+		}
+		return 6;
+	}
+}
@@ -9,6 +9,14 @@ import java.net.ServerSocket;
 import java.net.Socket;
 
 //http://books.google.com/books?id=MbHAnBh9AqQC&pg=PA310&lpg=PA310&dq=irc+fake+ident&source=web&ots=c5sHoXuzFS&sig=ZOuAeIFxKUYanirnj_hbnfpCXBQ&hl=en#PPA311,M1
+/**
+ * Answers a single ident query on port 113 from its own thread.
+ *
+ * @deprecated the ConnectionManager answers ident queries itself , see
+ * {@link jerklib.ConnectionManager#setIdentPort(int)}
+ * @author mohadib
+ */
+@Deprecated
 public class IdentServer implements Runnable
 {
 	private ServerSocket socket;